@@ -18,16 +18,12 @@
 
  package org.apache.zookeeper.common;
 
- import java.util.ArrayDeque;
+ import java.util.ArrayList;
  import java.util.Collection;
- import java.util.Deque;
- import java.util.HashMap;
+ import java.util.List;
  import java.util.Map;
  import java.util.Objects;
- import java.util.concurrent.locks.Lock;
- import java.util.concurrent.locks.ReadWriteLock;
- import java.util.concurrent.locks.ReentrantReadWriteLock;
- import java.util.stream.Stream;
+ import java.util.concurrent.ConcurrentHashMap;
  import org.slf4j.Logger;
  import org.slf4j.LoggerFactory;
 
@@ -45,6 +41,11 @@
   *      (bc)
   *   cf/
   *   (cf)
+  * <p>
+  * Lookups do not lock: the children of a node are kept in concurrent maps,
+  * and only the updates, which are rare, are serialized. A lookup racing
+  * with an update sees each node it visits either before or after the
+  * update.
   */
  public class PathTrie {
 
@@ -54,18 +55,18 @@ public class PathTrie {
      /** Root node of PathTrie */
      private final TrieNode rootNode;
 
-     private final ReadWriteLock lock = new ReentrantReadWriteLock(true);
+     /** Serializes the updates of the trie */
+     private final Object writeLock = new Object();
 
-     private final Lock readLock = lock.readLock();
-
-     private final Lock writeLock = lock.writeLock();
+     /** The number of nodes with the property set, lookups are skipped while there are none */
+     private volatile int propertyCount;
 
      static class TrieNode {
 
          final String value;
          final Map<String, TrieNode> children;
-         boolean property;
-         TrieNode parent;
+         volatile boolean property;
+         volatile TrieNode parent;
 
          /**
           * Create a trie node with parent as parameter.
@@ -77,7 +78,7 @@ private TrieNode(TrieNode parent, String value) {
              this.value = value;
              this.parent = parent;
              this.property = false;
-             this.children = new HashMap<>(4);
+             this.children = new ConcurrentHashMap<>(4);
          }
 
          /**
@@ -208,8 +209,7 @@ public void addPath(final String path) {
          }
          final String[] pathComponents = split(path);
 
-         writeLock.lock();
-         try {
+         synchronized (writeLock) {
              TrieNode parent = rootNode;
              for (final String part : pathComponents) {
                  TrieNode child = parent.getChild(part);
@@ -219,9 +219,10 @@ public void addPath(final String path) {
                  }
                  parent = child;
              }
-             parent.setProperty(true);
-         } finally {
-             writeLock.unlock();
+             if (!parent.hasProperty()) {
+                 parent.setProperty(true);
+                 propertyCount++;
+             }
          }
      }
 
@@ -238,9 +239,7 @@ public void deletePath(final String path) {
          }
          final String[] pathComponents = split(path);
 
-
-         writeLock.lock();
-         try {
+         synchronized (writeLock) {
              TrieNode parent = rootNode;
              for (final String part : pathComponents) {
                  if (parent.getChild(part) == null) {
@@ -251,10 +250,11 @@ public void deletePath(final String path) {
                  LOG.debug("{}", parent);
              }
 
+             if (parent.hasProperty()) {
+                 propertyCount--;
+             }
              final TrieNode realParent = parent.getParent();
              realParent.deleteChild(parent.getValue());
-         } finally {
-             writeLock.unlock();
          }
      }
 
@@ -273,19 +273,14 @@ public boolean existsNode(final String path) {
          }
          final String[] pathComponents = split(path);
 
-         readLock.lock();
-         try {
-             TrieNode parent = rootNode;
-             for (final String part : pathComponents) {
-                 if (parent.getChild(part) == null) {
-                     // the path does not exist
-                     return false;
-                 }
-                 parent = parent.getChild(part);
-                 LOG.debug("{}", parent);
+         TrieNode parent = rootNode;
+         for (final String part : pathComponents) {
+             parent = parent.getChild(part);
+             if (parent == null) {
+                 // the path does not exist
+                 return false;
              }
-         } finally {
-             readLock.unlock();
+             LOG.debug("{}", parent);
          }
          return true;
      }
@@ -300,55 +295,65 @@ public boolean existsNode(final String path) {
      public String findMaxPrefix(final String path) {
          Objects.requireNonNull(path, "Path cannot be null");
 
-         final String[] pathComponents = split(path);
+         if (propertyCount == 0) {
+             return "/";
+         }
 
-         readLock.lock();
-         try {
-             TrieNode parent = rootNode;
-             TrieNode deepestPropertyNode = null;
-             for (final String element : pathComponents) {
-                 parent = parent.getChild(element);
-                 if (parent == null) {
-                     LOG.debug("{}", element);
-                     break;
-                 }
-                 if (parent.hasProperty()) {
-                     deepestPropertyNode = parent;
-                 }
+         // walk the components of the path in place, the prefix is cut out of
+         // the path itself unless it has to be normalized
+         TrieNode parent = rootNode;
+         int deepestEnd = -1;
+         boolean normalized = path.startsWith("/");
+         int start = normalized ? 1 : 0;
+         while (start <= path.length()) {
+             int end = path.indexOf('/', start);
+             if (end < 0) {
+                 end = path.length();
              }
-
-             if (deepestPropertyNode == null) {
-                 return "/";
+             final String element = path.substring(start, end);
+             start = end + 1;
+             if (element.trim().isEmpty()) {
+                 // only a trailing slash keeps the path normalized
+                 normalized &= element.isEmpty() && end == path.length();
+                 continue;
              }
-
-             final Deque<String> treePath = new ArrayDeque<>();
-             TrieNode node = deepestPropertyNode;
-             while (node != this.rootNode) {
-                 treePath.offerFirst(node.getValue());
-                 node = node.parent;
+             parent = parent.getChild(element);
+             if (parent == null) {
+                 LOG.debug("{}", element);
+                 break;
              }
-             return "/" + String.join("/", treePath);
-         } finally {
-             readLock.unlock();
+             if (parent.hasProperty()) {
+                 deepestEnd = end;
+             }
+         }
+
+         if (deepestEnd < 0) {
+             return "/";
          }
+         if (normalized) {
+             return path.substring(0, deepestEnd);
+         }
+         return "/" + String.join("/", split(path.substring(0, deepestEnd)));
      }
 
      /**
       * Clear all nodes in the trie.
       */
      public void clear() {
-         writeLock.lock();
-         try {
+         synchronized (writeLock) {
              rootNode.getChildren().clear();
-         } finally {
-             writeLock.unlock();
+             propertyCount = 0;
          }
      }
 
-     private static String[] split(final String path){
-         return Stream.of(path.split("/"))
-                 .filter(t -> !t.trim().isEmpty())
-                 .toArray(String[]::new);
+     private static String[] split(final String path) {
+         final List<String> components = new ArrayList<>();
+         for (final String component : path.split("/")) {
+             if (!component.trim().isEmpty()) {
+                 components.add(component);
+             }
+         }
+         return components.toArray(new String[0]);
      }
 
  }
@@ -0,0 +1,165 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when SyncRequestProcessor flushes a batch when a flush latency
+ * target is configured, instead of the static flushDelay and maxBatchSize.
+ * <p>
+ * It keeps moving averages of the fsync time and of the time between
+ * requests. A batch is flushed as soon as it holds the requests expected to
+ * arrive during one fsync, which keeps the disk busy without growing the
+ * batch further, or when waiting any longer would make its oldest request
+ * miss the latency target. When the queue runs dry, it only waits for more
+ * requests if one is expected well within the remaining slack, so at low
+ * load every request is flushed immediately.
+ * <p>
+ * All times are in nanoseconds. {@link #requestArrived(long)} is called by
+ * the threads that queue requests for the sync thread, and is synchronized;
+ * all other methods are only used by the sync thread.
+ */
+class AdaptiveFlushPolicy {
+
+    /**
+     * weight of the newest sample in the moving averages
+     */
+    static final double ALPHA = 0.2;
+
+    private final long targetLatencyNanos;
+
+    private double fsyncNanos;
+
+    /**
+     * the average time between requests, 0 until two requests have been seen
+     */
+    private volatile double interArrivalNanos;
+
+    // guarded by this
+    private long lastArrivalNanos = -1;
+
+    private long batchStartNanos = -1;
+
+    AdaptiveFlushPolicy(long targetLatencyMs) {
+        this.targetLatencyNanos = TimeUnit.MILLISECONDS.toNanos(targetLatencyMs);
+    }
+
+    /**
+     * record a request queued for the sync thread
+     * @param now the current time
+     */
+    synchronized void requestArrived(long now) {
+        if (lastArrivalNanos != -1) {
+            interArrivalNanos = average(interArrivalNanos, now - lastArrivalNanos);
+        }
+        lastArrivalNanos = now;
+    }
+
+    /**
+     * record that a request was added to the batch waiting to be flushed
+     * @param now the current time
+     */
+    void requestBatched(long now) {
+        if (batchStartNanos == -1) {
+            batchStartNanos = now;
+        }
+    }
+
+    /**
+     * @param maxBatchSize the hard limit on the batch size, if positive
+     * @return the number of requests expected to arrive during an fsync,
+     * which is the size the current batch is flushed at
+     */
+    int getTargetBatchSize(int maxBatchSize) {
+        long target = 1;
+        if (interArrivalNanos > 0) {
+            target = Math.max(1, (long) Math.ceil(fsyncNanos / interArrivalNanos));
+        }
+        if (maxBatchSize > 0) {
+            target = Math.min(target, maxBatchSize);
+        }
+        return (int) Math.min(target, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param now the current time
+     * @return how long the oldest batched request can still wait before it
+     * has to be flushed to meet the latency target
+     */
+    long getSlack(long now) {
+        if (batchStartNanos == -1) {
+            return targetLatencyNanos - (long) fsyncNanos;
+        }
+        return targetLatencyNanos - (now - batchStartNanos) - (long) fsyncNanos;
+    }
+
+    /**
+     * @param now the current time
+     * @return how long to wait for another request before flushing the
+     * batch, 0 to flush right away
+     */
+    long getPollTime(long now) {
+        long slack = getSlack(now);
+        if (batchStartNanos == -1 || interArrivalNanos == 0 || slack <= 0) {
+            return 0;
+        }
+        // waiting only pays off if another request is expected in time;
+        // if none has come after twice the usual gap, the load has dropped
+        if (interArrivalNanos >= slack) {
+            return 0;
+        }
+        return Math.min(slack, (long) (2 * interArrivalNanos));
+    }
+
+    /**
+     * @param batchSize the number of batched requests
+     * @param maxBatchSize the hard limit on the batch size, if positive
+     * @param now the current time
+     * @return true if the batch should be flushed now
+     */
+    boolean shouldFlush(int batchSize, int maxBatchSize, long now) {
+        return batchSize >= getTargetBatchSize(maxBatchSize) || getSlack(now) <= 0;
+    }
+
+    /**
+     * record a completed flush
+     * @param fsyncTime the time the commit of the batch took
+     */
+    void flushed(long fsyncTime) {
+        fsyncNanos = average(fsyncNanos, fsyncTime);
+        batchStartNanos = -1;
+    }
+
+    /**
+     * @return the estimated time of an fsync
+     */
+    long getFsyncEstimate() {
+        return (long) fsyncNanos;
+    }
+
+    long getTargetLatency() {
+        return targetLatencyNanos;
+    }
+
+    private static double average(double current, long sample) {
+        return current == 0 ? sample : current + ALPHA * (sample - current);
+    }
+
+}
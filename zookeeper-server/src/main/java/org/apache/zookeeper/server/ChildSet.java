@@ -0,0 +1,395 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * The set of the child names of a data node, in a compact form.
+ * <p>
+ * Names ending with a sequence number of {@value #SEQUENCE_DIGITS} digits,
+ * like the ones of sequential znodes, are stored as the number, in a sorted
+ * int array per name prefix. A parent with many sequential children then
+ * takes a few bytes per child instead of a String and a hash entry, and the
+ * names are only created while they are iterated. Other names are kept in a
+ * sorted array while there are few of them, and in a HashSet beyond that.
+ * <p>
+ * This class is not thread safe, DataNode synchronizes the access to it.
+ */
+final class ChildSet extends AbstractSet<String> {
+
+    /**
+     * The number of digits of the sequence number of a sequential znode
+     */
+    static final int SEQUENCE_DIGITS = 10;
+
+    private static final int MAX_SORTED_NAMES = 16;
+
+    private static final String[] NO_NAMES = new String[0];
+
+    /**
+     * The sequence numbers of the names with a given prefix, sorted, in
+     * values[start] to values[end - 1]. Names are mostly added at the end
+     * and removed at the start, so both are kept cheap.
+     */
+    private static final class Sequences {
+
+        int[] values;
+        int start;
+        int end;
+
+        Sequences(int capacity) {
+            values = new int[capacity];
+        }
+
+        Sequences(Sequences other) {
+            values = Arrays.copyOfRange(other.values, other.start, other.end);
+            end = values.length;
+        }
+
+        int size() {
+            return end - start;
+        }
+
+        boolean contains(int value) {
+            return Arrays.binarySearch(values, start, end, value) >= 0;
+        }
+
+        boolean add(int value) {
+            if (start == end || value > values[end - 1]) {
+                ensureTail();
+                values[end++] = value;
+                return true;
+            }
+            int i = Arrays.binarySearch(values, start, end, value);
+            if (i >= 0) {
+                return false;
+            }
+            i = -i - 1;
+            if (start > 0 && i - start < end - i) {
+                System.arraycopy(values, start, values, start - 1, i - start);
+                start--;
+                values[i - 1] = value;
+            } else {
+                i -= ensureTail();
+                System.arraycopy(values, i, values, i + 1, end - i);
+                end++;
+                values[i] = value;
+            }
+            return true;
+        }
+
+        boolean remove(int value) {
+            int i = Arrays.binarySearch(values, start, end, value);
+            if (i < 0) {
+                return false;
+            }
+            if (i - start < end - i - 1) {
+                System.arraycopy(values, start, values, start + 1, i - start);
+                start++;
+            } else {
+                System.arraycopy(values, i + 1, values, i, end - i - 1);
+                end--;
+            }
+            if (values.length > 8 && size() < values.length / 4) {
+                values = Arrays.copyOfRange(values, start, start + values.length / 2);
+                end -= start;
+                start = 0;
+            }
+            return true;
+        }
+
+        /**
+         * make room for a value at the end
+         *
+         * @return how far the values have been moved to the start
+         */
+        private int ensureTail() {
+            if (end < values.length) {
+                return 0;
+            }
+            int shift = start;
+            if (start > 0 && size() <= values.length / 2) {
+                System.arraycopy(values, start, values, 0, size());
+            } else {
+                int[] grown = new int[Math.max(2, values.length * 2)];
+                System.arraycopy(values, start, grown, 0, size());
+                values = grown;
+            }
+            end -= start;
+            start = 0;
+            return shift;
+        }
+
+    }
+
+    // the other names, sorted, while there are at most MAX_SORTED_NAMES
+    private String[] sortedNames = NO_NAMES;
+    private int sortedCount;
+    private HashSet<String> names;
+
+    private HashMap<String, Sequences> sequences;
+
+    private int size;
+
+    private int modCount;
+
+    ChildSet() {
+    }
+
+    ChildSet(Collection<String> children) {
+        for (String child : children) {
+            add(child);
+        }
+    }
+
+    /**
+     * @return a copy of the set, sharing nothing mutable with it
+     */
+    ChildSet copy() {
+        ChildSet copy = new ChildSet();
+        copy.sortedNames = Arrays.copyOf(sortedNames, sortedCount);
+        copy.sortedCount = sortedCount;
+        if (names != null) {
+            copy.names = new HashSet<>(names);
+        }
+        if (sequences != null) {
+            copy.sequences = new HashMap<>();
+            for (Map.Entry<String, Sequences> entry : sequences.entrySet()) {
+                copy.sequences.put(entry.getKey(), new Sequences(entry.getValue()));
+            }
+        }
+        copy.size = size;
+        return copy;
+    }
+
+    /**
+     * @return the index of the sequence number of the name, or -1 if the
+     * name does not end with one that fits in an int
+     */
+    private static int sequenceStart(String name) {
+        int start = name.length() - SEQUENCE_DIGITS;
+        if (start < 0) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = start; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value <= Integer.MAX_VALUE ? start : -1;
+    }
+
+    private static int sequence(String name, int start) {
+        int value = 0;
+        for (int i = start; i < name.length(); i++) {
+            value = value * 10 + (name.charAt(i) - '0');
+        }
+        return value;
+    }
+
+    private static String name(String prefix, int sequence) {
+        char[] chars = new char[prefix.length() + SEQUENCE_DIGITS];
+        prefix.getChars(0, prefix.length(), chars, 0);
+        for (int i = chars.length - 1; i >= prefix.length(); i--) {
+            chars[i] = (char) ('0' + sequence % 10);
+            sequence /= 10;
+        }
+        return new String(chars);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        if (!(o instanceof String)) {
+            return false;
+        }
+        String name = (String) o;
+        int start = sequenceStart(name);
+        if (start >= 0) {
+            Sequences s = sequences == null ? null : sequences.get(name.substring(0, start));
+            return s != null && s.contains(sequence(name, start));
+        }
+        if (names != null) {
+            return names.contains(name);
+        }
+        return Arrays.binarySearch(sortedNames, 0, sortedCount, name) >= 0;
+    }
+
+    @Override
+    public boolean add(String name) {
+        if (addName(name)) {
+            size++;
+            modCount++;
+            return true;
+        }
+        return false;
+    }
+
+    private boolean addName(String name) {
+        int start = sequenceStart(name);
+        if (start >= 0) {
+            if (sequences == null) {
+                sequences = new HashMap<>(4);
+            }
+            return sequences.computeIfAbsent(name.substring(0, start), prefix -> new Sequences(2))
+                .add(sequence(name, start));
+        }
+        if (names != null) {
+            return names.add(name);
+        }
+        int i = Arrays.binarySearch(sortedNames, 0, sortedCount, name);
+        if (i >= 0) {
+            return false;
+        }
+        if (sortedCount == MAX_SORTED_NAMES) {
+            names = new HashSet<>(Arrays.asList(sortedNames));
+            sortedNames = NO_NAMES;
+            sortedCount = 0;
+            return names.add(name);
+        }
+        i = -i - 1;
+        if (sortedCount == sortedNames.length) {
+            sortedNames = Arrays.copyOf(sortedNames, Math.min(MAX_SORTED_NAMES, Math.max(4, sortedCount * 2)));
+        }
+        System.arraycopy(sortedNames, i, sortedNames, i + 1, sortedCount - i);
+        sortedNames[i] = name;
+        sortedCount++;
+        return true;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (o instanceof String && removeName((String) o)) {
+            size--;
+            modCount++;
+            return true;
+        }
+        return false;
+    }
+
+    private boolean removeName(String name) {
+        int start = sequenceStart(name);
+        if (start >= 0) {
+            String prefix = name.substring(0, start);
+            Sequences s = sequences == null ? null : sequences.get(prefix);
+            if (s == null || !s.remove(sequence(name, start))) {
+                return false;
+            }
+            if (s.size() == 0) {
+                sequences.remove(prefix);
+                if (sequences.isEmpty()) {
+                    sequences = null;
+                }
+            }
+            return true;
+        }
+        if (names != null) {
+            return names.remove(name);
+        }
+        int i = Arrays.binarySearch(sortedNames, 0, sortedCount, name);
+        if (i < 0) {
+            return false;
+        }
+        System.arraycopy(sortedNames, i + 1, sortedNames, i, sortedCount - i - 1);
+        sortedNames[--sortedCount] = null;
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        sortedNames = NO_NAMES;
+        sortedCount = 0;
+        names = null;
+        sequences = null;
+        size = 0;
+        modCount++;
+    }
+
+    /**
+     * Iterates the other names first, then the sequential names by prefix,
+     * in the order of their sequence numbers.
+     */
+    @Override
+    public Iterator<String> iterator() {
+        return new Iterator<String>() {
+
+            private final int expectedModCount = modCount;
+            private final Iterator<String> namesItr = names == null ? null : names.iterator();
+            private final Iterator<Map.Entry<String, Sequences>> sequencesItr =
+                sequences == null ? null : sequences.entrySet().iterator();
+            private int sortedIndex;
+            private String prefix;
+            private Sequences current;
+            private int sequenceIndex;
+
+            @Override
+            public boolean hasNext() {
+                if (namesItr != null ? namesItr.hasNext() : sortedIndex < sortedCount) {
+                    return true;
+                }
+                if (current != null && sequenceIndex < current.end) {
+                    return true;
+                }
+                return sequencesItr != null && sequencesItr.hasNext();
+            }
+
+            @Override
+            public String next() {
+                if (modCount != expectedModCount) {
+                    throw new ConcurrentModificationException();
+                }
+                if (namesItr != null) {
+                    if (namesItr.hasNext()) {
+                        return namesItr.next();
+                    }
+                } else if (sortedIndex < sortedCount) {
+                    return sortedNames[sortedIndex++];
+                }
+                if (current == null || sequenceIndex == current.end) {
+                    if (sequencesItr == null || !sequencesItr.hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    Map.Entry<String, Sequences> entry = sequencesItr.next();
+                    prefix = entry.getKey();
+                    current = entry.getValue();
+                    sequenceIndex = current.start;
+                }
+                return name(prefix, current.values[sequenceIndex++]);
+            }
+
+        };
+    }
+
+}
@@ -0,0 +1,376 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.Adler32;
+import org.apache.jute.BinaryInputArchive;
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.jute.InputArchive;
+import org.apache.jute.OutputArchive;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xerial.snappy.Snappy;
+
+/**
+ * Serializes the nodes of a DataTree as a sequence of chunks that are each
+ * compressed and checksummed on their own, so that a pool of threads can
+ * write and read them.
+ * <p>
+ * Writing walks the tree with a fork-join pool: every worker collects the
+ * nodes it visits into its own chunk, and compresses and hands it to the
+ * writing thread once it holds {@link #CHUNK_SIZE} bytes. A chunk therefore
+ * holds parts of several subtrees, and a node may come before its parent.
+ * Reading decompresses and loads the chunks concurrently while the calling
+ * thread reads the next ones, and the children of every node are linked
+ * once all of them are loaded.
+ * <p>
+ * A chunk is written as the number of its segments, the segments of the
+ * compressed bytes, and the Adler32 checksum of the uncompressed bytes; a
+ * chunk without segments ends the sequence. Splitting chunks into segments
+ * keeps every buffer below jute.maxbuffer.
+ */
+class ChunkedSnapshot {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ChunkedSnapshot.class);
+
+    static final String ZOOKEEPER_SNAPSHOT_PARALLELISM = "zookeeper.snapshot.parallelism";
+
+    /**
+     * the uncompressed size a chunk is cut at
+     */
+    static final int CHUNK_SIZE = 1024 * 1024;
+
+    static final int SEGMENT_SIZE = 256 * 1024;
+
+    /**
+     * a worker visits the children of a node itself instead of forking a
+     * task for them once it has this many tasks queued up
+     */
+    private static final int SURPLUS_TASKS = 4;
+
+    private static final String END_OF_CHUNK = "/";
+
+    private ChunkedSnapshot() {
+    }
+
+    static int getParallelism() {
+        int parallelism = Integer.getInteger(ZOOKEEPER_SNAPSHOT_PARALLELISM, 0);
+        return parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+    }
+
+    private static class Chunk {
+
+        final byte[] compressed;
+        final long checksum;
+
+        Chunk(byte[] compressed, long checksum) {
+            this.compressed = compressed;
+            this.checksum = checksum;
+        }
+
+    }
+
+    /**
+     * the chunk a worker thread is filling
+     */
+    private static class ChunkBuilder {
+
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(CHUNK_SIZE + CHUNK_SIZE / 4);
+        private final OutputArchive oa = BinaryOutputArchive.getArchive(bytes);
+        private final ChunkWriter writer;
+
+        ChunkBuilder(ChunkWriter writer) {
+            this.writer = writer;
+        }
+
+        void add(DataTree dt, String path, DataNode node) throws IOException {
+            dt.serializeNodeData(oa, path, node);
+            if (bytes.size() >= CHUNK_SIZE) {
+                flush();
+            }
+        }
+
+        void flush() throws IOException {
+            if (bytes.size() == 0) {
+                return;
+            }
+            oa.writeString(END_OF_CHUNK, "path");
+            byte[] content = bytes.toByteArray();
+            bytes.reset();
+            Adler32 checksum = new Adler32();
+            checksum.update(content, 0, content.length);
+            writer.put(new Chunk(Snappy.compress(content), checksum.getValue()));
+        }
+
+    }
+
+    /**
+     * hands the chunks of the workers over to the thread writing them out,
+     * holding back the workers when it falls behind
+     */
+    private static class ChunkWriter {
+
+        private final BlockingQueue<Chunk> chunks;
+        private volatile boolean aborted;
+
+        ChunkWriter(int capacity) {
+            chunks = new ArrayBlockingQueue<>(capacity);
+        }
+
+        void put(Chunk chunk) throws IOException {
+            try {
+                while (!chunks.offer(chunk, 100, TimeUnit.MILLISECONDS)) {
+                    if (aborted) {
+                        throw new IOException("Snapshot serialization aborted");
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while queueing a snapshot chunk");
+            }
+        }
+
+        Chunk poll() throws InterruptedIOException {
+            try {
+                return chunks.poll(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while writing snapshot chunks");
+            }
+        }
+
+        /**
+         * write out the queued chunks
+         * @return the number of chunks written
+         */
+        int drain(OutputArchive oa) throws IOException {
+            int count = 0;
+            Chunk chunk;
+            while ((chunk = chunks.poll()) != null) {
+                writeChunk(oa, chunk);
+                count++;
+            }
+            return count;
+        }
+
+    }
+
+    private static class SerializeTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final DataTree dt;
+        private final String path;
+        private final ThreadLocal<ChunkBuilder> builder;
+
+        SerializeTask(DataTree dt, String path, ThreadLocal<ChunkBuilder> builder) {
+            this.dt = dt;
+            this.path = path;
+            this.builder = builder;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                serialize(path);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void serialize(String path) throws IOException {
+            DataNode nodeCopy = dt.copyNodeForSnapshot(path);
+            if (nodeCopy == null) {
+                return;
+            }
+            builder.get().add(dt, path, nodeCopy);
+
+            List<SerializeTask> forked = new ArrayList<>();
+            for (String child : nodeCopy.getChildren()) {
+                String childPath = path + "/" + child;
+                if (getSurplusQueuedTaskCount() < SURPLUS_TASKS) {
+                    SerializeTask task = new SerializeTask(dt, childPath, builder);
+                    task.fork();
+                    forked.add(task);
+                } else {
+                    serialize(childPath);
+                }
+            }
+            for (SerializeTask task : forked) {
+                task.join();
+            }
+        }
+
+    }
+
+    /**
+     * serialize all the nodes of the tree as chunks
+     * @param dt the tree to serialize
+     * @param oa the archive to write the chunks to
+     * @throws IOException
+     */
+    static void serialize(DataTree dt, OutputArchive oa) throws IOException {
+        int parallelism = getParallelism();
+        ChunkWriter writer = new ChunkWriter(2 * parallelism);
+        Queue<ChunkBuilder> builders = new ConcurrentLinkedQueue<>();
+        ThreadLocal<ChunkBuilder> builder = ThreadLocal.withInitial(() -> {
+            ChunkBuilder b = new ChunkBuilder(writer);
+            builders.add(b);
+            return b;
+        });
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        int count = 0;
+        try {
+            ForkJoinTask<Void> task = pool.submit(new SerializeTask(dt, "", builder));
+            while (!task.isDone()) {
+                Chunk chunk = writer.poll();
+                if (chunk != null) {
+                    writeChunk(oa, chunk);
+                    count++;
+                }
+            }
+            task.get();
+            // the workers are idle now, write out what they have left
+            count += writer.drain(oa);
+            for (ChunkBuilder b : builders) {
+                b.flush();
+                count += writer.drain(oa);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while serializing the snapshot");
+        } catch (ExecutionException e) {
+            for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+            }
+            throw new IOException("Unable to serialize the snapshot", e.getCause());
+        } finally {
+            writer.aborted = true;
+            pool.shutdownNow();
+        }
+        oa.writeInt(0, "segments");
+        LOG.debug("Serialized the data tree as {} chunks with {} threads", count, parallelism);
+    }
+
+    private static void writeChunk(OutputArchive oa, Chunk chunk) throws IOException {
+        byte[] compressed = chunk.compressed;
+        int segments = (compressed.length + SEGMENT_SIZE - 1) / SEGMENT_SIZE;
+        oa.writeInt(segments, "segments");
+        for (int offset = 0; offset < compressed.length; offset += SEGMENT_SIZE) {
+            oa.writeBuffer(Arrays.copyOfRange(compressed, offset, Math.min(compressed.length, offset + SEGMENT_SIZE)),
+                "segment");
+        }
+        oa.writeLong(chunk.checksum, "checksum");
+    }
+
+    private static Chunk readChunk(InputArchive ia, int segments) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(segments * SEGMENT_SIZE);
+        for (int i = 0; i < segments; i++) {
+            compressed.write(ia.readBuffer("segment"));
+        }
+        return new Chunk(compressed.toByteArray(), ia.readLong("checksum"));
+    }
+
+    private static void loadChunk(DataTree dt, Chunk chunk) throws IOException {
+        byte[] content = Snappy.uncompress(chunk.compressed);
+        Adler32 checksum = new Adler32();
+        checksum.update(content, 0, content.length);
+        if (checksum.getValue() != chunk.checksum) {
+            throw new IOException("CRC corruption in snapshot chunk");
+        }
+        InputArchive ia = BinaryInputArchive.getArchive(new ByteArrayInputStream(content));
+        String path = ia.readString("path");
+        while (!END_OF_CHUNK.equals(path)) {
+            DataNode node = new DataNode();
+            ia.readRecord(node, "node");
+            dt.loadNode(path, node);
+            path = ia.readString("path");
+        }
+    }
+
+    /**
+     * read the chunks written by serialize and load their nodes into the
+     * tree, without linking them to their parents
+     * @param dt the tree to load the nodes into
+     * @param ia the archive to read the chunks from
+     * @throws IOException
+     */
+    static void deserialize(DataTree dt, InputArchive ia) throws IOException {
+        int parallelism = getParallelism();
+        // bounds the chunks held in memory
+        Semaphore pending = new Semaphore(2 * parallelism);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        int count = 0;
+        try {
+            int segments = ia.readInt("segments");
+            while (segments != 0 && failure.get() == null) {
+                Chunk chunk = readChunk(ia, segments);
+                pending.acquire();
+                pool.execute(() -> {
+                    try {
+                        loadChunk(dt, chunk);
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    } finally {
+                        pending.release();
+                    }
+                });
+                count++;
+                segments = ia.readInt("segments");
+            }
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while deserializing the snapshot");
+        } finally {
+            pool.shutdownNow();
+        }
+        Throwable t = failure.get();
+        if (t instanceof IOException) {
+            throw (IOException) t;
+        } else if (t != null) {
+            throw new IOException("Unable to load snapshot chunk", t);
+        }
+        LOG.debug("Deserialized {} chunks of the data tree with {} threads", count, parallelism);
+    }
+
+}
@@ -20,9 +20,13 @@
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.locks.StampedLock;
 import org.apache.jute.InputArchive;
 import org.apache.jute.OutputArchive;
 import org.apache.jute.Record;
@@ -46,9 +50,25 @@ public class DataNode implements Record {
     // optimize the performance.
     volatile boolean digestCached;
 
-    /** the data for this datanode */
+    /**
+     * The size from which the data of a node is kept in direct memory
+     * instead of on the heap, 0 to keep all the data on the heap.
+     */
+    public static final String ZOOKEEPER_OFF_HEAP_DATA_THRESHOLD = "zookeeper.offHeapDataThreshold";
+
+    private static volatile int offHeapDataThreshold = Integer.getInteger(ZOOKEEPER_OFF_HEAP_DATA_THRESHOLD, 0);
+
+    /** the data for this datanode, unless it is kept off the heap */
     byte[] data;
 
+    /**
+     * the data for this datanode if it is at least offHeapDataThreshold
+     * bytes long, in a read-only direct buffer, so that large values do not
+     * take humongous regions of the heap. Like data, it is never changed in
+     * place, only replaced.
+     */
+    private ByteBuffer offHeapData;
+
     /**
      * the acl map long for this datanode. the datatree has the map
      */
@@ -64,10 +84,24 @@ public class DataNode implements Record {
      * does not contain the parent path -- just the last part of the path. This
      * should be synchronized on except deserializing (for speed up issues).
      */
-    private Set<String> children = null;
+    private ChildSet children = null;
 
     private static final Set<String> EMPTY_SET = Collections.emptySet();
 
+    /**
+     * the locks telling the readers that copy a node without synchronizing
+     * on it about concurrent changes, striped over all the nodes so that a
+     * node does not need a lock of its own. The writers still synchronize on
+     * the node too.
+     */
+    private static final StampedLock[] CHANGE_LOCKS = new StampedLock[256];
+
+    static {
+        for (int i = 0; i < CHANGE_LOCKS.length; i++) {
+            CHANGE_LOCKS[i] = new StampedLock();
+        }
+    }
+
     /**
      * default constructor for the datanode
      */
@@ -86,11 +120,92 @@ public class DataNode implements Record {
      *            the stat for this node.
      */
     public DataNode(byte[] data, Long acl, StatPersisted stat) {
-        this.data = data;
+        setData(data);
         this.acl = acl;
         this.stat = stat;
     }
 
+    /**
+     * Copy the node for a snapshot, sharing its data, which is never
+     * changed in place. The caller makes sure the node is not changed while
+     * it is copied.
+     *
+     * @return the copy, with its own stat and children set
+     */
+    DataNode copy() {
+        StatPersisted statCopy = new StatPersisted();
+        DataTree.copyStatPersisted(stat, statCopy);
+        DataNode copy = new DataNode(null, acl, statCopy);
+        copy.setDataOf(this);
+        if (children != null) {
+            copy.children = children.copy();
+        }
+        return copy;
+    }
+
+    static int getOffHeapDataThreshold() {
+        return offHeapDataThreshold;
+    }
+
+    static void setOffHeapDataThreshold(int threshold) {
+        offHeapDataThreshold = threshold;
+    }
+
+    /**
+     * Set the data of this node, moving it off the heap if it is at least
+     * {@value #ZOOKEEPER_OFF_HEAP_DATA_THRESHOLD} bytes long. The caller
+     * synchronizes on the node, and changes it between
+     * {@link #startChange()} and {@link #endChange(long)} if it is in the
+     * data tree.
+     *
+     * @param data the data, which is not changed by the caller afterwards
+     */
+    void setData(byte[] data) {
+        int threshold = offHeapDataThreshold;
+        if (data != null && threshold > 0 && data.length >= threshold) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+            buffer.put(data).flip();
+            this.offHeapData = buffer.asReadOnlyBuffer();
+            this.data = null;
+        } else {
+            this.data = data;
+            this.offHeapData = null;
+        }
+    }
+
+    /**
+     * Set the data of this node to the one of another node, sharing it.
+     */
+    void setDataOf(DataNode other) {
+        this.data = other.data;
+        this.offHeapData = other.offHeapData;
+    }
+
+    /**
+     * @return the data of this node if it is kept off the heap, in a
+     * read-only buffer of its own, or null
+     */
+    synchronized ByteBuffer getOffHeapData() {
+        return offHeapData == null ? null : offHeapData.duplicate();
+    }
+
+    public synchronized int getDataLength() {
+        return dataLength(data, offHeapData);
+    }
+
+    private static int dataLength(byte[] data, ByteBuffer offHeapData) {
+        if (offHeapData != null) {
+            return offHeapData.remaining();
+        }
+        return data == null ? 0 : data.length;
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] array = new byte[buffer.remaining()];
+        buffer.duplicate().get(array);
+        return array;
+    }
+
     /**
      * Method that inserts a child into the children set
      *
@@ -100,8 +215,7 @@ public DataNode(byte[] data, Long acl, StatPersisted stat) {
      */
     public synchronized boolean addChild(String child) {
         if (children == null) {
-            // let's be conservative on the typical number of children
-            children = new HashSet<>(8);
+            children = new ChildSet();
         }
         return children.add(child);
     }
@@ -125,7 +239,7 @@ public synchronized boolean removeChild(String child) {
      * @param children
      */
     public synchronized void setChildren(HashSet<String> children) {
-        this.children = children;
+        this.children = children == null ? null : new ChildSet(children);
     }
 
     /**
@@ -142,7 +256,100 @@ public synchronized Set<String> getChildren() {
         return Collections.unmodifiableSet(children);
     }
 
+    /**
+     * @return a copy of the names of the children of this datanode, made
+     *         without iterating a view of them
+     */
+    public synchronized List<String> getChildrenList() {
+        if (children == null) {
+            return new ArrayList<>(0);
+        }
+        List<String> list = new ArrayList<>(children.size());
+        for (String child : children) {
+            list.add(child);
+        }
+        return list;
+    }
+
+    private StampedLock changeLock() {
+        int h = System.identityHashCode(this);
+        return CHANGE_LOCKS[(h ^ (h >>> 16)) & (CHANGE_LOCKS.length - 1)];
+    }
+
+    /**
+     * Start a change of this node, which the caller synchronizes on. Every
+     * change of the stat or the data of a node in the data tree has to be
+     * made between this and {@link #endChange(long)}.
+     *
+     * @return the stamp to end the change with
+     */
+    long startChange() {
+        return changeLock().writeLock();
+    }
+
+    void endChange(long stamp) {
+        changeLock().unlockWrite(stamp);
+    }
+
+    /**
+     * Copy the stat and get the data of this node without synchronizing on
+     * it, so that readers do not wait for each other. Falls back to
+     * synchronizing on the node if it is changed meanwhile.
+     *
+     * @param to the stat to copy to, or null
+     * @return the data of this node, copied to the heap if it is kept off
+     *         the heap
+     */
+    public byte[] readDataAndStat(Stat to) {
+        ByteBuffer buffer = readDataBufferAndStat(to);
+        if (buffer == null) {
+            return null;
+        }
+        return buffer.isReadOnly() ? toArray(buffer) : buffer.array();
+    }
+
+    /**
+     * Like {@link #readDataAndStat(Stat)}, but the data is returned as a
+     * buffer: a read-only direct buffer if the data is kept off the heap,
+     * so that it can be sent without copying it, or else a buffer wrapping
+     * the data array.
+     *
+     * @param to the stat to copy to, or null
+     * @return the data of this node, or null if it has none
+     */
+    public ByteBuffer readDataBufferAndStat(Stat to) {
+        StampedLock lock = changeLock();
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            byte[] d = data;
+            ByteBuffer b = offHeapData;
+            if (to != null) {
+                copyStat(to, dataLength(d, b));
+            }
+            if (lock.validate(stamp)) {
+                return toBuffer(d, b);
+            }
+        }
+        synchronized (this) {
+            if (to != null) {
+                copyStat(to);
+            }
+            return toBuffer(data, offHeapData);
+        }
+    }
+
+    private static ByteBuffer toBuffer(byte[] data, ByteBuffer offHeapData) {
+        if (offHeapData != null) {
+            return offHeapData.duplicate();
+        }
+        return data == null ? null : ByteBuffer.wrap(data);
+    }
+
     public synchronized void copyStat(Stat to) {
+        copyStat(to, dataLength(data, offHeapData));
+    }
+
+    private void copyStat(Stat to, int dataLength) {
         to.setAversion(stat.getAversion());
         to.setCtime(stat.getCtime());
         to.setCzxid(stat.getCzxid());
@@ -151,11 +358,9 @@ public synchronized void copyStat(Stat to) {
         to.setPzxid(stat.getPzxid());
         to.setVersion(stat.getVersion());
         to.setEphemeralOwner(getClientEphemeralOwner(stat));
-        to.setDataLength(data == null ? 0 : data.length);
-        int numChildren = 0;
-        if (this.children != null) {
-            numChildren = children.size();
-        }
+        to.setDataLength(dataLength);
+        ChildSet children = this.children;
+        int numChildren = children == null ? 0 : children.size();
         // when we do the Cversion we need to translate from the count of the creates
         // to the count of the changes (v3 semantics)
         // for every create there is a delete except for the children still present
@@ -173,7 +378,7 @@ private static long getClientEphemeralOwner(StatPersisted stat) {
 
     public synchronized void deserialize(InputArchive archive, String tag) throws IOException {
         archive.startRecord("node");
-        data = archive.readBuffer("data");
+        setData(archive.readBuffer("data"));
         acl = archive.readLong("acl");
         stat = new StatPersisted();
         stat.deserialize(archive, "statpersisted");
@@ -182,7 +387,7 @@ public synchronized void deserialize(InputArchive archive, String tag) throws IO
 
     public synchronized void serialize(OutputArchive archive, String tag) throws IOException {
         archive.startRecord(this, "node");
-        archive.writeBuffer(data, "data");
+        archive.writeBuffer(heapData(), "data");
         archive.writeLong(acl, "acl");
         stat.serialize(archive, "statpersisted");
         archive.endRecord(this, "node");
@@ -204,8 +409,16 @@ public void setDigest(long digest) {
         this.digest = digest;
     }
 
+    /**
+     * @return the data of this node, copied to the heap if it is kept off
+     *         the heap
+     */
     public synchronized byte[] getData() {
-        return data;
+        return heapData();
+    }
+
+    private byte[] heapData() {
+        return offHeapData == null ? data : toArray(offHeapData);
     }
 
 }
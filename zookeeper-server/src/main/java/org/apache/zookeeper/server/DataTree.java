@@ -25,15 +25,17 @@
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import org.apache.jute.InputArchive;
 import org.apache.jute.OutputArchive;
 import org.apache.jute.Record;
@@ -143,15 +145,20 @@ public class DataTree {
      */
     private final PathTrie pTrie = new PathTrie();
 
+    /**
+     * the limits and usage of the quotas, kept in step with the quota nodes
+     */
+    private final QuotaIndex quotaIndex = new QuotaIndex();
+
     /**
      * over-the-wire size of znode stat. Counting the fields of Stat class
      */
     public static final int STAT_OVERHEAD_BYTES = (6 * 8) + (5 * 4);
 
     /**
-     * This hashtable lists the paths of the ephemeral nodes of a session.
+     * This index lists the paths of the ephemeral nodes of a session.
      */
-    private final Map<Long, HashSet<String>> ephemerals = new ConcurrentHashMap<>();
+    private final EphemeralIndex ephemerals = new EphemeralIndex();
 
     /**
      * This set contains the paths of all container nodes
@@ -165,6 +172,36 @@ public class DataTree {
 
     private final ReferenceCountedACLCache aclCache = new ReferenceCountedACLCache();
 
+    /**
+     * The paths of the nodes created, changed or deleted since the last
+     * snapshot, from which a delta snapshot is written. It is null until
+     * a snapshot starts tracking them, so that it costs nothing when delta
+     * snapshots are disabled.
+     */
+    private volatile Set<String> dirtyNodes;
+
+    /**
+     * The versions of the nodes as of the start of the running copy on write
+     * snapshot, kept when they are changed or deleted, null if there is none.
+     * The snapshot takes out the version of each node it writes, copying the
+     * node if there is none, which cannot be interleaved with a change of the
+     * node as both go through this map.
+     */
+    private volatile ConcurrentHashMap<String, DataNode> snapshotVersions;
+
+    /**
+     * Kept in snapshotVersions for the paths the snapshot has written, or
+     * that did not exist when it started, so that their later changes are
+     * not kept
+     */
+    private static final DataNode NO_SNAPSHOT_VERSION = new DataNode(new byte[0], -1L, new StatPersisted());
+
+    /**
+     * Held shared while a txn is applied, and exclusively to start a copy on
+     * write snapshot in between txns
+     */
+    private final ReentrantReadWriteLock txnLock = new ReentrantReadWriteLock();
+
     // The maximum number of tree digests that we will keep in our history
     public static final int DIGEST_LOG_LIMIT = 1024;
 
@@ -189,15 +226,8 @@ public class DataTree {
 
     private final DigestCalculator digestCalculator;
 
-    @SuppressWarnings("unchecked")
     public Set<String> getEphemerals(long sessionId) {
-        HashSet<String> ret = ephemerals.get(sessionId);
-        if (ret == null) {
-            return new HashSet<>();
-        }
-        synchronized (ret) {
-            return (HashSet<String>) ret.clone();
-        }
+        return ephemerals.get(sessionId);
     }
 
     public Set<String> getContainers() {
@@ -209,7 +239,7 @@ public Set<String> getTtls() {
     }
 
     public Collection<Long> getSessions() {
-        return ephemerals.keySet();
+        return ephemerals.getSessions();
     }
 
     public DataNode getNode(String path) {
@@ -225,11 +255,7 @@ public int getWatchCount() {
     }
 
     public int getEphemeralsCount() {
-        int result = 0;
-        for (HashSet<String> set : ephemerals.values()) {
-            result += set.size();
-        }
-        return result;
+        return ephemerals.size();
     }
 
     /**
@@ -242,7 +268,7 @@ public long approximateDataSize() {
         for (Map.Entry<String, DataNode> entry : nodes.entrySet()) {
             DataNode value = entry.getValue();
             synchronized (value) {
-                result += getNodeSize(entry.getKey(), value.data);
+                result += getNodeSize(entry.getKey(), value.getDataLength());
             }
         }
         return result;
@@ -252,7 +278,11 @@ public long approximateDataSize() {
      * Get the size of the node based on path and data length.
      */
     private static long getNodeSize(String path, byte[] data) {
-        return (path == null ? 0 : path.length()) + (data == null ? 0 : data.length);
+        return getNodeSize(path, data == null ? 0 : data.length);
+    }
+
+    private static long getNodeSize(String path, int dataLength) {
+        return (path == null ? 0 : path.length()) + dataLength;
     }
 
     public long cachedApproximateDataSize() {
@@ -282,7 +312,11 @@ public DataTree() {
 
     DataTree(DigestCalculator digestCalculator) {
         this.digestCalculator = digestCalculator;
-        nodes = new NodeHashMapImpl(digestCalculator);
+        if (Boolean.getBoolean(OffHeapNodeHashMap.ZOOKEEPER_OFF_HEAP_NODE_HASH_MAP)) {
+            nodes = new OffHeapNodeHashMap(digestCalculator);
+        } else {
+            nodes = new NodeHashMapImpl(digestCalculator);
+        }
 
         // rather than fight it, let root have an alias
         nodes.put("", root);
@@ -314,12 +348,14 @@ public DataTree() {
     public void addConfigNode() {
         DataNode zookeeperZnode = nodes.get(procZookeeper);
         if (zookeeperZnode != null) { // should always be the case
+            preserveForSnapshot(procZookeeper, zookeeperZnode);
             zookeeperZnode.addChild(configChildZookeeper);
         } else {
             assert false : "There's no /zookeeper znode - this should never happen.";
         }
 
         nodes.put(configZookeeper, new DataNode(new byte[0], -1L, new StatPersisted()));
+        markDirty(configZookeeper);
         try {
             // Reconfig node is access controlled by default (ZOOKEEPER-2014).
             setACL(configZookeeper, ZooDefs.Ids.READ_ACL_UNSAFE, -1);
@@ -389,10 +425,41 @@ public void updateQuotaStat(String lastPrefix, long bytesDiff, int countDiff) {
         }
 
         synchronized (statNode) {
-            StatsTrack updatedStat = new StatsTrack(statNode.data);
-            updatedStat.setCount(updatedStat.getCount() + countDiff);
-            updatedStat.setBytes(updatedStat.getBytes() + bytesDiff);
-            statNode.data = updatedStat.getStatsBytes();
+            byte[] updatedStat = quotaIndex.updateUsage(lastPrefix, bytesDiff, countDiff);
+            if (updatedStat == null) {
+                // should not happen, the index is updated with the stat node
+                LOG.error("Missing quota usage for {}", lastPrefix);
+                return;
+            }
+            long stamp = statNode.startChange();
+            statNode.setData(updatedStat);
+            statNode.endChange(stamp);
+        }
+    }
+
+    /**
+     * @return the limits and usage of the quotas in this tree
+     */
+    public QuotaIndex getQuotaIndex() {
+        return quotaIndex;
+    }
+
+    /**
+     * Update the quota index if the path is a limit or stat node.
+     *
+     * @param path the path of the node
+     * @param data the data of the node, null if it was deleted
+     */
+    private void updateQuotaIndex(String path, byte[] data) {
+        if (!path.startsWith(quotaZookeeper)) {
+            return;
+        }
+        int lastSlash = path.lastIndexOf('/');
+        String childName = path.substring(lastSlash + 1);
+        if (Quotas.limitNode.equals(childName)) {
+            quotaIndex.setLimits(Quotas.trimQuotaPath(path.substring(0, lastSlash)), data);
+        } else if (Quotas.statNode.equals(childName)) {
+            quotaIndex.setUsage(Quotas.trimQuotaPath(path.substring(0, lastSlash)), data);
         }
     }
 
@@ -464,6 +531,7 @@ public void createNode(final String path, byte[] data, List<ACL> acl, long ephem
                 throw new NodeExistsException();
             }
 
+            preserveForSnapshot(parentName, parent);
             nodes.preChange(parentName, parent);
             if (parentCVersion == -1) {
                 parentCVersion = parent.stat.getCversion();
@@ -474,25 +542,30 @@ public void createNode(final String path, byte[] data, List<ACL> acl, long ephem
             // exist in the snapshot, so replay the creation might revert the
             // cversion and pzxid, need to check and only update when it's
             // larger.
-            if (parentCVersion > parent.stat.getCversion()) {
-                parent.stat.setCversion(parentCVersion);
-                parent.stat.setPzxid(zxid);
-            }
             DataNode child = new DataNode(data, acls, stat);
-            parent.addChild(childName);
+            long stamp = parent.startChange();
+            try {
+                if (parentCVersion > parent.stat.getCversion()) {
+                    parent.stat.setCversion(parentCVersion);
+                    parent.stat.setPzxid(zxid);
+                }
+                parent.addChild(childName);
+            } finally {
+                parent.endChange(stamp);
+            }
             nodes.postChange(parentName, parent);
-            nodeDataSize.addAndGet(getNodeSize(path, child.data));
+            nodeDataSize.addAndGet(getNodeSize(path, data));
+            excludeFromSnapshot(path);
             nodes.put(path, child);
+            markDirty(parentName);
+            markDirty(path);
             EphemeralType ephemeralType = EphemeralType.get(ephemeralOwner);
             if (ephemeralType == EphemeralType.CONTAINER) {
                 containers.add(path);
             } else if (ephemeralType == EphemeralType.TTL) {
                 ttls.add(path);
             } else if (ephemeralOwner != 0) {
-                HashSet<String> list = ephemerals.computeIfAbsent(ephemeralOwner, k -> new HashSet<>());
-                synchronized (list) {
-                    list.add(path);
-                }
+                ephemerals.add(ephemeralOwner, path);
             }
             if (outputStat != null) {
                 child.copyStat(outputStat);
@@ -505,6 +578,7 @@ public void createNode(final String path, byte[] data, List<ACL> acl, long ephem
                 // this is the limit node
                 // get the parent and add it to the trie
                 pTrie.addPath(Quotas.trimQuotaPath(parentName));
+                quotaIndex.setLimits(Quotas.trimQuotaPath(parentName), data);
             }
             if (Quotas.statNode.equals(childName)) {
                 updateQuotaForPath(Quotas.trimQuotaPath(parentName));
@@ -544,25 +618,34 @@ public void deleteNode(String path, long zxid) throws NoNodeException {
             throw new NoNodeException();
         }
         synchronized (parent) {
+            preserveForSnapshot(parentName, parent);
             nodes.preChange(parentName, parent);
-            parent.removeChild(childName);
-            // Only update pzxid when the zxid is larger than the current pzxid,
-            // otherwise we might override some higher pzxid set by a CreateTxn,
-            // which could cause the cversion and pzxid inconsistent
-            if (zxid > parent.stat.getPzxid()) {
-                parent.stat.setPzxid(zxid);
+            long stamp = parent.startChange();
+            try {
+                parent.removeChild(childName);
+                // Only update pzxid when the zxid is larger than the current pzxid,
+                // otherwise we might override some higher pzxid set by a CreateTxn,
+                // which could cause the cversion and pzxid inconsistent
+                if (zxid > parent.stat.getPzxid()) {
+                    parent.stat.setPzxid(zxid);
+                }
+            } finally {
+                parent.endChange(stamp);
             }
             nodes.postChange(parentName, parent);
         }
+        markDirty(parentName);
 
         DataNode node = nodes.get(path);
         if (node == null) {
             throw new NoNodeException();
         }
+        preserveForSnapshot(path, node);
         nodes.remove(path);
+        markDirty(path);
         synchronized (node) {
             aclCache.removeUsage(node.acl);
-            nodeDataSize.addAndGet(-getNodeSize(path, node.data));
+            nodeDataSize.addAndGet(-getNodeSize(path, node.getDataLength()));
         }
 
         // Synchronized to sync the containers and ttls change, probably
@@ -576,12 +659,7 @@ public void deleteNode(String path, long zxid) throws NoNodeException {
             } else if (ephemeralType == EphemeralType.TTL) {
                 ttls.remove(path);
             } else if (owner != 0) {
-                Set<String> nodes = ephemerals.get(owner);
-                if (nodes != null) {
-                    synchronized (nodes) {
-                        nodes.remove(path);
-                    }
-                }
+                ephemerals.remove(owner, path);
             }
         }
 
@@ -590,6 +668,7 @@ public void deleteNode(String path, long zxid) throws NoNodeException {
             // we need to update the trie as well
             pTrie.deletePath(Quotas.trimQuotaPath(parentName));
         }
+        updateQuotaIndex(path, null);
 
         // also check to update the quotas for this node
         String lastPrefix = getMaxPrefixWithQuota(path);
@@ -597,7 +676,7 @@ public void deleteNode(String path, long zxid) throws NoNodeException {
             // ok we have some match and need to update
             long bytes;
             synchronized (node) {
-                bytes = (node.data == null ? 0 : -(node.data.length));
+                bytes = -node.getDataLength();
             }
             updateQuotaStat(lastPrefix, bytes, -1);
         }
@@ -626,27 +705,32 @@ public Stat setData(String path, byte[] data, int version, long zxid, long time)
         if (n == null) {
             throw new NoNodeException();
         }
-        byte[] lastData;
+        int lastDataLength;
         synchronized (n) {
-            lastData = n.data;
+            lastDataLength = n.getDataLength();
+            preserveForSnapshot(path, n);
             nodes.preChange(path, n);
-            n.data = data;
+            long stamp = n.startChange();
+            n.setData(data);
             n.stat.setMtime(time);
             n.stat.setMzxid(zxid);
             n.stat.setVersion(version);
+            n.endChange(stamp);
             n.copyStat(s);
             nodes.postChange(path, n);
         }
+        markDirty(path);
+        updateQuotaIndex(path, data);
 
         // first do a quota check if the path is in a quota subtree.
         String lastPrefix = getMaxPrefixWithQuota(path);
-        long bytesDiff = (data == null ? 0 : data.length) - (lastData == null ? 0 : lastData.length);
+        long bytesDiff = (data == null ? 0 : data.length) - lastDataLength;
         // now update if the path is in a quota subtree.
         long dataBytes = data == null ? 0 : data.length;
         if (lastPrefix != null) {
             updateQuotaStat(lastPrefix, bytesDiff, 0);
         }
-        nodeDataSize.addAndGet(getNodeSize(path, data) - getNodeSize(path, lastData));
+        nodeDataSize.addAndGet(getNodeSize(path, data) - getNodeSize(path, lastDataLength));
 
         updateWriteStat(path, dataBytes);
         dataWatches.triggerWatch(path, EventType.NodeDataChanged, zxid);
@@ -685,18 +769,35 @@ public byte[] getData(String path, Stat stat, Watcher watcher) throws NoNodeExce
         if (n == null) {
             throw new NoNodeException();
         }
-        byte[] data;
-        synchronized (n) {
-            n.copyStat(stat);
-            if (watcher != null) {
-                dataWatches.addWatch(path, watcher);
-            }
-            data = n.data;
+        // the watch is added before the node is read, as in statNode, so that
+        // a change racing with the read is still seen by the watcher
+        if (watcher != null) {
+            dataWatches.addWatch(path, watcher);
         }
+        byte[] data = n.readDataAndStat(stat);
         updateReadStat(path, data == null ? 0 : data.length);
         return data;
     }
 
+    /**
+     * Like {@link #getData(String, Stat, Watcher)}, but the data kept off
+     * the heap is returned as a read-only direct buffer instead of a copy.
+     *
+     * @return the data, or null if the node has none
+     */
+    public ByteBuffer getDataBuffer(String path, Stat stat, Watcher watcher) throws NoNodeException {
+        DataNode n = nodes.get(path);
+        if (n == null) {
+            throw new NoNodeException();
+        }
+        if (watcher != null) {
+            dataWatches.addWatch(path, watcher);
+        }
+        ByteBuffer data = n.readDataBufferAndStat(stat);
+        updateReadStat(path, data == null ? 0 : data.remaining());
+        return data;
+    }
+
     public Stat statNode(String path, Watcher watcher) throws NoNodeException {
         if (watcher != null) {
             dataWatches.addWatch(path, watcher);
@@ -706,9 +807,7 @@ public Stat statNode(String path, Watcher watcher) throws NoNodeException {
             throw new NoNodeException();
         }
         Stat stat = new Stat();
-        synchronized (n) {
-            n.copyStat(stat);
-        }
+        n.readDataAndStat(stat);
         updateReadStat(path, 0L);
         return stat;
     }
@@ -723,7 +822,7 @@ public List<String> getChildren(String path, Stat stat, Watcher watcher) throws
             if (stat != null) {
                 n.copyStat(stat);
             }
-            children = new ArrayList<>(n.getChildren());
+            children = n.getChildrenList();
 
             if (watcher != null) {
                 childWatches.addWatch(path, watcher);
@@ -756,11 +855,16 @@ public Stat setACL(String path, List<ACL> acl, int version) throws NoNodeExcepti
         synchronized (n) {
             Stat stat = new Stat();
             aclCache.removeUsage(n.acl);
+            preserveForSnapshot(path, n);
             nodes.preChange(path, n);
+            Long acls = aclCache.convertAcls(acl);
+            long stamp = n.startChange();
             n.stat.setAversion(version);
-            n.acl = aclCache.convertAcls(acl);
+            n.acl = acls;
+            n.endChange(stamp);
             n.copyStat(stat);
             nodes.postChange(path, n);
+            markDirty(path);
             return stat;
         }
     }
@@ -843,7 +947,13 @@ public ProcessTxnResult processTxn(TxnHeader header, Record txn, TxnDigest diges
     }
 
     public ProcessTxnResult processTxn(TxnHeader header, Record txn) {
-        return this.processTxn(header, txn, false);
+        Lock lock = txnLock.readLock();
+        lock.lock();
+        try {
+            return this.processTxn(header, txn, false);
+        } finally {
+            lock.unlock();
+        }
     }
 
     public ProcessTxnResult processTxn(TxnHeader header, Record txn, boolean isSubTxn) {
@@ -941,7 +1051,7 @@ public ProcessTxnResult processTxn(TxnHeader header, Record txn, boolean isSubTx
                 long sessionId = header.getClientId();
                 if (txn != null) {
                     killSession(sessionId, header.getZxid(),
-                            ephemerals.remove(sessionId),
+                            ephemerals.removeSession(sessionId),
                             ((CloseSessionTxn) txn).getPaths2Delete());
                 } else {
                     killSession(sessionId, header.getZxid());
@@ -1119,7 +1229,7 @@ void killSession(long session, long zxid) {
         // so there is no need for synchronization. The list is not
         // changed here. Only create and delete change the list which
         // are again called from FinalRequestProcessor in sequence.
-        killSession(session, zxid, ephemerals.remove(session), null);
+        killSession(session, zxid, ephemerals.removeSession(session), null);
     }
 
     void killSession(long session, long zxid, Set<String> paths2DeleteLocal,
@@ -1199,7 +1309,7 @@ private void getCounts(String path, Counts counts) {
         int len;
         synchronized (node) {
             children = node.getChildren().toArray(new String[0]);
-            len = (node.data == null ? 0 : node.data.length);
+            len = node.getDataLength();
         }
         // add itself
         counts.count += 1;
@@ -1228,9 +1338,13 @@ private void updateQuotaForPath(String path) {
             return;
         }
         synchronized (node) {
+            preserveForSnapshot(statPath, node);
             nodes.preChange(statPath, node);
-            node.data = statsTrack.getStatsBytes();
+            long stamp = node.startChange();
+            node.setData(statsTrack.getStatsBytes());
+            node.endChange(stamp);
             nodes.postChange(statPath, node);
+            quotaIndex.setUsage(path, node.getData());
         }
     }
 
@@ -1257,6 +1371,11 @@ private void traverseNode(String path) {
                 String realPath = path.substring(Quotas.quotaZookeeper.length(), path.indexOf(endString));
                 updateQuotaForPath(realPath);
                 this.pTrie.addPath(realPath);
+                byte[] limits;
+                synchronized (node) {
+                    limits = node.getData();
+                }
+                quotaIndex.setLimits(realPath, limits);
             }
             return;
         }
@@ -1287,24 +1406,14 @@ private void setupQuota() {
      */
     void serializeNode(OutputArchive oa, StringBuilder path) throws IOException {
         String pathString = path.toString();
-        DataNode node = getNode(pathString);
-        if (node == null) {
+        DataNode nodeCopy = copyNodeForSnapshot(pathString);
+        if (nodeCopy == null) {
             return;
         }
-        String[] children;
-        DataNode nodeCopy;
-        synchronized (node) {
-            StatPersisted statCopy = new StatPersisted();
-            copyStatPersisted(node.stat, statCopy);
-            //we do not need to make a copy of node.data because the contents
-            //are never changed
-            nodeCopy = new DataNode(node.data, node.acl, statCopy);
-            children = node.getChildren().toArray(new String[0]);
-        }
         serializeNodeData(oa, pathString, nodeCopy);
         path.append('/');
         int off = path.length();
-        for (String child : children) {
+        for (String child : nodeCopy.getChildren()) {
             // Since this is single buffer being reused, we need to truncate the previous bytes of string.
             path.delete(off, Integer.MAX_VALUE);
             path.append(child);
@@ -1318,6 +1427,110 @@ public void serializeNodeData(OutputArchive oa, String path, DataNode node) thro
         oa.writeRecord(node, "node");
     }
 
+    /**
+     * Copy a node to write it to a snapshot. While a copy on write snapshot
+     * runs, this is the version of the node as of the start of the snapshot,
+     * which is read without taking the monitor of the node. Otherwise this is
+     * the current version, read under the monitor.
+     *
+     * @param path the path of the node
+     * @return the copy, or null if the node does not exist
+     */
+    DataNode copyNodeForSnapshot(String path) {
+        ConcurrentHashMap<String, DataNode> versions = snapshotVersions;
+        if (versions == null) {
+            DataNode node = nodes.get(path);
+            if (node == null) {
+                return null;
+            }
+            synchronized (node) {
+                return node.copy();
+            }
+        }
+        DataNode[] version = new DataNode[1];
+        versions.compute(path, (p, kept) -> {
+            if (kept == null) {
+                DataNode node = nodes.get(p);
+                version[0] = node == null ? null : node.copy();
+            } else if (kept != NO_SNAPSHOT_VERSION) {
+                version[0] = kept;
+            }
+            // each node is written once, later changes need not be kept
+            return NO_SNAPSHOT_VERSION;
+        });
+        return version[0];
+    }
+
+    /**
+     * Keep the version of a node before it is changed or deleted, if a copy
+     * on write snapshot runs and has neither written it nor kept it yet
+     */
+    private void preserveForSnapshot(String path, DataNode node) {
+        ConcurrentHashMap<String, DataNode> versions = snapshotVersions;
+        if (versions != null) {
+            versions.computeIfAbsent(path, p -> node.copy());
+        }
+    }
+
+    /**
+     * Mark a node created while a copy on write snapshot runs, which the
+     * snapshot does not write, so that its changes are not kept
+     */
+    private void excludeFromSnapshot(String path) {
+        ConcurrentHashMap<String, DataNode> versions = snapshotVersions;
+        if (versions != null) {
+            versions.putIfAbsent(path, NO_SNAPSHOT_VERSION);
+        }
+    }
+
+    /**
+     * Start a copy on write snapshot: until it ends, the snapshot reads the
+     * tree as of now, and the nodes changed in the meantime are copied before
+     * they are. It waits for the txn being applied, if any, to complete.
+     *
+     * @return the last processed zxid of the tree the snapshot reads, or -1
+     * if the snapshot is taken while applying a txn, which cannot be waited
+     * for, in which case the snapshot stays fuzzy
+     */
+    public long startCopyOnWriteSnapshot() {
+        if (txnLock.getReadHoldCount() > 0) {
+            return -1;
+        }
+        Lock lock = txnLock.writeLock();
+        lock.lock();
+        try {
+            snapshotVersions = new ConcurrentHashMap<>();
+            return lastProcessedZxid;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * End the running copy on write snapshot, see {@link #startCopyOnWriteSnapshot()}
+     */
+    public void endCopyOnWriteSnapshot() {
+        snapshotVersions = null;
+    }
+
+    /**
+     * @return the number of node versions kept for the running copy on write
+     * snapshot, or -1 if there is none
+     */
+    public int getSnapshotVersionCount() {
+        ConcurrentHashMap<String, DataNode> versions = snapshotVersions;
+        if (versions == null) {
+            return -1;
+        }
+        int count = 0;
+        for (DataNode version : versions.values()) {
+            if (version != NO_SNAPSHOT_VERSION) {
+                count++;
+            }
+        }
+        return count;
+    }
+
     public void serializeAcls(OutputArchive oa) throws IOException {
         aclCache.serialize(oa);
     }
@@ -1336,16 +1549,30 @@ public void serialize(OutputArchive oa, String tag) throws IOException {
         serializeNodes(oa);
     }
 
+    /**
+     * Serialize the tree with the nodes split into compressed chunks,
+     * written by several threads.
+     *
+     * @see ChunkedSnapshot
+     */
+    public void serializeChunked(OutputArchive oa, String tag) throws IOException {
+        serializeAcls(oa);
+        ChunkedSnapshot.serialize(this, oa);
+    }
+
     public void deserialize(InputArchive ia, String tag) throws IOException {
+        // the changes tracked so far are not relative to the new content
+        dirtyNodes = null;
         aclCache.deserialize(ia);
         nodes.clear();
         pTrie.clear();
+        quotaIndex.clear();
         nodeDataSize.set(0);
         String path = ia.readString("path");
         while (!"/".equals(path)) {
             DataNode node = new DataNode();
             ia.readRecord(node, "node");
-            nodes.put(path, node);
+            nodes.putWithoutDigest(path, node);
             synchronized (node) {
                 aclCache.addUsage(node.acl);
             }
@@ -1360,22 +1587,70 @@ public void deserialize(InputArchive ia, String tag) throws IOException {
                             "Invalid Datatree, unable to find parent " + parentPath + " of path " + path);
                 }
                 parent.addChild(path.substring(lastSlash + 1));
-                long owner = node.stat.getEphemeralOwner();
-                EphemeralType ephemeralType = EphemeralType.get(owner);
-                if (ephemeralType == EphemeralType.CONTAINER) {
-                    containers.add(path);
-                } else if (ephemeralType == EphemeralType.TTL) {
-                    ttls.add(path);
-                } else if (owner != 0) {
-                    HashSet<String> list = ephemerals.computeIfAbsent(owner, k -> new HashSet<>());
-                    list.add(path);
-                }
+                addToOwnerIndex(path, node.stat.getEphemeralOwner());
             }
             path = ia.readString("path");
         }
-        // have counted digest for root node with "", ignore here to avoid
-        // counting twice for root node
+        completeDeserialize();
+    }
+
+    /**
+     * Deserialize a tree written by serializeChunked. The chunks are loaded
+     * by several threads, and the nodes are linked to their parents once
+     * all of them are loaded.
+     */
+    public void deserializeChunked(InputArchive ia, String tag) throws IOException {
+        dirtyNodes = null;
+        aclCache.deserialize(ia);
+        nodes.clear();
+        pTrie.clear();
+        quotaIndex.clear();
+        nodeDataSize.set(0);
+        ChunkedSnapshot.deserialize(this, ia);
+        root = nodes.get("");
+        if (root == null) {
+            throw new IOException("Invalid Datatree, unable to find the root");
+        }
+        String orphan = nodes.entrySet().parallelStream().map(entry -> {
+            String path = entry.getKey();
+            if (path.isEmpty()) {
+                return null;
+            }
+            int lastSlash = path.lastIndexOf('/');
+            DataNode parent = nodes.get(path.substring(0, lastSlash));
+            if (parent == null) {
+                return path;
+            }
+            synchronized (parent) {
+                parent.addChild(path.substring(lastSlash + 1));
+            }
+            return null;
+        }).filter(path -> path != null).findAny().orElse(null);
+        if (orphan != null) {
+            throw new IOException("Invalid Datatree, unable to find parent of path " + orphan);
+        }
+        completeDeserialize();
+    }
+
+    /**
+     * add a node read from a chunk of the snapshot, called concurrently
+     * by the threads loading the chunks
+     */
+    void loadNode(String path, DataNode node) {
+        nodes.putWithoutDigest(path, node);
+        synchronized (node) {
+            aclCache.addUsage(node.acl);
+        }
+        if (!path.isEmpty()) {
+            addToOwnerIndex(path, node.stat.getEphemeralOwner());
+        }
+    }
+
+    private void completeDeserialize() {
+        // the nodes were added without their digests, which are calculated
+        // here all at once in parallel. The root node is only counted as ""
         nodes.putWithoutDigest("/", root);
+        nodes.recalculateDigest();
 
         nodeDataSize.set(approximateDataSize());
 
@@ -1387,6 +1662,205 @@ public void deserialize(InputArchive ia, String tag) throws IOException {
         aclCache.purgeUnused();
     }
 
+    /**
+     * index a node under its container, ttl or ephemeral owner
+     *
+     * @param path the path of the node
+     * @param owner the ephemeral owner of the node
+     */
+    private void addToOwnerIndex(String path, long owner) {
+        EphemeralType ephemeralType = EphemeralType.get(owner);
+        if (ephemeralType == EphemeralType.CONTAINER) {
+            containers.add(path);
+        } else if (ephemeralType == EphemeralType.TTL) {
+            ttls.add(path);
+        } else if (owner != 0) {
+            ephemerals.add(owner, path);
+        }
+    }
+
+    private void removeFromOwnerIndex(String path, long owner) {
+        EphemeralType ephemeralType = EphemeralType.get(owner);
+        if (ephemeralType == EphemeralType.CONTAINER) {
+            containers.remove(path);
+        } else if (ephemeralType == EphemeralType.TTL) {
+            ttls.remove(path);
+        } else if (owner != 0) {
+            ephemerals.remove(owner, path);
+        }
+    }
+
+    private void markDirty(String path) {
+        Set<String> dirty = dirtyNodes;
+        if (dirty != null) {
+            // the root is known as both "" and "/", "/" marks the end of a delta
+            dirty.add(rootZookeeper.equals(path) ? "" : path);
+        }
+    }
+
+    /**
+     * Start a new set of the nodes changed from now on, which the next
+     * delta snapshot is written from, and return the previous one. The
+     * first call starts tracking the changes.
+     *
+     * @return the paths of the nodes changed since the previous call, or
+     * null if the changes were not tracked
+     */
+    public Set<String> resetDirtyNodes() {
+        Set<String> dirty = dirtyNodes;
+        dirtyNodes = ConcurrentHashMap.newKeySet();
+        return dirty;
+    }
+
+    /**
+     * stop tracking the changed nodes
+     */
+    public void stopDirtyTracking() {
+        dirtyNodes = null;
+    }
+
+    /**
+     * @return the number of nodes changed since the last call to
+     * resetDirtyNodes, or -1 if the changes are not tracked
+     */
+    public int getDirtyNodeCount() {
+        Set<String> dirty = dirtyNodes;
+        return dirty == null ? -1 : dirty.size();
+    }
+
+    /**
+     * Serialize the given nodes as a delta to the tree: the acls, then the
+     * current content of each node, or a deletion marker for the ones that
+     * do not exist anymore. Like a full snapshot, a delta is fuzzy: a node
+     * may already reflect txns applied while it is being written.
+     *
+     * @param oa the archive to write to
+     * @param paths the paths of the nodes to write
+     * @throws IOException
+     */
+    public void serializeDelta(OutputArchive oa, Set<String> paths) throws IOException {
+        serializeAcls(oa);
+        for (String path : paths) {
+            DataNode nodeCopy = copyNodeForSnapshot(path);
+            oa.writeString(path, "path");
+            oa.writeBool(nodeCopy != null, "exists");
+            if (nodeCopy != null) {
+                oa.writeRecord(nodeCopy, "node");
+            }
+        }
+        oa.writeString(rootZookeeper, "path");
+    }
+
+    /**
+     * Apply a delta read from a delta snapshot: replace the acls and
+     * create, update or delete the nodes it holds. Nodes whose parent is
+     * missing are skipped, as can happen in a fuzzy delta, they are
+     * recreated by the txns replayed after it.
+     *
+     * @param delta the delta to apply
+     */
+    public void applyDelta(Delta delta) {
+        for (Map.Entry<String, DataNode> entry : delta.nodes.entrySet()) {
+            String path = entry.getKey();
+            DataNode update = entry.getValue();
+            DataNode node = nodes.get(path);
+            if (update == null) {
+                if (node != null && !path.isEmpty()) {
+                    removeSubtree(path, node);
+                }
+            } else if (node != null) {
+                removeFromOwnerIndex(path, node.stat.getEphemeralOwner());
+                synchronized (node) {
+                    nodes.preChange(path, node);
+                    node.setDataOf(update);
+                    node.acl = update.acl;
+                    copyStatPersisted(update.stat, node.stat);
+                    nodes.postChange(path, node);
+                }
+                addToOwnerIndex(path, node.stat.getEphemeralOwner());
+            } else {
+                int lastSlash = path.lastIndexOf('/');
+                DataNode parent = nodes.get(path.substring(0, lastSlash));
+                if (parent == null) {
+                    LOG.debug("Skipping {} from the delta, its parent does not exist", path);
+                    continue;
+                }
+                nodes.put(path, update);
+                parent.addChild(path.substring(lastSlash + 1));
+                addToOwnerIndex(path, update.stat.getEphemeralOwner());
+            }
+        }
+
+        // rebuild what deserialize derives from the whole tree
+        aclCache.copyFrom(delta.aclCache);
+        for (Map.Entry<String, DataNode> entry : nodes.entrySet()) {
+            if (!rootZookeeper.equals(entry.getKey())) {
+                aclCache.addUsage(entry.getValue().acl);
+            }
+        }
+        aclCache.purgeUnused();
+        nodeDataSize.set(approximateDataSize());
+        pTrie.clear();
+        quotaIndex.clear();
+        setupQuota();
+    }
+
+    private void removeSubtree(String path, DataNode node) {
+        String[] children;
+        synchronized (node) {
+            children = node.getChildren().toArray(new String[0]);
+        }
+        for (String child : children) {
+            String childPath = path + "/" + child;
+            DataNode childNode = nodes.get(childPath);
+            if (childNode != null) {
+                removeSubtree(childPath, childNode);
+            }
+        }
+        int lastSlash = path.lastIndexOf('/');
+        DataNode parent = nodes.get(path.substring(0, lastSlash));
+        if (parent != null) {
+            parent.removeChild(path.substring(lastSlash + 1));
+        }
+        nodes.remove(path);
+        removeFromOwnerIndex(path, node.stat.getEphemeralOwner());
+    }
+
+    /**
+     * The content of a delta snapshot, read in full before it is applied
+     * with {@link #applyDelta(Delta)} so that a corrupt delta leaves the
+     * tree untouched.
+     */
+    public static class Delta {
+
+        private final ReferenceCountedACLCache aclCache = new ReferenceCountedACLCache();
+
+        /**
+         * the updated nodes, null for the deleted ones, sorted so that a
+         * parent comes before its children
+         */
+        private final TreeMap<String, DataNode> nodes = new TreeMap<>();
+
+        public void deserialize(InputArchive ia) throws IOException {
+            aclCache.deserialize(ia);
+            String path = ia.readString("path");
+            while (!rootZookeeper.equals(path)) {
+                DataNode node = null;
+                if (ia.readBool("exists")) {
+                    node = new DataNode();
+                    ia.readRecord(node, "node");
+                }
+                nodes.put(path, node);
+                path = ia.readString("path");
+            }
+        }
+
+        public int size() {
+            return nodes.size();
+        }
+
+    }
+
     /**
      * Summary of the watches on the datatree.
      * @param writer the output to write to
@@ -1439,17 +1913,13 @@ public synchronized WatchesSummary getWatchesSummary() {
      * @param writer the output to write to
      */
     public void dumpEphemerals(PrintWriter writer) {
-        writer.println("Sessions with Ephemerals (" + ephemerals.keySet().size() + "):");
-        for (Entry<Long, HashSet<String>> entry : ephemerals.entrySet()) {
+        Map<Long, Set<String>> ephemeralsCopy = ephemerals.toMap();
+        writer.println("Sessions with Ephemerals (" + ephemeralsCopy.size() + "):");
+        for (Entry<Long, Set<String>> entry : ephemeralsCopy.entrySet()) {
             writer.print("0x" + Long.toHexString(entry.getKey()));
             writer.println(":");
-            Set<String> tmp = entry.getValue();
-            if (tmp != null) {
-                synchronized (tmp) {
-                    for (String path : tmp) {
-                        writer.println("\t" + path);
-                    }
-                }
+            for (String path : entry.getValue()) {
+                writer.println("\t" + path);
             }
         }
     }
@@ -1465,13 +1935,7 @@ public void shutdownWatcher() {
      * @return map of session ID to sets of ephemeral znodes
      */
     public Map<Long, Set<String>> getEphemerals() {
-        Map<Long, Set<String>> ephemeralsCopy = new HashMap<>();
-        for (Entry<Long, HashSet<String>> e : ephemerals.entrySet()) {
-            synchronized (e.getValue()) {
-                ephemeralsCopy.put(e.getKey(), new HashSet<>(e.getValue()));
-            }
-        }
-        return ephemeralsCopy;
+        return ephemerals.toMap();
     }
 
     public void removeCnxn(Watcher watcher) {
@@ -1547,10 +2011,14 @@ public void setCversionPzxid(String path, int newCversion, long zxid) throws NoN
                 newCversion = node.stat.getCversion() + 1;
             }
             if (newCversion > node.stat.getCversion()) {
+                preserveForSnapshot(path, node);
                 nodes.preChange(path, node);
+                long stamp = node.startChange();
                 node.stat.setCversion(newCversion);
                 node.stat.setPzxid(zxid);
+                node.endChange(stamp);
                 nodes.postChange(path, node);
+                markDirty(path);
             }
         }
     }
@@ -1860,6 +2328,17 @@ public long getTreeDigest() {
         return nodes.getDigest();
     }
 
+    /**
+     * Calculate the digest of the tree again from the content of its nodes,
+     * in parallel, to verify the digest kept up to date as the tree changes.
+     * The two only match while the tree is not being changed.
+     *
+     * @return the digest calculated from the nodes
+     */
+    public long calculateTreeDigest() {
+        return digestCalculator.calculateDigest(nodes, false);
+    }
+
     public ZxidDigest getLastProcessedZxidDigest() {
         return lastProcessedZxidDigest;
     }
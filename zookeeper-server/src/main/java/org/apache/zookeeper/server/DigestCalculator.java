@@ -55,6 +55,22 @@ public class DigestCalculator {
      * @return the digest calculated from the given params
      */
     long calculateDigest(String path, byte[] data, StatPersisted stat) {
+        return calculateDigest(path, data, null, stat);
+    }
+
+    /**
+     * Calculate the digest based on the given params, with the data in a
+     * buffer, which is not consumed.
+     */
+    long calculateDigest(String path, ByteBuffer data, StatPersisted stat) {
+        return calculateDigest(path, null, data == null ? null : data.duplicate(), stat);
+    }
+
+    /**
+     * @param dataBuffer the data of the node if it is kept off the heap,
+     *                   which is read without copying it, or null
+     */
+    private long calculateDigest(String path, byte[] data, ByteBuffer dataBuffer, StatPersisted stat) {
 
         if (!ZooKeeperServer.isDigestEnabled()) {
             return 0;
@@ -96,7 +112,9 @@ long calculateDigest(String path, byte[] data, StatPersisted stat) {
 
         CRC32 crc = new CRC32();
         crc.update(path.getBytes());
-        if (data != null) {
+        if (dataBuffer != null) {
+            crc.update(dataBuffer);
+        } else if (data != null) {
             crc.update(data);
         }
         crc.update(b);
@@ -108,12 +126,45 @@ long calculateDigest(String path, byte[] data, StatPersisted stat) {
      */
     long calculateDigest(String path, DataNode node) {
         if (!node.isDigestCached()) {
-            node.setDigest(calculateDigest(path, node.getData(), node.stat));
+            ByteBuffer offHeapData = node.getOffHeapData();
+            node.setDigest(calculateDigest(path, offHeapData == null ? node.getData() : null, offHeapData, node.stat));
             node.setDigestCached(true);
         }
         return node.getDigest();
     }
 
+    /**
+     * Calculate the digest of all the nodes in the map, which is the sum of
+     * the digests of the nodes as kept by {@link org.apache.zookeeper.server.util.AdHash}.
+     * The sum does not depend on the order of the nodes, so they are split
+     * across the common fork-join pool and the partial sums are added up.
+     *
+     * @param nodes the nodes to calculate the digest of
+     * @param useCache whether to use and fill the digests cached in the
+     *                 nodes, or to calculate them again from their content
+     * @return the digest of the nodes
+     */
+    long calculateDigest(NodeHashMap nodes, boolean useCache) {
+        if (!ZooKeeperServer.isDigestEnabled()) {
+            return 0;
+        }
+        return nodes.entrySet().parallelStream().mapToLong(entry -> {
+            String path = entry.getKey();
+            DataNode node = entry.getValue();
+            // "/" is the alias of the root node, which is counted as ""
+            if (path.equals("/") || path.startsWith(ZooDefs.ZOOKEEPER_NODE_SUBTREE)) {
+                return 0;
+            }
+            if (useCache) {
+                return calculateDigest(path, node);
+            }
+            synchronized (node) {
+                ByteBuffer offHeapData = node.getOffHeapData();
+                return calculateDigest(path, offHeapData == null ? node.getData() : null, offHeapData, node.stat);
+            }
+        }).sum();
+    }
+
     /**
      * Returns with the current digest version.
      */
@@ -0,0 +1,249 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The paths of the ephemeral nodes of each session.
+ * <p>
+ * The sessions are kept in stripes of open addressing tables keyed by the
+ * primitive session id, so that session ids are not boxed and sessions of
+ * different stripes do not contend. The paths of a session are kept in a
+ * {@link ChildSet}, which stores the paths of sequential nodes compactly.
+ * A session is dropped from the index with its last path.
+ */
+final class EphemeralIndex {
+
+    private static final int STRIPES = 16;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private static final class Stripe {
+
+        // the slots are free where paths is null
+        long[] sessions = new long[INITIAL_CAPACITY];
+        ChildSet[] paths = new ChildSet[INITIAL_CAPACITY];
+        int sessionCount;
+        int pathCount;
+
+        int indexOf(long session) {
+            int mask = paths.length - 1;
+            int i = slot(session) & mask;
+            while (paths[i] != null) {
+                if (sessions[i] == session) {
+                    return i;
+                }
+                i = (i + 1) & mask;
+            }
+            return -1 - i;
+        }
+
+        ChildSet get(long session) {
+            int i = indexOf(session);
+            return i < 0 ? null : paths[i];
+        }
+
+        ChildSet getOrCreate(long session) {
+            int i = indexOf(session);
+            if (i >= 0) {
+                return paths[i];
+            }
+            if (sessionCount + 1 > paths.length / 4 * 3) {
+                resize(paths.length * 2);
+                i = indexOf(session);
+            }
+            i = -1 - i;
+            sessions[i] = session;
+            paths[i] = new ChildSet();
+            sessionCount++;
+            return paths[i];
+        }
+
+        ChildSet remove(long session) {
+            int i = indexOf(session);
+            if (i < 0) {
+                return null;
+            }
+            ChildSet removed = paths[i];
+            sessionCount--;
+            pathCount -= removed.size();
+            // shift back the sessions probed past the freed slot
+            int mask = paths.length - 1;
+            int free = i;
+            for (int j = (i + 1) & mask; paths[j] != null; j = (j + 1) & mask) {
+                int home = slot(sessions[j]) & mask;
+                if (((j - home) & mask) >= ((j - free) & mask)) {
+                    sessions[free] = sessions[j];
+                    paths[free] = paths[j];
+                    free = j;
+                }
+            }
+            paths[free] = null;
+            if (paths.length > INITIAL_CAPACITY && sessionCount < paths.length / 8) {
+                resize(paths.length / 2);
+            }
+            return removed;
+        }
+
+        private void resize(int capacity) {
+            long[] oldSessions = sessions;
+            ChildSet[] oldPaths = paths;
+            sessions = new long[capacity];
+            paths = new ChildSet[capacity];
+            for (int j = 0; j < oldPaths.length; j++) {
+                if (oldPaths[j] != null) {
+                    int i = -1 - indexOf(oldSessions[j]);
+                    sessions[i] = oldSessions[j];
+                    paths[i] = oldPaths[j];
+                }
+            }
+        }
+
+    }
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    EphemeralIndex() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    private static long mix(long session) {
+        long h = session * 0x9E3779B97F4A7C15L;
+        return h ^ (h >>> 29);
+    }
+
+    private static int slot(long session) {
+        return (int) mix(session);
+    }
+
+    private Stripe stripe(long session) {
+        return stripes[(int) (mix(session) >>> 60) & (STRIPES - 1)];
+    }
+
+    void add(long session, String path) {
+        Stripe stripe = stripe(session);
+        synchronized (stripe) {
+            if (stripe.getOrCreate(session).add(path)) {
+                stripe.pathCount++;
+            }
+        }
+    }
+
+    void remove(long session, String path) {
+        Stripe stripe = stripe(session);
+        synchronized (stripe) {
+            ChildSet paths = stripe.get(session);
+            if (paths != null && paths.remove(path)) {
+                stripe.pathCount--;
+                if (paths.isEmpty()) {
+                    stripe.remove(session);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return a copy of the paths of the session, empty if it has none
+     */
+    Set<String> get(long session) {
+        Stripe stripe = stripe(session);
+        synchronized (stripe) {
+            ChildSet paths = stripe.get(session);
+            return paths == null ? new HashSet<>() : new HashSet<>(paths);
+        }
+    }
+
+    /**
+     * Remove the session with all its paths at once.
+     *
+     * @return the paths of the session, or null if it has none
+     */
+    Set<String> removeSession(long session) {
+        Stripe stripe = stripe(session);
+        synchronized (stripe) {
+            return stripe.remove(session);
+        }
+    }
+
+    /**
+     * @return the sessions with ephemeral nodes
+     */
+    List<Long> getSessions() {
+        List<Long> result = new ArrayList<>();
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                for (int i = 0; i < stripe.paths.length; i++) {
+                    if (stripe.paths[i] != null) {
+                        result.add(stripe.sessions[i]);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    int getSessionCount() {
+        int count = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                count += stripe.sessionCount;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of ephemeral nodes
+     */
+    int size() {
+        int count = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                count += stripe.pathCount;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return a copy of the paths of all the sessions
+     */
+    Map<Long, Set<String>> toMap() {
+        Map<Long, Set<String>> result = new HashMap<>();
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                for (int i = 0; i < stripe.paths.length; i++) {
+                    if (stripe.paths[i] != null) {
+                        result.put(stripe.sessions[i], new HashSet<>(stripe.paths[i]));
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+}
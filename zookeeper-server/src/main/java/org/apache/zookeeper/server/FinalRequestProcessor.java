@@ -20,6 +20,7 @@
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -109,7 +110,14 @@ public FinalRequestProcessor(ZooKeeperServer zks) {
     }
 
     private ProcessTxnResult applyRequest(Request request) {
-        ProcessTxnResult rc = zks.processTxn(request);
+        ProcessTxnResult rc;
+        // send the notifications of each connection fired by the txn at once
+        WatchEventBatch.begin();
+        try {
+            rc = zks.processTxn(request);
+        } finally {
+            WatchEventBatch.end();
+        }
 
         // ZOOKEEPER-558:
         // In some cases the server does not close the connection (e.g., closeconn buffer
@@ -283,7 +291,9 @@ public void processRequest(Request request) {
                             break;
                         case OpCode.getData:
                             rec = handleGetDataRequest(readOp.toRequestRecord(), cnxn, request.authInfo);
-                            GetDataResponse gdr = (GetDataResponse) rec;
+                            GetDataResponse gdr = rec instanceof GetDataBufferResponse
+                                ? ((GetDataBufferResponse) rec).toGetDataResponse()
+                                : (GetDataResponse) rec;
                             subResult = new GetDataResult(gdr.getData(), gdr.getStat());
                             break;
                         default:
@@ -603,8 +613,9 @@ public void processRequest(Request request) {
                 // so these values are passed along with the response.
                 switch (opCode) {
                     case OpCode.getData : {
-                        GetDataResponse getDataResponse = (GetDataResponse) rsp;
-                        stat = getDataResponse.getStat();
+                        stat = rsp instanceof GetDataBufferResponse
+                            ? ((GetDataBufferResponse) rsp).getStat()
+                            : ((GetDataResponse) rsp).getStat();
                         responseSize = cnxn.sendResponse(hdr, rsp, "response", path, stat, opCode);
                         break;
                     }
@@ -651,8 +662,12 @@ private Record handleGetDataRequest(Record request, ServerCnxn cnxn, List<Id> au
         }
         zks.checkACL(cnxn, zks.getZKDatabase().aclForNode(n), ZooDefs.Perms.READ, authInfo, path, null);
         Stat stat = new Stat();
-        byte[] b = zks.getZKDatabase().getData(path, stat, getDataRequest.getWatch() ? cnxn : null);
-        return new GetDataResponse(b, stat);
+        ByteBuffer b = zks.getZKDatabase().getDataBuffer(path, stat, getDataRequest.getWatch() ? cnxn : null);
+        if (b != null && b.isDirect()) {
+            // kept off the heap, sent without copying it
+            return new GetDataBufferResponse(b, stat);
+        }
+        return new GetDataResponse(b == null ? null : b.array(), stat);
     }
 
     private void handleCheckVersionRequest(CheckVersionRequest request, ServerCnxn cnxn, List<Id> authInfo) throws KeeperException {
@@ -0,0 +1,86 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.apache.jute.InputArchive;
+import org.apache.jute.OutputArchive;
+import org.apache.jute.Record;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.proto.GetDataResponse;
+
+/**
+ * A {@link GetDataResponse} holding data kept off the heap. It is
+ * serialized the same way, and {@link ServerCnxn} sends the data straight
+ * from its buffer instead of copying it onto the heap.
+ */
+public class GetDataBufferResponse implements Record {
+
+    private ByteBuffer data;
+
+    private Stat stat;
+
+    public GetDataBufferResponse() {
+        this(null, new Stat());
+    }
+
+    /**
+     * @param data the data, a read-only buffer of its own, or null
+     * @param stat the stat of the node
+     */
+    public GetDataBufferResponse(ByteBuffer data, Stat stat) {
+        this.data = data;
+        this.stat = stat;
+    }
+
+    /**
+     * @return the data, in a buffer of its own, or null
+     */
+    public ByteBuffer getData() {
+        return data == null ? null : data.duplicate();
+    }
+
+    public Stat getStat() {
+        return stat;
+    }
+
+    public GetDataResponse toGetDataResponse() {
+        if (data == null) {
+            return new GetDataResponse(null, stat);
+        }
+        byte[] array = new byte[data.remaining()];
+        data.duplicate().get(array);
+        return new GetDataResponse(array, stat);
+    }
+
+    @Override
+    public void serialize(OutputArchive archive, String tag) throws IOException {
+        toGetDataResponse().serialize(archive, tag);
+    }
+
+    @Override
+    public void deserialize(InputArchive archive, String tag) throws IOException {
+        GetDataResponse response = new GetDataResponse();
+        response.deserialize(archive, tag);
+        data = response.getData() == null ? null : ByteBuffer.wrap(response.getData()).asReadOnlyBuffer();
+        stat = response.getStat();
+    }
+
+}
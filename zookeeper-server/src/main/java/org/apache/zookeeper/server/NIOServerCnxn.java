@@ -712,6 +712,9 @@ public void process(WatchedEvent event) {
                 ZooTrace.EVENT_DELIVERY_TRACE_MASK,
                 "Deliver event " + event + " to 0x" + Long.toHexString(this.sessionId) + " through " + this);
         }
+        if (processInBatch(event)) {
+            return;
+        }
 
         // Convert WatchedEvent to a type that can be sent over the wire
         WatcherEvent e = event.getWrapper();
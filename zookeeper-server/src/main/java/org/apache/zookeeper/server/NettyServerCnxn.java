@@ -169,6 +169,9 @@ public void process(WatchedEvent event) {
                 ZooTrace.EVENT_DELIVERY_TRACE_MASK,
                 "Deliver event " + event + " to 0x" + Long.toHexString(this.sessionId) + " through " + this);
         }
+        if (processInBatch(event)) {
+            return;
+        }
 
         // Convert WatchedEvent to a type that can be sent over the wire
         WatcherEvent e = event.getWrapper();
@@ -198,6 +201,14 @@ public int sendResponse(ReplyHeader h, Record r, String tag,
         return responseSize;
     }
 
+    @Override
+    void sendNotifications(ByteBuffer... frames) {
+        if (closingChannel || !channel.isOpen()) {
+            return;
+        }
+        sendBuffer(frames);
+    }
+
     @Override
     public void setSessionId(long sessionId) {
         this.sessionId = sessionId;
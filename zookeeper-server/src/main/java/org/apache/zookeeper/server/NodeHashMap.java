@@ -96,4 +96,10 @@ public interface NodeHashMap {
      */
     long getDigest();
 
+    /**
+     * Calculate the digest again from all the nodes in the map, in parallel.
+     * Used once the map was filled with {@link #putWithoutDigest}.
+     */
+    void recalculateDigest();
+
 }
@@ -126,4 +126,12 @@ public long getDigest() {
         return hash.getHash();
     }
 
+    @Override
+    public void recalculateDigest() {
+        hash.clear();
+        if (digestEnabled) {
+            hash.addDigest(digestCalculator.calculateDigest(this, true));
+        }
+    }
+
 }
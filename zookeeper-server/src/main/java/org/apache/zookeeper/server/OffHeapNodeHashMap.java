@@ -0,0 +1,691 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.locks.StampedLock;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.server.util.AdHash;
+
+/**
+ * A {@link NodeHashMap} keeping its index off heap, for trees with many
+ * millions of nodes where the path strings and map entries of
+ * {@link NodeHashMapImpl} take much of the heap.
+ *
+ * Paths are not kept as strings. Each path has a slot in an off heap arena
+ * holding the slot of its parent path and the id of its last segment, and
+ * the segments are interned in an off heap char arena, so a segment shared
+ * by many paths is stored once. A path whose node is not in the map is
+ * kept as long as it is the parent of one that is. Only the references to
+ * the nodes, which are changed in place and locked by the tree, stay on heap.
+ *
+ * Writers are serialized. Readers do not block: they read optimistically
+ * and only take the read lock if a writer changed the map meanwhile.
+ */
+public class OffHeapNodeHashMap implements NodeHashMap {
+
+    /**
+     * Set to true to keep the nodes of the data tree in an
+     * {@link OffHeapNodeHashMap} rather than in a {@link NodeHashMapImpl}
+     */
+    public static final String ZOOKEEPER_OFF_HEAP_NODE_HASH_MAP = "zookeeper.offHeapNodeHashMap";
+
+    private static final int NONE = -1;
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    // the ints of a path slot
+    private static final int SLOT_HASH = 0;
+    private static final int SLOT_PARENT = 1;
+    private static final int SLOT_SEGMENT = 2;
+    private static final int SLOT_NEXT = 3;
+    private static final int SLOT_CHILDREN = 4;
+    private static final int SLOT_INTS = 5;
+
+    // the ints of a segment
+    private static final int SEGMENT_OFFSET = 0;
+    private static final int SEGMENT_LENGTH = 1;
+    private static final int SEGMENT_HASH = 2;
+    private static final int SEGMENT_NEXT = 3;
+    private static final int SEGMENT_REFS = 4;
+    private static final int SEGMENT_INTS = 5;
+
+    private final boolean digestEnabled;
+    private final DigestCalculator digestCalculator;
+    private final AdHash hash;
+
+    private final StampedLock lock = new StampedLock();
+
+    /**
+     * the path slots, a free slot has no segment and is linked to the next
+     * free one
+     */
+    private IntBuffer slots;
+    private int slotCapacity;
+    private int slotHighWater;
+    private int freeSlot;
+    private int liveSlots;
+
+    /**
+     * the first slot of each hash chain plus one, 0 for none
+     */
+    private IntBuffer slotBuckets;
+
+    /**
+     * the node of each slot, null if the path has no node
+     */
+    private DataNode[] values;
+
+    private volatile int size;
+
+    /**
+     * the interned segments, a free segment has no references and is linked
+     * to the next free one
+     */
+    private IntBuffer segments;
+    private int segmentCapacity;
+    private int segmentHighWater;
+    private int freeSegment;
+    private int liveSegments;
+
+    /**
+     * the first segment of each hash chain plus one, 0 for none
+     */
+    private IntBuffer segmentBuckets;
+
+    /**
+     * the chars of the segments, freed segments are reclaimed by compacting
+     */
+    private CharBuffer chars;
+    private int charsUsed;
+    private int charsGarbage;
+
+    public OffHeapNodeHashMap(DigestCalculator digestCalculator) {
+        this.digestCalculator = digestCalculator;
+        hash = new AdHash();
+        digestEnabled = ZooKeeperServer.isDigestEnabled();
+        init();
+    }
+
+    private void init() {
+        slotCapacity = INITIAL_CAPACITY;
+        slots = allocateInts(slotCapacity * SLOT_INTS);
+        slotHighWater = 0;
+        freeSlot = NONE;
+        liveSlots = 0;
+        slotBuckets = allocateInts(INITIAL_CAPACITY);
+        values = new DataNode[slotCapacity];
+        size = 0;
+
+        segmentCapacity = INITIAL_CAPACITY;
+        segments = allocateInts(segmentCapacity * SEGMENT_INTS);
+        segmentHighWater = 0;
+        freeSegment = NONE;
+        liveSegments = 0;
+        segmentBuckets = allocateInts(INITIAL_CAPACITY);
+
+        chars = allocateChars(16 * INITIAL_CAPACITY);
+        charsUsed = 0;
+        charsGarbage = 0;
+    }
+
+    private static IntBuffer allocateInts(long count) {
+        return allocate(count * Integer.BYTES).asIntBuffer();
+    }
+
+    private static CharBuffer allocateChars(long count) {
+        return allocate(count * Character.BYTES).asCharBuffer();
+    }
+
+    private static ByteBuffer allocate(long bytes) {
+        if (bytes > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Off heap node hash map cannot grow beyond 2GB arenas");
+        }
+        return ByteBuffer.allocateDirect((int) bytes).order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * @return the hash of path[start, end), which is the String hash code of
+     * the whole path when start is 0 and end its length
+     */
+    private static int hash(String path, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + path.charAt(i);
+        }
+        return h;
+    }
+
+    private static int bucketIndex(int hash, int buckets) {
+        return (hash ^ (hash >>> 16)) & (buckets - 1);
+    }
+
+    @Override
+    public DataNode put(String path, DataNode node) {
+        DataNode oldNode = putWithoutDigest(path, node);
+        addDigest(path, node);
+        if (oldNode != null) {
+            removeDigest(path, oldNode);
+        }
+        return oldNode;
+    }
+
+    @Override
+    public DataNode putWithoutDigest(String path, DataNode node) {
+        long stamp = lock.writeLock();
+        try {
+            int slot = findOrCreateSlot(path, path.length());
+            DataNode oldNode = values[slot];
+            values[slot] = node;
+            if (oldNode == null) {
+                size++;
+            }
+            return oldNode;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public DataNode get(String path) {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                DataNode node = getNode(path);
+                if (lock.validate(stamp)) {
+                    return node;
+                }
+            } catch (RuntimeException e) {
+                // a writer changed the arenas while they were read
+            }
+        }
+        stamp = lock.readLock();
+        try {
+            return getNode(path);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private DataNode getNode(String path) {
+        int slot = findSlot(path, path.length());
+        return slot == NONE ? null : values[slot];
+    }
+
+    @Override
+    public DataNode remove(String path) {
+        DataNode oldNode;
+        long stamp = lock.writeLock();
+        try {
+            int slot = findSlot(path, path.length());
+            if (slot == NONE || values[slot] == null) {
+                return null;
+            }
+            oldNode = values[slot];
+            values[slot] = null;
+            size--;
+            releaseSlot(slot);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        removeDigest(path, oldNode);
+        return oldNode;
+    }
+
+    /**
+     * Return all the entries inside this map. The paths are rebuilt as the
+     * entries are iterated, and the iteration reflects the changes made
+     * meanwhile or not, like the one of a ConcurrentHashMap.
+     */
+    @Override
+    public Set<Map.Entry<String, DataNode>> entrySet() {
+        return new AbstractSet<Map.Entry<String, DataNode>>() {
+            @Override
+            public Iterator<Map.Entry<String, DataNode>> iterator() {
+                return new EntryIterator();
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    @Override
+    public void clear() {
+        long stamp = lock.writeLock();
+        try {
+            init();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        hash.clear();
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void preChange(String path, DataNode node) {
+        removeDigest(path, node);
+    }
+
+    @Override
+    public void postChange(String path, DataNode node) {
+        // we just made a change, so make sure the digest is
+        // invalidated
+        node.digestCached = false;
+        addDigest(path, node);
+    }
+
+    private void addDigest(String path, DataNode node) {
+        // Excluding everything under '/zookeeper/' for digest calculation.
+        if (path.startsWith(ZooDefs.ZOOKEEPER_NODE_SUBTREE)) {
+            return;
+        }
+        if (digestEnabled) {
+            hash.addDigest(digestCalculator.calculateDigest(path, node));
+        }
+    }
+
+    private void removeDigest(String path, DataNode node) {
+        // Excluding everything under '/zookeeper/' for digest calculation.
+        if (path.startsWith(ZooDefs.ZOOKEEPER_NODE_SUBTREE)) {
+            return;
+        }
+        if (digestEnabled) {
+            hash.removeDigest(digestCalculator.calculateDigest(path, node));
+        }
+    }
+
+    @Override
+    public long getDigest() {
+        return hash.getHash();
+    }
+
+    @Override
+    public void recalculateDigest() {
+        hash.clear();
+        if (digestEnabled) {
+            hash.addDigest(digestCalculator.calculateDigest(this, true));
+        }
+    }
+
+    /**
+     * find the slot of path[0, end). Called by optimistic readers too, so it
+     * has to terminate whatever the content of the arenas.
+     */
+    private int findSlot(String path, int end) {
+        int hash = hash(path, 0, end);
+        int slot = slotBuckets.get(bucketIndex(hash, slotBuckets.capacity())) - 1;
+        for (int steps = 0; slot != NONE && steps <= slotHighWater; steps++) {
+            int base = slot * SLOT_INTS;
+            if (slots.get(base + SLOT_HASH) == hash && matches(slot, path, end)) {
+                return slot;
+            }
+            slot = slots.get(base + SLOT_NEXT);
+        }
+        return NONE;
+    }
+
+    /**
+     * @return true if the slot is the one of path[0, end), matching its
+     * segments from the last one up
+     */
+    private boolean matches(int slot, String path, int end) {
+        while (true) {
+            int base = slot * SLOT_INTS;
+            int segmentBase = slots.get(base + SLOT_SEGMENT) * SEGMENT_INTS;
+            int length = segments.get(segmentBase + SEGMENT_LENGTH);
+            int start = end - length;
+            if (start < 0) {
+                return false;
+            }
+            int offset = segments.get(segmentBase + SEGMENT_OFFSET);
+            for (int i = 0; i < length; i++) {
+                if (chars.get(offset + i) != path.charAt(start + i)) {
+                    return false;
+                }
+            }
+            int parent = slots.get(base + SLOT_PARENT);
+            if (parent == NONE) {
+                return start == 0;
+            }
+            if (start == 0 || path.charAt(start - 1) != '/') {
+                return false;
+            }
+            end = start - 1;
+            slot = parent;
+        }
+    }
+
+    private int findOrCreateSlot(String path, int end) {
+        int slot = findSlot(path, end);
+        if (slot != NONE) {
+            return slot;
+        }
+        int parent = NONE;
+        int segmentStart = 0;
+        int lastSlash = end == 0 ? -1 : path.lastIndexOf('/', end - 1);
+        if (lastSlash >= 0) {
+            parent = findOrCreateSlot(path, lastSlash);
+            segmentStart = lastSlash + 1;
+            int parentBase = parent * SLOT_INTS;
+            slots.put(parentBase + SLOT_CHILDREN, slots.get(parentBase + SLOT_CHILDREN) + 1);
+        }
+        int segment = internSegment(path, segmentStart, end);
+        slot = allocateSlot();
+        int hash = hash(path, 0, end);
+        int base = slot * SLOT_INTS;
+        slots.put(base + SLOT_HASH, hash);
+        slots.put(base + SLOT_PARENT, parent);
+        slots.put(base + SLOT_SEGMENT, segment);
+        slots.put(base + SLOT_CHILDREN, 0);
+        int bucket = bucketIndex(hash, slotBuckets.capacity());
+        slots.put(base + SLOT_NEXT, slotBuckets.get(bucket) - 1);
+        slotBuckets.put(bucket, slot + 1);
+        liveSlots++;
+        if (liveSlots > slotBuckets.capacity() / 4 * 3) {
+            slotBuckets = rehash(slots, SLOT_INTS, SLOT_HASH, SLOT_NEXT, SLOT_SEGMENT, NONE, slotHighWater,
+                slotBuckets.capacity() * 2);
+        }
+        return slot;
+    }
+
+    private int allocateSlot() {
+        if (freeSlot != NONE) {
+            int slot = freeSlot;
+            freeSlot = slots.get(slot * SLOT_INTS + SLOT_NEXT);
+            return slot;
+        }
+        if (slotHighWater == slotCapacity) {
+            slotCapacity *= 2;
+            slots = copy(slots, allocateInts((long) slotCapacity * SLOT_INTS));
+            values = Arrays.copyOf(values, slotCapacity);
+        }
+        return slotHighWater++;
+    }
+
+    /**
+     * free the slot if it is neither the one of a node nor the parent of
+     * another slot, and then its parent if it is left unused in turn
+     */
+    private void releaseSlot(int slot) {
+        while (slot != NONE && values[slot] == null) {
+            int base = slot * SLOT_INTS;
+            if (slots.get(base + SLOT_CHILDREN) > 0) {
+                return;
+            }
+            int parent = slots.get(base + SLOT_PARENT);
+            unlink(slots, slotBuckets, SLOT_INTS, SLOT_NEXT, slots.get(base + SLOT_HASH), slot);
+            releaseSegment(slots.get(base + SLOT_SEGMENT));
+            slots.put(base + SLOT_SEGMENT, NONE);
+            slots.put(base + SLOT_NEXT, freeSlot);
+            freeSlot = slot;
+            liveSlots--;
+            if (parent != NONE) {
+                int parentBase = parent * SLOT_INTS;
+                slots.put(parentBase + SLOT_CHILDREN, slots.get(parentBase + SLOT_CHILDREN) - 1);
+            }
+            slot = parent;
+        }
+    }
+
+    private int internSegment(String path, int start, int end) {
+        int hash = hash(path, start, end);
+        int length = end - start;
+        int segment = segmentBuckets.get(bucketIndex(hash, segmentBuckets.capacity())) - 1;
+        while (segment != NONE) {
+            int base = segment * SEGMENT_INTS;
+            if (segments.get(base + SEGMENT_HASH) == hash && segments.get(base + SEGMENT_LENGTH) == length
+                && segmentEquals(segments.get(base + SEGMENT_OFFSET), path, start, end)) {
+                segments.put(base + SEGMENT_REFS, segments.get(base + SEGMENT_REFS) + 1);
+                return segment;
+            }
+            segment = segments.get(base + SEGMENT_NEXT);
+        }
+
+        ensureChars(length);
+        int offset = charsUsed;
+        for (int i = 0; i < length; i++) {
+            chars.put(offset + i, path.charAt(start + i));
+        }
+        charsUsed += length;
+
+        if (freeSegment != NONE) {
+            segment = freeSegment;
+            freeSegment = segments.get(segment * SEGMENT_INTS + SEGMENT_NEXT);
+        } else {
+            if (segmentHighWater == segmentCapacity) {
+                segmentCapacity *= 2;
+                segments = copy(segments, allocateInts((long) segmentCapacity * SEGMENT_INTS));
+            }
+            segment = segmentHighWater++;
+        }
+        int base = segment * SEGMENT_INTS;
+        segments.put(base + SEGMENT_OFFSET, offset);
+        segments.put(base + SEGMENT_LENGTH, length);
+        segments.put(base + SEGMENT_HASH, hash);
+        segments.put(base + SEGMENT_REFS, 1);
+        int bucket = bucketIndex(hash, segmentBuckets.capacity());
+        segments.put(base + SEGMENT_NEXT, segmentBuckets.get(bucket) - 1);
+        segmentBuckets.put(bucket, segment + 1);
+        liveSegments++;
+        if (liveSegments > segmentBuckets.capacity() / 4 * 3) {
+            segmentBuckets = rehash(segments, SEGMENT_INTS, SEGMENT_HASH, SEGMENT_NEXT, SEGMENT_REFS, 0,
+                segmentHighWater, segmentBuckets.capacity() * 2);
+        }
+        return segment;
+    }
+
+    private boolean segmentEquals(int offset, String path, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (chars.get(offset + i - start) != path.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void releaseSegment(int segment) {
+        int base = segment * SEGMENT_INTS;
+        int refs = segments.get(base + SEGMENT_REFS) - 1;
+        segments.put(base + SEGMENT_REFS, refs);
+        if (refs > 0) {
+            return;
+        }
+        unlink(segments, segmentBuckets, SEGMENT_INTS, SEGMENT_NEXT, segments.get(base + SEGMENT_HASH), segment);
+        charsGarbage += segments.get(base + SEGMENT_LENGTH);
+        segments.put(base + SEGMENT_NEXT, freeSegment);
+        freeSegment = segment;
+        liveSegments--;
+    }
+
+    /**
+     * make room for length more chars, compacting the arena if at least half
+     * of it is taken by freed segments, and growing it otherwise
+     */
+    private void ensureChars(int length) {
+        if (charsUsed + length <= chars.capacity()) {
+            return;
+        }
+        long capacity = chars.capacity();
+        if (charsGarbage < charsUsed / 2) {
+            capacity *= 2;
+        }
+        while (capacity < charsUsed - charsGarbage + length) {
+            capacity *= 2;
+        }
+        CharBuffer compacted = allocateChars(capacity);
+        int used = 0;
+        for (int segment = 0; segment < segmentHighWater; segment++) {
+            int base = segment * SEGMENT_INTS;
+            if (segments.get(base + SEGMENT_REFS) == 0) {
+                continue;
+            }
+            int offset = segments.get(base + SEGMENT_OFFSET);
+            int segmentLength = segments.get(base + SEGMENT_LENGTH);
+            for (int i = 0; i < segmentLength; i++) {
+                compacted.put(used + i, chars.get(offset + i));
+            }
+            segments.put(base + SEGMENT_OFFSET, used);
+            used += segmentLength;
+        }
+        chars = compacted;
+        charsUsed = used;
+        charsGarbage = 0;
+    }
+
+    private static IntBuffer copy(IntBuffer from, IntBuffer to) {
+        IntBuffer source = from.duplicate();
+        source.clear();
+        to.put(source);
+        to.clear();
+        return to;
+    }
+
+    /**
+     * @return new hash buckets for the entries of an arena, skipping the
+     * free entries, whose free field has the given value
+     */
+    private static IntBuffer rehash(
+        IntBuffer arena,
+        int ints,
+        int hashField,
+        int nextField,
+        int freeField,
+        int freeValue,
+        int highWater,
+        int buckets) {
+        IntBuffer rehashed = allocateInts(buckets);
+        for (int entry = 0; entry < highWater; entry++) {
+            int base = entry * ints;
+            if (arena.get(base + freeField) == freeValue) {
+                continue;
+            }
+            int bucket = bucketIndex(arena.get(base + hashField), buckets);
+            arena.put(base + nextField, rehashed.get(bucket) - 1);
+            rehashed.put(bucket, entry + 1);
+        }
+        return rehashed;
+    }
+
+    private static void unlink(IntBuffer arena, IntBuffer buckets, int ints, int nextField, int hash, int entry) {
+        int bucket = bucketIndex(hash, buckets.capacity());
+        int next = arena.get(entry * ints + nextField);
+        int current = buckets.get(bucket) - 1;
+        if (current == entry) {
+            buckets.put(bucket, next + 1);
+            return;
+        }
+        while (current != NONE) {
+            int currentNext = arena.get(current * ints + nextField);
+            if (currentNext == entry) {
+                arena.put(current * ints + nextField, next);
+                return;
+            }
+            current = currentNext;
+        }
+    }
+
+    /**
+     * @return the path of a slot, called with the lock held
+     */
+    private String pathOf(int slot) {
+        int[] ancestors = new int[8];
+        int depth = 0;
+        for (int s = slot; s != NONE; s = slots.get(s * SLOT_INTS + SLOT_PARENT)) {
+            if (depth == ancestors.length) {
+                ancestors = Arrays.copyOf(ancestors, depth * 2);
+            }
+            ancestors[depth++] = s;
+        }
+        StringBuilder path = new StringBuilder();
+        for (int i = depth - 1; i >= 0; i--) {
+            if (i < depth - 1) {
+                path.append('/');
+            }
+            int segmentBase = slots.get(ancestors[i] * SLOT_INTS + SLOT_SEGMENT) * SEGMENT_INTS;
+            int offset = segments.get(segmentBase + SEGMENT_OFFSET);
+            int length = segments.get(segmentBase + SEGMENT_LENGTH);
+            for (int j = 0; j < length; j++) {
+                path.append(chars.get(offset + j));
+            }
+        }
+        return path.toString();
+    }
+
+    private class EntryIterator implements Iterator<Map.Entry<String, DataNode>> {
+
+        private int nextSlot;
+
+        private Map.Entry<String, DataNode> next;
+
+        EntryIterator() {
+            advance();
+        }
+
+        private void advance() {
+            next = null;
+            long stamp = lock.readLock();
+            try {
+                while (nextSlot < slotHighWater) {
+                    int slot = nextSlot++;
+                    DataNode node = values[slot];
+                    if (node != null) {
+                        next = new AbstractMap.SimpleImmutableEntry<>(pathOf(slot), node);
+                        return;
+                    }
+                }
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<String, DataNode> next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<String, DataNode> entry = next;
+            advance();
+            return entry;
+        }
+
+    }
+
+}
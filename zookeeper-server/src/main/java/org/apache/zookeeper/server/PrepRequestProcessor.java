@@ -179,7 +179,8 @@ private ChangeRecord getRecordForPath(String path) throws KeeperException.NoNode
                         lastChange.precalculatedDigest = new PrecalculatedDigest(
                                 digestCalculator.calculateDigest(path, n), 0);
                     }
-                    lastChange.data = n.getData();
+                    // a view, so that data kept off the heap is not copied to it
+                    lastChange.data = n.readDataBufferAndStat(null);
                 }
             }
         }
@@ -384,14 +385,15 @@ protected void pRequest2Txn(int type, long zxid, Request request, Record record)
             validatePath(path, request.sessionId);
             nodeRecord = getRecordForPath(path);
             zks.checkACL(request.cnxn, nodeRecord.acl, ZooDefs.Perms.WRITE, request.authInfo, path, null);
-            zks.checkQuota(path, nodeRecord.data, setDataRequest.getData(), OpCode.setData);
+            zks.checkQuota(path, nodeRecord.data == null ? 0 : nodeRecord.data.remaining(),
+                setDataRequest.getData(), OpCode.setData);
             int newVersion = checkAndIncVersion(nodeRecord.stat.getVersion(), setDataRequest.getVersion(), path);
             request.setTxn(new SetDataTxn(path, setDataRequest.getData(), newVersion));
             nodeRecord = nodeRecord.duplicate(request.getHdr().getZxid());
             nodeRecord.stat.setVersion(newVersion);
             nodeRecord.stat.setMtime(request.getHdr().getTime());
             nodeRecord.stat.setMzxid(zxid);
-            nodeRecord.data = setDataRequest.getData();
+            nodeRecord.data = wrap(setDataRequest.getData());
             nodeRecord.precalculatedDigest = precalculateDigest(
                     DigestOpCode.UPDATE, path, nodeRecord.data, nodeRecord.stat);
             setTxnDigest(request, nodeRecord.precalculatedDigest);
@@ -537,7 +539,7 @@ protected void pRequest2Txn(int type, long zxid, Request request, Record record)
             nodeRecord.stat.setVersion(-1);
             nodeRecord.stat.setMtime(request.getHdr().getTime());
             nodeRecord.stat.setMzxid(zxid);
-            nodeRecord.data = setDataTxn.getData();
+            nodeRecord.data = wrap(setDataTxn.getData());
             // Reconfig is currently a noop from digest computation
             // perspective since config node is not covered by the digests.
             nodeRecord.precalculatedDigest = precalculateDigest(
@@ -710,13 +712,17 @@ private void pRequest2TxnCreate(int type, Request request, Record record) throws
         addChangeRecord(parentRecord);
         ChangeRecord nodeRecord = new ChangeRecord(
                 request.getHdr().getZxid(), path, s, 0, listACL);
-        nodeRecord.data = data;
+        nodeRecord.data = wrap(data);
         nodeRecord.precalculatedDigest = precalculateDigest(
                 DigestOpCode.ADD, path, nodeRecord.data, s);
         setTxnDigest(request, nodeRecord.precalculatedDigest);
         addChangeRecord(nodeRecord);
     }
 
+    private static ByteBuffer wrap(byte[] data) {
+        return data == null ? null : ByteBuffer.wrap(data);
+    }
+
     private void validatePath(String path, long sessionId) throws BadArgumentsException {
         try {
             PathUtils.validatePath(path);
@@ -1060,7 +1066,7 @@ public void shutdown() {
      * @return PrecalculatedDigest the pair of node and tree digest
      */
     private PrecalculatedDigest precalculateDigest(DigestOpCode type, String path,
-            byte[] data, StatPersisted s) throws KeeperException.NoNodeException {
+            ByteBuffer data, StatPersisted s) throws KeeperException.NoNodeException {
 
         if (!digestEnabled) {
             return null;
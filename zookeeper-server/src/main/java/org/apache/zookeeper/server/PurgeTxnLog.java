@@ -28,6 +28,7 @@
 import java.util.List;
 import java.util.Set;
 import org.apache.yetus.audience.InterfaceAudience;
+import org.apache.zookeeper.server.persistence.FileSnap;
 import org.apache.zookeeper.server.persistence.FileTxnSnapLog;
 import org.apache.zookeeper.server.persistence.Util;
 import org.apache.zookeeper.util.ServiceUtils;
@@ -135,10 +136,12 @@ public boolean accept(File f) {
 
         }
         // add all non-excluded log files
-        File[] logs = txnLog.getDataDir().listFiles(new MyFileFilter(PREFIX_LOG));
         List<File> files = new ArrayList<>();
-        if (logs != null) {
-            files.addAll(Arrays.asList(logs));
+        for (File logDir : txnLog.getTxnLogDirs()) {
+            File[] logs = logDir.listFiles(new MyFileFilter(PREFIX_LOG));
+            if (logs != null) {
+                files.addAll(Arrays.asList(logs));
+            }
         }
 
         // add all non-excluded snapshot files to the deletion list
@@ -147,6 +150,12 @@ public boolean accept(File f) {
             files.addAll(Arrays.asList(snapshots));
         }
 
+        // and the delta snapshots, which only build on older snapshots
+        File[] deltas = txnLog.getSnapDir().listFiles(new MyFileFilter(FileSnap.DELTA_SNAPSHOT_FILE_PREFIX));
+        if (deltas != null) {
+            files.addAll(Arrays.asList(deltas));
+        }
+
         // remove the old files
         for (File f : files) {
             final String msg = String.format(
@@ -0,0 +1,251 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.apache.zookeeper.StatsTrack;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The limits and usage of the quotas of a {@link DataTree}, parsed once
+ * from the limit and stat nodes under /zookeeper/quota and kept up to date
+ * as the tree changes, so that enforcing the quotas and reporting them does
+ * not parse the nodes again.
+ * <p>
+ * The quota nodes remain the persistent record, the index is rebuilt from
+ * them whenever the tree is loaded.
+ */
+public class QuotaIndex {
+
+    private static final Logger LOG = LoggerFactory.getLogger(QuotaIndex.class);
+
+    /**
+     * The limits of a quota, as set in its limit node. A value of -1 means
+     * that it is not set. The limits are replaced as a whole when the limit
+     * node changes, so they are always read consistently.
+     */
+    public static final class Limits {
+
+        private final long countLimit;
+        private final long countHardLimit;
+        private final long byteLimit;
+        private final long byteHardLimit;
+
+        private Limits(StatsTrack limits) {
+            countLimit = limits.getCount();
+            countHardLimit = limits.getCountHardLimit();
+            byteLimit = limits.getBytes();
+            byteHardLimit = limits.getByteHardLimit();
+        }
+
+        public long getCountLimit() {
+            return countLimit;
+        }
+
+        public long getCountHardLimit() {
+            return countHardLimit;
+        }
+
+        public long getByteLimit() {
+            return byteLimit;
+        }
+
+        public long getByteHardLimit() {
+            return byteHardLimit;
+        }
+
+    }
+
+    /**
+     * The limits and usage of the quota on one path. A value of -1 means
+     * that it is not set.
+     */
+    public static final class Quota {
+
+        private final String path;
+
+        private volatile Limits limits;
+        private volatile boolean limitsMalformed;
+
+        // the content of the stat node, guarded by this
+        private StatsTrack usage;
+        private boolean usageMalformed;
+        private volatile long count = -1;
+        private volatile long bytes = -1;
+
+        Quota(String path) {
+            this.path = path;
+        }
+
+        /**
+         * @return the path the quota is set on
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * @return the limits of the limit node, or null if the quota has no
+         *         limit node with data, or its data does not parse
+         */
+        public Limits getLimits() {
+            return limits;
+        }
+
+        /**
+         * @return whether the data of the limit node does not parse
+         */
+        public boolean isLimitsMalformed() {
+            return limitsMalformed;
+        }
+
+        /**
+         * @return whether the quota has a stat node with data that parses
+         */
+        public synchronized boolean hasUsage() {
+            return usage != null;
+        }
+
+        /**
+         * @return whether the data of the stat node does not parse
+         */
+        public synchronized boolean isUsageMalformed() {
+            return usageMalformed;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        private synchronized void setLimits(StatsTrack limits, boolean malformed) {
+            this.limits = limits == null ? null : new Limits(limits);
+            limitsMalformed = malformed;
+        }
+
+        private synchronized void setUsage(StatsTrack usage, boolean malformed) {
+            this.usage = usage;
+            usageMalformed = malformed;
+            count = usage == null ? -1 : usage.getCount();
+            bytes = usage == null ? -1 : usage.getBytes();
+        }
+
+        private synchronized byte[] updateUsage(long bytesDiff, int countDiff) {
+            if (usage == null) {
+                return null;
+            }
+            usage.setCount(usage.getCount() + countDiff);
+            usage.setBytes(usage.getBytes() + bytesDiff);
+            count = usage.getCount();
+            bytes = usage.getBytes();
+            return usage.getStatsBytes();
+        }
+
+        private synchronized boolean isEmpty() {
+            return limits == null && !limitsMalformed && usage == null && !usageMalformed;
+        }
+
+    }
+
+    private final ConcurrentMap<String, Quota> quotas = new ConcurrentHashMap<>();
+
+    /**
+     * @param path the path the quota is set on
+     * @return the quota, or null if the path has none
+     */
+    public Quota get(String path) {
+        return quotas.get(path);
+    }
+
+    /**
+     * @return the quotas, a live view
+     */
+    public Collection<Quota> getQuotas() {
+        return Collections.unmodifiableCollection(quotas.values());
+    }
+
+    /**
+     * Set the limits of a quota from the data of its limit node.
+     *
+     * @param path the path the quota is set on
+     * @param data the data of the limit node, null to drop the limits.
+     *             Data that does not parse drops them too, and marks them
+     *             as malformed
+     */
+    void setLimits(String path, byte[] data) {
+        StatsTrack limits = parse(path, data);
+        quotas.computeIfAbsent(path, Quota::new).setLimits(limits, data != null && limits == null);
+        removeIfEmpty(path);
+    }
+
+    /**
+     * Set the usage of a quota from the data of its stat node.
+     *
+     * @param path the path the quota is set on
+     * @param data the data of the stat node, null to drop the usage.
+     *             Data that does not parse drops it too, and marks it as
+     *             malformed
+     */
+    void setUsage(String path, byte[] data) {
+        StatsTrack usage = parse(path, data);
+        quotas.computeIfAbsent(path, Quota::new).setUsage(usage, data != null && usage == null);
+        removeIfEmpty(path);
+    }
+
+    /**
+     * Add to the usage of a quota.
+     *
+     * @param path the path the quota is set on
+     * @param bytesDiff the diff to be added to number of bytes
+     * @param countDiff the diff to be added to the count
+     * @return the new data of the stat node, or null if the quota has no usage
+     */
+    byte[] updateUsage(String path, long bytesDiff, int countDiff) {
+        Quota quota = quotas.get(path);
+        return quota == null ? null : quota.updateUsage(bytesDiff, countDiff);
+    }
+
+    void clear() {
+        quotas.clear();
+    }
+
+    private static StatsTrack parse(String path, byte[] data) {
+        if (data == null) {
+            return null;
+        }
+        try {
+            return new StatsTrack(data);
+        } catch (RuntimeException e) {
+            LOG.warn("Ignoring malformed quota data for {}", path, e);
+            return null;
+        }
+    }
+
+    private void removeIfEmpty(String path) {
+        quotas.computeIfPresent(path, (p, quota) -> quota.isEmpty() ? null : quota);
+    }
+
+}
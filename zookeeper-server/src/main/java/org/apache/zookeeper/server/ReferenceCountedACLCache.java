@@ -165,6 +165,30 @@ private void clear() {
         referenceCounter.clear();
     }
 
+    /**
+     * replaces the content of this cache with the acls of another one. Like
+     * after deserialize, the reference counts start at 0 and have to be
+     * rebuilt with addUsage.
+     *
+     * @param other the cache to copy the acls from
+     */
+    synchronized void copyFrom(ReferenceCountedACLCache other) {
+        Map<Long, List<ACL>> acls;
+        synchronized (other) {
+            acls = new HashMap<>(other.longKeyMap);
+        }
+        clear();
+        for (Map.Entry<Long, List<ACL>> entry : acls.entrySet()) {
+            Long val = entry.getKey();
+            if (aclIndex < val) {
+                aclIndex = val;
+            }
+            longKeyMap.put(val, entry.getValue());
+            aclKeyMap.put(entry.getValue(), val);
+            referenceCounter.put(val, new AtomicLongWithEquals(0));
+        }
+    }
+
     public synchronized void addUsage(Long acl) {
         if (acl == OPEN_UNSAFE_ACL_ID) {
             return;
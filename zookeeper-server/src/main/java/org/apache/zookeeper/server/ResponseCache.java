@@ -18,6 +18,7 @@
 
 package org.apache.zookeeper.server;
 
+import java.nio.ByteBuffer;
 import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.Map;
@@ -25,6 +26,11 @@
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Caches serialized read responses by path, as long as the stat of the node
+ * does not change. The responses are kept in read-only direct buffers, which
+ * are sent to the clients without copying.
+ */
 @SuppressWarnings("serial")
 public class ResponseCache {
     private static final Logger LOG = LoggerFactory.getLogger(ResponseCache.class);
@@ -34,7 +40,7 @@ public class ResponseCache {
     private final int cacheSize;
     private static class Entry {
         public Stat stat;
-        public byte[] data;
+        public ByteBuffer data;
     }
 
     private final Map<String, Entry> cache;
@@ -49,14 +55,27 @@ public int getCacheSize() {
         return cacheSize;
     }
 
-    public void put(String path, byte[] data, Stat stat) {
+    /**
+     * Cache a serialized response.
+     *
+     * @return a buffer of the response to send, which the cache keeps a copy of
+     */
+    public ByteBuffer put(String path, byte[] data, Stat stat) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+        buffer.put(data);
+        buffer.flip();
         Entry entry = new Entry();
-        entry.data = data;
+        entry.data = buffer.asReadOnlyBuffer();
         entry.stat = stat;
         cache.put(path, entry);
+        return entry.data.duplicate();
     }
 
-    public byte[] get(String key, Stat stat) {
+    /**
+     * @return a read-only buffer of the cached response, with a position of
+     *         its own, or null if the response is not cached for the stat
+     */
+    public ByteBuffer get(String key, Stat stat) {
         Entry entry = cache.get(key);
         if (entry == null) {
             return null;
@@ -66,7 +85,7 @@ public byte[] get(String key, Stat stat) {
             cache.remove(key);
             return null;
         } else {
-            return entry.data;
+            return entry.data.duplicate();
         }
     }
 
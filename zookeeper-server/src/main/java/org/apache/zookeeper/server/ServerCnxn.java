@@ -186,6 +186,9 @@ public int sendResponse(ReplyHeader h, Record r, String tag) throws IOException
         return sendResponse(h, r, tag, null, null, -1);
     }
 
+    // the xid, zxid and err of a ReplyHeader
+    private static final int REPLY_HEADER_LENGTH = 4 + 8 + 4;
+
     protected byte[] serializeRecord(Record record) throws IOException {
         ByteArrayOutputStream baos = new ByteArrayOutputStream(ZooKeeperServer.intBufferStartingSizeBytes);
         BinaryOutputArchive bos = BinaryOutputArchive.getArchive(baos);
@@ -195,8 +198,10 @@ protected byte[] serializeRecord(Record record) throws IOException {
 
     protected ByteBuffer[] serialize(ReplyHeader h, Record r, String tag,
                                      String cacheKey, Stat stat, int opCode) throws IOException {
-        byte[] header = serializeRecord(h);
-        byte[] data = null;
+        if (r instanceof GetDataBufferResponse && ((GetDataBufferResponse) r).getData() != null) {
+            return serialize(serializeRecord(h), (GetDataBufferResponse) r);
+        }
+        ByteBuffer data = null;
         if (r != null) {
             ResponseCache cache = null;
             Counter cacheHit = null, cacheMiss = null;
@@ -225,34 +230,48 @@ protected ByteBuffer[] serialize(ReplyHeader h, Record r, String tag,
                 data = cache.get(cacheKey, stat);
                 if (data == null) {
                     // Cache miss, serialize the response and put it in cache.
-                    data = serializeRecord(r);
-                    cache.put(cacheKey, data, stat);
+                    data = cache.put(cacheKey, serializeRecord(r), stat);
                     cacheMiss.add(1);
                 } else {
                     cacheHit.add(1);
                 }
             } else {
-                data = serializeRecord(r);
+                data = ByteBuffer.wrap(serializeRecord(r));
             }
         }
-        int dataLength = data == null ? 0 : data.length;
-        int packetLength = header.length + dataLength;
+        int dataLength = data == null ? 0 : data.remaining();
+        int packetLength = REPLY_HEADER_LENGTH + dataLength;
         ServerStats serverStats = serverStats();
         if (serverStats != null) {
             serverStats.updateClientResponseSize(packetLength);
         }
-        ByteBuffer lengthBuffer = ByteBuffer.allocate(4).putInt(packetLength);
-        lengthBuffer.rewind();
-
-        int bufferLen = data != null ? 3 : 2;
-        ByteBuffer[] buffers = new ByteBuffer[bufferLen];
+        // the length and the header are written as serialized by jute, so
+        // that a cached response is sent without serializing anything
+        ByteBuffer header = ByteBuffer.allocate(4 + REPLY_HEADER_LENGTH);
+        header.putInt(packetLength).putInt(h.getXid()).putLong(h.getZxid()).putInt(h.getErr());
+        header.flip();
+        return data == null ? new ByteBuffer[] {header} : new ByteBuffer[] {header, data};
+    }
 
-        buffers[0] = lengthBuffer;
-        buffers[1] = ByteBuffer.wrap(header);
-        if (data != null) {
-            buffers[2] = ByteBuffer.wrap(data);
+    /**
+     * Serialize a response with data kept off the heap, sending the data
+     * from its buffer. The response is not cached, which would copy the
+     * data onto the heap.
+     */
+    private ByteBuffer[] serialize(byte[] header, GetDataBufferResponse r) throws IOException {
+        ByteBuffer data = r.getData();
+        byte[] stat = serializeRecord(r.getStat());
+        int packetLength = header.length + 4 + data.remaining() + stat.length;
+        ServerStats serverStats = serverStats();
+        if (serverStats != null) {
+            serverStats.updateClientResponseSize(packetLength);
         }
-        return buffers;
+        ByteBuffer lengthBuffer = ByteBuffer.allocate(4).putInt(packetLength);
+        lengthBuffer.rewind();
+        // the header, then the data as serialized by writeBuffer
+        ByteBuffer headerBuffer = ByteBuffer.allocate(header.length + 4).put(header).putInt(data.remaining());
+        headerBuffer.rewind();
+        return new ByteBuffer[] {lengthBuffer, headerBuffer, data, ByteBuffer.wrap(stat)};
     }
 
     /* notify the client the session is closing and close/cleanup socket */
@@ -260,6 +279,36 @@ protected ByteBuffer[] serialize(ReplyHeader h, Record r, String tag,
 
     public abstract void process(WatchedEvent event);
 
+    /**
+     * Add a watch event to the {@link WatchEventBatch} of this thread, if
+     * one is started.
+     *
+     * @return whether the event was added, to be sent when the batch ends
+     */
+    protected boolean processInBatch(WatchedEvent event) {
+        ByteBuffer frame = WatchEventBatch.add(this, event);
+        if (frame == null) {
+            return false;
+        }
+        int packetLength = frame.remaining() - 4;
+        ServerStats serverStats = serverStats();
+        if (serverStats != null) {
+            serverStats.updateClientResponseSize(packetLength);
+        }
+        ServerMetrics.getMetrics().WATCH_BYTES.add(packetLength);
+        return true;
+    }
+
+    /**
+     * Send the notifications collected by a {@link WatchEventBatch} with a
+     * single write.
+     *
+     * @param frames the notifications, each with its length
+     */
+    void sendNotifications(ByteBuffer... frames) {
+        sendBuffer(frames);
+    }
+
     public abstract long getSessionId();
 
     abstract void setSessionId(long sessionId);
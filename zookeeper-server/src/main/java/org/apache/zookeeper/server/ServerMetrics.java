@@ -87,6 +87,7 @@ private ServerMetrics(MetricsProvider metricsProvider) {
         LOOKING_COUNT = metricsContext.getCounter("looking_count");
         DIFF_COUNT = metricsContext.getCounter("diff_count");
         SNAP_COUNT = metricsContext.getCounter("snap_count");
+        SNAP_FILE_COUNT = metricsContext.getCounter("snap_file_count");
         COMMIT_COUNT = metricsContext.getCounter("commit_count");
         CONNECTION_REQUEST_COUNT = metricsContext.getCounter("connection_request_count");
         CONNECTION_TOKEN_DEFICIT = metricsContext.getSummary("connection_token_deficit", DetailLevel.BASIC);
@@ -113,6 +114,9 @@ private ServerMetrics(MetricsProvider metricsProvider) {
         DEAD_WATCHERS_QUEUED = metricsContext.getCounter("dead_watchers_queued");
         DEAD_WATCHERS_CLEARED = metricsContext.getCounter("dead_watchers_cleared");
         DEAD_WATCHERS_CLEANER_LATENCY = metricsContext.getSummary("dead_watchers_cleaner_latency", DetailLevel.ADVANCED);
+        DEAD_WATCHERS_BACKLOG = metricsContext.getSummary("dead_watchers_backlog", DetailLevel.BASIC);
+        DEAD_WATCHERS_CLEANER_SLICE_TIME = metricsContext.getSummary("dead_watchers_cleaner_slice_time",
+            DetailLevel.ADVANCED);
 
         RESPONSE_PACKET_CACHE_HITS = metricsContext.getCounter("response_packet_cache_hits");
         RESPONSE_PACKET_CACHE_MISSING = metricsContext.getCounter("response_packet_cache_misses");
@@ -231,6 +235,9 @@ private ServerMetrics(MetricsProvider metricsProvider) {
         SYNC_PROCESS_TIME = metricsContext.getSummary("sync_process_time", DetailLevel.BASIC);
 
         BATCH_SIZE = metricsContext.getSummary("sync_processor_batch_size", DetailLevel.BASIC);
+        ADAPTIVE_BATCH_SIZE = metricsContext.getSummary("sync_processor_adaptive_batch_size", DetailLevel.BASIC);
+        FSYNC_TIME_ESTIMATE = metricsContext.getSummary("sync_processor_fsync_estimate_us", DetailLevel.BASIC);
+        FLUSH_DEADLINE_MISSED = metricsContext.getCounter("sync_processor_flush_deadline_missed");
 
         QUORUM_ACK_LATENCY = metricsContext.getSummary("quorum_ack_latency", DetailLevel.ADVANCED);
         ACK_LATENCY = metricsContext.getSummarySet("ack_latency", DetailLevel.ADVANCED);
@@ -338,6 +345,7 @@ private ServerMetrics(MetricsProvider metricsProvider) {
     public final Counter LOOKING_COUNT;
     public final Counter DIFF_COUNT;
     public final Counter SNAP_COUNT;
+    public final Counter SNAP_FILE_COUNT;
     public final Counter COMMIT_COUNT;
     public final Counter CONNECTION_REQUEST_COUNT;
 
@@ -392,6 +400,13 @@ private ServerMetrics(MetricsProvider metricsProvider) {
 
     public final Summary BATCH_SIZE;
 
+    /*
+     * Adaptive group commit, see zookeeper.flushLatencyTarget
+     */
+    public final Summary ADAPTIVE_BATCH_SIZE;
+    public final Summary FSYNC_TIME_ESTIMATE;
+    public final Counter FLUSH_DEADLINE_MISSED;
+
     public final Summary QUORUM_ACK_LATENCY;
     public final SummarySet ACK_LATENCY;
     public final Counter PROPOSAL_COUNT;
@@ -412,6 +427,10 @@ private ServerMetrics(MetricsProvider metricsProvider) {
     public final Counter DEAD_WATCHERS_QUEUED;
     public final Counter DEAD_WATCHERS_CLEARED;
     public final Summary DEAD_WATCHERS_CLEANER_LATENCY;
+    // dead watchers queued or being cleaned, sampled when a cleanup starts
+    public final Summary DEAD_WATCHERS_BACKLOG;
+    // longest time a cleanup took to clean the watchers of one path, in microseconds
+    public final Summary DEAD_WATCHERS_CLEANER_SLICE_TIME;
 
     /*
      * Response cache hit and miss metrics.
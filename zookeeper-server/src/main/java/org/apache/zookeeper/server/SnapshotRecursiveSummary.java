@@ -87,9 +87,7 @@ private long[] printZnode(DataTree dataTree, String name, StringBuilder builder,
     Set<String> children;
     long dataSum = 0L;
     synchronized (n) { // keep findbugs happy
-      if (n.data != null) {
-        dataSum += n.data.length;
-      }
+      dataSum += n.getDataLength();
       children = n.getChildren();
     }
 
@@ -85,6 +85,11 @@ public class SyncRequestProcessor extends ZooKeeperCriticalThread implements Req
     private final Queue<Request> toFlush;
     private long lastFlushTime;
 
+    /**
+     * Decides when to flush while a flush latency target is set, null otherwise
+     */
+    private volatile AdaptiveFlushPolicy flushPolicy;
+
     public SyncRequestProcessor(ZooKeeperServer zks, RequestProcessor nextProcessor) {
         super("SyncThread:" + zks.getServerId(), zks.getZooKeeperServerListener());
         this.zks = zks;
@@ -118,11 +123,39 @@ private long getRemainingDelay() {
         return 0;
     }
 
+    /**
+     * @return the adaptive flush policy for the current flush latency
+     * target, or null if no target is set
+     */
+    private AdaptiveFlushPolicy getFlushPolicy() {
+        long target = zks.getFlushLatencyTarget();
+        if (target <= 0) {
+            flushPolicy = null;
+        } else if (flushPolicy == null || flushPolicy.getTargetLatency() != TimeUnit.MILLISECONDS.toNanos(target)) {
+            flushPolicy = new AdaptiveFlushPolicy(target);
+        }
+        return flushPolicy;
+    }
+
+    /**
+     * @return how long to wait for more requests before flushing, in nanoseconds
+     */
+    private long getPollTime() {
+        if (flushPolicy != null) {
+            return flushPolicy.getPollTime(System.nanoTime());
+        }
+        return TimeUnit.MILLISECONDS.toNanos(Math.min(zks.getMaxWriteQueuePollTime(), getRemainingDelay()));
+    }
+
     /** If both flushDelay and maxMaxBatchSize are set (bigger than 0), flush
      * whenever either condition is hit. If only one or the other is
-     * set, flush only when the relevant condition is hit.
+     * set, flush only when the relevant condition is hit. If a flush
+     * latency target is set, the adaptive flush policy decides instead.
      */
     private boolean shouldFlush() {
+        if (flushPolicy != null) {
+            return flushPolicy.shouldFlush(toFlush.size(), zks.getMaxBatchSize(), System.nanoTime());
+        }
         long flushDelay = zks.getFlushDelay();
         long maxBatchSize = zks.getMaxBatchSize();
         if ((flushDelay > 0) && (getRemainingDelay() == 0)) {
@@ -162,8 +195,8 @@ public void run() {
             while (true) {
                 ServerMetrics.getMetrics().SYNC_PROCESSOR_QUEUE_SIZE.add(queuedRequests.size());
 
-                long pollTime = Math.min(zks.getMaxWriteQueuePollTime(), getRemainingDelay());
-                Request si = queuedRequests.poll(pollTime, TimeUnit.MILLISECONDS);
+                getFlushPolicy();
+                Request si = queuedRequests.poll(getPollTime(), TimeUnit.NANOSECONDS);
                 if (si == null) {
                     /* We timed out looking for more writes to batch, go ahead and flush immediately */
                     flush();
@@ -213,6 +246,9 @@ public void run() {
                     continue;
                 }
                 toFlush.add(si);
+                if (flushPolicy != null) {
+                    flushPolicy.requestBatched(System.nanoTime());
+                }
                 if (shouldFlush()) {
                     flush();
                 }
@@ -232,9 +268,25 @@ private void flush() throws IOException, RequestProcessorException {
         ServerMetrics.getMetrics().BATCH_SIZE.add(toFlush.size());
 
         long flushStartTime = Time.currentElapsedTime();
+        long flushStartNanos = System.nanoTime();
         zks.getZKDatabase().commit();
         ServerMetrics.getMetrics().SYNC_PROCESSOR_FLUSH_TIME.add(Time.currentElapsedTime() - flushStartTime);
 
+        if (flushPolicy != null) {
+            ServerMetrics.getMetrics().ADAPTIVE_BATCH_SIZE.add(toFlush.size());
+            flushPolicy.flushed(System.nanoTime() - flushStartNanos);
+            ServerMetrics.getMetrics().FSYNC_TIME_ESTIMATE.add(
+                TimeUnit.NANOSECONDS.toMicros(flushPolicy.getFsyncEstimate()));
+            long deadline = Time.currentElapsedTime() - TimeUnit.NANOSECONDS.toMillis(flushPolicy.getTargetLatency());
+            int missed = 0;
+            for (Request request : toFlush) {
+                if (request.syncQueueStartTime < deadline) {
+                    missed++;
+                }
+            }
+            ServerMetrics.getMetrics().FLUSH_DEADLINE_MISSED.add(missed);
+        }
+
         if (this.nextProcessor == null) {
             this.toFlush.clear();
         } else {
@@ -274,6 +326,12 @@ public void processRequest(final Request request) {
         Objects.requireNonNull(request, "Request cannot be null");
 
         request.syncQueueStartTime = Time.currentElapsedTime();
+        // the arrival rate is measured here, as the sync thread dequeues
+        // the requests queued during a flush in a burst
+        AdaptiveFlushPolicy policy = flushPolicy;
+        if (policy != null) {
+            policy.requestArrived(System.nanoTime());
+        }
         queuedRequests.add(request);
         ServerMetrics.getMetrics().SYNC_PROCESSOR_QUEUED.add(1);
     }
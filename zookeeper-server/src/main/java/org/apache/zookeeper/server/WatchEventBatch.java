@@ -0,0 +1,154 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.zookeeper.ClientCnxn;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.proto.ReplyHeader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collects the watch notifications fired on a thread between
+ * {@link #begin()} and {@link #end()}, and then sends the notifications of
+ * each connection with a single write.
+ * <p>
+ * A notification is serialized once, however many connections it is sent
+ * to. Each notification is still sent in a frame of its own, so clients see
+ * the same packets, in the same order, as without batching.
+ */
+public final class WatchEventBatch {
+
+    private static final Logger LOG = LoggerFactory.getLogger(WatchEventBatch.class);
+
+    public static final String ZOOKEEPER_WATCH_BATCH_DELIVERY = "zookeeper.watchBatchDelivery";
+
+    private static volatile boolean enabled =
+        Boolean.parseBoolean(System.getProperty(ZOOKEEPER_WATCH_BATCH_DELIVERY, "true"));
+
+    static {
+        LOG.info("{} = {}", ZOOKEEPER_WATCH_BATCH_DELIVERY, enabled);
+    }
+
+    private static final ThreadLocal<WatchEventBatch> CURRENT = new ThreadLocal<>();
+
+    private final Map<ServerCnxn, List<ByteBuffer>> pending = new IdentityHashMap<>();
+
+    // the watch managers fire one event object to all the watchers of a change
+    private final Map<WatchedEvent, ByteBuffer> frames = new IdentityHashMap<>();
+
+    private int depth;
+
+    private WatchEventBatch() {
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean enabled) {
+        WatchEventBatch.enabled = enabled;
+        LOG.info("{} = {}", ZOOKEEPER_WATCH_BATCH_DELIVERY, enabled);
+    }
+
+    /**
+     * Start collecting the notifications fired on this thread. Batches nest,
+     * the notifications are sent when the outermost batch ends.
+     */
+    public static void begin() {
+        WatchEventBatch batch = CURRENT.get();
+        if (batch == null) {
+            if (!enabled) {
+                return;
+            }
+            batch = new WatchEventBatch();
+            CURRENT.set(batch);
+        }
+        batch.depth++;
+    }
+
+    /**
+     * End the batch started by the matching {@link #begin()}, sending the
+     * collected notifications if it is the outermost one.
+     */
+    public static void end() {
+        WatchEventBatch batch = CURRENT.get();
+        if (batch == null || --batch.depth > 0) {
+            return;
+        }
+        CURRENT.remove();
+        for (Map.Entry<ServerCnxn, List<ByteBuffer>> e : batch.pending.entrySet()) {
+            List<ByteBuffer> cnxnFrames = e.getValue();
+            try {
+                e.getKey().sendNotifications(cnxnFrames.toArray(new ByteBuffer[0]));
+            } catch (Exception ex) {
+                LOG.warn("Unexpected exception sending {} notifications to 0x{}",
+                    cnxnFrames.size(), Long.toHexString(e.getKey().getSessionId()), ex);
+            }
+        }
+    }
+
+    /**
+     * Add a notification for a connection to the batch of this thread.
+     *
+     * @return the frame of the notification, including its length, or null if
+     *         no batch is started on this thread and the notification has to
+     *         be sent right away
+     */
+    static ByteBuffer add(ServerCnxn cnxn, WatchedEvent event) {
+        WatchEventBatch batch = CURRENT.get();
+        if (batch == null) {
+            return null;
+        }
+        ByteBuffer frame = batch.frames.get(event);
+        if (frame == null) {
+            try {
+                frame = serialize(event);
+            } catch (IOException e) {
+                LOG.warn("Unexpected exception serializing {}", event, e);
+                return null;
+            }
+            batch.frames.put(event, frame);
+        }
+        frame = frame.duplicate();
+        batch.pending.computeIfAbsent(cnxn, c -> new ArrayList<>()).add(frame);
+        return frame;
+    }
+
+    private static ByteBuffer serialize(WatchedEvent event) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        BinaryOutputArchive bos = BinaryOutputArchive.getArchive(baos);
+        // the length of the packet is filled in below
+        bos.writeInt(0, "len");
+        bos.writeRecord(new ReplyHeader(ClientCnxn.NOTIFICATION_XID, event.getZxid(), 0), null);
+        bos.writeRecord(event.getWrapper(), null);
+        ByteBuffer frame = ByteBuffer.wrap(baos.toByteArray());
+        frame.putInt(0, frame.remaining() - 4);
+        return frame;
+    }
+
+}
@@ -22,6 +22,7 @@
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.ByteBuffer;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -364,6 +365,16 @@ public long calculateTxnLogSizeLimit() {
         return (long) (snapSize * snapshotSizeFactor);
     }
 
+    /**
+     * get the last full snapshot file completely written or restored from.
+     * Snapshots are written in place, so the most recent file in the
+     * snapshot directory may still be incomplete.
+     * @return the snapshot file, or null if there is none
+     */
+    public File getLastSealedSnapshot() {
+        return snapLog.getLastSealedSnapshot();
+    }
+
     /**
      * Get proposals from txnlog. Only packet part of proposal is populated.
      *
@@ -515,6 +526,19 @@ public byte[] getData(String path, Stat stat, Watcher watcher) throws KeeperExce
         return dataTree.getData(path, stat, watcher);
     }
 
+    /**
+     * get data and stat for a path, with the data kept off the heap in a
+     * read-only direct buffer instead of copied
+     * @param path the path being queried
+     * @param stat the stat for this path
+     * @param watcher the watcher function
+     * @return the data, or null if the node has none
+     * @throws KeeperException.NoNodeException
+     */
+    public ByteBuffer getDataBuffer(String path, Stat stat, Watcher watcher) throws KeeperException.NoNodeException {
+        return dataTree.getDataBuffer(path, stat, watcher);
+    }
+
     /**
      * set watches on the datatree
      * @param relativeZxid the relative zxid that client has seen
@@ -624,7 +648,7 @@ public void deserializeSnapshot(InputArchive ia) throws IOException {
 
     /**
      * Deserialize a snapshot that contains FileHeader from an input archive. It is used by
-     * the admin restore command.
+     * the admin restore command, and by learners synced with a snapshot file.
      *
      * @param ia the input archive to deserialize from
      * @param is the CheckInputStream to check integrity
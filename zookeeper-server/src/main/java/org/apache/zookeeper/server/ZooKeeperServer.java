@@ -52,7 +52,6 @@
 import org.apache.zookeeper.KeeperException.Code;
 import org.apache.zookeeper.KeeperException.SessionExpiredException;
 import org.apache.zookeeper.Quotas;
-import org.apache.zookeeper.StatsTrack;
 import org.apache.zookeeper.Version;
 import org.apache.zookeeper.ZooDefs;
 import org.apache.zookeeper.ZooDefs.OpCode;
@@ -257,6 +256,8 @@ protected enum State {
     private static volatile long maxWriteQueuePollTime;
     private static final String MAX_BATCH_SIZE = "zookeeper.maxBatchSize";
     private static volatile int maxBatchSize;
+    private static final String FLUSH_LATENCY_TARGET = "zookeeper.flushLatencyTarget";
+    private static volatile long flushLatencyTarget;
 
     /**
      * Starting size of read and write ByteArroyOuputBuffers. Default is 32 bytes.
@@ -274,6 +275,7 @@ protected enum State {
         setFlushDelay(configuredFlushDelay);
         setMaxWriteQueuePollTime(Long.getLong(MAX_WRITE_QUEUE_POLL_SIZE, configuredFlushDelay / 3));
         setMaxBatchSize(Integer.getInteger(MAX_BATCH_SIZE, 1000));
+        setFlushLatencyTarget(Long.getLong(FLUSH_LATENCY_TARGET, 0));
 
         intBufferStartingSizeBytes = Integer.getInteger(INT_BUFFER_STARTING_SIZE_BYTES, DEFAULT_STARTING_BUFFER_SIZE);
 
@@ -567,14 +569,30 @@ public File takeSnapshot(boolean syncSnap) throws IOException {
      * @return file snapshot file object
      * @throws IOException
      */
-    public synchronized File takeSnapshot(boolean syncSnap, boolean isSevere, boolean fastForwardFromEdits) throws IOException {
+    public File takeSnapshot(boolean syncSnap, boolean isSevere, boolean fastForwardFromEdits) throws IOException {
+        return takeSnapshot(syncSnap, isSevere, fastForwardFromEdits, false);
+    }
+
+    /**
+     * Takes a snapshot on the server.
+     *
+     * @param syncSnap syncSnap sync the snapshot immediately after write
+     * @param isSevere if true system exist, otherwise throw IOException
+     * @param fastForwardFromEdits whether fast forward database to the latest recorded transactions
+     * @param fullSnapshot if true, write a full snapshot even when delta snapshots are enabled
+     *
+     * @return file snapshot file object
+     * @throws IOException
+     */
+    public synchronized File takeSnapshot(boolean syncSnap, boolean isSevere, boolean fastForwardFromEdits,
+                                          boolean fullSnapshot) throws IOException {
         long start = Time.currentElapsedTime();
         File snapFile = null;
         try {
             if (fastForwardFromEdits) {
                 zkDb.fastForwardDataBase();
             }
-            snapFile = txnLogFactory.save(zkDb.getDataTree(), zkDb.getSessionWithTimeOuts(), syncSnap);
+            snapFile = txnLogFactory.save(zkDb.getDataTree(), zkDb.getSessionWithTimeOuts(), syncSnap, fullSnapshot);
         } catch (IOException e) {
             if (isSevere) {
                 LOG.error("Severe unrecoverable error, exiting", e);
@@ -1052,7 +1070,8 @@ static class PrecalculatedDigest {
      */
     static class ChangeRecord {
         PrecalculatedDigest precalculatedDigest;
-        byte[] data;
+        // a view of the data, which may be kept off the heap, not to be modified
+        ByteBuffer data;
 
         ChangeRecord(long zxid, String path, StatPersisted stat, int childCount, List<ACL> acl) {
             this.zxid = zxid;
@@ -1613,6 +1632,15 @@ static void setMaxBatchSize(int size) {
         maxBatchSize = size;
     }
 
+    long getFlushLatencyTarget() {
+        return flushLatencyTarget;
+    }
+
+    static void setFlushLatencyTarget(long target) {
+        LOG.info("{} = {} ms", FLUSH_LATENCY_TARGET, target);
+        flushLatencyTarget = target;
+    }
+
     private void initLargeRequestThrottlingSettings() {
         setLargeRequestMaxBytes(Integer.getInteger("zookeeper.largeRequestMaxBytes", largeRequestMaxBytes));
         setLargeRequestThreshold(Integer.getInteger("zookeeper.largeRequestThreshold", -1));
@@ -2128,6 +2156,16 @@ public void checkACL(ServerCnxn cnxn, List<ACL> acl, int perm, List<Id> ids, Str
      *            currently, create and setData need to check quota
      */
     public void checkQuota(String path, byte[] lastData, byte[] data, int type) throws KeeperException.QuotaExceededException {
+        checkQuota(path, lastData == null ? 0 : lastData.length, data, type);
+    }
+
+    /**
+     * check a path whether exceeded the quota, given the length of the
+     * current node data, so that data kept off the heap need not be copied.
+     *
+     * @see #checkQuota(String, byte[], byte[], int)
+     */
+    void checkQuota(String path, long lastDataLength, byte[] data, int type) throws KeeperException.QuotaExceededException {
         if (!enforceQuota) {
             return;
         }
@@ -2144,7 +2182,7 @@ public void checkQuota(String path, byte[] lastData, byte[] data, int type) thro
                 checkQuota(lastPrefix, dataBytes, 1, namespace);
                 break;
             case OpCode.setData:
-                checkQuota(lastPrefix, dataBytes - (lastData == null ? 0 : lastData.length), 0, namespace);
+                checkQuota(lastPrefix, dataBytes - lastDataLength, 0, namespace);
                 break;
              default:
                  throw new IllegalArgumentException("Unsupported OpCode for checkQuota: " + type);
@@ -2168,44 +2206,41 @@ private void checkQuota(String lastPrefix, long bytesDiff, long countDiff, Strin
         LOG.debug("checkQuota: lastPrefix={}, bytesDiff={}, countDiff={}", lastPrefix, bytesDiff, countDiff);
 
         // now check the quota we set
-        String limitNode = Quotas.limitPath(lastPrefix);
-        DataNode node = getZKDatabase().getNode(limitNode);
-        StatsTrack limitStats;
-        if (node == null) {
+        QuotaIndex.Quota quota = getZKDatabase().getDataTree().getQuotaIndex().get(lastPrefix);
+        QuotaIndex.Limits limits = quota == null ? null : quota.getLimits();
+        if (limits == null) {
+            if (quota != null && quota.isLimitsMalformed()) {
+                LOG.error("Malformed limit node for quota {}", Quotas.limitPath(lastPrefix));
+                throw new IllegalArgumentException("Malformed limit node for quota " + lastPrefix);
+            }
             // should not happen
-            LOG.error("Missing limit node for quota {}", limitNode);
+            LOG.error("Missing limit node for quota {}", Quotas.limitPath(lastPrefix));
             return;
         }
-        synchronized (node) {
-            limitStats = new StatsTrack(node.data);
-        }
         //check the quota
-        boolean checkCountQuota = countDiff != 0 && (limitStats.getCount() > -1 || limitStats.getCountHardLimit() > -1);
-        boolean checkByteQuota = bytesDiff != 0 && (limitStats.getBytes() > -1 || limitStats.getByteHardLimit() > -1);
+        boolean checkCountQuota = countDiff != 0 && (limits.getCountLimit() > -1 || limits.getCountHardLimit() > -1);
+        boolean checkByteQuota = bytesDiff != 0 && (limits.getByteLimit() > -1 || limits.getByteHardLimit() > -1);
 
         if (!checkCountQuota && !checkByteQuota) {
             return;
         }
 
         //check the statPath quota
-        String statNode = Quotas.statPath(lastPrefix);
-        node = getZKDatabase().getNode(statNode);
-
-        StatsTrack currentStats;
-        if (node == null) {
+        if (!quota.hasUsage()) {
+            if (quota.isUsageMalformed()) {
+                LOG.error("Malformed node for stat {}", Quotas.statPath(lastPrefix));
+                throw new IllegalArgumentException("Malformed stat node for quota " + lastPrefix);
+            }
             // should not happen
-            LOG.error("Missing node for stat {}", statNode);
+            LOG.error("Missing node for stat {}", Quotas.statPath(lastPrefix));
             return;
         }
-        synchronized (node) {
-            currentStats = new StatsTrack(node.data);
-        }
 
         //check the Count Quota
         if (checkCountQuota) {
-            long newCount = currentStats.getCount() + countDiff;
-            boolean isCountHardLimit = limitStats.getCountHardLimit() > -1;
-            long countLimit = isCountHardLimit ? limitStats.getCountHardLimit() : limitStats.getCount();
+            long newCount = quota.getCount() + countDiff;
+            boolean isCountHardLimit = limits.getCountHardLimit() > -1;
+            long countLimit = isCountHardLimit ? limits.getCountHardLimit() : limits.getCountLimit();
 
             if (newCount > countLimit) {
                 String msg = "Quota exceeded: " + lastPrefix + " [current count=" + newCount + ", " + (isCountHardLimit ? "hard" : "soft") + "CountLimit=" + countLimit + "]";
@@ -2219,9 +2254,9 @@ private void checkQuota(String lastPrefix, long bytesDiff, long countDiff, Strin
 
         //check the Byte Quota
         if (checkByteQuota) {
-            long newBytes = currentStats.getBytes() + bytesDiff;
-            boolean isByteHardLimit = limitStats.getByteHardLimit() > -1;
-            long byteLimit = isByteHardLimit ? limitStats.getByteHardLimit() : limitStats.getBytes();
+            long newBytes = quota.getBytes() + bytesDiff;
+            boolean isByteHardLimit = limits.getByteHardLimit() > -1;
+            long byteLimit = isByteHardLimit ? limits.getByteHardLimit() : limits.getByteLimit();
             if (newBytes > byteLimit) {
                 String msg = "Quota exceeded: " + lastPrefix + " [current bytes=" + newBytes + ", " + (isByteHardLimit ? "hard" : "soft") + "ByteLimit=" + byteLimit + "]";
                 RATE_LOGGER.rateLimitLog(msg);
@@ -409,6 +409,16 @@ public void setMaxBatchSize(int size) {
         ZooKeeperServer.setMaxBatchSize(size);
     }
 
+    @Override
+    public long getFlushLatencyTarget() {
+        return zks.getFlushLatencyTarget();
+    }
+
+    @Override
+    public void setFlushLatencyTarget(long target) {
+        ZooKeeperServer.setFlushLatencyTarget(target);
+    }
+
     public boolean getRequestStaleConnectionCheck() {
         return Request.getStaleConnectionCheck();
     }
@@ -244,6 +244,9 @@ public interface ZooKeeperServerMXBean {
     int getMaxBatchSize();
     void setMaxBatchSize(int size);
 
+    long getFlushLatencyTarget();
+    void setFlushLatencyTarget(long target);
+
     /**
      * @return Current maxCnxns allowed to a single ZooKeeper server
      */
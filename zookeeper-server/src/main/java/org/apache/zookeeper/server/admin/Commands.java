@@ -420,7 +420,9 @@ public CommandResponse runGet(ZooKeeperServer zkServer, Map<String, String> kwar
     }
 
     /**
-     * Digest histories for every specific number of txns.
+     * Digest histories for every specific number of txns. With the verify
+     * parameter set, the digest of the tree is also calculated again from
+     * its nodes, to compare with the one kept up to date.
      */
     public static class DigestCommand extends GetCommand {
 
@@ -431,7 +433,15 @@ public DigestCommand() {
         @Override
         public CommandResponse runGet(ZooKeeperServer zkServer, Map<String, String> kwargs) {
             CommandResponse response = initializeResponse();
-            response.put("digests", zkServer.getZKDatabase().getDataTree().getDigestLog());
+            DataTree dataTree = zkServer.getZKDatabase().getDataTree();
+            response.put("digests", dataTree.getDigestLog());
+            if (Boolean.parseBoolean(kwargs.get("verify"))) {
+                long treeDigest = dataTree.getTreeDigest();
+                long calculatedDigest = dataTree.calculateTreeDigest();
+                response.put("tree_digest", treeDigest);
+                response.put("calculated_digest", calculatedDigest);
+                response.put("digest_matches", treeDigest == calculatedDigest);
+            }
             return response;
         }
 
@@ -783,7 +793,7 @@ public CommandResponse runGet(final ZooKeeperServer zkServer, final Map<String,
 
             // take snapshot and stream out data if needed
             try {
-                final File snapshotFile = zkServer.takeSnapshot(false, false, true);
+                final File snapshotFile = zkServer.takeSnapshot(false, false, true, true);
                 final long lastZxid = Util.getZxidFromName(snapshotFile.getName(), SNAPSHOT_FILE_PREFIX);
                 response.addHeader(RESPONSE_HEADER_LAST_ZXID, "0x" + ZxidUtils.zxidToString(lastZxid));
 
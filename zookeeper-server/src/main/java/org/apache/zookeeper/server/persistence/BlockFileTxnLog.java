@@ -0,0 +1,125 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.zookeeper.server.Request;
+import org.apache.zookeeper.txn.TxnHeader;
+
+/**
+ * A FileTxnLog that writes version {@value FileTxnLog#BLOCK_VERSION} logs:
+ * the txns appended between two syncs are written as one block, with a
+ * single checksum and optionally compressed. Since the SyncRequestProcessor
+ * syncs once per group commit, a block holds a whole batch of txns, which
+ * makes compression worthwhile and cuts the bytes written per fsync.
+ * <p>
+ * Reading, truncating and purging are inherited from FileTxnLog, whose
+ * iterator reads both versions.
+ */
+public class BlockFileTxnLog extends FileTxnLog {
+
+    private final TxnLogBlock.Codec codec;
+
+    /**
+     * the serialized txns appended since the last block was written
+     */
+    private final List<byte[]> pendingTxns = new ArrayList<>();
+
+    private long pendingLength;
+
+    /**
+     * constructor for BlockFileTxnLog, compressing the blocks with the codec
+     * set in {@value TxnLogBlock#ZOOKEEPER_TXNLOG_COMPRESSION}
+     * @param logDir the directory where the txnlogs are stored
+     */
+    public BlockFileTxnLog(File logDir) {
+        this(logDir, TxnLogBlock.getConfiguredCodec());
+    }
+
+    /**
+     * constructor for BlockFileTxnLog
+     * @param logDir the directory where the txnlogs are stored
+     * @param codec the codec to compress the blocks with
+     */
+    public BlockFileTxnLog(File logDir, TxnLogBlock.Codec codec) {
+        super(logDir);
+        this.codec = codec;
+    }
+
+    @Override
+    public synchronized boolean append(Request request) throws IOException {
+        TxnHeader hdr = request.getHdr();
+        if (hdr == null) {
+            return false;
+        }
+        updateLastZxidSeen(hdr);
+        if (logStream == null) {
+            openLogStream(hdr.getZxid(), BLOCK_VERSION);
+        }
+        byte[] buf = request.getSerializeData();
+        if (buf == null || buf.length == 0) {
+            throw new IOException("Faulty serialization for header " + "and txn");
+        }
+        if (pendingLength + buf.length + TxnLogBlock.TXN_OVERHEAD > TxnLogBlock.MAX_LENGTH) {
+            // keep the block below the size readers accept
+            writeBlock();
+        }
+        pendingTxns.add(buf);
+        pendingLength += buf.length + TxnLogBlock.TXN_OVERHEAD;
+        return true;
+    }
+
+    /**
+     * write the pending txns to the log as a block
+     * @throws IOException
+     */
+    private void writeBlock() throws IOException {
+        if (pendingTxns.isEmpty() || logStream == null) {
+            return;
+        }
+        padLogFile();
+        long dataSize = oa.getDataSize();
+        TxnLogBlock.write(oa, codec, pendingTxns);
+        unFlushedSize += oa.getDataSize() - dataSize;
+        pendingTxns.clear();
+        pendingLength = 0;
+    }
+
+    @Override
+    synchronized void sync() throws IOException {
+        writeBlock();
+        super.sync();
+    }
+
+    @Override
+    public synchronized void rollLog() throws IOException {
+        writeBlock();
+        super.rollLog();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        writeBlock();
+        super.close();
+    }
+
+}
@@ -22,8 +22,10 @@
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.zip.CheckedInputStream;
 import java.util.zip.CheckedOutputStream;
 import javax.annotation.Nonnull;
@@ -41,18 +43,58 @@
  * it is responsible for storing, serializing
  * and deserializing the right snapshot.
  * and provides access to the snapshots.
+ * <p>
+ * When delta snapshots are enabled, a full snapshot is followed by up to
+ * {@link #getMaxDeltaCount()} delta snapshots, each holding only the nodes
+ * the DataTree changed since the previous snapshot of the chain. They are
+ * named snapdelta.&lt;zxid&gt; and record the zxid of the full snapshot
+ * they build on. Restoring loads the newest full snapshot and then applies
+ * its deltas in order. A new full snapshot compacts the chain once the
+ * maximum number of deltas is reached, or when the changes make up a large
+ * part of the tree, so that a delta would not be much cheaper.
  */
 public class FileSnap implements SnapShot {
 
     File snapDir;
     SnapshotInfo lastSnapshotInfo = null;
+    private volatile File lastSealedSnapshot = null;
     private volatile boolean close = false;
     private static final int VERSION = 2;
     private static final long dbId = -1;
     private static final Logger LOG = LoggerFactory.getLogger(FileSnap.class);
     public static final int SNAP_MAGIC = ByteBuffer.wrap("ZKSN".getBytes()).getInt();
+    public static final int DELTA_MAGIC = ByteBuffer.wrap("ZKSD".getBytes()).getInt();
+    public static final int CHUNKED_SNAP_MAGIC = ByteBuffer.wrap("ZKSC".getBytes()).getInt();
 
     public static final String SNAPSHOT_FILE_PREFIX = "snapshot";
+    public static final String DELTA_SNAPSHOT_FILE_PREFIX = "snapdelta";
+
+    public static final String ZOOKEEPER_SNAPSHOT_DELTA_COUNT = "zookeeper.snapshot.deltaCount";
+
+    /**
+     * a full snapshot is written instead of a delta when more than this
+     * fraction of the nodes changed since the previous snapshot
+     */
+    static final double DELTA_COMPACTION_RATIO = 0.5;
+
+    private static volatile int maxDeltaCount = Integer.getInteger(ZOOKEEPER_SNAPSHOT_DELTA_COUNT, 0);
+
+    static {
+        LOG.info("{} = {}", ZOOKEEPER_SNAPSHOT_DELTA_COUNT, maxDeltaCount);
+    }
+
+    /**
+     * zxid of the full snapshot the delta chain builds on, -1 when the
+     * next snapshot has to be a full one
+     */
+    private long deltaBaseZxid = -1;
+
+    /**
+     * zxid of the last snapshot of the chain, full or delta
+     */
+    private long deltaLastZxid = -1;
+
+    private int deltaCount;
 
     public FileSnap(@Nonnull File snapDir) {
         this.snapDir = snapDir;
@@ -66,6 +108,11 @@ public SnapshotInfo getLastSnapshotInfo() {
         return this.lastSnapshotInfo;
     }
 
+    @Override
+    public File getLastSealedSnapshot() {
+        return lastSealedSnapshot;
+    }
+
     /**
      * deserialize a data tree from the most recent snapshot
      * @return the zxid of the snapshot
@@ -114,8 +161,37 @@ public long deserialize(DataTree dt, Map<Long, Integer> sessions) throws IOExcep
         if (!foundValid) {
             throw new IOException("Not able to find valid snapshots in " + snapDir);
         }
+        lastSealedSnapshot = snap;
+
+        long baseZxid = snapZxid;
+        boolean chainIntact = true;
+        deltaCount = 0;
+        for (File delta : findDeltaSnapshots(baseZxid)) {
+            long deltaZxid = Util.getZxidFromName(delta.getName(), DELTA_SNAPSHOT_FILE_PREFIX);
+            LOG.info("Reading delta snapshot {}", delta);
+            try {
+                if (!deserializeDelta(dt, sessions, delta, baseZxid, deltaZxid)) {
+                    continue;
+                }
+            } catch (IOException e) {
+                // the later deltas miss the changes of this one, the txns
+                // replayed from the last applied snapshot cover them all
+                LOG.warn("problem reading delta snapshot {}, ignoring the deltas after 0x{}",
+                    delta, Long.toHexString(snapZxid), e);
+                chainIntact = false;
+                break;
+            }
+            snapZxid = deltaZxid;
+            snap = delta;
+            deltaCount++;
+        }
         dt.lastProcessedZxid = snapZxid;
         lastSnapshotInfo = new SnapshotInfo(dt.lastProcessedZxid, snap.lastModified() / 1000);
+        deltaBaseZxid = chainIntact ? baseZxid : -1;
+        deltaLastZxid = snapZxid;
+        if (maxDeltaCount > 0) {
+            dt.resetDirtyNodes();
+        }
 
         // compare the digest if this is not a fuzzy snapshot, we want to compare
         // and find inconsistent asap.
@@ -135,12 +211,79 @@ public long deserialize(DataTree dt, Map<Long, Integer> sessions) throws IOExcep
     public static void deserialize(DataTree dt, Map<Long, Integer> sessions, InputArchive ia) throws IOException {
         FileHeader header = new FileHeader();
         header.deserialize(ia, "fileheader");
+        if (header.getMagic() == CHUNKED_SNAP_MAGIC) {
+            SerializeUtils.deserializeSessions(ia, sessions);
+            dt.deserializeChunked(ia, "tree");
+            return;
+        }
         if (header.getMagic() != SNAP_MAGIC) {
             throw new IOException("mismatching magic headers " + header.getMagic() + " !=  " + FileSnap.SNAP_MAGIC);
         }
         SerializeUtils.deserializeSnapshot(dt, ia, sessions);
     }
 
+    /**
+     * read a delta snapshot and apply it to the datatree
+     * @param dt the datatree to apply the delta to
+     * @param sessions the sessions to be filled up
+     * @param delta the delta snapshot file
+     * @param baseZxid the zxid of the full snapshot the datatree was loaded from
+     * @param deltaZxid the zxid of the delta snapshot
+     * @return false if the delta builds on another full snapshot and was skipped
+     * @throws IOException if the delta is corrupt
+     */
+    private boolean deserializeDelta(
+        DataTree dt,
+        Map<Long, Integer> sessions,
+        File delta,
+        long baseZxid,
+        long deltaZxid) throws IOException {
+        try (CheckedInputStream snapIS = SnapStream.getInputStream(delta)) {
+            InputArchive ia = BinaryInputArchive.getArchive(snapIS);
+            FileHeader header = new FileHeader();
+            header.deserialize(ia, "fileheader");
+            if (header.getMagic() != DELTA_MAGIC) {
+                throw new IOException("mismatching magic headers " + header.getMagic() + " !=  " + DELTA_MAGIC);
+            }
+            if (ia.readLong("baseZxid") != baseZxid) {
+                return false;
+            }
+            Map<Long, Integer> deltaSessions = new HashMap<>();
+            SerializeUtils.deserializeSessions(ia, deltaSessions);
+            DataTree.Delta nodes = new DataTree.Delta();
+            nodes.deserialize(ia);
+            SnapStream.checkSealIntegrity(snapIS, ia);
+
+            dt.applyDelta(nodes);
+            sessions.clear();
+            sessions.putAll(deltaSessions);
+
+            if (dt.deserializeZxidDigest(ia, deltaZxid)) {
+                SnapStream.checkSealIntegrity(snapIS, ia);
+            }
+            if (dt.deserializeLastProcessedZxid(ia)) {
+                SnapStream.checkSealIntegrity(snapIS, ia);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * find the delta snapshots newer than a full snapshot
+     * @param baseZxid the zxid of the full snapshot
+     * @return the delta snapshots with a zxid larger than baseZxid, the
+     * oldest first
+     */
+    List<File> findDeltaSnapshots(long baseZxid) {
+        List<File> deltas = new ArrayList<>();
+        for (File f : Util.sortDataDir(snapDir.listFiles(), DELTA_SNAPSHOT_FILE_PREFIX, true)) {
+            if (Util.getZxidFromName(f.getName(), DELTA_SNAPSHOT_FILE_PREFIX) > baseZxid) {
+                deltas.add(f);
+            }
+        }
+        return deltas;
+    }
+
     /**
      * find the most recent snapshot in the database.
      * @return the file containing the most recent snapshot
@@ -229,7 +372,12 @@ protected void serialize(
             throw new IllegalStateException("Snapshot's not open for writing: uninitialized header");
         }
         header.serialize(oa, "fileheader");
-        SerializeUtils.serializeSnapshot(dt, oa, sessions);
+        if (header.getMagic() == CHUNKED_SNAP_MAGIC) {
+            SerializeUtils.serializeSessions(oa, sessions);
+            dt.serializeChunked(oa, "tree");
+        } else {
+            SerializeUtils.serializeSnapshot(dt, oa, sessions);
+        }
     }
 
     /**
@@ -245,9 +393,17 @@ public synchronized void serialize(
         File snapShot,
         boolean fsync) throws IOException {
         if (!close) {
+            long snapZxid = Util.getZxidFromName(snapShot.getName(), SNAPSHOT_FILE_PREFIX);
+            deltaBaseZxid = -1;
+            if (maxDeltaCount > 0) {
+                dt.resetDirtyNodes();
+            } else {
+                dt.stopDirtyTracking();
+            }
             try (CheckedOutputStream snapOS = SnapStream.getOutputStream(snapShot, fsync)) {
                 OutputArchive oa = BinaryOutputArchive.getArchive(snapOS);
-                FileHeader header = new FileHeader(SNAP_MAGIC, VERSION, dbId);
+                boolean chunked = SnapStream.getStreamMode(snapShot.getName()) == SnapStream.StreamMode.CHUNKED;
+                FileHeader header = new FileHeader(chunked ? CHUNKED_SNAP_MAGIC : SNAP_MAGIC, VERSION, dbId);
                 serialize(dt, sessions, oa, header);
                 SnapStream.sealStream(snapOS, oa);
 
@@ -266,15 +422,100 @@ public synchronized void serialize(
                     SnapStream.sealStream(snapOS, oa);
                 }
 
-                lastSnapshotInfo = new SnapshotInfo(
-                    Util.getZxidFromName(snapShot.getName(), SNAPSHOT_FILE_PREFIX),
-                    snapShot.lastModified() / 1000);
+                lastSnapshotInfo = new SnapshotInfo(snapZxid, snapShot.lastModified() / 1000);
+            }
+            lastSealedSnapshot = snapShot;
+            if (maxDeltaCount > 0 && snapZxid != -1) {
+                deltaBaseZxid = snapZxid;
+                deltaLastZxid = snapZxid;
+                deltaCount = 0;
             }
         } else {
             throw new IOException("FileSnap has already been closed");
         }
     }
 
+    /**
+     * check whether the next snapshot of the datatree can be a delta
+     * snapshot, rather than a full one
+     * @param dt the datatree to be serialized
+     * @param zxid the zxid of the next snapshot
+     * @return true if the delta chain can be extended with a delta at zxid
+     */
+    @Override
+    public synchronized boolean canSerializeDelta(DataTree dt, long zxid) {
+        if (maxDeltaCount <= 0 || deltaBaseZxid == -1 || deltaCount >= maxDeltaCount) {
+            return false;
+        }
+        // a delta with the zxid of the previous one would replace it
+        if (zxid <= deltaLastZxid) {
+            return false;
+        }
+        int dirtyNodes = dt.getDirtyNodeCount();
+        return dirtyNodes >= 0 && dirtyNodes <= dt.getNodeCount() * DELTA_COMPACTION_RATIO;
+    }
+
+    /**
+     * serialize the nodes changed since the previous snapshot, and the
+     * sessions, into a delta snapshot. The caller checks with
+     * {@link #canSerializeDelta(DataTree, long)} that it can be written.
+     * @param dt the datatree to be serialized
+     * @param sessions the sessions to be serialized
+     * @param delta the file to store the delta snapshot into
+     * @param fsync sync the file immediately after write
+     * @throws IOException
+     */
+    @Override
+    public synchronized void serializeDelta(
+        DataTree dt,
+        Map<Long, Integer> sessions,
+        File delta,
+        boolean fsync) throws IOException {
+        if (close) {
+            throw new IOException("FileSnap has already been closed");
+        }
+        long deltaZxid = Util.getZxidFromName(delta.getName(), DELTA_SNAPSHOT_FILE_PREFIX);
+        long baseZxid = deltaBaseZxid;
+        // until this delta is complete the chain is broken, as the changes
+        // it holds are not tracked anymore
+        deltaBaseZxid = -1;
+        Set<String> dirtyNodes = dt.resetDirtyNodes();
+        if (dirtyNodes == null || baseZxid == -1) {
+            throw new IOException("No full snapshot to write a delta snapshot against");
+        }
+        try (CheckedOutputStream snapOS = SnapStream.getOutputStream(delta, fsync)) {
+            OutputArchive oa = BinaryOutputArchive.getArchive(snapOS);
+            new FileHeader(DELTA_MAGIC, VERSION, dbId).serialize(oa, "fileheader");
+            oa.writeLong(baseZxid, "baseZxid");
+            SerializeUtils.serializeSessions(oa, sessions);
+            dt.serializeDelta(oa, dirtyNodes);
+            SnapStream.sealStream(snapOS, oa);
+
+            if (dt.serializeZxidDigest(oa)) {
+                SnapStream.sealStream(snapOS, oa);
+            }
+            if (dt.serializeLastProcessedZxid(oa)) {
+                SnapStream.sealStream(snapOS, oa);
+            }
+
+            lastSnapshotInfo = new SnapshotInfo(deltaZxid, delta.lastModified() / 1000);
+        }
+        LOG.info("Wrote {} changed nodes to delta snapshot {} of 0x{}",
+            dirtyNodes.size(), delta, Long.toHexString(baseZxid));
+        deltaBaseZxid = baseZxid;
+        deltaLastZxid = deltaZxid;
+        deltaCount++;
+    }
+
+    public static int getMaxDeltaCount() {
+        return maxDeltaCount;
+    }
+
+    public static void setMaxDeltaCount(int count) {
+        maxDeltaCount = count;
+        LOG.info("{} = {}", ZOOKEEPER_SNAPSHOT_DELTA_COUNT, maxDeltaCount);
+    }
+
     /**
      * synchronized close just so that if serialize is in place
      * the close operation will block and will wait till serialize
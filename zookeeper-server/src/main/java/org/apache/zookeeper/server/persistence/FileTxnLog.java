@@ -20,7 +20,9 @@
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
+import java.io.DataInputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
@@ -94,6 +96,32 @@
  * ZeroPad:
  *     0 padded to EOF (filled during preallocation stage)
  * </pre></blockquote>
+ * <p>
+ * Logs written by {@link BlockFileTxnLog} have version 3 and hold blocks of
+ * txns instead, one per group commit:
+ * <blockquote><pre>
+ * LogFile:
+ *     FileHeader BlockList ZeroPad
+ *
+ * BlockList:
+ *     Block || Block BlockList
+ *
+ * Block:
+ *     checksum count codec rawlen Blocklen Payload 0x42
+ *
+ * checksum: 8bytes Adler32 of the uncompressed Payload
+ *
+ * count: 4bytes number of txns in the block
+ *
+ * codec: 4bytes 0 for none, 1 for lz4, 2 for zstd
+ *
+ * rawlen: 4bytes length of the uncompressed Payload
+ *
+ * Blocklen: 4bytes length of the stored Payload
+ *
+ * Payload:
+ *     the txns, each as Txnlen TxnHeader Record 0x42, compressed with codec
+ * </pre></blockquote>
  */
 public class FileTxnLog implements TxnLog, Closeable {
 
@@ -103,6 +131,11 @@ public class FileTxnLog implements TxnLog, Closeable {
 
     public static final int VERSION = 2;
 
+    /**
+     * The version of logs made of blocks of txns, see {@link BlockFileTxnLog}.
+     */
+    public static final int BLOCK_VERSION = 3;
+
     public static final String LOG_FILE_PREFIX = "log";
 
     static final String FSYNC_WARNING_THRESHOLD_MS_PROPERTY = "fsync.warningthresholdms";
@@ -166,13 +199,19 @@ public class FileTxnLog implements TxnLog, Closeable {
      * A running total of all complete log files
      * This does not include the current file being written to
      */
-    private long prevLogsRunningTotal;
+    long prevLogsRunningTotal;
 
     long filePosition = 0;
 
-    private long unFlushedSize = 0;
+    /**
+     * if not -1, the zxid to name the next log file after instead of the
+     * zxid of the first txn appended to it
+     */
+    long nextLogFileZxid = -1;
+
+    long unFlushedSize = 0;
 
-    private long fileSize = 0;
+    long fileSize = 0;
 
     /**
      * constructor for FileTxnLog. Take the directory
@@ -208,6 +247,13 @@ public static void setTxnLogSizeLimit(long size) {
         txnLogSizeLimit = size;
     }
 
+    /**
+     * @return the txnlog size limit in bytes, or -1 if the limit is disabled
+     */
+    static long getTxnLogSizeLimit() {
+        return txnLogSizeLimit;
+    }
+
     /**
      * Return the current on-disk size of log size. This will be accurate only
      * after commit() is called. Otherwise, unflushed txns may not be included.
@@ -271,36 +317,11 @@ public synchronized boolean append(Request request) throws IOException {
         if (hdr == null) {
             return false;
         }
-        if (hdr.getZxid() <= lastZxidSeen) {
-            LOG.warn(
-                "Current zxid {} is <= {} for {}",
-                hdr.getZxid(),
-                lastZxidSeen,
-                Request.op2String(hdr.getType()));
-        } else {
-            lastZxidSeen = hdr.getZxid();
-        }
+        updateLastZxidSeen(hdr);
         if (logStream == null) {
-            LOG.info("Creating new log file: {}", Util.makeLogName(hdr.getZxid()));
-
-            logFileWrite = new File(logDir, Util.makeLogName(hdr.getZxid()));
-            fos = new FileOutputStream(logFileWrite);
-            logStream = new BufferedOutputStream(fos);
-            oa = BinaryOutputArchive.getArchive(logStream);
-            FileHeader fhdr = new FileHeader(TXNLOG_MAGIC, VERSION, dbId);
-            long dataSize = oa.getDataSize();
-            fhdr.serialize(oa, "fileheader");
-            // Make sure that the magic number is written before padding.
-            logStream.flush();
-            // Before writing data, first obtain the size of the OutputArchive.
-            // After writing the data, obtain the size of the OutputArchive again,
-            // so we can obtain the size of the data written this time.
-            // In this case, the data already flush into the channel, so add the size to filePosition.
-            filePosition += oa.getDataSize() - dataSize;
-            filePadding.setCurrentSize(filePosition);
-            streamsToFlush.add(fos);
+            openLogStream(hdr.getZxid(), VERSION);
         }
-        fileSize = filePadding.padFile(fos.getChannel(), filePosition);
+        padLogFile();
         byte[] buf = request.getSerializeData();
         if (buf == null || buf.length == 0) {
             throw new IOException("Faulty serialization for header " + "and txn");
@@ -319,6 +340,70 @@ public synchronized boolean append(Request request) throws IOException {
         return true;
     }
 
+    /**
+     * create a new log file and write its header
+     * @param zxid the zxid of the first txn of the new log
+     * @param version the version of the log format
+     * @throws IOException
+     */
+    void openLogStream(long zxid, int version) throws IOException {
+        logFileWrite = createLogFile(zxid);
+        fos = new FileOutputStream(logFileWrite);
+        logStream = new BufferedOutputStream(fos);
+        oa = BinaryOutputArchive.getArchive(logStream);
+        FileHeader fhdr = new FileHeader(TXNLOG_MAGIC, version, dbId);
+        long dataSize = oa.getDataSize();
+        fhdr.serialize(oa, "fileheader");
+        // Make sure that the magic number is written before padding.
+        logStream.flush();
+        // Before writing data, first obtain the size of the OutputArchive.
+        // After writing the data, obtain the size of the OutputArchive again,
+        // so we can obtain the size of the data written this time.
+        // In this case, the data already flush into the channel, so add the size to filePosition.
+        filePosition += oa.getDataSize() - dataSize;
+        filePadding.setCurrentSize(filePosition);
+        streamsToFlush.add(fos);
+    }
+
+    /**
+     * preallocate the current log file ahead of the next write
+     * @throws IOException
+     */
+    void padLogFile() throws IOException {
+        fileSize = filePadding.padFile(fos.getChannel(), filePosition);
+    }
+
+    /**
+     * the file a new log starting with the given zxid is written to
+     * @param zxid the zxid of the first txn of the new log
+     * @return the new log file
+     */
+    File createLogFile(long zxid) {
+        if (nextLogFileZxid != -1) {
+            zxid = nextLogFileZxid;
+            nextLogFileZxid = -1;
+        }
+        LOG.info("Creating new log file: {}", Util.makeLogName(zxid));
+        return new File(logDir, Util.makeLogName(zxid));
+    }
+
+    /**
+     * remember the highest zxid appended so far, warning when the
+     * zxids of appended txns are not increasing
+     * @param hdr the header of the txn being appended
+     */
+    void updateLastZxidSeen(TxnHeader hdr) {
+        if (hdr.getZxid() <= lastZxidSeen) {
+            LOG.warn(
+                "Current zxid {} is <= {} for {}",
+                hdr.getZxid(),
+                lastZxidSeen,
+                Request.op2String(hdr.getType()));
+        } else {
+            lastZxidSeen = hdr.getZxid();
+        }
+    }
+
     /**
      * Find the log file that starts at, or just before, the snapshot. Return
      * this and all subsequent logs. Results are ordered by zxid of file,
@@ -385,6 +470,16 @@ public long getLastLoggedZxid() {
      * disk
      */
     public synchronized void commit() throws IOException {
+        sync();
+        rollLogIfSizeLimitReached();
+    }
+
+    /**
+     * flush the appended txns and, if forceSync is enabled, fsync them
+     * to disk. Unlike commit, this never rolls the log.
+     * @throws IOException
+     */
+    synchronized void sync() throws IOException {
         if (logStream != null) {
             logStream.flush();
             filePosition += unFlushedSize;
@@ -403,28 +498,43 @@ public synchronized void commit() throws IOException {
                 FileChannel channel = log.getChannel();
                 channel.force(false);
 
-                syncElapsedMS = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startSyncNS);
-                if (syncElapsedMS > fsyncWarningThresholdMS) {
-                    if (serverStats != null) {
-                        serverStats.incrementFsyncThresholdExceedCount();
-                    }
-
-                    LOG.warn(
-                        "fsync-ing the write ahead log in {} took {}ms which will adversely effect operation latency."
-                            + "File size is {} bytes. See the ZooKeeper troubleshooting guide",
-                        Thread.currentThread().getName(),
-                        syncElapsedMS,
-                        channel.size());
-                }
-
-                ServerMetrics.getMetrics().FSYNC_TIME.add(syncElapsedMS);
+                updateSyncElapsedTime(startSyncNS, channel.size());
             }
         }
         while (streamsToFlush.size() > 1) {
             streamsToFlush.poll().close();
         }
+    }
 
-        // Roll the log file if we exceed the size limit
+    /**
+     * record the time spent syncing the write ahead log, and warn
+     * if it exceeded the fsync warning threshold
+     * @param startSyncNS the time the sync started, in nanoseconds
+     * @param fileSize the size of the synced file in bytes
+     */
+    void updateSyncElapsedTime(long startSyncNS, long fileSize) {
+        syncElapsedMS = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startSyncNS);
+        if (syncElapsedMS > fsyncWarningThresholdMS) {
+            if (serverStats != null) {
+                serverStats.incrementFsyncThresholdExceedCount();
+            }
+
+            LOG.warn(
+                "fsync-ing the write ahead log in {} took {}ms which will adversely effect operation latency."
+                    + "File size is {} bytes. See the ZooKeeper troubleshooting guide",
+                Thread.currentThread().getName(),
+                syncElapsedMS,
+                fileSize);
+        }
+
+        ServerMetrics.getMetrics().FSYNC_TIME.add(syncElapsedMS);
+    }
+
+    /**
+     * Roll the log file if we exceed the size limit
+     * @throws IOException
+     */
+    void rollLogIfSizeLimitReached() throws IOException {
         if (txnLogSizeLimit > 0) {
             long logSize = getCurrentLogSize();
 
@@ -473,17 +583,13 @@ public TxnIterator read(long zxid, boolean fastForward) throws IOException {
      */
     public boolean truncate(long zxid) throws IOException {
         try (FileTxnIterator itr = new FileTxnIterator(this.logDir, zxid)) {
-            PositionInputStream input = itr.inputStream;
-            if (input == null) {
+            if (itr.inputStream == null) {
                 throw new IOException("No log files found to truncate! This could "
                                       + "happen if you still have snapshots from an old setup or "
                                       + "log files were deleted accidentally or dataLogDir was changed in zoo.cfg.");
             }
-            long pos = input.getPosition();
             // now, truncate at the current position
-            RandomAccessFile raf = new RandomAccessFile(itr.logFile, "rw");
-            raf.setLength(pos);
-            raf.close();
+            itr.truncateAfterCurrent();
             while (itr.goToNextLog()) {
                 if (!itr.logFile.delete()) {
                     LOG.warn("Unable to truncate {}", itr.logFile);
@@ -626,6 +732,21 @@ public static class FileTxnIterator implements TxnLog.TxnIterator {
         static final String CRC_ERROR = "CRC check failed";
 
         PositionInputStream inputStream = null;
+
+        /**
+         * the version of the current log file
+         */
+        int version;
+
+        /**
+         * the block of a version 3 log holding the current txn, with the
+         * index of the txn after it and the position the block starts at
+         */
+        private DataInputStream blockInput;
+        private TxnLogBlock block;
+        private int blockIndex;
+        private long blockStart;
+
         //stored files is the list of files greater than
         //the zxid we are looking for.
         private ArrayList<File> storedFiles;
@@ -664,6 +785,19 @@ public FileTxnIterator(File logDir, long zxid) throws IOException {
             this(logDir, zxid, true);
         }
 
+        /**
+         * create an iterator over the txns of a single log file
+         * @param logFile the log file to read
+         * @throws IOException
+         */
+        FileTxnIterator(File logFile) throws IOException {
+            this.logDir = logFile.getParentFile();
+            storedFiles = new ArrayList<>();
+            storedFiles.add(logFile);
+            goToNextLog();
+            next();
+        }
+
         /**
          * initialize to the zxid specified
          * this is inclusive of the zxid
@@ -728,6 +862,9 @@ protected void inStreamCreated(InputArchive ia, InputStream is) throws IOExcepti
                                       + " has invalid magic number "
                                       + header.getMagic() + " != " + FileTxnLog.TXNLOG_MAGIC);
             }
+            version = header.getVersion();
+            block = null;
+            blockInput = version >= BLOCK_VERSION ? new DataInputStream(is) : null;
         }
 
         /**
@@ -764,19 +901,7 @@ public boolean next() throws IOException {
                 return false;
             }
             try {
-                long crcValue = ia.readLong("crcvalue");
-                byte[] bytes = Util.readTxnBytes(ia);
-                // Since we preallocate, we define EOF to be an
-                if (bytes == null || bytes.length == 0) {
-                    throw new EOFException("Failed to read " + logFile);
-                }
-                // EOF or corrupted record
-                // validate CRC
-                Checksum crc = makeChecksumAlgorithm();
-                crc.update(bytes, 0, bytes.length);
-                if (crcValue != crc.getValue()) {
-                    throw new IOException(CRC_ERROR);
-                }
+                byte[] bytes = blockInput != null ? readBlockTxn() : readTxn();
                 TxnLogEntry logEntry = SerializeUtils.deserializeTxn(bytes);
                 hdr = logEntry.getHeader();
                 record = logEntry.getTxn();
@@ -787,6 +912,8 @@ public boolean next() throws IOException {
                 inputStream = null;
                 ia = null;
                 hdr = null;
+                blockInput = null;
+                block = null;
                 // this means that the file has ended
                 // we should go to the next file
                 if (!goToNextLog()) {
@@ -801,6 +928,56 @@ public boolean next() throws IOException {
             return true;
         }
 
+        private byte[] readTxn() throws IOException {
+            long crcValue = ia.readLong("crcvalue");
+            byte[] bytes = Util.readTxnBytes(ia);
+            // Since we preallocate, we define EOF to be an
+            if (bytes == null || bytes.length == 0) {
+                throw new EOFException("Failed to read " + logFile);
+            }
+            // EOF or corrupted record
+            // validate CRC
+            Checksum crc = makeChecksumAlgorithm();
+            crc.update(bytes, 0, bytes.length);
+            if (crcValue != crc.getValue()) {
+                throw new IOException(CRC_ERROR);
+            }
+            return bytes;
+        }
+
+        private byte[] readBlockTxn() throws IOException {
+            if (block == null || blockIndex == block.getTxns().size()) {
+                blockStart = inputStream.getPosition();
+                block = TxnLogBlock.read(blockInput);
+                blockIndex = 0;
+                if (block == null) {
+                    throw new EOFException("Failed to read " + logFile);
+                }
+            }
+            return block.getTxns().get(blockIndex++);
+        }
+
+        /**
+         * cut the current log file right after the current txn. In a
+         * version 3 log, the block holding the current txn is rewritten
+         * with the txns up to the current one if it holds later txns.
+         * @throws IOException
+         */
+        void truncateAfterCurrent() throws IOException {
+            try (RandomAccessFile raf = new RandomAccessFile(logFile, "rw")) {
+                if (block == null || blockIndex == block.getTxns().size()) {
+                    raf.setLength(inputStream.getPosition());
+                    return;
+                }
+                ByteArrayOutputStream kept = new ByteArrayOutputStream();
+                TxnLogBlock.write(BinaryOutputArchive.getArchive(kept), block.getCodec(),
+                    block.getTxns().subList(0, blockIndex));
+                raf.setLength(blockStart);
+                raf.seek(blockStart);
+                raf.write(kept.toByteArray());
+            }
+        }
+
         /**
          * return the current header
          * @return the current header that
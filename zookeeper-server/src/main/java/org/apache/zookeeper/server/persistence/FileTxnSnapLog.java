@@ -22,6 +22,8 @@
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -57,10 +59,15 @@ public class FileTxnSnapLog {
     //the directory containing the
     //the snapshot directory
     final File snapDir;
+    //the additional directories the transaction logs
+    //are striped across, empty unless striping is enabled
+    final List<File> stripeDirs;
     TxnLog txnLog;
     SnapShot snapLog;
     private final boolean autoCreateDB;
     private final boolean trustEmptySnapshot;
+    private final boolean copyOnWriteSnapshot;
+    private final int txnLogReadAhead;
     public static final int VERSION = 2;
     public static final String version = "version-";
 
@@ -76,6 +83,14 @@ public class FileTxnSnapLog {
 
     public static final String ZOOKEEPER_SNAPSHOT_TRUST_EMPTY = "zookeeper.snapshot.trust.empty";
 
+    public static final String ZOOKEEPER_SNAPSHOT_COPY_ON_WRITE = "zookeeper.snapshot.copyOnWrite";
+
+    public static final String ZOOKEEPER_TXNLOG_MMAP = "zookeeper.txnLogMmap";
+
+    public static final String ZOOKEEPER_TXNLOG_STRIPE_DIRS = "zookeeper.txnLogStripeDirs";
+
+    public static final String ZOOKEEPER_TXNLOG_BLOCK_FORMAT = "zookeeper.txnLogBlockFormat";
+
     private static final String EMPTY_SNAPSHOT_WARNING = "No snapshot found, but there are log entries. ";
 
     /**
@@ -122,6 +137,10 @@ public FileTxnSnapLog(File dataDir, File snapDir) throws IOException {
 
         trustEmptySnapshot = Boolean.getBoolean(ZOOKEEPER_SNAPSHOT_TRUST_EMPTY);
         LOG.info("{} : {}", ZOOKEEPER_SNAPSHOT_TRUST_EMPTY, trustEmptySnapshot);
+        copyOnWriteSnapshot = Boolean.getBoolean(ZOOKEEPER_SNAPSHOT_COPY_ON_WRITE);
+        LOG.info("{} : {}", ZOOKEEPER_SNAPSHOT_COPY_ON_WRITE, copyOnWriteSnapshot);
+        txnLogReadAhead = ReadAheadTxnIterator.getConfiguredReadAhead();
+        LOG.info("{} : {}", ReadAheadTxnIterator.ZOOKEEPER_TXNLOG_READ_AHEAD, txnLogReadAhead);
 
         if (!this.dataDir.exists()) {
             if (!enableAutocreate) {
@@ -140,6 +159,31 @@ public FileTxnSnapLog(File dataDir, File snapDir) throws IOException {
             throw new DatadirException("Cannot write to data directory " + this.dataDir);
         }
 
+        this.stripeDirs = new ArrayList<>();
+        for (String stripeDir : System.getProperty(ZOOKEEPER_TXNLOG_STRIPE_DIRS, "").split(",")) {
+            if (stripeDir.trim().isEmpty()) {
+                continue;
+            }
+            File dir = new File(stripeDir.trim(), version + VERSION);
+            if (!dir.exists()) {
+                if (!enableAutocreate) {
+                    throw new DatadirException(String.format(
+                        "Missing txn log stripe directory %s, automatic data directory creation is disabled (%s is false)."
+                        + " Please create this directory manually.",
+                        dir,
+                        ZOOKEEPER_DATADIR_AUTOCREATE));
+                }
+
+                if (!dir.mkdirs() && !dir.exists()) {
+                    throw new DatadirException("Unable to create txn log stripe directory " + dir);
+                }
+            }
+            if (!dir.canWrite()) {
+                throw new DatadirException("Cannot write to txn log stripe directory " + dir);
+            }
+            stripeDirs.add(dir);
+        }
+
         if (!this.snapDir.exists()) {
             // by default create this directory, but otherwise complain instead
             // See ZOOKEEPER-1161 for more details
@@ -165,14 +209,66 @@ public FileTxnSnapLog(File dataDir, File snapDir) throws IOException {
             checkLogDir();
             checkSnapDir();
         }
+        StripedFileTxnLog.checkStripes(getTxnLogDirs());
 
-        txnLog = new FileTxnLog(this.dataDir);
+        txnLog = createTxnLog();
         snapLog = new FileSnap(this.snapDir);
 
         autoCreateDB = Boolean.parseBoolean(
             System.getProperty(ZOOKEEPER_DB_AUTOCREATE, ZOOKEEPER_DB_AUTOCREATE_DEFAULT));
     }
 
+    /**
+     * create the txn log that is appended to, writing blocks of txns if
+     * {@value #ZOOKEEPER_TXNLOG_BLOCK_FORMAT} is set, through memory mapped
+     * windows if {@value #ZOOKEEPER_TXNLOG_MMAP} is set, and striped across
+     * the directories in {@value #ZOOKEEPER_TXNLOG_STRIPE_DIRS} if any
+     * @return the txn log to append to
+     */
+    private TxnLog createTxnLog() {
+        boolean blockFormat = Boolean.getBoolean(ZOOKEEPER_TXNLOG_BLOCK_FORMAT);
+        boolean mmap = Boolean.getBoolean(ZOOKEEPER_TXNLOG_MMAP);
+        if (blockFormat) {
+            LOG.info("{} : true, writing txn logs as blocks compressed with {}",
+                ZOOKEEPER_TXNLOG_BLOCK_FORMAT, TxnLogBlock.getConfiguredCodec().getName());
+            if (mmap) {
+                LOG.warn("{} is ignored with {}", ZOOKEEPER_TXNLOG_MMAP, ZOOKEEPER_TXNLOG_BLOCK_FORMAT);
+                mmap = false;
+            }
+        }
+        if (mmap) {
+            LOG.info("{} : true, writing txn logs through memory mapped files", ZOOKEEPER_TXNLOG_MMAP);
+        }
+        if (stripeDirs.isEmpty()) {
+            return createTxnLog(dataDir, blockFormat, mmap);
+        }
+        LOG.info("Striping txn logs across {} and {}", dataDir, stripeDirs);
+        List<FileTxnLog> stripes = new ArrayList<>();
+        for (File logDir : getTxnLogDirs()) {
+            stripes.add(createTxnLog(logDir, blockFormat, mmap));
+        }
+        return new StripedFileTxnLog(stripes);
+    }
+
+    private static FileTxnLog createTxnLog(File logDir, boolean blockFormat, boolean mmap) {
+        if (blockFormat) {
+            return new BlockFileTxnLog(logDir);
+        }
+        return mmap ? new MappedFileTxnLog(logDir) : new FileTxnLog(logDir);
+    }
+
+    /**
+     * open the txn logs for reading
+     * @return a txn log over the transaction directory, or over all the
+     * stripe directories if striping is enabled
+     */
+    private TxnLog openTxnLog() {
+        if (stripeDirs.isEmpty()) {
+            return new FileTxnLog(dataDir);
+        }
+        return StripedFileTxnLog.open(getTxnLogDirs());
+    }
+
     public void setServerStats(ServerStats serverStats) {
         txnLog.setServerStats(serverStats);
     }
@@ -212,6 +308,18 @@ public File getDataDir() {
         return this.dataDir;
     }
 
+    /**
+     * get all the directories holding transaction logs, the
+     * data dir first followed by the stripe directories
+     * @return the txn log dirs
+     */
+    public List<File> getTxnLogDirs() {
+        List<File> logDirs = new ArrayList<>(stripeDirs.size() + 1);
+        logDirs.add(dataDir);
+        logDirs.addAll(stripeDirs);
+        return logDirs;
+    }
+
     /**
      * get the snap dir used by this
      * filetxn snap log
@@ -229,6 +337,14 @@ public SnapshotInfo getLastSnapshotInfo() {
         return this.snapLog.getLastSnapshotInfo();
     }
 
+    /**
+     * get the last full snapshot file completely written or restored from
+     * @return the snapshot file, or null if there is none
+     */
+    public File getLastSealedSnapshot() {
+        return this.snapLog.getLastSealedSnapshot();
+    }
+
     /**
      * whether to force the write of an initial snapshot after a leader election,
      * to address ZOOKEEPER-3781 after upgrading from Zookeeper 3.4.x.
@@ -241,7 +357,9 @@ public boolean shouldForceWriteInitialSnapshotAfterLeaderElection() {
     /**
      * this function restores the server
      * database after reading from the
-     * snapshots and transaction logs
+     * snapshots and transaction logs. With txn log read ahead enabled, the
+     * txn log is read from the most recent snapshot while the snapshot is
+     * loaded.
      * @param dt the datatree to be restored
      * @param sessions the sessions to be restored
      * @param listener the playback listener to run on the
@@ -250,10 +368,34 @@ public boolean shouldForceWriteInitialSnapshotAfterLeaderElection() {
      * @throws IOException
      */
     public long restore(DataTree dt, Map<Long, Integer> sessions, PlayBackListener listener) throws IOException {
+        ReadAheadTxnIterator readAhead = null;
+        if (txnLogReadAhead > 0) {
+            File snapshot = snapLog.findMostRecentSnapshot();
+            if (snapshot != null) {
+                // the snapshot loaded, and its deltas, are at least as recent
+                // unless it turns out to be corrupt
+                long snapZxid = Util.getZxidFromName(snapshot.getName(), FileSnap.SNAPSHOT_FILE_PREFIX);
+                readAhead = new ReadAheadTxnIterator(txnLog, snapZxid + 1, txnLogReadAhead);
+            }
+        }
+        try {
+            return restore(dt, sessions, listener, readAhead);
+        } finally {
+            if (readAhead != null) {
+                readAhead.close();
+            }
+        }
+    }
+
+    private long restore(
+        DataTree dt,
+        Map<Long, Integer> sessions,
+        PlayBackListener listener,
+        ReadAheadTxnIterator readAhead) throws IOException {
         long snapLoadingStartTime = Time.currentElapsedTime();
         long deserializeResult = snapLog.deserialize(dt, sessions);
         ServerMetrics.getMetrics().STARTUP_SNAP_LOAD_TIME.add(Time.currentElapsedTime() - snapLoadingStartTime);
-        FileTxnLog txnLog = new FileTxnLog(dataDir);
+        TxnLog txnLog = openTxnLog();
         boolean trustEmptyDB;
         File initFile = new File(dataDir.getParent(), "initialize");
         if (Files.deleteIfExists(initFile.toPath())) {
@@ -264,7 +406,13 @@ public long restore(DataTree dt, Map<Long, Integer> sessions, PlayBackListener l
         }
 
         RestoreFinalizer finalizer = () -> {
-            long highestZxid = fastForwardFromEdits(dt, sessions, listener);
+            long highestZxid;
+            if (readAhead != null && readAhead.getStartZxid() <= dt.lastProcessedZxid + 1) {
+                readAhead.skipTo(dt.lastProcessedZxid + 1);
+                highestZxid = fastForwardFromEdits(dt, sessions, listener, readAhead);
+            } else {
+                highestZxid = fastForwardFromEdits(dt, sessions, listener);
+            }
             // The snapshotZxidDigest will reset after replaying the txn of the
             // zxid in the snapshotZxidDigest, if it's not reset to null after
             // restoring, it means either there are not enough txns to cover that
@@ -327,7 +475,27 @@ public long fastForwardFromEdits(
         DataTree dt,
         Map<Long, Integer> sessions,
         PlayBackListener listener) throws IOException {
-        TxnIterator itr = txnLog.read(dt.lastProcessedZxid + 1);
+        TxnIterator itr;
+        if (txnLogReadAhead > 0) {
+            ReadAheadTxnIterator readAhead = new ReadAheadTxnIterator(txnLog, dt.lastProcessedZxid + 1, txnLogReadAhead);
+            try {
+                readAhead.skipTo(dt.lastProcessedZxid + 1);
+            } catch (IOException e) {
+                readAhead.close();
+                throw e;
+            }
+            itr = readAhead;
+        } else {
+            itr = txnLog.read(dt.lastProcessedZxid + 1);
+        }
+        return fastForwardFromEdits(dt, sessions, listener, itr);
+    }
+
+    private long fastForwardFromEdits(
+        DataTree dt,
+        Map<Long, Integer> sessions,
+        PlayBackListener listener,
+        TxnIterator itr) throws IOException {
         long highestZxid = dt.lastProcessedZxid;
         TxnHeader hdr;
         int txnLoaded = 0;
@@ -398,7 +566,7 @@ public TxnIterator readTxnLog(long zxid) throws IOException {
      * @throws IOException
      */
     public TxnIterator readTxnLog(long zxid, boolean fastForward) throws IOException {
-        FileTxnLog txnLog = new FileTxnLog(dataDir);
+        TxnLog txnLog = openTxnLog();
         return txnLog.read(zxid, fastForward);
     }
 
@@ -458,8 +626,13 @@ public void processTransaction(
      * @return the last logged zxid
      */
     public long getLastLoggedZxid() {
-        FileTxnLog txnLog = new FileTxnLog(dataDir);
-        return txnLog.getLastLoggedZxid();
+        TxnLog txnLog = openTxnLog();
+        try {
+            return txnLog.getLastLoggedZxid();
+        } catch (IOException e) {
+            LOG.warn("Unexpected exception", e);
+            return -1;
+        }
     }
 
     /**
@@ -475,11 +648,60 @@ public File save(
         DataTree dataTree,
         ConcurrentHashMap<Long, Integer> sessionsWithTimeouts,
         boolean syncSnap) throws IOException {
-        long lastZxid = dataTree.lastProcessedZxid;
-        File snapshotFile = new File(snapDir, Util.makeSnapshotName(lastZxid));
+        return save(dataTree, sessionsWithTimeouts, syncSnap, false);
+    }
+
+    /**
+     * save the datatree and the sessions into a snapshot, which is a delta
+     * snapshot of the changes since the previous one if allowed and delta
+     * snapshots are enabled. With copy on write snapshots enabled, the
+     * snapshot holds the datatree exactly as of its last processed zxid
+     * rather than a fuzzy view of it, see {@link DataTree#startCopyOnWriteSnapshot()}.
+     * @param dataTree the datatree to be serialized onto disk
+     * @param sessionsWithTimeouts the session timeouts to be
+     * serialized onto disk
+     * @param syncSnap sync the snapshot immediately after write
+     * @param fullSnapshot true to always write a full snapshot
+     * @return the snapshot file
+     * @throws IOException
+     */
+    public File save(
+        DataTree dataTree,
+        ConcurrentHashMap<Long, Integer> sessionsWithTimeouts,
+        boolean syncSnap,
+        boolean fullSnapshot) throws IOException {
+        // the zxid of a copy on write snapshot is the one the tree had when
+        // it started, not the one it has once the txns applied since then
+        long lastZxid = copyOnWriteSnapshot ? dataTree.startCopyOnWriteSnapshot() : -1;
+        boolean copyOnWrite = lastZxid != -1;
+        if (!copyOnWrite) {
+            lastZxid = dataTree.lastProcessedZxid;
+        }
+        try {
+            return save(dataTree, sessionsWithTimeouts, syncSnap, fullSnapshot, lastZxid);
+        } finally {
+            if (copyOnWrite) {
+                dataTree.endCopyOnWriteSnapshot();
+            }
+        }
+    }
+
+    private File save(
+        DataTree dataTree,
+        ConcurrentHashMap<Long, Integer> sessionsWithTimeouts,
+        boolean syncSnap,
+        boolean fullSnapshot,
+        long lastZxid) throws IOException {
+        boolean delta = !fullSnapshot && snapLog.canSerializeDelta(dataTree, lastZxid);
+        File snapshotFile = new File(snapDir,
+            delta ? Util.makeDeltaSnapshotName(lastZxid) : Util.makeSnapshotName(lastZxid));
         LOG.info("Snapshotting: 0x{} to {}", Long.toHexString(lastZxid), snapshotFile);
         try {
-            snapLog.serialize(dataTree, sessionsWithTimeouts, snapshotFile, syncSnap);
+            if (delta) {
+                snapLog.serializeDelta(dataTree, sessionsWithTimeouts, snapshotFile, syncSnap);
+            } else {
+                snapLog.serialize(dataTree, sessionsWithTimeouts, snapshotFile, syncSnap);
+            }
             return snapshotFile;
         } catch (IOException e) {
             if (snapshotFile.length() == 0) {
@@ -516,14 +738,14 @@ public boolean truncateLog(long zxid) {
             close();
 
             // truncate it
-            try (FileTxnLog truncLog = new FileTxnLog(dataDir)) {
+            try (TxnLog truncLog = openTxnLog()) {
                 boolean truncated = truncLog.truncate(zxid);
 
                 // re-open the txnLog and snapLog
                 // I'd rather just close/reopen this object itself, however that
                 // would have a big impact outside ZKDatabase as there are other
                 // objects holding a reference to this object.
-                txnLog = new FileTxnLog(dataDir);
+                txnLog = createTxnLog();
                 snapLog = new FileSnap(snapDir);
 
                 return truncated;
@@ -579,7 +801,11 @@ public List<File> findNValidSnapshots(int n) {
      * @return the snapshot logs which may contain transactions newer than the given zxid
      */
     public File[] getSnapshotLogs(long zxid) {
-        return FileTxnLog.getLogFiles(dataDir.listFiles(), zxid);
+        List<File> logs = new ArrayList<>();
+        for (File logDir : getTxnLogDirs()) {
+            logs.addAll(Arrays.asList(FileTxnLog.getLogFiles(logDir.listFiles(), zxid)));
+        }
+        return logs.toArray(new File[0]);
     }
 
     /**
@@ -0,0 +1,215 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.zip.Checksum;
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.jute.OutputArchive;
+import org.apache.zookeeper.server.ByteBufferOutputStream;
+import org.apache.zookeeper.server.Request;
+import org.apache.zookeeper.txn.TxnHeader;
+
+/**
+ * A FileTxnLog that appends txns by writing them straight into a memory
+ * mapped window over the preallocated part of the current log file, rather
+ * than through a BufferedOutputStream and FileOutputStream. A commit forces
+ * the mapped windows written since the previous commit.
+ * <p>
+ * The files written are byte for byte in the format described in
+ * {@link FileTxnLog}: a window is always a multiple of preAllocSize, and the
+ * part of it that is not yet written is left zero filled, which readers
+ * already treat as the end of the log. Reading, truncating and purging
+ * are inherited from FileTxnLog unchanged.
+ * <p>
+ * Like the padding done by FileTxnLog, mapping a window only grows the file
+ * and does not reserve disk blocks for it, so running out of disk space while
+ * writing to the map surfaces as an error from the JVM rather than an
+ * IOException.
+ */
+public class MappedFileTxnLog extends FileTxnLog {
+
+    /**
+     * The window size used when preallocation is disabled.
+     */
+    static final long DEFAULT_WINDOW_SIZE = 1024 * 1024;
+
+    /**
+     * Upper bound on the size of a single mapped window.
+     */
+    static final long MAX_WINDOW_SIZE = 1024 * 1024 * 1024;
+
+    private FileChannel channel;
+
+    private MappedByteBuffer window;
+
+    private OutputArchive windowArchive;
+
+    /**
+     * file offset of the first byte of the current window
+     */
+    private long windowOffset;
+
+    /**
+     * true if the current window has been written since it was last forced
+     */
+    private boolean windowDirty;
+
+    /**
+     * windows that have been replaced, by a remap or a log roll, before
+     * being forced
+     */
+    private final Queue<MappedByteBuffer> windowsToForce = new ArrayDeque<>();
+
+    private final Queue<FileChannel> channelsToClose = new ArrayDeque<>();
+
+    /**
+     * constructor for MappedFileTxnLog. Take the directory
+     * where the txnlogs are stored
+     * @param logDir the directory where the txnlogs are stored
+     */
+    public MappedFileTxnLog(File logDir) {
+        super(logDir);
+    }
+
+    @Override
+    public synchronized boolean append(Request request) throws IOException {
+        TxnHeader hdr = request.getHdr();
+        if (hdr == null) {
+            return false;
+        }
+        updateLastZxidSeen(hdr);
+        if (channel == null) {
+            logFileWrite = createLogFile(hdr.getZxid());
+            channel = new RandomAccessFile(logFileWrite, "rw").getChannel();
+            FileHeader fhdr = new FileHeader(TXNLOG_MAGIC, VERSION, dbId);
+            // magic, version and dbid
+            ensureCapacity(16);
+            fhdr.serialize(windowArchive, "fileheader");
+            windowDirty = true;
+        }
+        byte[] buf = request.getSerializeData();
+        if (buf == null || buf.length == 0) {
+            throw new IOException("Faulty serialization for header " + "and txn");
+        }
+        // checksum, length prefix, txn bytes and end of record marker
+        ensureCapacity(8 + 4 + buf.length + 1);
+        Checksum crc = makeChecksumAlgorithm();
+        crc.update(buf, 0, buf.length);
+        windowArchive.writeLong(crc.getValue(), "txnEntryCRC");
+        Util.writeTxnBytes(windowArchive, buf);
+        windowDirty = true;
+        return true;
+    }
+
+    /**
+     * make sure the current window can take another <code>size</code>
+     * bytes, mapping a new window at the current write position if not.
+     * The new window ends on the next preAllocSize boundary that leaves
+     * room for the write.
+     * @param size the number of bytes about to be written
+     * @throws IOException
+     */
+    private void ensureCapacity(int size) throws IOException {
+        if (window != null && window.remaining() >= size) {
+            return;
+        }
+        long position = getWritePosition();
+        long blockSize = FilePadding.getPreAllocSize() > 0 ? FilePadding.getPreAllocSize() : DEFAULT_WINDOW_SIZE;
+        blockSize = Math.min(blockSize, MAX_WINDOW_SIZE);
+        long end = position + size + blockSize;
+        end -= end % blockSize;
+
+        if (window != null && windowDirty) {
+            windowsToForce.add(window);
+        }
+        window = channel.map(FileChannel.MapMode.READ_WRITE, position, end - position);
+        windowArchive = BinaryOutputArchive.getArchive(new ByteBufferOutputStream(window));
+        windowOffset = position;
+        windowDirty = false;
+        fileSize = end;
+    }
+
+    private long getWritePosition() {
+        return window == null ? 0 : windowOffset + window.position();
+    }
+
+    @Override
+    synchronized void sync() throws IOException {
+        if (window != null) {
+            filePosition = getWritePosition();
+        }
+        if (window != null && windowDirty) {
+            windowsToForce.add(window);
+            windowDirty = false;
+        }
+        long startSyncNS = System.nanoTime();
+        boolean synced = false;
+        MappedByteBuffer toForce;
+        while ((toForce = windowsToForce.poll()) != null) {
+            if (isForceSync()) {
+                toForce.force();
+                synced = true;
+            }
+        }
+        if (synced) {
+            updateSyncElapsedTime(startSyncNS, fileSize);
+        }
+        FileChannel toClose;
+        while ((toClose = channelsToClose.poll()) != null) {
+            toClose.close();
+        }
+    }
+
+    @Override
+    public synchronized void rollLog() throws IOException {
+        if (channel != null) {
+            if (windowDirty) {
+                windowsToForce.add(window);
+            }
+            prevLogsRunningTotal += getCurrentLogSize();
+            channelsToClose.add(channel);
+            channel = null;
+            window = null;
+            windowArchive = null;
+            windowDirty = false;
+            windowOffset = 0;
+            fileSize = 0;
+            filePosition = 0;
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+        for (FileChannel log : channelsToClose) {
+            log.close();
+        }
+        super.close();
+    }
+
+}
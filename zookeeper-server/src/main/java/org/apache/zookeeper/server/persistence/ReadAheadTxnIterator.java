@@ -0,0 +1,277 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.persistence;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import org.apache.jute.Record;
+import org.apache.zookeeper.server.ZooKeeperThread;
+import org.apache.zookeeper.server.persistence.TxnLog.TxnIterator;
+import org.apache.zookeeper.txn.TxnDigest;
+import org.apache.zookeeper.txn.TxnHeader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A txn iterator reading the txn log in a background thread, up to a given
+ * number of txns ahead of the txn it points to, so that reading and
+ * deserializing the txns overlaps with applying them. The txns are handed
+ * over in batches to keep the hand-off cheap.
+ *
+ * The log is opened by the background thread too, so the iterator can be
+ * created before the zxid to replay from is exactly known. It has to be
+ * moved to that zxid with {@link #skipTo(long)} before it is used, which
+ * also reports a failure to open the log.
+ */
+public class ReadAheadTxnIterator implements TxnIterator {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ReadAheadTxnIterator.class);
+
+    /**
+     * The number of txns read ahead when replaying the txn log, 0 to read
+     * the txn log in the thread applying the txns.
+     */
+    public static final String ZOOKEEPER_TXNLOG_READ_AHEAD = "zookeeper.txnLogReadAhead";
+
+    private static final int BATCH_SIZE = 128;
+
+    private static final Entry END = new Entry(null, null, null);
+
+    private static class Entry {
+
+        final TxnHeader hdr;
+        final Record txn;
+        final TxnDigest digest;
+
+        Entry(TxnHeader hdr, Record txn, TxnDigest digest) {
+            this.hdr = hdr;
+            this.txn = txn;
+            this.digest = digest;
+        }
+
+    }
+
+    /**
+     * A batch of txns, or the failure to read the next ones
+     */
+    private static class Batch {
+
+        final List<Entry> entries;
+        final IOException failure;
+
+        Batch(List<Entry> entries, IOException failure) {
+            this.entries = entries;
+            this.failure = failure;
+        }
+
+    }
+
+    private final TxnLog txnLog;
+
+    private final long startZxid;
+
+    private final BlockingQueue<Batch> batches;
+
+    private final Thread reader;
+
+    private volatile boolean closed;
+
+    private volatile TxnIterator source;
+
+    private Iterator<Entry> batch;
+
+    private Entry current;
+
+    /**
+     * start reading the txn log
+     * @param txnLog the txn log to read
+     * @param zxid the zxid to start reading from, see {@link TxnLog#read(long)}
+     * @param readAhead the maximum number of txns read ahead
+     */
+    public ReadAheadTxnIterator(TxnLog txnLog, long zxid, int readAhead) {
+        this.txnLog = txnLog;
+        this.startZxid = zxid;
+        this.batches = new ArrayBlockingQueue<>(Math.max(1, readAhead / BATCH_SIZE));
+        this.reader = new ZooKeeperThread("TxnLogReadAhead") {
+            @Override
+            public void run() {
+                read();
+            }
+        };
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * @return the number of txns to read ahead configured with
+     * {@value #ZOOKEEPER_TXNLOG_READ_AHEAD}
+     */
+    public static int getConfiguredReadAhead() {
+        return Integer.getInteger(ZOOKEEPER_TXNLOG_READ_AHEAD, 0);
+    }
+
+    /**
+     * @return the zxid the txn log is read from
+     */
+    public long getStartZxid() {
+        return startZxid;
+    }
+
+    private void read() {
+        try {
+            source = txnLog.read(startZxid);
+            List<Entry> entries = new ArrayList<>(BATCH_SIZE);
+            if (source.getHeader() != null) {
+                do {
+                    entries.add(new Entry(source.getHeader(), source.getTxn(), source.getDigest()));
+                    if (entries.size() == BATCH_SIZE) {
+                        batches.put(new Batch(entries, null));
+                        entries = new ArrayList<>(BATCH_SIZE);
+                    }
+                } while (!closed && source.next());
+            }
+            entries.add(END);
+            batches.put(new Batch(entries, null));
+        } catch (IOException e) {
+            putFailure(e);
+        } catch (InterruptedException e) {
+            // closed
+        } catch (Throwable t) {
+            // the iterator would wait for the txns forever otherwise
+            putFailure(new IOException("Failed to read the txn log", t));
+        } finally {
+            try {
+                if (source != null) {
+                    source.close();
+                }
+            } catch (IOException e) {
+                LOG.warn("Failed to close the txn log", e);
+            }
+        }
+    }
+
+    private void putFailure(IOException e) {
+        try {
+            batches.put(new Batch(null, e));
+        } catch (InterruptedException ie) {
+            // closed
+        }
+    }
+
+    private Entry current() throws IOException {
+        if (current == null) {
+            current = take();
+        }
+        return current;
+    }
+
+    private Entry take() throws IOException {
+        if (batch == null || !batch.hasNext()) {
+            Batch next;
+            try {
+                next = batches.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while reading the txn log");
+            }
+            if (next.failure != null) {
+                // fail again if called again
+                batches.offer(next);
+                throw next.failure;
+            }
+            batch = next.entries.iterator();
+        }
+        return batch.next();
+    }
+
+    /**
+     * move past the txns below a given zxid
+     * @param zxid the zxid of the first txn to point to
+     * @return false if no txn is left
+     * @throws IOException if reading the txn log failed
+     */
+    public boolean skipTo(long zxid) throws IOException {
+        while (current() != END && current.hdr.getZxid() < zxid) {
+            current = take();
+        }
+        return current != END;
+    }
+
+    /**
+     * @return the header of the txn, or null if there is none
+     * @throws IllegalStateException if reading the txn log failed, which is
+     * rethrown by {@link #next()} and {@link #skipTo(long)} instead
+     */
+    @Override
+    public TxnHeader getHeader() {
+        return currentOrFail().hdr;
+    }
+
+    @Override
+    public Record getTxn() {
+        return currentOrFail().txn;
+    }
+
+    @Override
+    public TxnDigest getDigest() {
+        return currentOrFail().digest;
+    }
+
+    private Entry currentOrFail() {
+        try {
+            return current();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public boolean next() throws IOException {
+        if (current() == END) {
+            return false;
+        }
+        current = take();
+        return current != END;
+    }
+
+    @Override
+    public long getStorageSize() throws IOException {
+        TxnIterator itr = source;
+        return itr == null ? 0 : itr.getStorageSize();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        reader.interrupt();
+        batches.clear();
+        try {
+            reader.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while closing the txn log");
+        }
+    }
+
+}
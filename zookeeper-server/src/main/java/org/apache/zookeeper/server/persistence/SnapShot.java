@@ -50,6 +50,32 @@ public interface SnapShot {
      */
     void serialize(DataTree dt, Map<Long, Integer> sessions, File name, boolean fsync) throws IOException;
 
+    /**
+     * check whether the next snapshot of the datatree can be a delta
+     * snapshot, rather than a full one. Snapshots without delta support
+     * always return false.
+     * @param dt the datatree to be serialized
+     * @param zxid the zxid of the next snapshot
+     * @return true if a delta snapshot can be written at zxid
+     */
+    default boolean canSerializeDelta(DataTree dt, long zxid) {
+        return false;
+    }
+
+    /**
+     * persist the nodes changed since the previous snapshot and the
+     * sessions into a delta snapshot. Only called once
+     * {@link #canSerializeDelta(DataTree, long)} returned true, so snapshots
+     * without delta support need not implement it.
+     * @param dt the datatree to be serialized
+     * @param sessions the session timeouts to be serialized
+     * @param delta the object name to store the delta snapshot into
+     * @param fsync sync the snapshot immediately after write
+     * @throws IOException
+     */
+    default void serializeDelta(DataTree dt, Map<Long, Integer> sessions, File delta, boolean fsync) throws IOException {
+    }
+
     /**
      * find the most recent snapshot file
      * @return the most recent snapshot file
@@ -63,6 +89,16 @@ public interface SnapShot {
      */
     SnapshotInfo getLastSnapshotInfo();
 
+    /**
+     * get the last full snapshot file this snapshot has completely written
+     * or restored from, which unlike the most recent file in the snapshot
+     * directory cannot be in the middle of being written
+     * @return the snapshot file, or null if there is none
+     */
+    default File getLastSealedSnapshot() {
+        return null;
+    }
+
     /**
      * free resources from this snapshot immediately
      * @throws IOException
@@ -18,6 +18,8 @@
 
 package org.apache.zookeeper.server.persistence;
 
+import com.github.luben.zstd.ZstdInputStream;
+import com.github.luben.zstd.ZstdOutputStream;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
@@ -29,12 +31,19 @@
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.zip.Adler32;
 import java.util.zip.CheckedInputStream;
 import java.util.zip.CheckedOutputStream;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FrameInputStream;
+import net.jpountz.lz4.LZ4FrameOutputStream;
+import net.jpountz.xxhash.XXHashFactory;
 import org.apache.jute.InputArchive;
 import org.apache.jute.OutputArchive;
 import org.apache.zookeeper.common.AtomicFileOutputStream;
@@ -53,10 +62,32 @@ public class SnapStream {
 
     public static final String ZOOKEEPER_SHAPSHOT_STREAM_MODE = "zookeeper.snapshot.compression.method";
 
+    /**
+     * The compression level of the zstd and lz4 stream modes. Defaults to
+     * the zstd default level, and to the fast lz4 compressor; a positive
+     * level selects the high compression lz4 compressor.
+     */
+    public static final String ZOOKEEPER_SNAPSHOT_COMPRESSION_LEVEL = "zookeeper.snapshot.compression.level";
+
+    /**
+     * The file of a zstd dictionary, used to write and read zstd snapshots
+     */
+    public static final String ZOOKEEPER_SNAPSHOT_ZSTD_DICTIONARY = "zookeeper.snapshot.compression.zstd.dictionary";
+
+    private static final byte[] ZSTD_MAGIC = {(byte) 0x28, (byte) 0xb5, (byte) 0x2f, (byte) 0xfd};
+
+    private static final byte[] LZ4_MAGIC = {(byte) 0x04, (byte) 0x22, (byte) 0x4d, (byte) 0x18};
+
     private static StreamMode streamMode = StreamMode.fromString(
         System.getProperty(ZOOKEEPER_SHAPSHOT_STREAM_MODE,
                            StreamMode.DEFAULT_MODE.getName()));
 
+    private static Integer compressionLevel = Integer.getInteger(ZOOKEEPER_SNAPSHOT_COMPRESSION_LEVEL);
+
+    private static byte[] zstdDictionary;
+
+    private static boolean zstdDictionaryLoaded;
+
     static {
         LOG.info("{} = {}", ZOOKEEPER_SHAPSHOT_STREAM_MODE, streamMode);
     }
@@ -64,6 +95,9 @@ public class SnapStream {
     public enum StreamMode {
         GZIP("gz"),
         SNAPPY("snappy"),
+        ZSTD("zst"),
+        LZ4("lz4"),
+        CHUNKED("chunked"),
         CHECKED("");
 
         public static final StreamMode DEFAULT_MODE = CHECKED;
@@ -110,6 +144,13 @@ public static CheckedInputStream getInputStream(File file) throws IOException {
                 case SNAPPY:
                     is = new SnappyInputStream(fis);
                     break;
+                case ZSTD:
+                    is = newZstdInputStream(fis);
+                    break;
+                case LZ4:
+                    is = new LZ4FrameInputStream(fis);
+                    break;
+                case CHUNKED:
                 case CHECKED:
                 default:
                     is = new BufferedInputStream(fis);
@@ -146,6 +187,24 @@ public static CheckedOutputStream getOutputStream(File file, boolean fsync) thro
             // constructor cannot throw an IOException.
             os = new SnappyOutputStream(fos);
             break;
+        case ZSTD:
+            try {
+                os = newZstdOutputStream(fos);
+            } catch (IOException e) {
+                fos.close();
+                throw e;
+            }
+            break;
+        case LZ4:
+            try {
+                os = newLZ4OutputStream(fos);
+            } catch (IOException e) {
+                fos.close();
+                throw e;
+            }
+            break;
+        case CHUNKED:
+            // the nodes are compressed chunk by chunk, see ChunkedSnapshot
         case CHECKED:
         default:
             os = new BufferedOutputStream(fos);
@@ -153,6 +212,61 @@ public static CheckedOutputStream getOutputStream(File file, boolean fsync) thro
         return new CheckedOutputStream(os, new Adler32());
     }
 
+    private static InputStream newZstdInputStream(InputStream is) throws IOException {
+        ZstdInputStream zis = new ZstdInputStream(is);
+        byte[] dictionary = getZstdDictionary();
+        if (dictionary != null) {
+            zis.setDict(dictionary);
+        }
+        return new BufferedInputStream(zis);
+    }
+
+    private static OutputStream newZstdOutputStream(OutputStream os) throws IOException {
+        ZstdOutputStream zos = compressionLevel == null
+            ? new ZstdOutputStream(os)
+            : new ZstdOutputStream(os, compressionLevel);
+        byte[] dictionary = getZstdDictionary();
+        if (dictionary != null) {
+            zos.setDict(dictionary);
+        }
+        return new BufferedOutputStream(zos);
+    }
+
+    private static OutputStream newLZ4OutputStream(OutputStream os) throws IOException {
+        LZ4Factory factory = LZ4Factory.fastestInstance();
+        LZ4Compressor compressor = compressionLevel == null || compressionLevel <= 0
+            ? factory.fastCompressor()
+            : factory.highCompressor(compressionLevel);
+        return new LZ4FrameOutputStream(os, LZ4FrameOutputStream.BLOCKSIZE.SIZE_4MB, -1L, compressor,
+            XXHashFactory.fastestInstance().hash32(), LZ4FrameOutputStream.FLG.Bits.BLOCK_INDEPENDENCE);
+    }
+
+    /**
+     * Load the zstd dictionary on first use. A missing dictionary file is an
+     * error rather than a reason to go on without it, since the snapshots
+     * written with it could not be read.
+     */
+    private static synchronized byte[] getZstdDictionary() throws IOException {
+        if (!zstdDictionaryLoaded) {
+            String file = System.getProperty(ZOOKEEPER_SNAPSHOT_ZSTD_DICTIONARY);
+            if (file != null && !file.isEmpty()) {
+                zstdDictionary = Files.readAllBytes(Paths.get(file));
+                LOG.info("Loaded zstd dictionary {} of {} bytes", file, zstdDictionary.length);
+            }
+            zstdDictionaryLoaded = true;
+        }
+        return zstdDictionary;
+    }
+
+    public static synchronized void setZstdDictionary(byte[] dictionary) {
+        zstdDictionary = dictionary;
+        zstdDictionaryLoaded = true;
+    }
+
+    public static void setCompressionLevel(Integer level) {
+        compressionLevel = level;
+    }
+
     /**
      * Write specific seal to the OutputArchive and close the OutputStream.
      * Currently, only CheckedOutputStream will write it's checkSum to the
@@ -203,6 +317,13 @@ public static boolean isValidSnapshot(File file) throws IOException {
         case SNAPPY:
             isValid = isValidSnappyStream(file);
             break;
+        case ZSTD:
+            isValid = hasMagicHeader(file, ZSTD_MAGIC);
+            break;
+        case LZ4:
+            isValid = hasMagicHeader(file, LZ4_MAGIC);
+            break;
+        case CHUNKED:
         case CHECKED:
         default:
             isValid = isValidCheckedStream(file);
@@ -287,6 +408,29 @@ private static boolean isValidSnappyStream(File f) throws IOException {
         }
     }
 
+    /**
+     * Certify the zstd or lz4 stream integrity by checking the header
+     * for the magic number of its frame
+     *
+     * @param f file to verify
+     * @param magic the magic number the frame starts with
+     * @return true if it has the correct magic number
+     * @throws IOException
+     */
+    private static boolean hasMagicHeader(File f, byte[] magic) throws IOException {
+        byte[] header = new byte[magic.length];
+        try (FileInputStream fis = new FileInputStream(f)) {
+            if (magic.length != fis.read(header, 0, magic.length)) {
+                LOG.error("Read incorrect number of bytes from {}", f.getName());
+                return false;
+            }
+            return Arrays.equals(header, magic);
+        } catch (FileNotFoundException e) {
+            LOG.error("Unable to open file {}", f.getName(), e);
+            return false;
+        }
+    }
+
     /**
      * Certify the Checked stream integrity by checking the header
      * length and format
@@ -0,0 +1,563 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.persistence;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.apache.jute.Record;
+import org.apache.zookeeper.common.AtomicFileWritingIdiom;
+import org.apache.zookeeper.common.AtomicFileWritingIdiom.WriterStatement;
+import org.apache.zookeeper.server.Request;
+import org.apache.zookeeper.server.ServerStats;
+import org.apache.zookeeper.txn.TxnDigest;
+import org.apache.zookeeper.txn.TxnHeader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A TxnLog that stripes txns across FileTxnLogs in several directories,
+ * ideally on separate devices, and syncs them in parallel on commit.
+ * <p>
+ * The stripes are rolled together, and the log files of one roll all carry
+ * the name of the first txn appended after the roll, in every stripe
+ * directory. Within such a set of files the n-th txn is written to stripe
+ * <code>n % stripeCount</code>. Every file is a regular FileTxnLog file, and
+ * the total zxid order is recovered by reading the files of a set round
+ * robin. Since the stripes are synced independently, after a crash some of
+ * them may hold txns that follow a txn another stripe lost; reading stops at
+ * the first txn missing from its stripe, so only a prefix of the log that
+ * was fully written to every stripe is ever replayed.
+ * <p>
+ * That order only holds for the stripes the logs were written with, so each
+ * stripe directory records its position and the stripe count in a
+ * {@value #STRIPE_FILE} file, see {@link #checkStripes(List)}.
+ */
+public class StripedFileTxnLog implements TxnLog {
+
+    private static final Logger LOG = LoggerFactory.getLogger(StripedFileTxnLog.class);
+
+    /**
+     * the file recording the position of a stripe directory, as
+     * "index/count"; a directory without one holds an unstriped log
+     */
+    public static final String STRIPE_FILE = "txnLogStripe";
+
+    private final FileTxnLog[] stripes;
+
+    /**
+     * true for the stripes that have been appended to since the last commit
+     */
+    private final boolean[] dirty;
+
+    private ExecutorService syncExecutor;
+
+    /**
+     * the position, within the current set of log files, of the next txn
+     * appended; -1 if the stripes have been rolled
+     */
+    private long txnIndex = -1;
+
+    private volatile long syncElapsedMS = -1L;
+
+    /**
+     * constructor for StripedFileTxnLog.
+     * @param stripes the logs to stripe txns across, one per directory
+     */
+    public StripedFileTxnLog(List<FileTxnLog> stripes) {
+        if (stripes.isEmpty()) {
+            throw new IllegalArgumentException("At least one txn log stripe is required");
+        }
+        this.stripes = stripes.toArray(new FileTxnLog[0]);
+        this.dirty = new boolean[this.stripes.length];
+    }
+
+    /**
+     * create a StripedFileTxnLog over FileTxnLogs in the given directories
+     * @param logDirs the directories where the txnlogs are stored
+     * @return the striped txn log
+     */
+    public static StripedFileTxnLog open(List<File> logDirs) {
+        List<FileTxnLog> stripes = new ArrayList<>(logDirs.size());
+        for (File logDir : logDirs) {
+            stripes.add(new FileTxnLog(logDir));
+        }
+        return new StripedFileTxnLog(stripes);
+    }
+
+    /**
+     * Check that the logs in the given directories were written with these
+     * stripes, in this order, and record the stripes in the directories that
+     * do not hold logs yet. Reading logs written with other stripes would
+     * end each set of log files early and silently skip the rest of its txns.
+     *
+     * @param logDirs the stripe directories, or the only txn log directory if
+     *                the log is not striped
+     * @throws IOException if a directory holds logs written with other stripes
+     */
+    public static void checkStripes(List<File> logDirs) throws IOException {
+        int count = logDirs.size();
+        for (int i = 0; i < count; i++) {
+            File logDir = logDirs.get(i);
+            File stripeFile = new File(logDir, STRIPE_FILE);
+            String expected = i + "/" + count;
+            String recorded = stripeFile.exists() ? readStripe(stripeFile) : "0/1";
+            if (expected.equals(recorded)) {
+                continue;
+            }
+            File[] logFiles = logDir.listFiles((dir, name) -> Util.isLogFileName(name));
+            if (logFiles != null && logFiles.length > 0) {
+                throw new FileTxnSnapLog.LogDirContentCheckException(String.format(
+                    "Txn log directory %s holds logs written as stripe %s, but is configured as stripe %s."
+                    + " Start with the previous %s, or move its logs away once a snapshot covers them.",
+                    logDir, recorded, expected, FileTxnSnapLog.ZOOKEEPER_TXNLOG_STRIPE_DIRS));
+            }
+            if (count == 1) {
+                if (!stripeFile.delete()) {
+                    throw new IOException("Unable to delete " + stripeFile);
+                }
+            } else {
+                new AtomicFileWritingIdiom(stripeFile, new WriterStatement() {
+                    @Override
+                    public void write(Writer w) throws IOException {
+                        w.write(expected);
+                    }
+                });
+            }
+        }
+    }
+
+    private static String readStripe(File stripeFile) throws IOException {
+        try (BufferedReader br = new BufferedReader(new FileReader(stripeFile))) {
+            String line = br.readLine();
+            return line == null ? "" : line.trim();
+        }
+    }
+
+    /**
+     * @return the number of stripes
+     */
+    public int getStripeCount() {
+        return stripes.length;
+    }
+
+    @Override
+    public synchronized void setServerStats(ServerStats serverStats) {
+        for (FileTxnLog stripe : stripes) {
+            stripe.setServerStats(serverStats);
+        }
+    }
+
+    @Override
+    public synchronized void rollLog() throws IOException {
+        for (FileTxnLog stripe : stripes) {
+            stripe.rollLog();
+        }
+        txnIndex = -1;
+    }
+
+    @Override
+    public synchronized boolean append(Request request) throws IOException {
+        TxnHeader hdr = request.getHdr();
+        if (hdr == null) {
+            return false;
+        }
+        if (txnIndex == -1) {
+            // name the files of every stripe after the first txn of the set
+            for (FileTxnLog stripe : stripes) {
+                stripe.nextLogFileZxid = hdr.getZxid();
+            }
+            txnIndex = 0;
+        }
+        int stripeIndex = (int) (txnIndex % stripes.length);
+        stripes[stripeIndex].append(request);
+        dirty[stripeIndex] = true;
+        txnIndex++;
+        return true;
+    }
+
+    /**
+     * sync every stripe appended to since the last commit. One of them
+     * is synced on the calling thread, the others on the sync executor.
+     */
+    @Override
+    public synchronized void commit() throws IOException {
+        long startSyncNS = System.nanoTime();
+        List<Future<Void>> pending = new ArrayList<>();
+        FileTxnLog local = null;
+        for (int i = 0; i < stripes.length; i++) {
+            if (!dirty[i]) {
+                continue;
+            }
+            dirty[i] = false;
+            FileTxnLog stripe = stripes[i];
+            if (local == null) {
+                local = stripe;
+            } else {
+                pending.add(getSyncExecutor().submit(() -> {
+                    stripe.sync();
+                    return null;
+                }));
+            }
+        }
+        IOException failure = null;
+        try {
+            if (local != null) {
+                local.sync();
+            }
+        } catch (IOException e) {
+            failure = e;
+        }
+        for (Future<Void> future : pending) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof IOException
+                        ? (IOException) e.getCause()
+                        : new IOException(e.getCause());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                if (failure == null) {
+                    failure = new IOException("Interrupted while syncing txn log stripes", e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        syncElapsedMS = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startSyncNS);
+
+        // Roll all the stripes together if we exceed the size limit
+        long txnLogSizeLimit = FileTxnLog.getTxnLogSizeLimit();
+        if (txnLogSizeLimit > 0) {
+            long logSize = 0;
+            for (FileTxnLog stripe : stripes) {
+                logSize += stripe.getCurrentLogSize();
+            }
+            if (logSize > txnLogSizeLimit) {
+                LOG.debug("Log size limit reached: {}", logSize);
+                rollLog();
+            }
+        }
+    }
+
+    private ExecutorService getSyncExecutor() {
+        if (syncExecutor == null) {
+            syncExecutor = Executors.newFixedThreadPool(stripes.length - 1, runnable -> {
+                Thread t = new Thread(runnable, "TxnLogStripeSync");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return syncExecutor;
+    }
+
+    @Override
+    public TxnIterator read(long zxid) throws IOException {
+        return read(zxid, true);
+    }
+
+    @Override
+    public TxnIterator read(long zxid, boolean fastForward) throws IOException {
+        return new StripedTxnIterator(getLogDirs(), zxid, fastForward);
+    }
+
+    @Override
+    public long getLastLoggedZxid() throws IOException {
+        List<Long> sets = listLogSets(getLogDirs());
+        long zxid = sets.isEmpty() ? -1 : sets.get(sets.size() - 1);
+        try (TxnIterator itr = read(zxid)) {
+            while (itr.getHeader() != null) {
+                zxid = itr.getHeader().getZxid();
+                if (!itr.next()) {
+                    break;
+                }
+            }
+        }
+        return zxid;
+    }
+
+    /**
+     * truncate the striped logs so that the txn with the given zxid is the
+     * last one. Every stripe file of the set holding that txn is cut after
+     * its share of the kept txns, and all later sets are removed.
+     */
+    @Override
+    public synchronized boolean truncate(long zxid) throws IOException {
+        File[] logDirs = getLogDirs();
+        long setZxid;
+        long kept;
+        try (StripedTxnIterator itr = new StripedTxnIterator(logDirs, zxid, true)) {
+            if (itr.getHeader() == null) {
+                throw new IOException("No log files found to truncate! This could "
+                                      + "happen if you still have snapshots from an old setup or "
+                                      + "log files were deleted accidentally or dataLogDir was changed in zoo.cfg.");
+            }
+            setZxid = itr.getSetZxid();
+            kept = itr.getSetPosition() + 1;
+        }
+        for (int i = 0; i < logDirs.length; i++) {
+            File logFile = new File(logDirs[i], Util.makeLogName(setZxid));
+            if (!logFile.exists()) {
+                continue;
+            }
+            // the number of kept txns that went to this stripe
+            long stripeKept = kept / logDirs.length + (i < kept % logDirs.length ? 1 : 0);
+            if (stripeKept == 0) {
+                if (!logFile.delete()) {
+                    LOG.warn("Unable to truncate {}", logFile);
+                }
+                continue;
+            }
+            try (FileTxnLog.FileTxnIterator itr = new FileTxnLog.FileTxnIterator(logFile)) {
+                for (long j = 1; j < stripeKept; j++) {
+                    itr.next();
+                }
+                if (itr.inputStream != null) {
+                    itr.truncateAfterCurrent();
+                }
+            }
+        }
+        for (File logDir : logDirs) {
+            for (File f : Util.sortDataDir(logDir.listFiles(), FileTxnLog.LOG_FILE_PREFIX, true)) {
+                if (Util.getZxidFromName(f.getName(), FileTxnLog.LOG_FILE_PREFIX) > setZxid && !f.delete()) {
+                    LOG.warn("Unable to truncate {}", f);
+                }
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public long getDbId() throws IOException {
+        return stripes[0].getDbId();
+    }
+
+    @Override
+    public long getTxnLogSyncElapsedTime() {
+        return syncElapsedMS;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (syncExecutor != null) {
+            syncExecutor.shutdown();
+        }
+        for (FileTxnLog stripe : stripes) {
+            stripe.close();
+        }
+    }
+
+    @Override
+    public synchronized void setTotalLogSize(long size) {
+        stripes[0].setTotalLogSize(size);
+        for (int i = 1; i < stripes.length; i++) {
+            stripes[i].setTotalLogSize(0);
+        }
+    }
+
+    @Override
+    public synchronized long getTotalLogSize() {
+        long size = 0;
+        for (FileTxnLog stripe : stripes) {
+            size += stripe.getTotalLogSize();
+        }
+        return size;
+    }
+
+    private File[] getLogDirs() {
+        File[] logDirs = new File[stripes.length];
+        for (int i = 0; i < stripes.length; i++) {
+            logDirs[i] = stripes[i].logDir;
+        }
+        return logDirs;
+    }
+
+    /**
+     * the starting zxids of all the sets of log files in the given stripe
+     * directories, ascending
+     */
+    private static List<Long> listLogSets(File[] logDirs) {
+        TreeSet<Long> sets = new TreeSet<>();
+        for (File logDir : logDirs) {
+            File[] files = logDir.listFiles();
+            if (files == null) {
+                continue;
+            }
+            for (File f : files) {
+                if (Util.isLogFileName(f.getName())) {
+                    sets.add(Util.getZxidFromName(f.getName(), FileTxnLog.LOG_FILE_PREFIX));
+                }
+            }
+        }
+        return new ArrayList<>(sets);
+    }
+
+    /**
+     * this class implements the txnlog iterator interface for striped logs,
+     * merging the stripes of each set of log files back into zxid order
+     */
+    static class StripedTxnIterator implements TxnIterator {
+
+        private final File[] logDirs;
+        private final List<Long> sets;
+        private int setIndex = -1;
+        private FileTxnLog.FileTxnIterator[] current;
+        private boolean[] consumed;
+        private long setPosition;
+        private TxnHeader hdr;
+        private Record record;
+        private TxnDigest digest;
+
+        StripedTxnIterator(File[] logDirs, long zxid, boolean fastForward) throws IOException {
+            this.logDirs = logDirs;
+            // like FileTxnLog.getLogFiles, start at the last set that begins
+            // at or before the zxid
+            List<Long> all = listLogSets(logDirs);
+            int first = 0;
+            for (int i = 0; i < all.size(); i++) {
+                if (all.get(i) <= zxid) {
+                    first = i;
+                }
+            }
+            this.sets = all.subList(first, all.size());
+            next();
+            if (fastForward) {
+                while (hdr != null && hdr.getZxid() < zxid) {
+                    if (!next()) {
+                        break;
+                    }
+                }
+            }
+        }
+
+        long getSetZxid() {
+            return sets.get(setIndex);
+        }
+
+        long getSetPosition() {
+            return setPosition - 1;
+        }
+
+        private boolean openNextSet() throws IOException {
+            closeSet();
+            if (++setIndex >= sets.size()) {
+                return false;
+            }
+            current = new FileTxnLog.FileTxnIterator[logDirs.length];
+            consumed = new boolean[logDirs.length];
+            setPosition = 0;
+            for (int i = 0; i < logDirs.length; i++) {
+                File logFile = new File(logDirs[i], Util.makeLogName(sets.get(setIndex)));
+                if (logFile.exists()) {
+                    current[i] = new FileTxnLog.FileTxnIterator(logFile);
+                }
+            }
+            return true;
+        }
+
+        private void closeSet() throws IOException {
+            if (current != null) {
+                for (FileTxnLog.FileTxnIterator itr : current) {
+                    if (itr != null) {
+                        itr.close();
+                    }
+                }
+                current = null;
+            }
+        }
+
+        @Override
+        public boolean next() throws IOException {
+            while (true) {
+                if (current == null && !openNextSet()) {
+                    hdr = null;
+                    return false;
+                }
+                int stripe = (int) (setPosition % logDirs.length);
+                FileTxnLog.FileTxnIterator itr = current[stripe];
+                if (itr != null && consumed[stripe]) {
+                    if (itr.next()) {
+                        consumed[stripe] = false;
+                    } else {
+                        current[stripe] = null;
+                        itr.close();
+                        itr = null;
+                    }
+                }
+                if (itr == null || itr.getHeader() == null) {
+                    // the set ends at the first txn missing from its stripe
+                    closeSet();
+                    continue;
+                }
+                hdr = itr.getHeader();
+                record = itr.getTxn();
+                digest = itr.getDigest();
+                consumed[stripe] = true;
+                setPosition++;
+                return true;
+            }
+        }
+
+        @Override
+        public TxnHeader getHeader() {
+            return hdr;
+        }
+
+        @Override
+        public Record getTxn() {
+            return record;
+        }
+
+        @Override
+        public TxnDigest getDigest() {
+            return digest;
+        }
+
+        @Override
+        public long getStorageSize() {
+            long sum = 0;
+            for (long set : sets) {
+                for (File logDir : logDirs) {
+                    sum += new File(logDir, Util.makeLogName(set)).length();
+                }
+            }
+            return sum;
+        }
+
+        @Override
+        public void close() throws IOException {
+            closeSet();
+        }
+
+    }
+
+}
@@ -63,6 +63,22 @@ public interface TxnLog extends Closeable {
      */
     TxnIterator read(long zxid) throws IOException;
 
+    /**
+     * Start reading the transaction logs
+     * from a given zxid
+     * @param zxid
+     * @param fastForward true if the iterator should be fast forwarded to
+     *        point to the txn of a given zxid, else the iterator will point to
+     *        the starting txn of a txnlog that may contain txn of a given zxid.
+     *        The default implementation always fast forwards.
+     * @return returns an iterator to read the
+     * next transaction in the logs.
+     * @throws IOException
+     */
+    default TxnIterator read(long zxid, boolean fastForward) throws IOException {
+        return read(zxid);
+    }
+
     /**
      * the last zxid of the logged transactions.
      * @return the last zxid of the logged transactions.
@@ -0,0 +1,288 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.persistence;
+
+import com.github.luben.zstd.Zstd;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.Adler32;
+import java.util.zip.Checksum;
+import net.jpountz.lz4.LZ4Factory;
+import org.apache.jute.BinaryInputArchive;
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.jute.InputArchive;
+import org.apache.jute.OutputArchive;
+
+/**
+ * A block of txns in a version {@value FileTxnLog#BLOCK_VERSION} txn log,
+ * see {@link FileTxnLog} for the format. A block holds the txns of one
+ * group commit, and is checksummed, and optionally compressed, as a whole.
+ */
+public class TxnLogBlock {
+
+    /**
+     * The compression of the txn log blocks written: "none", "lz4" or
+     * "zstd". Only used with the block format, see
+     * {@link FileTxnSnapLog#ZOOKEEPER_TXNLOG_BLOCK_FORMAT}.
+     */
+    public static final String ZOOKEEPER_TXNLOG_COMPRESSION = "zookeeper.txnLogCompression";
+
+    /**
+     * blocks are on the write path, so zstd favors speed over ratio
+     */
+    private static final int ZSTD_LEVEL = 1;
+
+    /**
+     * The most bytes a block holds, compressed or not, which is enough for
+     * several txns of the largest size a server accepts. Lengths beyond it
+     * are read as a corrupt block, instead of being allocated.
+     */
+    public static final int MAX_LENGTH =
+        (int) Math.min(Integer.MAX_VALUE - 8, Math.max(64L << 20, 4L * BinaryInputArchive.maxBuffer));
+
+    /**
+     * the bytes a txn takes in a block besides its content: its length
+     * and the end of record marker
+     */
+    static final int TXN_OVERHEAD = 4 + 1;
+
+    public enum Codec {
+        NONE("none"),
+        LZ4("lz4"),
+        ZSTD("zstd");
+
+        private final String name;
+
+        Codec(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public static Codec fromString(String name) {
+            for (Codec c : values()) {
+                if (c.getName().equalsIgnoreCase(name)) {
+                    return c;
+                }
+            }
+            throw new IllegalArgumentException("Unknown txn log compression " + name);
+        }
+
+        static Codec fromId(int id) throws IOException {
+            if (id < 0 || id >= values().length) {
+                throw new IOException("Unknown txn log block codec " + id);
+            }
+            return values()[id];
+        }
+    }
+
+    private final Codec codec;
+
+    private final List<byte[]> txns;
+
+    private final long checksum;
+
+    private final boolean checksumValid;
+
+    private TxnLogBlock(Codec codec, List<byte[]> txns, long checksum, boolean checksumValid) {
+        this.codec = codec;
+        this.txns = txns;
+        this.checksum = checksum;
+        this.checksumValid = checksumValid;
+    }
+
+    /**
+     * @return the codec configured with {@value #ZOOKEEPER_TXNLOG_COMPRESSION}
+     */
+    public static Codec getConfiguredCodec() {
+        return Codec.fromString(System.getProperty(ZOOKEEPER_TXNLOG_COMPRESSION, Codec.NONE.getName()));
+    }
+
+    /**
+     * @return the codec the block was written with
+     */
+    public Codec getCodec() {
+        return codec;
+    }
+
+    /**
+     * @return the serialized txns of the block, in the order they were logged
+     */
+    public List<byte[]> getTxns() {
+        return txns;
+    }
+
+    /**
+     * @return false if the checksum of the block does not match its content,
+     * only possible for blocks read with {@link #readUnchecked(DataInput)}
+     */
+    public boolean isChecksumValid() {
+        return checksumValid;
+    }
+
+    /**
+     * write the block again
+     * @param oa the archive to write the block to
+     * @param fixChecksum true to write the checksum of the content, false
+     *                    to keep the checksum the block was read with
+     * @throws IOException
+     */
+    public void write(OutputArchive oa, boolean fixChecksum) throws IOException {
+        write(oa, codec, txns, fixChecksum ? null : checksum);
+    }
+
+    /**
+     * write a block of txns. The block is stored uncompressed if compressing
+     * it does not make it smaller.
+     * @param oa the archive to write the block to
+     * @param codec the codec to compress the block with
+     * @param txns the serialized txns of the block
+     * @throws IOException
+     */
+    public static void write(OutputArchive oa, Codec codec, List<byte[]> txns) throws IOException {
+        write(oa, codec, txns, null);
+    }
+
+    private static void write(OutputArchive oa, Codec codec, List<byte[]> txns, Long checksum) throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        OutputArchive contentArchive = BinaryOutputArchive.getArchive(content);
+        for (byte[] txn : txns) {
+            Util.writeTxnBytes(contentArchive, txn);
+        }
+        byte[] raw = content.toByteArray();
+        if (raw.length > MAX_LENGTH) {
+            throw new IOException("Txn log block of " + raw.length + " bytes is larger than " + MAX_LENGTH);
+        }
+        Checksum crc = new Adler32();
+        crc.update(raw, 0, raw.length);
+
+        byte[] stored = compress(codec, raw);
+        if (stored.length >= raw.length) {
+            codec = Codec.NONE;
+            stored = raw;
+        }
+        oa.writeLong(checksum != null ? checksum : crc.getValue(), "blockCRC");
+        oa.writeInt(txns.size(), "count");
+        oa.writeInt(codec.ordinal(), "codec");
+        oa.writeInt(raw.length, "rawLength");
+        oa.writeBuffer(stored, "block");
+        oa.writeByte((byte) 0x42, "EOR"); // 'B'
+    }
+
+    /**
+     * read the next block
+     * @param in the input to read the block from
+     * @return the block, or null at the end of the log, which is zero padded
+     * @throws EOFException if the block was only partially written
+     * @throws IOException if the block is corrupt
+     */
+    public static TxnLogBlock read(DataInput in) throws IOException {
+        TxnLogBlock block = readUnchecked(in);
+        if (block != null && !block.isChecksumValid()) {
+            throw new IOException(FileTxnLog.FileTxnIterator.CRC_ERROR);
+        }
+        return block;
+    }
+
+    /**
+     * read the next block, even if its checksum does not match its content
+     * @param in the input to read the block from
+     * @return the block, or null at the end of the log, which is zero padded
+     * @throws EOFException if the block was only partially written
+     * @throws IOException if the block cannot be decompressed or parsed
+     */
+    public static TxnLogBlock readUnchecked(DataInput in) throws IOException {
+        long crcValue = in.readLong();
+        int count = in.readInt();
+        if (count == 0) {
+            // Since we preallocate, we define EOF to be an
+            // empty block
+            return null;
+        }
+        Codec codec = Codec.fromId(in.readInt());
+        int rawLength = in.readInt();
+        int length = in.readInt();
+        if (count < 0 || rawLength < 0 || length < 0 || rawLength > MAX_LENGTH || length > MAX_LENGTH
+            || count > rawLength / TXN_OVERHEAD) {
+            throw new IOException("Invalid txn log block header");
+        }
+        byte[] stored = new byte[length];
+        in.readFully(stored);
+        if (in.readByte() != 'B') {
+            throw new EOFException("Last block was partial.");
+        }
+
+        byte[] raw = decompress(codec, stored, rawLength);
+        Checksum crc = new Adler32();
+        crc.update(raw, 0, raw.length);
+        InputArchive ia = BinaryInputArchive.getArchive(new ByteArrayInputStream(raw));
+        List<byte[]> txns = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] txn = Util.readTxnBytes(ia);
+            if (txn == null || txn.length == 0) {
+                throw new IOException("Txn log block holds less than " + count + " txns");
+            }
+            txns.add(txn);
+        }
+        return new TxnLogBlock(codec, Collections.unmodifiableList(txns), crcValue, crcValue == crc.getValue());
+    }
+
+    private static byte[] compress(Codec codec, byte[] raw) {
+        switch (codec) {
+        case LZ4:
+            return LZ4Factory.fastestInstance().fastCompressor().compress(raw);
+        case ZSTD:
+            return Zstd.compress(raw, ZSTD_LEVEL);
+        case NONE:
+        default:
+            return raw;
+        }
+    }
+
+    private static byte[] decompress(Codec codec, byte[] stored, int rawLength) throws IOException {
+        try {
+            switch (codec) {
+            case LZ4:
+                byte[] raw = new byte[rawLength];
+                int length = LZ4Factory.fastestInstance().safeDecompressor()
+                    .decompress(stored, 0, stored.length, raw, 0);
+                if (length != rawLength) {
+                    throw new IOException("Txn log block decompressed to " + length + " bytes instead of " + rawLength);
+                }
+                return raw;
+            case ZSTD:
+                return Zstd.decompress(stored, rawLength);
+            case NONE:
+            default:
+                return stored;
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("Unable to decompress txn log block", e);
+        }
+    }
+
+}
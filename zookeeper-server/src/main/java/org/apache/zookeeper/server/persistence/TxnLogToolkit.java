@@ -22,6 +22,7 @@
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.Closeable;
+import java.io.DataInputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
@@ -195,6 +196,11 @@ public void dump(Scanner scanner) throws Exception {
             filePadding.setCurrentSize(recoveryFos.getChannel().position());
         }
 
+        if (fhdr.getVersion() >= FileTxnLog.BLOCK_VERSION) {
+            dumpBlocks(scanner);
+            return;
+        }
+
         int count = 0;
         while (true) {
             long crcValue;
@@ -247,6 +253,55 @@ public void dump(Scanner scanner) throws Exception {
         }
     }
 
+    private void dumpBlocks(Scanner scanner) throws Exception {
+        DataInputStream in = new DataInputStream(txnFis);
+        int count = 0;
+        while (true) {
+            TxnLogBlock block;
+            try {
+                block = TxnLogBlock.readUnchecked(in);
+            } catch (EOFException e) {
+                block = null;
+            }
+            if (block == null) {
+                System.out.println("EOF reached after " + count + " txns.");
+                return;
+            }
+            boolean fixChecksum = false;
+            if (!block.isChecksumValid()) {
+                if (recoveryMode) {
+                    if (!force) {
+                        printBlock(block, "CRC ERROR");
+                        if (askForFix(scanner)) {
+                            fixChecksum = true;
+                            ++crcFixed;
+                        }
+                    } else {
+                        fixChecksum = true;
+                        printBlock(block, "CRC FIXED");
+                        ++crcFixed;
+                    }
+                } else {
+                    printBlock(block, "CRC ERROR");
+                }
+            }
+            if (!recoveryMode || verbose) {
+                printBlock(block, "");
+            }
+            if (recoveryMode) {
+                filePadding.padFile(recoveryFos.getChannel());
+                block.write(recoveryOa, fixChecksum);
+            }
+            count += block.getTxns().size();
+        }
+    }
+
+    private void printBlock(TxnLogBlock block, String prefix) throws IOException {
+        for (byte[] bytes : block.getTxns()) {
+            printTxn(bytes, prefix);
+        }
+    }
+
     public void chop() {
         File targetFile = new File(txnLogFile.getParentFile(), txnLogFile.getName() + ".chopped" + zxid);
         try (InputStream is = new BufferedInputStream(new FileInputStream(txnLogFile));
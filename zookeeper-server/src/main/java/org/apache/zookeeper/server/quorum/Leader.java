@@ -345,6 +345,18 @@ Optional<ServerSocket> createServerSocket(InetSocketAddress address, boolean por
      */
     static final int SNAP = 15;
 
+    /**
+     * This is for follower to download the snapshot file of the leader, in
+     * chunks, followed by the txns committed since the snapshot
+     */
+    static final int SNAPFILE = 20;
+
+    /**
+     * The protocol version of the learners that can be sent a SNAPFILE,
+     * earlier learners are sent a SNAP instead
+     */
+    static final int SNAPFILE_PROTOCOL_VERSION = 0x10001;
+
     /**
      * This tells the leader that the connecting peer is actually an observer
      */
@@ -1621,6 +1633,8 @@ public static String getPacketType(int packetType) {
             return "TRUNC";
         case SNAP:
             return "SNAP";
+        case SNAPFILE:
+            return "SNAPFILE";
         case OBSERVERINFO:
             return "OBSERVERINFO";
         case NEWLEADER:
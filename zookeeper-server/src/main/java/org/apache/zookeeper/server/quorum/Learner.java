@@ -25,7 +25,10 @@
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.nio.ByteBuffer;
@@ -41,6 +44,7 @@
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CheckedInputStream;
 import javax.net.ssl.SSLSocket;
 import org.apache.jute.BinaryInputArchive;
 import org.apache.jute.BinaryOutputArchive;
@@ -56,6 +60,9 @@
 import org.apache.zookeeper.server.ServerMetrics;
 import org.apache.zookeeper.server.TxnLogEntry;
 import org.apache.zookeeper.server.ZooTrace;
+import org.apache.zookeeper.server.persistence.FileSnap;
+import org.apache.zookeeper.server.persistence.SnapStream;
+import org.apache.zookeeper.server.persistence.Util;
 import org.apache.zookeeper.server.quorum.QuorumPeer.QuorumServer;
 import org.apache.zookeeper.server.quorum.flexible.QuorumVerifier;
 import org.apache.zookeeper.server.util.ConfigUtils;
@@ -119,6 +126,12 @@ public Socket getSocket() {
 
     private static final boolean nodelay = System.getProperty("follower.nodelay", "true").equals("true");
 
+    /**
+     * the prefix of the file a snapshot file sent by the leader is received
+     * into, in the snapshot directory
+     */
+    static final String SYNC_SNAPSHOT_FILE_PREFIX = "sync-";
+
     public static final String LEARNER_ASYNC_SENDING = "zookeeper.learner.asyncSending";
     private static boolean asyncSending =
         Boolean.parseBoolean(ConfigUtils.getPropertyBackwardCompatibleWay(LEARNER_ASYNC_SENDING));
@@ -491,7 +504,7 @@ protected long registerWithLeader(int pktType) throws IOException {
         /*
          * Add sid to payload
          */
-        LearnerInfo li = new LearnerInfo(self.getMyId(), 0x10000, self.getQuorumVerifier().getVersion());
+        LearnerInfo li = new LearnerInfo(self.getMyId(), Leader.SNAPFILE_PROTOCOL_VERSION, self.getQuorumVerifier().getVersion());
         ByteArrayOutputStream bsid = new ByteArrayOutputStream();
         BinaryOutputArchive boa = BinaryOutputArchive.getArchive(bsid);
         boa.writeRecord(li, "LearnerInfo");
@@ -535,6 +548,63 @@ protected long registerWithLeader(int pktType) throws IOException {
         }
     }
 
+    /**
+     * Remove the snapshot files left behind in the snapshot directory by a
+     * learner that stopped while receiving them, see
+     * {@link #deserializeSnapshotFile(QuorumPacket)}.
+     *
+     * @param snapDir the snapshot directory
+     */
+    static void deleteSyncSnapshotFiles(File snapDir) {
+        File[] files = snapDir.listFiles((dir, name) -> name.startsWith(SYNC_SNAPSHOT_FILE_PREFIX));
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.delete()) {
+                LOG.info("Deleted the partially received snapshot file {}", file);
+            } else {
+                LOG.warn("Unable to delete {}", file);
+            }
+        }
+    }
+
+    /**
+     * Receive the snapshot file the leader sends after a {@link Leader#SNAPFILE}
+     * packet into the snapshot directory, and load the database from it. The
+     * file is removed once loaded, it is not a snapshot of this server until
+     * the txns after it are applied.
+     *
+     * @param qp the SNAPFILE packet, holding the name of the snapshot file
+     * @throws IOException
+     */
+    void deserializeSnapshotFile(QuorumPacket qp) throws IOException {
+        String name = new String(qp.getData(), UTF_8);
+        if (!name.equals(new File(name).getName())
+            || Util.getZxidFromName(name, FileSnap.SNAPSHOT_FILE_PREFIX) != qp.getZxid()) {
+            throw new IOException("Invalid snapshot file name " + name);
+        }
+        File file = new File(zk.getTxnLogFactory().getSnapDir(), SYNC_SNAPSHOT_FILE_PREFIX + name);
+        try {
+            long size = 0;
+            try (OutputStream os = new FileOutputStream(file)) {
+                byte[] chunk;
+                while ((chunk = leaderIs.readBuffer("chunk")) != null) {
+                    os.write(chunk);
+                    size += chunk.length;
+                }
+            }
+            LOG.info("Received snapshot file {} of {} bytes", name, size);
+            try (CheckedInputStream is = SnapStream.getInputStream(file)) {
+                zk.getZKDatabase().deserializeSnapshot(BinaryInputArchive.getArchive(is), is);
+            }
+        } finally {
+            if (file.exists() && !file.delete()) {
+                LOG.warn("Unable to delete {}", file);
+            }
+        }
+    }
+
     /**
      * Finally, synchronize our history with the Leader (if Follower)
      * or the LearnerMaster (if Observer).
@@ -567,12 +637,16 @@ protected void syncWithLeader(long newLeaderZxid) throws Exception {
                 } else {
                     snapshotNeeded = false;
                 }
-            } else if (qp.getType() == Leader.SNAP) {
+            } else if (qp.getType() == Leader.SNAP || qp.getType() == Leader.SNAPFILE) {
                 self.setSyncMode(QuorumPeer.SyncMode.SNAP);
                 LOG.info("Getting a snapshot from leader 0x{}", Long.toHexString(qp.getZxid()));
-                // The leader is going to dump the database
-                // db is clear as part of deserializeSnapshot()
-                zk.getZKDatabase().deserializeSnapshot(leaderIs);
+                // The leader is going to dump the database, or send its snapshot
+                // file, db is clear as part of deserializeSnapshot()
+                if (qp.getType() == Leader.SNAPFILE) {
+                    deserializeSnapshotFile(qp);
+                } else {
+                    zk.getZKDatabase().deserializeSnapshot(leaderIs);
+                }
                 // ZOOKEEPER-2819: overwrite config node content extracted
                 // from leader snapshot with local config, to avoid potential
                 // inconsistency of config node content during rolling restart.
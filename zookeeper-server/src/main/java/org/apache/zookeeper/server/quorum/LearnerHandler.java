@@ -18,13 +18,20 @@
 
 package org.apache.zookeeper.server.quorum;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
 import java.net.Socket;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
@@ -49,6 +56,8 @@
 import org.apache.zookeeper.server.ZKDatabase;
 import org.apache.zookeeper.server.ZooKeeperThread;
 import org.apache.zookeeper.server.ZooTrace;
+import org.apache.zookeeper.server.persistence.FileSnap;
+import org.apache.zookeeper.server.persistence.Util;
 import org.apache.zookeeper.server.quorum.Leader.Proposal;
 import org.apache.zookeeper.server.quorum.QuorumPeer.LearnerType;
 import org.apache.zookeeper.server.quorum.auth.QuorumAuthServer;
@@ -258,6 +267,28 @@ protected void setBufferedOutput(BufferedOutputStream bufferedOutput) {
     public static final String FORCE_SNAP_SYNC = "zookeeper.forceSnapshotSync";
     private boolean forceSnapSync = false;
 
+    /**
+     * Send learners that need a snapshot the most recent snapshot file of the
+     * learnerMaster followed by the txns committed since, instead of a
+     * snapshot of the live data tree. Learners must understand
+     * {@link Leader#SNAPFILE}, so it is only to be enabled once all servers
+     * are upgraded.
+     */
+    public static final String SNAPSHOT_FILE_SYNC = "zookeeper.snapshotFileSync";
+    private boolean snapshotFileSync = false;
+
+    /**
+     * The snapshot file is sent in chunks, each one fitting in a jute buffer
+     */
+    static final int SNAPSHOT_FILE_CHUNK_SIZE = 512 * 1024;
+
+    /**
+     * The snapshot file to send to the learner, opened while the txns
+     * committed after it are queued
+     */
+    private File syncSnapshot;
+    private FileChannel syncSnapshotChannel;
+
     /**
      * Keep track of whether we need to queue TRUNC or DIFF into packet queue
      * that we are going to blast it to the learner
@@ -284,6 +315,10 @@ protected void setBufferedOutput(BufferedOutputStream bufferedOutput) {
             forceSnapSync = true;
             LOG.info("Forcing snapshot sync is enabled");
         }
+        if (Boolean.getBoolean(SNAPSHOT_FILE_SYNC)) {
+            snapshotFileSync = true;
+            LOG.info("Snapshot file sync is enabled");
+        }
 
         try {
             QuorumAuthServer authServer = learnerMaster.getQuorumAuthServer();
@@ -430,6 +465,9 @@ public static String packetToString(QuorumPacket p) {
         case Leader.SNAP:
             type = "SNAP";
             break;
+        case Leader.SNAPFILE:
+            type = "SNAPFILE";
+            break;
         case Leader.ACKEPOCH:
             type = "ACKEPOCH";
             break;
@@ -565,24 +603,28 @@ public void run() {
                 syncThrottler.beginSync(exemptFromThrottle);
                 ServerMetrics.getMetrics().INFLIGHT_SNAP_COUNT.add(syncThrottler.getSyncInProgress());
                 try {
-                    long zxidToSend = learnerMaster.getZKDatabase().getDataTreeLastProcessedZxid();
-                    oa.writeRecord(new QuorumPacket(Leader.SNAP, zxidToSend, null, null), "packet");
-                    messageTracker.trackSent(Leader.SNAP);
-                    bufferedOutput.flush();
+                    if (syncSnapshotChannel != null) {
+                        sendSnapshotFile(peerLastZxid);
+                    } else {
+                        long zxidToSend = learnerMaster.getZKDatabase().getDataTreeLastProcessedZxid();
+                        oa.writeRecord(new QuorumPacket(Leader.SNAP, zxidToSend, null, null), "packet");
+                        messageTracker.trackSent(Leader.SNAP);
+                        bufferedOutput.flush();
 
-                    LOG.info(
-                        "Sending snapshot last zxid of peer is 0x{}, zxid of leader is 0x{}, "
-                            + "send zxid of db as 0x{}, {} concurrent snapshot sync, "
-                            + "snapshot sync was {} from throttle",
-                        Long.toHexString(peerLastZxid),
-                        Long.toHexString(leaderLastZxid),
-                        Long.toHexString(zxidToSend),
-                        syncThrottler.getSyncInProgress(),
-                        exemptFromThrottle ? "exempt" : "not exempt");
-                    // Dump data to peer
-                    learnerMaster.getZKDatabase().serializeSnapshot(oa);
-                    oa.writeString("BenWasHere", "signature");
-                    bufferedOutput.flush();
+                        LOG.info(
+                            "Sending snapshot last zxid of peer is 0x{}, zxid of leader is 0x{}, "
+                                + "send zxid of db as 0x{}, {} concurrent snapshot sync, "
+                                + "snapshot sync was {} from throttle",
+                            Long.toHexString(peerLastZxid),
+                            Long.toHexString(leaderLastZxid),
+                            Long.toHexString(zxidToSend),
+                            syncThrottler.getSyncInProgress(),
+                            exemptFromThrottle ? "exempt" : "not exempt");
+                        // Dump data to peer
+                        learnerMaster.getZKDatabase().serializeSnapshot(oa);
+                        oa.writeString("BenWasHere", "signature");
+                        bufferedOutput.flush();
+                    }
                 } finally {
                     ServerMetrics.getMetrics().SNAP_COUNT.add(1);
                 }
@@ -732,6 +774,7 @@ public void run() {
                 syncThrottler.endSync();
                 syncThrottler = null;
             }
+            closeSyncSnapshot();
             String remoteAddr = getRemoteAddress();
             LOG.warn("******* GOODBYE {} ********", remoteAddr);
             messageTracker.dumpToLog(remoteAddr);
@@ -917,7 +960,10 @@ boolean syncFollower(long peerLastZxid, LearnerMaster learnerMaster) {
                     Long.toHexString(peerLastZxid),
                     txnLogSyncEnabled);
             }
-            if (needSnap) {
+            if (needSnap && snapshotFileSync && getVersion() >= Leader.SNAPFILE_PROTOCOL_VERSION) {
+                currentZxid = queueSnapshotFileSync(db, minCommittedLog, txnLogSyncEnabled);
+            }
+            if (needSnap && syncSnapshotChannel == null) {
                 currentZxid = db.getDataTreeLastProcessedZxid();
             }
 
@@ -1041,6 +1087,148 @@ protected long queueCommittedProposals(Iterator<Proposal> itr, long peerLastZxid
         return queuedZxid;
     }
 
+    /**
+     * Open the last snapshot file the leader completed to send to the learner and queue the
+     * proposals committed after it, see {@link #SNAPSHOT_FILE_SYNC}
+     *
+     * @param db the database of the learnerMaster
+     * @param minCommittedLog the zxid of the oldest proposal in the committedLog
+     * @param txnLogSyncEnabled true if the proposals may be read from the txnlog
+     * @return last zxid of the queued proposal, the snapshot file is not sent
+     *         if the proposals after it are not all available
+     */
+    private long queueSnapshotFileSync(ZKDatabase db, long minCommittedLog, boolean txnLogSyncEnabled) {
+        File snapshot;
+        try {
+            snapshot = db.getLastSealedSnapshot();
+            if (snapshot == null) {
+                return -1;
+            }
+            syncSnapshotChannel = FileChannel.open(snapshot.toPath(), StandardOpenOption.READ);
+            syncSnapshot = snapshot;
+        } catch (IOException e) {
+            LOG.warn("Unable to open the snapshot file for peer sid: {}", getSid(), e);
+            return -1;
+        }
+
+        long snapZxid = Util.getZxidFromName(snapshot.getName(), FileSnap.SNAPSHOT_FILE_PREFIX);
+        long queuedZxid = -1;
+        if (snapZxid >= minCommittedLog) {
+            queuedZxid = queueProposalsAfter(db.getCommittedLog().iterator(), snapZxid, null);
+        } else if (txnLogSyncEnabled) {
+            Iterator<Proposal> txnLogItr = db.getProposalsFromTxnLog(snapZxid, db.calculateTxnLogSizeLimit());
+            queuedZxid = queueProposalsAfter(txnLogItr, snapZxid, minCommittedLog);
+            if (queuedZxid >= minCommittedLog) {
+                queuedZxid = queueProposalsAfter(db.getCommittedLog().iterator(), queuedZxid, null);
+            } else {
+                queuedZxid = -1;
+            }
+            if (txnLogItr instanceof TxnLogProposalIterator) {
+                ((TxnLogProposalIterator) txnLogItr).close();
+            }
+        }
+
+        if (queuedZxid < 0) {
+            LOG.info("Txns after snapshot file {} are not available for peer sid: {}", snapshot, getSid());
+            queuedPackets.clear();
+            closeSyncSnapshot();
+        } else {
+            LOG.info("Using snapshot file {} and txns up to 0x{} for peer sid: {}",
+                snapshot, Long.toHexString(queuedZxid), getSid());
+        }
+        return queuedZxid;
+    }
+
+    /**
+     * Queue the committed proposals after the given zxid, which the learner
+     * will have been synced to
+     *
+     * @param itr iterator point to the proposals
+     * @param zxid zxid of the last txn the learner has
+     * @param maxZxid max zxid of the proposal to queue, null if no limit
+     * @return last zxid of the queued proposal, or -1 if the proposals do not
+     *         start right after the given zxid
+     */
+    private long queueProposalsAfter(Iterator<Proposal> itr, long zxid, Long maxZxid) {
+        // there is no txn with a new epoch zxid
+        boolean found = (zxid & 0xffffffffL) == 0;
+        long queuedZxid = zxid;
+        while (itr.hasNext()) {
+            Proposal propose = itr.next();
+            long packetZxid = propose.packet.getZxid();
+            if ((maxZxid != null) && (packetZxid > maxZxid)) {
+                break;
+            }
+            if (packetZxid <= zxid) {
+                found |= packetZxid == zxid;
+                continue;
+            }
+            if (!found) {
+                return -1;
+            }
+            queuePacket(propose.packet);
+            queueOpPacket(Leader.COMMIT, packetZxid);
+            queuedZxid = packetZxid;
+        }
+        return queuedZxid;
+    }
+
+    /**
+     * Send the snapshot file opened by {@link #queueSnapshotFileSync}. It is
+     * streamed in chunks framed like jute buffers, and terminated by a null
+     * one. Quorum sockets have no channel, so the chunks are transferred from
+     * the file through a channel over the output stream of the socket.
+     *
+     * @param peerLastZxid last zxid seen by the learner
+     * @throws IOException
+     */
+    private void sendSnapshotFile(long peerLastZxid) throws IOException {
+        String name = syncSnapshot.getName();
+        long zxidToSend = Util.getZxidFromName(name, FileSnap.SNAPSHOT_FILE_PREFIX);
+        long size = syncSnapshotChannel.size();
+        oa.writeRecord(new QuorumPacket(Leader.SNAPFILE, zxidToSend, name.getBytes(UTF_8), null), "packet");
+        messageTracker.trackSent(Leader.SNAPFILE);
+        LOG.info(
+            "Sending snapshot file {} of {} bytes, last zxid of peer is 0x{}, zxid of leader is 0x{}",
+            syncSnapshot,
+            size,
+            Long.toHexString(peerLastZxid),
+            Long.toHexString(leaderLastZxid));
+
+        WritableByteChannel out = Channels.newChannel(sock.getOutputStream());
+        long position = 0;
+        while (position < size) {
+            int length = (int) Math.min(SNAPSHOT_FILE_CHUNK_SIZE, size - position);
+            oa.writeInt(length, "len");
+            bufferedOutput.flush();
+            long end = position + length;
+            while (position < end) {
+                long transferred = syncSnapshotChannel.transferTo(position, end - position, out);
+                if (transferred <= 0) {
+                    throw new EOFException("Snapshot file " + syncSnapshot + " was truncated");
+                }
+                position += transferred;
+            }
+        }
+        oa.writeBuffer(null, "chunk");
+        oa.writeString("BenWasHere", "signature");
+        bufferedOutput.flush();
+        closeSyncSnapshot();
+        ServerMetrics.getMetrics().SNAP_FILE_COUNT.add(1);
+    }
+
+    private void closeSyncSnapshot() {
+        if (syncSnapshotChannel != null) {
+            try {
+                syncSnapshotChannel.close();
+            } catch (IOException e) {
+                LOG.warn("Error closing snapshot file {}", syncSnapshot, e);
+            }
+            syncSnapshotChannel = null;
+            syncSnapshot = null;
+        }
+    }
+
     public void shutdown() {
         // Send the packet of death
         try {
@@ -1146,6 +1146,7 @@ public synchronized void start() {
 
     private void loadDataBase() {
         try {
+            Learner.deleteSyncSnapshotFiles(getTxnFactory().getSnapDir());
             zkDb.loadDataBase();
 
             // load the epochs
@@ -18,6 +18,8 @@
 
 package org.apache.zookeeper.server.util;
 
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
 /**
  * This incremental hash is used to keep track of the hash of
  * the data tree to that we can quickly validate that things
@@ -28,7 +30,11 @@
  */
 public class AdHash {
 
-    /* we use 64 bits so that we can be fast an efficient */
+    private static final AtomicLongFieldUpdater<AdHash> HASH_UPDATER =
+        AtomicLongFieldUpdater.newUpdater(AdHash.class, "hash");
+
+    /* we use 64 bits so that we can be fast an efficient, updated
+     * atomically since snapshots are loaded by several threads */
     private volatile long hash;
 
     /**
@@ -38,7 +44,7 @@ public class AdHash {
      * @return the AdHash itself for chained operations
      */
     public AdHash addDigest(long digest) {
-        hash += digest;
+        HASH_UPDATER.addAndGet(this, digest);
         return this;
     }
 
@@ -49,7 +55,7 @@ public AdHash addDigest(long digest) {
      * @return the AdHash itself for chained operations
      */
     public AdHash removeDigest(long digest) {
-        hash -= digest;
+        HASH_UPDATER.addAndGet(this, -digest);
         return this;
     }
 
@@ -20,12 +20,16 @@
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
 import java.io.EOFException;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.zip.Adler32;
 import java.util.zip.Checksum;
 import org.apache.jute.BinaryInputArchive;
@@ -36,6 +40,7 @@
 import org.apache.zookeeper.server.TxnLogEntry;
 import org.apache.zookeeper.server.persistence.FileHeader;
 import org.apache.zookeeper.server.persistence.FileTxnLog;
+import org.apache.zookeeper.server.persistence.TxnLogBlock;
 import org.apache.zookeeper.txn.TxnHeader;
 import org.apache.zookeeper.util.ServiceUtils;
 
@@ -84,6 +89,9 @@ public static boolean chop(InputStream is, OutputStream os, long zxid) throws IO
                            + fhdr.getVersion());
 
         fhdr.serialize(choppedStream, "fileheader");
+        if (fhdr.getVersion() >= FileTxnLog.BLOCK_VERSION) {
+            return chopBlocks(new DataInputStream(is), choppedStream, zxid);
+        }
         int count = 0;
         boolean hasZxid = false;
         long previousZxid = -1;
@@ -125,17 +133,7 @@ public static boolean chop(InputStream is, OutputStream os, long zxid) throws IO
                 hasZxid = true;
             }
 
-            // logging the gap to make the inconsistency investigation easier
-            if (previousZxid != -1 && txnZxid != previousZxid + 1) {
-                long txnEpoch = ZxidUtils.getEpochFromZxid(txnZxid);
-                long txnCounter = ZxidUtils.getCounterFromZxid(txnZxid);
-                long previousEpoch = ZxidUtils.getEpochFromZxid(previousZxid);
-                if (txnEpoch == previousEpoch) {
-                    System.out.println(String.format("There is intra-epoch gap between %x and %x", previousZxid, txnZxid));
-                } else if (txnCounter != 1) {
-                    System.out.println(String.format("There is inter-epoch gap between %x and %x", previousZxid, txnZxid));
-                }
-            }
+            logGap(previousZxid, txnZxid);
             previousZxid = txnZxid;
 
             if (txnZxid > zxid) {
@@ -155,4 +153,67 @@ public static boolean chop(InputStream is, OutputStream os, long zxid) throws IO
         }
     }
 
+    /**
+     * chop a log made of blocks of txns, rewriting the block holding the
+     * given zxid with the txns up to it
+     */
+    private static boolean chopBlocks(DataInput in, BinaryOutputArchive choppedStream, long zxid) throws IOException {
+        int count = 0;
+        boolean hasZxid = false;
+        long previousZxid = -1;
+        while (true) {
+            TxnLogBlock block;
+            try {
+                block = TxnLogBlock.read(in);
+            } catch (EOFException e) {
+                block = null;
+            }
+            if (block == null) {
+                System.out.println("EOF reached after " + count + " txns.");
+                // returning false because nothing was chopped
+                return false;
+            }
+            List<byte[]> kept = new ArrayList<>();
+            for (byte[] bytes : block.getTxns()) {
+                final long txnZxid = SerializeUtils.deserializeTxn(bytes).getHeader().getZxid();
+                if (txnZxid == zxid) {
+                    hasZxid = true;
+                }
+                logGap(previousZxid, txnZxid);
+                previousZxid = txnZxid;
+
+                if (txnZxid > zxid) {
+                    if (count == 0 || !hasZxid) {
+                        System.out.println(String.format("This log does not contain zxid %x", zxid));
+                        return false;
+                    }
+                    if (!kept.isEmpty()) {
+                        TxnLogBlock.write(choppedStream, block.getCodec(), kept);
+                    }
+                    System.out.println(String.format("Chopping at %x new log has %d records", zxid, count));
+                    return true;
+                }
+                kept.add(bytes);
+                count++;
+            }
+            TxnLogBlock.write(choppedStream, block.getCodec(), kept);
+        }
+    }
+
+    /**
+     * logging the gap to make the inconsistency investigation easier
+     */
+    private static void logGap(long previousZxid, long txnZxid) {
+        if (previousZxid != -1 && txnZxid != previousZxid + 1) {
+            long txnEpoch = ZxidUtils.getEpochFromZxid(txnZxid);
+            long txnCounter = ZxidUtils.getCounterFromZxid(txnZxid);
+            long previousEpoch = ZxidUtils.getEpochFromZxid(previousZxid);
+            if (txnEpoch == previousEpoch) {
+                System.out.println(String.format("There is intra-epoch gap between %x and %x", previousZxid, txnZxid));
+            } else if (txnCounter != 1) {
+                System.out.println(String.format("There is inter-epoch gap between %x and %x", previousZxid, txnZxid));
+            }
+        }
+    }
+
 }
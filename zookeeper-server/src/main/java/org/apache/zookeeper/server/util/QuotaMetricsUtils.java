@@ -20,11 +20,9 @@
 
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import org.apache.zookeeper.Quotas;
-import org.apache.zookeeper.StatsTrack;
 import org.apache.zookeeper.common.PathUtils;
-import org.apache.zookeeper.server.DataNode;
 import org.apache.zookeeper.server.DataTree;
+import org.apache.zookeeper.server.QuotaIndex;
 
 public final class QuotaMetricsUtils {
     public static final String QUOTA_COUNT_LIMIT_PER_NAMESPACE = "quota_count_limit_per_namespace";
@@ -34,14 +32,12 @@ public final class QuotaMetricsUtils {
     public static final String QUOTA_EXCEEDED_ERROR_PER_NAMESPACE = "quota_exceeded_error_per_namespace";
 
     enum QUOTA_LIMIT_USAGE_METRIC_TYPE {QUOTA_COUNT_LIMIT, QUOTA_BYTES_LIMIT, QUOTA_COUNT_USAGE, QUOTA_BYTES_USAGE}
-    static final String LIMIT_END_STRING = "/" + Quotas.limitNode;
-    static final String STATS_END_STRING = "/" + Quotas.statNode;
 
     private QuotaMetricsUtils() {
     }
 
     /**
-     * Traverse the quota subtree and return per namespace quota count limit
+     * Return per namespace quota count limit
      *
      * @param dataTree dataTree that contains the quota limit and usage data
      * @return a map with top namespace as the key and quota count limit as the value
@@ -52,7 +48,7 @@ public static Map<String, Number> getQuotaCountLimit(final DataTree dataTree) {
     }
 
     /**
-     * Traverse the quota subtree and return per namespace quota bytes limit
+     * Return per namespace quota bytes limit
      *`
      * @param dataTree dataTree that contains the quota limit and usage data
      * @return a map with top namespace as the key and quota bytes limit as the value
@@ -63,7 +59,7 @@ public static Map<String, Number> getQuotaBytesLimit(final DataTree dataTree) {
     }
 
     /**
-     * Traverse the quota subtree and return per namespace quota count usage
+     * Return per namespace quota count usage
      *
      * @param dataTree dataTree that contains the quota limit and usage data
      * @return a map with top namespace as the key and quota count usage as the value
@@ -74,7 +70,7 @@ public static Map<String, Number> getQuotaCountUsage(final DataTree dataTree) {
     }
 
     /**
-     * Traverse the quota subtree and return per namespace quota bytes usage
+     * Return per namespace quota bytes usage
      *
      * @param dataTree dataTree that contains the quota limit and usage data
      * @return  a map with top namespace as the key and quota bytes usage as the value
@@ -84,71 +80,46 @@ public static Map<String, Number> getQuotaBytesUsage(final DataTree dataTree) {
         return getQuotaLimitOrUsage(dataTree, QUOTA_LIMIT_USAGE_METRIC_TYPE.QUOTA_BYTES_USAGE);
     }
 
-    // traverse the quota subtree and read the quota limit or usage data
+    // read the quota limit or usage data from the quota index of the tree
     private static Map<String, Number> getQuotaLimitOrUsage(final DataTree dataTree,
                                                             final QUOTA_LIMIT_USAGE_METRIC_TYPE type) {
         final Map<String, Number> metricsMap = new ConcurrentHashMap<>();
         if (dataTree != null) {
-            getQuotaLimitOrUsage(Quotas.quotaZookeeper, metricsMap, type, dataTree);
-        }
-        return metricsMap;
-    }
-
-    private static void getQuotaLimitOrUsage(final String path,
-                                     final Map<String, Number> metricsMap,
-                                     final QUOTA_LIMIT_USAGE_METRIC_TYPE type,
-                                     final DataTree dataTree) {
-        final DataNode node = dataTree.getNode(path);
-        if (node == null) {
-            return;
-        }
-        final String[] children;
-        synchronized (node) {
-            children = node.getChildren().toArray(new String[0]);
-        }
-        if (children.length == 0) {
-            if (shouldCollect(path, type)) {
-                collectQuotaLimitOrUsage(path, node, metricsMap, type);
+            for (final QuotaIndex.Quota quota : dataTree.getQuotaIndex().getQuotas()) {
+                collectQuotaLimitOrUsage(quota, metricsMap, type);
             }
-            return;
-        }
-        for (final String child : children) {
-            getQuotaLimitOrUsage(path + "/" + child, metricsMap, type, dataTree);
         }
+        return metricsMap;
     }
 
-    static boolean shouldCollect(final String path, final QUOTA_LIMIT_USAGE_METRIC_TYPE type) {
-        return path.endsWith(LIMIT_END_STRING)
-                && (QUOTA_LIMIT_USAGE_METRIC_TYPE.QUOTA_COUNT_LIMIT == type || QUOTA_LIMIT_USAGE_METRIC_TYPE.QUOTA_BYTES_LIMIT == type)
-                || path.endsWith(STATS_END_STRING)
-                && (QUOTA_LIMIT_USAGE_METRIC_TYPE.QUOTA_COUNT_USAGE == type || QUOTA_LIMIT_USAGE_METRIC_TYPE.QUOTA_BYTES_USAGE == type);
-    }
-
-    static void collectQuotaLimitOrUsage(final String path,
-                                         final DataNode node,
+    static void collectQuotaLimitOrUsage(final QuotaIndex.Quota quota,
                                          final Map<String, Number> metricsMap,
                                          final QUOTA_LIMIT_USAGE_METRIC_TYPE type) {
-        final String namespace = PathUtils.getTopNamespace(Quotas.trimQuotaPath(path));
+        final String namespace = PathUtils.getTopNamespace(quota.getPath());
         if (namespace == null) {
             return;
         }
-        final byte[] data = node.getData();
-        if (data == null) {
-            return;
-        }
-        final StatsTrack statsTrack = new StatsTrack(data);
+        final QuotaIndex.Limits limits = quota.getLimits();
         switch (type) {
             case QUOTA_COUNT_LIMIT:
-                aggregateQuotaLimitOrUsage(namespace, metricsMap, getQuotaLimit(statsTrack.getCountHardLimit(), statsTrack.getCount()));
+                if (limits != null) {
+                    aggregateQuotaLimitOrUsage(namespace, metricsMap, getQuotaLimit(limits.getCountHardLimit(), limits.getCountLimit()));
+                }
                 break;
             case QUOTA_BYTES_LIMIT:
-                aggregateQuotaLimitOrUsage(namespace, metricsMap, getQuotaLimit(statsTrack.getByteHardLimit(), statsTrack.getBytes()));
+                if (limits != null) {
+                    aggregateQuotaLimitOrUsage(namespace, metricsMap, getQuotaLimit(limits.getByteHardLimit(), limits.getByteLimit()));
+                }
                 break;
             case QUOTA_COUNT_USAGE:
-                aggregateQuotaLimitOrUsage(namespace, metricsMap, statsTrack.getCount());
+                if (quota.hasUsage()) {
+                    aggregateQuotaLimitOrUsage(namespace, metricsMap, quota.getCount());
+                }
                 break;
             case QUOTA_BYTES_USAGE:
-                aggregateQuotaLimitOrUsage(namespace, metricsMap, statsTrack.getBytes());
+                if (quota.hasUsage()) {
+                    aggregateQuotaLimitOrUsage(namespace, metricsMap, quota.getBytes());
+                }
                 break;
             default:
         }
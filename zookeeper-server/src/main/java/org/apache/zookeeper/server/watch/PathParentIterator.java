@@ -19,6 +19,7 @@
 package org.apache.zookeeper.server.watch;
 
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
 
 /**
@@ -29,6 +30,8 @@ public class PathParentIterator implements Iterator<String> {
     private String path;
     private final int maxLevel;
     private int level = -1;
+    // the parents to iterate over, or null to iterate over all of them
+    private final List<String> parents;
 
     /**
      * Return a new PathParentIterator that iterates from the
@@ -50,10 +53,26 @@ public static PathParentIterator forPathOnly(String path) {
         return new PathParentIterator(path, 0);
     }
 
+    /**
+     * Return a new PathParentIterator that iterates from the given path to
+     * the given parents only.
+     *
+     * @param path initial path
+     * @param parents parents of the path, the deepest first
+     */
+    public static PathParentIterator forParents(String path, List<String> parents) {
+        return new PathParentIterator(path, parents.size(), parents);
+    }
+
     private PathParentIterator(String path, int maxLevel) {
+        this(path, maxLevel, null);
+    }
+
+    private PathParentIterator(String path, int maxLevel, List<String> parents) {
         // NOTE: asserts that the path has already been validated
         this.path = path;
         this.maxLevel = maxLevel;
+        this.parents = parents;
     }
 
     /**
@@ -88,7 +107,11 @@ public String next() {
 
         String localPath = path;
         ++level;
-        if (path.equals("/")) {
+        if (parents != null) {
+            if (level < parents.size()) {
+                path = parents.get(level);
+            }
+        } else if (path.equals("/")) {
             path = "";
         } else {
             path = path.substring(0, path.lastIndexOf('/'));
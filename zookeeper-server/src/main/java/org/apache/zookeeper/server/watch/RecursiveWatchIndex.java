@@ -0,0 +1,141 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.watch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The paths that carry persistent recursive watches, kept in a trie of path
+ * segments. Each node of the trie counts the watches in its subtree, and
+ * nodes are dropped with their last watch, so that finding the watched
+ * parents of a path only walks the branches that have watches, and stops
+ * at the first segment of the path below which nothing is watched.
+ * <p>
+ * A path is counted once for each watcher with a recursive watch on it.
+ * The methods are thread safe.
+ */
+final class RecursiveWatchIndex {
+
+    private static final class Node {
+
+        // the recursive watches on this path
+        int watches;
+        // the recursive watches on this path and below
+        int subtree;
+        Map<String, Node> children;
+
+    }
+
+    private final Node root = new Node();
+
+    /**
+     * Count a recursive watch on the path.
+     */
+    synchronized void add(String path) {
+        Node node = root;
+        node.subtree++;
+        int start = 1;
+        while (start < path.length()) {
+            int end = segmentEnd(path, start);
+            if (node.children == null) {
+                node.children = new HashMap<>(4);
+            }
+            node = node.children.computeIfAbsent(path.substring(start, end), s -> new Node());
+            node.subtree++;
+            start = end + 1;
+        }
+        node.watches++;
+    }
+
+    /**
+     * Uncount a recursive watch on the path, which must have been counted.
+     */
+    synchronized void remove(String path) {
+        Node node = root;
+        node.subtree--;
+        int start = 1;
+        while (start < path.length()) {
+            int end = segmentEnd(path, start);
+            Node child = node.children.get(path.substring(start, end));
+            if (--child.subtree == 0) {
+                node.children.remove(path.substring(start, end));
+                if (node.children.isEmpty()) {
+                    node.children = null;
+                }
+                return;
+            }
+            node = child;
+            start = end + 1;
+        }
+        node.watches--;
+    }
+
+    /**
+     * @return the number of recursive watches
+     */
+    synchronized int size() {
+        return root.subtree;
+    }
+
+    /**
+     * @param path a path
+     * @return the parents of the path with recursive watches, the deepest
+     *         first, not including the path itself
+     */
+    synchronized List<String> getWatchedParents(String path) {
+        if (root.subtree == 0 || path.equals("/")) {
+            return Collections.emptyList();
+        }
+        List<String> parents = null;
+        Node node = root;
+        int start = 1;
+        while (true) {
+            if (node.watches > 0) {
+                if (parents == null) {
+                    parents = new ArrayList<>(2);
+                }
+                parents.add(start == 1 ? "/" : path.substring(0, start - 1));
+            }
+            int end = segmentEnd(path, start);
+            if (end == path.length() || node.children == null) {
+                break;
+            }
+            node = node.children.get(path.substring(start, end));
+            if (node == null) {
+                break;
+            }
+            start = end + 1;
+        }
+        if (parents == null) {
+            return Collections.emptyList();
+        }
+        Collections.reverse(parents);
+        return parents;
+    }
+
+    private static int segmentEnd(String path, int start) {
+        int end = path.indexOf('/', start);
+        return end < 0 ? path.length() : end;
+    }
+
+}
@@ -48,7 +48,7 @@ public class WatchManager implements IWatchManager {
 
     private final Map<Watcher, Map<String, WatchStats>> watch2Paths = new HashMap<>();
 
-    private int recursiveWatchQty = 0;
+    private final RecursiveWatchIndex recursiveWatches = new RecursiveWatchIndex();
 
     @Override
     public synchronized int size() {
@@ -98,7 +98,7 @@ public synchronized boolean addWatch(String path, Watcher watcher, WatcherMode w
         if (newStats != stats) {
             paths.put(path, newStats);
             if (watcherMode.isRecursive()) {
-                ++recursiveWatchQty;
+                recursiveWatches.add(path);
             }
             return true;
         }
@@ -121,9 +121,9 @@ public synchronized void removeWatcher(Watcher watcher) {
                 }
             }
         }
-        for (WatchStats stats : paths.values()) {
-            if (stats.hasMode(WatcherMode.PERSISTENT_RECURSIVE)) {
-                --recursiveWatchQty;
+        for (Entry<String, WatchStats> e : paths.entrySet()) {
+            if (e.getValue().hasMode(WatcherMode.PERSISTENT_RECURSIVE)) {
+                recursiveWatches.remove(e.getKey());
             }
         }
     }
@@ -303,7 +303,7 @@ public synchronized boolean removeWatcher(String path, Watcher watcher, WatcherM
         }
 
         if (oldStats.hasMode(WatcherMode.PERSISTENT_RECURSIVE) && !newStats.hasMode(WatcherMode.PERSISTENT_RECURSIVE)) {
-            --recursiveWatchQty;
+            recursiveWatches.remove(path);
         }
 
         return oldStats != newStats;
@@ -356,14 +356,11 @@ public synchronized WatchesSummary getWatchesSummary() {
     public void shutdown() { /* do nothing */ }
 
     // VisibleForTesting
-    synchronized int getRecursiveWatchQty() {
-        return recursiveWatchQty;
+    int getRecursiveWatchQty() {
+        return recursiveWatches.size();
     }
 
     private PathParentIterator getPathParentIterator(String path) {
-        if (getRecursiveWatchQty() == 0) {
-            return PathParentIterator.forPathOnly(path);
-        }
-        return PathParentIterator.forAll(path);
+        return PathParentIterator.forParents(path, recursiveWatches.getWatchedParents(path));
     }
 }
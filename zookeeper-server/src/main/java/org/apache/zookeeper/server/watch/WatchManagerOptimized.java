@@ -26,6 +26,7 @@
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
@@ -189,10 +190,16 @@ public void processDeadWatchers(Set<Integer> deadWatchers) {
             bits.set(dw);
         }
         // The value iterator will reflect the state when it was
-        // created, don't need to synchronize.
+        // created, don't need to synchronize. Each path is only locked
+        // while its own watchers are cleaned, which is the longest a
+        // trigger waits for the cleanup.
+        long maxSliceNs = 0;
         for (BitHashSet watchers : pathWatches.values()) {
+            long start = System.nanoTime();
             watchers.remove(deadWatchers, bits);
+            maxSliceNs = Math.max(maxSliceNs, System.nanoTime() - start);
         }
+        ServerMetrics.getMetrics().DEAD_WATCHERS_CLEANER_SLICE_TIME.add(TimeUnit.NANOSECONDS.toMicros(maxSliceNs));
         // Better to remove the empty path from pathWatches, but it will add
         // lot of lock contention and affect the throughput of addWatch,
         // let's rely on the triggerWatch to delete it.
@@ -201,6 +208,11 @@ public void processDeadWatchers(Set<Integer> deadWatchers) {
         }
     }
 
+    // VisibleForTesting
+    Integer getWatcherBit(Watcher watcher) {
+        return watcherBitIdMap.getBit(watcher);
+    }
+
     @Override
     public WatcherOrBitSet triggerWatch(String path, EventType type, long zxid) {
         return triggerWatch(path, type, zxid, null);
@@ -0,0 +1,392 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.watch;
+
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.Watcher.Event.EventType;
+import org.apache.zookeeper.Watcher.Event.KeeperState;
+import org.apache.zookeeper.server.ServerCnxn;
+import org.apache.zookeeper.server.ServerMetrics;
+import org.apache.zookeeper.server.ZooTrace;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A watch manager with the semantics of {@link WatchManager}, whose tables
+ * are split into stripes by the hash of the path. Adding, triggering and
+ * removing the watches of a path only lock the stripe of the path, so
+ * operations on different paths do not contend, and
+ * {@link #containsWatcher(String, Watcher, WatcherMode)} takes no lock.
+ * <p>
+ * Removing all the watches of a watcher visits every stripe, which is
+ * cheap next to the watches themselves as long as there are few stripes.
+ */
+public class WatchManagerStriped implements IWatchManager {
+
+    private static final Logger LOG = LoggerFactory.getLogger(WatchManagerStriped.class);
+
+    private static final int STRIPES = 64;
+
+    private static final class Stripe {
+
+        // written under the lock of the stripe, read without it
+        final Map<String, Map<Watcher, WatchStats>> watchTable = new ConcurrentHashMap<>();
+
+        // guarded by the lock of the stripe
+        final Map<Watcher, Set<String>> watch2Paths = new HashMap<>();
+
+        void unwatch(String path, Watcher watcher, Map<Watcher, WatchStats> watchers) {
+            watchers.remove(watcher);
+            if (watchers.isEmpty()) {
+                watchTable.remove(path);
+            }
+            Set<String> paths = watch2Paths.get(watcher);
+            if (paths != null) {
+                paths.remove(path);
+                if (paths.isEmpty()) {
+                    watch2Paths.remove(watcher);
+                }
+            }
+        }
+
+    }
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    private final RecursiveWatchIndex recursiveWatches = new RecursiveWatchIndex();
+
+    public WatchManagerStriped() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    private Stripe stripe(String path) {
+        int h = path.hashCode();
+        return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+    }
+
+    private boolean isDeadWatcher(Watcher watcher) {
+        return watcher instanceof ServerCnxn && ((ServerCnxn) watcher).isStale();
+    }
+
+    @Override
+    public int size() {
+        int result = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                for (Map<Watcher, WatchStats> watchers : stripe.watchTable.values()) {
+                    result += watchers.size();
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public boolean addWatch(String path, Watcher watcher) {
+        return addWatch(path, watcher, WatcherMode.DEFAULT_WATCHER_MODE);
+    }
+
+    @Override
+    public boolean addWatch(String path, Watcher watcher, WatcherMode watcherMode) {
+        Stripe stripe = stripe(path);
+        synchronized (stripe) {
+            // checked under the lock, a cnxn is marked stale before
+            // removeWatcher(Watcher) walks the stripes, so either the walk
+            // finds this watch or this check sees the cnxn stale
+            if (isDeadWatcher(watcher)) {
+                LOG.debug("Ignoring addWatch with closed cnxn");
+                return false;
+            }
+            // few watchers watch most paths, so start small
+            Map<Watcher, WatchStats> watchers = stripe.watchTable.computeIfAbsent(
+                path, p -> new ConcurrentHashMap<>(2));
+            WatchStats stats = watchers.getOrDefault(watcher, WatchStats.NONE);
+            WatchStats newStats = stats.addMode(watcherMode);
+            if (newStats == stats) {
+                return false;
+            }
+            watchers.put(watcher, newStats);
+            if (stats == WatchStats.NONE) {
+                stripe.watch2Paths.computeIfAbsent(watcher, w -> new HashSet<>()).add(path);
+            }
+            // under the lock of the stripe, so that the index counts the watches of the stripe
+            if (watcherMode.isRecursive()) {
+                recursiveWatches.add(path);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void removeWatcher(Watcher watcher) {
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                Set<String> paths = stripe.watch2Paths.remove(watcher);
+                if (paths == null) {
+                    continue;
+                }
+                for (String path : paths) {
+                    Map<Watcher, WatchStats> watchers = stripe.watchTable.get(path);
+                    if (watchers == null) {
+                        continue;
+                    }
+                    WatchStats stats = watchers.remove(watcher);
+                    if (stats != null && stats.hasMode(WatcherMode.PERSISTENT_RECURSIVE)) {
+                        recursiveWatches.remove(path);
+                    }
+                    if (watchers.isEmpty()) {
+                        stripe.watchTable.remove(path);
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public WatcherOrBitSet triggerWatch(String path, EventType type, long zxid) {
+        return triggerWatch(path, type, zxid, null);
+    }
+
+    @Override
+    public WatcherOrBitSet triggerWatch(String path, EventType type, long zxid, WatcherOrBitSet supress) {
+        WatchedEvent e = new WatchedEvent(type, KeeperState.SyncConnected, path, zxid);
+        Set<Watcher> watchers = new HashSet<>();
+        PathParentIterator pathParentIterator = getPathParentIterator(path);
+        for (String localPath : pathParentIterator.asIterable()) {
+            Stripe stripe = stripe(localPath);
+            if (!stripe.watchTable.containsKey(localPath)) {
+                continue;
+            }
+            synchronized (stripe) {
+                Map<Watcher, WatchStats> thisWatchers = stripe.watchTable.get(localPath);
+                if (thisWatchers == null) {
+                    continue;
+                }
+                Iterator<Entry<Watcher, WatchStats>> iterator = thisWatchers.entrySet().iterator();
+                while (iterator.hasNext()) {
+                    Entry<Watcher, WatchStats> entry = iterator.next();
+                    Watcher watcher = entry.getKey();
+                    WatchStats stats = entry.getValue();
+                    if (!pathParentIterator.atParentPath()) {
+                        watchers.add(watcher);
+                        WatchStats newStats = stats.removeMode(WatcherMode.STANDARD);
+                        if (newStats == WatchStats.NONE) {
+                            iterator.remove();
+                            Set<String> paths = stripe.watch2Paths.get(watcher);
+                            if (paths != null && paths.remove(localPath) && paths.isEmpty()) {
+                                stripe.watch2Paths.remove(watcher);
+                            }
+                        } else if (newStats != stats) {
+                            entry.setValue(newStats);
+                        }
+                    } else if (stats.hasMode(WatcherMode.PERSISTENT_RECURSIVE)) {
+                        watchers.add(watcher);
+                    }
+                }
+                if (thisWatchers.isEmpty()) {
+                    stripe.watchTable.remove(localPath);
+                }
+            }
+        }
+        if (watchers.isEmpty()) {
+            if (LOG.isTraceEnabled()) {
+                ZooTrace.logTraceMessage(LOG, ZooTrace.EVENT_DELIVERY_TRACE_MASK, "No watchers for " + path);
+            }
+            return null;
+        }
+
+        for (Watcher w : watchers) {
+            if (supress != null && supress.contains(w)) {
+                continue;
+            }
+            w.process(e);
+        }
+
+        switch (type) {
+            case NodeCreated:
+                ServerMetrics.getMetrics().NODE_CREATED_WATCHER.add(watchers.size());
+                break;
+
+            case NodeDeleted:
+                ServerMetrics.getMetrics().NODE_DELETED_WATCHER.add(watchers.size());
+                break;
+
+            case NodeDataChanged:
+                ServerMetrics.getMetrics().NODE_CHANGED_WATCHER.add(watchers.size());
+                break;
+
+            case NodeChildrenChanged:
+                ServerMetrics.getMetrics().NODE_CHILDREN_WATCHER.add(watchers.size());
+                break;
+            default:
+                // Other types not logged.
+                break;
+        }
+
+        return new WatcherOrBitSet(watchers);
+    }
+
+    @Override
+    public String toString() {
+        WatchesSummary summary = getWatchesSummary();
+        return summary.getNumConnections() + " connections watching " + summary.getNumPaths() + " paths\n"
+            + "Total watches:" + summary.getTotalWatches();
+    }
+
+    @Override
+    public void dumpWatches(PrintWriter pwriter, boolean byPath) {
+        if (byPath) {
+            for (Entry<String, Set<Long>> e : getWatchesByPath().toMap().entrySet()) {
+                pwriter.println(e.getKey());
+                for (Long id : e.getValue()) {
+                    pwriter.print("\t0x");
+                    pwriter.print(Long.toHexString(id));
+                    pwriter.print("\n");
+                }
+            }
+        } else {
+            for (Entry<Long, Set<String>> e : getWatches().toMap().entrySet()) {
+                pwriter.print("0x");
+                pwriter.println(Long.toHexString(e.getKey()));
+                for (String path : e.getValue()) {
+                    pwriter.print("\t");
+                    pwriter.println(path);
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean containsWatcher(String path, Watcher watcher) {
+        return containsWatcher(path, watcher, null);
+    }
+
+    @Override
+    public boolean containsWatcher(String path, Watcher watcher, WatcherMode watcherMode) {
+        Map<Watcher, WatchStats> watchers = stripe(path).watchTable.get(path);
+        if (watchers == null) {
+            return false;
+        }
+        WatchStats stats = watchers.get(watcher);
+        return stats != null && (watcherMode == null || stats.hasMode(watcherMode));
+    }
+
+    @Override
+    public boolean removeWatcher(String path, Watcher watcher, WatcherMode watcherMode) {
+        Stripe stripe = stripe(path);
+        synchronized (stripe) {
+            Map<Watcher, WatchStats> watchers = stripe.watchTable.get(path);
+            if (watchers == null) {
+                return false;
+            }
+            WatchStats oldStats = watchers.getOrDefault(watcher, WatchStats.NONE);
+            WatchStats newStats = watcherMode == null ? WatchStats.NONE : oldStats.removeMode(watcherMode);
+            if (newStats == oldStats) {
+                return false;
+            }
+            if (newStats == WatchStats.NONE) {
+                stripe.unwatch(path, watcher, watchers);
+            } else {
+                watchers.put(watcher, newStats);
+            }
+            if (oldStats.hasMode(WatcherMode.PERSISTENT_RECURSIVE)
+                && !newStats.hasMode(WatcherMode.PERSISTENT_RECURSIVE)) {
+                recursiveWatches.remove(path);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean removeWatcher(String path, Watcher watcher) {
+        return removeWatcher(path, watcher, null);
+    }
+
+    @Override
+    public WatchesReport getWatches() {
+        Map<Long, Set<String>> id2paths = new HashMap<>();
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                for (Entry<Watcher, Set<String>> e : stripe.watch2Paths.entrySet()) {
+                    Long id = ((ServerCnxn) e.getKey()).getSessionId();
+                    id2paths.computeIfAbsent(id, k -> new HashSet<>()).addAll(e.getValue());
+                }
+            }
+        }
+        return new WatchesReport(id2paths);
+    }
+
+    @Override
+    public WatchesPathReport getWatchesByPath() {
+        Map<String, Set<Long>> path2ids = new HashMap<>();
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                for (Entry<String, Map<Watcher, WatchStats>> e : stripe.watchTable.entrySet()) {
+                    Set<Long> ids = new HashSet<>(e.getValue().size());
+                    path2ids.put(e.getKey(), ids);
+                    for (Watcher watcher : e.getValue().keySet()) {
+                        ids.add(((ServerCnxn) watcher).getSessionId());
+                    }
+                }
+            }
+        }
+        return new WatchesPathReport(path2ids);
+    }
+
+    @Override
+    public WatchesSummary getWatchesSummary() {
+        Set<Watcher> connections = new HashSet<>();
+        int paths = 0;
+        int totalWatches = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                connections.addAll(stripe.watch2Paths.keySet());
+                paths += stripe.watchTable.size();
+                for (Set<String> watched : stripe.watch2Paths.values()) {
+                    totalWatches += watched.size();
+                }
+            }
+        }
+        return new WatchesSummary(connections.size(), paths, totalWatches);
+    }
+
+    @Override
+    public void shutdown() { /* do nothing */ }
+
+    // VisibleForTesting
+    int getRecursiveWatchQty() {
+        return recursiveWatches.size();
+    }
+
+    private PathParentIterator getPathParentIterator(String path) {
+        return PathParentIterator.forParents(path, recursiveWatches.getWatchedParents(path));
+    }
+
+}
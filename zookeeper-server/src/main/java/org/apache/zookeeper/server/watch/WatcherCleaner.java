@@ -155,6 +155,7 @@ public void run() {
                 deadWatchers.clear();
                 int total = snapshot.size();
                 LOG.info("Processing {} dead watchers", total);
+                ServerMetrics.getMetrics().DEAD_WATCHERS_BACKLOG.add(totalDeadWatchers.get());
                 cleaners.schedule(new WorkRequest() {
                     @Override
                     public void doWork() throws Exception {
@@ -22,6 +22,7 @@
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.util.concurrent.atomic.AtomicBoolean;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
@@ -162,4 +163,52 @@ public void findMaxPrefixChildrenPrefix() {
         assertEquals("/node1", this.pathTrie.findMaxPrefix("/node1/node3"));
     }
 
+    @Test
+    public void findMaxPrefixNormalizesPath() {
+        this.pathTrie.addPath("node1/node2");
+
+        assertEquals("/node1/node2", this.pathTrie.findMaxPrefix("/node1/node2/"));
+        assertEquals("/node1/node2", this.pathTrie.findMaxPrefix("//node1//node2/node3"));
+        assertEquals("/node1/node2", this.pathTrie.findMaxPrefix("node1/ /node2"));
+        assertEquals("/", this.pathTrie.findMaxPrefix("/node1"));
+    }
+
+    @Test
+    public void findMaxPrefixAfterDelete() {
+        this.pathTrie.addPath("node1");
+        this.pathTrie.addPath("node1");
+        this.pathTrie.addPath("node1/node2");
+        this.pathTrie.deletePath("node1/node2");
+        assertEquals("/node1", this.pathTrie.findMaxPrefix("/node1/node2"));
+
+        this.pathTrie.deletePath("node1");
+        assertEquals("/", this.pathTrie.findMaxPrefix("/node1/node2"));
+
+        this.pathTrie.addPath("node1/node2");
+        this.pathTrie.clear();
+        assertEquals("/", this.pathTrie.findMaxPrefix("/node1/node2"));
+    }
+
+    @Test
+    public void findMaxPrefixWhileUpdating() throws Exception {
+        this.pathTrie.addPath("node1");
+        AtomicBoolean done = new AtomicBoolean();
+        Thread updater = new Thread(() -> {
+            for (int i = 0; !done.get(); i++) {
+                this.pathTrie.addPath("node1/node" + (i % 10));
+                this.pathTrie.deletePath("node1/node" + ((i + 5) % 10));
+            }
+        });
+        updater.start();
+        try {
+            for (int i = 0; i < 100000; i++) {
+                String prefix = this.pathTrie.findMaxPrefix("/node1/node" + (i % 10) + "/node");
+                assertTrue(prefix.equals("/node1") || prefix.equals("/node1/node" + (i % 10)), prefix);
+            }
+        } finally {
+            done.set(true);
+            updater.join();
+        }
+    }
+
 }
@@ -0,0 +1,127 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.number.OrderingComparison.greaterThan;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.metrics.MetricsUtils;
+import org.junit.jupiter.api.Test;
+
+public class AdaptiveFlushPolicyTest {
+
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    public void testLowLoadFlushesImmediately() {
+        AdaptiveFlushPolicy policy = new AdaptiveFlushPolicy(10);
+        long now = 0;
+        // a request every 5ms, fsync takes 1ms
+        for (int i = 0; i < 20; i++) {
+            now += 5 * MS;
+            policy.requestArrived(now);
+            policy.requestBatched(now);
+            assertTrue(policy.shouldFlush(1, 1000, now));
+            policy.flushed(MS);
+        }
+        assertEquals(1, policy.getTargetBatchSize(1000));
+        assertEquals(MS, policy.getFsyncEstimate());
+    }
+
+    @Test
+    public void testHighLoadBatchesOneFsyncWorthOfRequests() {
+        AdaptiveFlushPolicy policy = new AdaptiveFlushPolicy(20);
+        long now = 0;
+        // a request every 0.1ms, fsync takes 2ms
+        for (int i = 0; i < 200; i++) {
+            now += MS / 10;
+            policy.requestArrived(now);
+        }
+        policy.flushed(2 * MS);
+        assertEquals(20, policy.getTargetBatchSize(1000));
+        assertEquals(5, policy.getTargetBatchSize(5));
+
+        policy.requestBatched(now);
+        assertFalse(policy.shouldFlush(10, 1000, now));
+        assertTrue(policy.shouldFlush(20, 1000, now));
+        // the queue ran dry, wait up to two gaps for another request
+        assertEquals(MS / 5, policy.getPollTime(now));
+    }
+
+    @Test
+    public void testFlushBeforeMissingTarget() {
+        AdaptiveFlushPolicy policy = new AdaptiveFlushPolicy(10);
+        long now = 0;
+        for (int i = 0; i < 200; i++) {
+            now += MS / 10;
+            policy.requestArrived(now);
+        }
+        policy.flushed(4 * MS);
+        policy.requestBatched(now);
+        // 10ms target less 4ms fsync leaves 6ms to fill the batch
+        assertFalse(policy.shouldFlush(1, 1000, now + 5 * MS));
+        assertTrue(policy.shouldFlush(1, 1000, now + 6 * MS));
+        assertEquals(0, policy.getPollTime(now + 6 * MS));
+    }
+
+    @Test
+    public void testSyncProcessorWithLatencyTarget() throws Exception {
+        ZKDatabase db = mock(ZKDatabase.class);
+        when(db.append(any(Request.class))).thenReturn(true);
+        doAnswer(invocation -> {
+            Thread.sleep(5);
+            return null;
+        }).when(db).commit();
+        ZooKeeperServer zks = mock(ZooKeeperServer.class);
+        when(zks.getZKDatabase()).thenReturn(db);
+        when(zks.getMaxBatchSize()).thenReturn(1000);
+        when(zks.getFlushLatencyTarget()).thenReturn(50L);
+
+        CountDownLatch allRequestsFlushed = new CountDownLatch(100);
+        RequestProcessor nextProcessor = mock(RequestProcessor.class);
+        doAnswer(invocationOnMock -> {
+            allRequestsFlushed.countDown();
+            return null;
+        }).when(nextProcessor).processRequest(any(Request.class));
+
+        SyncRequestProcessor syncProcessor = new SyncRequestProcessor(zks, nextProcessor);
+        syncProcessor.start();
+        for (int i = 0; i < 100; i++) {
+            syncProcessor.processRequest(new Request(null, 1, i, ZooDefs.OpCode.setData,
+                RequestRecord.fromBytes(new byte[10]), null));
+        }
+        assertTrue(allRequestsFlushed.await(5000, TimeUnit.MILLISECONDS));
+        syncProcessor.shutdown();
+
+        Map<String, Object> values = MetricsUtils.currentServerMetrics();
+        assertThat((long) values.get("cnt_sync_processor_adaptive_batch_size"), greaterThan(0L));
+        assertThat((long) values.get("max_sync_processor_fsync_estimate_us"), greaterThan(0L));
+    }
+
+}
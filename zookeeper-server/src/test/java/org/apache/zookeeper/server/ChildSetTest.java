@@ -0,0 +1,130 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+
+public class ChildSetTest {
+
+    private static String sequential(String prefix, int sequence) {
+        return prefix + String.format("%010d", sequence);
+    }
+
+    private static void assertSameSet(Set<String> expected, ChildSet actual) {
+        assertEquals(expected.size(), actual.size());
+        List<String> iterated = new ArrayList<>();
+        for (String name : actual) {
+            iterated.add(name);
+        }
+        assertEquals(expected.size(), iterated.size());
+        assertEquals(expected, new HashSet<>(iterated));
+        for (String name : expected) {
+            assertTrue(actual.contains(name), name);
+        }
+    }
+
+    @Test
+    public void testNames() {
+        ChildSet children = new ChildSet();
+        Set<String> expected = new HashSet<>();
+        // plain names, names looking almost sequential and sequential ones
+        String[] names = {"a", "b", "config", "lock-0000000001", "lock-0000000002", "0000000003",
+            "lock-000000001", "lock-9999999999", "lock--000000001", "x-2147483647", "x-2147483648", ""};
+        for (String name : names) {
+            assertTrue(children.add(name), name);
+            assertFalse(children.add(name), name);
+            expected.add(name);
+        }
+        assertSameSet(expected, children);
+        assertFalse(children.contains("lock-0000000003"));
+        assertFalse(children.contains("lock-"));
+        assertFalse(children.contains(1));
+
+        for (String name : names) {
+            assertTrue(children.remove(name), name);
+            assertFalse(children.remove(name), name);
+        }
+        assertEquals(0, children.size());
+        assertFalse(children.iterator().hasNext());
+    }
+
+    @Test
+    public void testSequentialOrder() {
+        ChildSet children = new ChildSet();
+        for (int i = 100; i > 0; i--) {
+            children.add(sequential("lock-", i));
+        }
+        Iterator<String> itr = children.iterator();
+        for (int i = 1; i <= 100; i++) {
+            assertEquals(sequential("lock-", i), itr.next());
+        }
+        assertFalse(itr.hasNext());
+
+        children.add("other");
+        assertThrows(ConcurrentModificationException.class, itr::next);
+    }
+
+    @Test
+    public void testChurn() {
+        ChildSet children = new ChildSet();
+        Set<String> expected = new HashSet<>();
+        Random random = new Random(42);
+        int next = 0;
+        for (int i = 0; i < 100000; i++) {
+            int op = random.nextInt(10);
+            String name;
+            if (op < 4) {
+                // a queue of sequential children, added at the end and mostly
+                // removed from the start
+                name = sequential("lock-", op < 3 ? next++ : Math.max(0, next - random.nextInt(200)));
+            } else if (op < 7) {
+                name = sequential("p" + random.nextInt(3) + "-", random.nextInt(1000));
+            } else {
+                name = "name-" + random.nextInt(op == 9 ? 10 : 500);
+            }
+            String remove = sequential("lock-", next - 150);
+            assertEquals(expected.remove(remove), children.remove(remove));
+            if (random.nextBoolean()) {
+                assertEquals(expected.add(name), children.add(name), name);
+            } else {
+                assertEquals(expected.remove(name), children.remove(name), name);
+            }
+            assertEquals(expected.size(), children.size());
+        }
+        assertSameSet(expected, children);
+
+        ChildSet copy = children.copy();
+        children.clear();
+        assertEquals(0, children.size());
+        assertSameSet(expected, copy);
+        assertSameSet(expected, new ChildSet(expected));
+    }
+
+}
@@ -0,0 +1,156 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.jute.BinaryInputArchive;
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.server.persistence.FileSnap;
+import org.apache.zookeeper.server.persistence.SnapStream;
+import org.apache.zookeeper.server.persistence.SnapStream.StreamMode;
+import org.apache.zookeeper.test.ClientBase;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class ChunkedSnapshotTest {
+
+    private DataTree dt;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        System.setProperty(ChunkedSnapshot.ZOOKEEPER_SNAPSHOT_PARALLELISM, "3");
+        dt = new DataTree();
+        long zxid = 1;
+        // big enough for several chunks
+        byte[] data = new byte[1024];
+        new Random(1).nextBytes(data);
+        for (int i = 0; i < 20; i++) {
+            dt.createNode("/p" + i, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, 0, -1, zxid, zxid++);
+            for (int j = 0; j < 200; j++) {
+                long owner = j % 10 == 0 ? 0x10 + i : 0;
+                dt.createNode("/p" + i + "/c" + j, data, ZooDefs.Ids.READ_ACL_UNSAFE, owner, -1, zxid, zxid++);
+            }
+        }
+        dt.createNode("/p0/c1/deep", new byte[0], ZooDefs.Ids.CREATOR_ALL_ACL, 0, -1, zxid, zxid);
+        dt.lastProcessedZxid = zxid;
+    }
+
+    @AfterEach
+    public void tearDown() {
+        System.clearProperty(ChunkedSnapshot.ZOOKEEPER_SNAPSHOT_PARALLELISM);
+        SnapStream.setStreamMode(StreamMode.DEFAULT_MODE);
+    }
+
+    private void assertSameNodes(DataTree expected, DataTree actual, String path) {
+        DataNode node = expected.getNode(path);
+        DataNode restored = actual.getNode(path);
+        Stat stat = new Stat();
+        Stat restoredStat = new Stat();
+        node.copyStat(stat);
+        restored.copyStat(restoredStat);
+        assertEquals(stat, restoredStat, path);
+        assertArrayEquals(node.getData(), restored.getData(), path);
+        assertEquals(node.getChildren(), restored.getChildren(), path);
+        assertEquals(expected.getACL(node), actual.getACL(restored), path);
+        for (String child : node.getChildren()) {
+            assertSameNodes(expected, actual, path + "/" + child);
+        }
+    }
+
+    private void assertSameTree(DataTree expected, DataTree actual) {
+        assertEquals(expected.getNodeCount(), actual.getNodeCount());
+        assertSameNodes(expected, actual, "");
+        assertEquals(expected.getEphemerals(), actual.getEphemerals());
+        assertEquals(expected.getTreeDigest(), actual.getTreeDigest());
+        assertEquals(expected.cachedApproximateDataSize(), actual.cachedApproximateDataSize());
+        assertEquals(expected.aclCacheSize(), actual.aclCacheSize());
+    }
+
+    @Test
+    public void testSerializeDeserialize() throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        dt.serializeChunked(BinaryOutputArchive.getArchive(baos), "tree");
+
+        DataTree restored = new DataTree();
+        restored.deserializeChunked(BinaryInputArchive.getArchive(new ByteArrayInputStream(baos.toByteArray())),
+            "tree");
+        assertSameTree(dt, restored);
+    }
+
+    @Test
+    public void testChunkedSnapshotFile() throws Exception {
+        SnapStream.setStreamMode(StreamMode.CHUNKED);
+        File tmpDir = ClientBase.createTmpDir();
+        FileSnap snap = new FileSnap(tmpDir);
+        Map<Long, Integer> sessions = new HashMap<>();
+        sessions.put(0x10L, 3000);
+        File file = new File(tmpDir, "snapshot." + Long.toHexString(dt.lastProcessedZxid)
+            + StreamMode.CHUNKED.getFileExtension());
+        snap.serialize(dt, sessions, file, false);
+        assertTrue(SnapStream.isValidSnapshot(file));
+
+        DataTree restored = new DataTree();
+        ConcurrentHashMap<Long, Integer> restoredSessions = new ConcurrentHashMap<>();
+        assertEquals(dt.lastProcessedZxid, snap.deserialize(restored, restoredSessions));
+        assertEquals(sessions, restoredSessions);
+        assertSameTree(dt, restored);
+    }
+
+    @Test
+    public void testCorruptChunk() throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        dt.serializeChunked(BinaryOutputArchive.getArchive(baos), "tree");
+        byte[] bytes = baos.toByteArray();
+        // flip a byte within the first chunk, behind the acls
+        bytes[bytes.length / 3] ^= 0x5a;
+
+        DataTree restored = new DataTree();
+        assertThrows(IOException.class, () -> restored.deserializeChunked(
+            BinaryInputArchive.getArchive(new ByteArrayInputStream(bytes)), "tree"));
+    }
+
+    @Test
+    public void testTruncatedSnapshotIsInvalid() throws Exception {
+        SnapStream.setStreamMode(StreamMode.CHUNKED);
+        File tmpDir = ClientBase.createTmpDir();
+        File file = new File(tmpDir, "snapshot.1" + StreamMode.CHUNKED.getFileExtension());
+        new FileSnap(tmpDir).serialize(dt, new HashMap<>(), file, false);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() / 2);
+        }
+        assertFalse(SnapStream.isValidSnapshot(file));
+    }
+
+}
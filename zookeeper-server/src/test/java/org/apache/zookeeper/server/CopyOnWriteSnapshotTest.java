@@ -0,0 +1,233 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.apache.jute.BinaryInputArchive;
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.jute.Record;
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.ZooDefs.OpCode;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.server.persistence.FileSnap;
+import org.apache.zookeeper.server.persistence.FileTxnSnapLog;
+import org.apache.zookeeper.server.persistence.Util;
+import org.apache.zookeeper.test.ClientBase;
+import org.apache.zookeeper.txn.SetDataTxn;
+import org.apache.zookeeper.txn.TxnHeader;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+public class CopyOnWriteSnapshotTest extends ZKTestCase {
+
+    private static DataTree createTree() throws Exception {
+        DataTree tree = new DataTree();
+        tree.createNode("/a", "a".getBytes(), null, -1, 1, 1, 1);
+        for (int i = 0; i < 10; i++) {
+            tree.createNode("/a/" + i, ("a" + i).getBytes(), null, -1, 1, 2 + i, 2 + i);
+        }
+        tree.createNode("/b", "b".getBytes(), null, -1, 1, 12, 12);
+        tree.lastProcessedZxid = 12;
+        return tree;
+    }
+
+    private static DataTree deserialize(byte[] snapshot) throws IOException {
+        DataTree tree = new DataTree();
+        tree.deserialize(BinaryInputArchive.getArchive(new ByteArrayInputStream(snapshot)), "tree");
+        return tree;
+    }
+
+    private static void assertSameNodes(DataTree expected, DataTree actual, String path) {
+        DataNode expectedNode = expected.getNode(path);
+        DataNode actualNode = actual.getNode(path);
+        assertArrayEquals(expectedNode.getData(), actualNode.getData(), path);
+        assertEquals(expectedNode.stat.getMzxid(), actualNode.stat.getMzxid(), path);
+        assertEquals(expectedNode.getChildren(), actualNode.getChildren(), path);
+        for (String child : expectedNode.getChildren()) {
+            assertSameNodes(expected, actual, path + "/" + child);
+        }
+    }
+
+    @Test
+    public void testSnapshotIgnoresChangesAfterStart() throws Exception {
+        DataTree tree = createTree();
+        DataTree expected = createTree();
+        AtomicBoolean changed = new AtomicBoolean();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryOutputArchive oa = new BinaryOutputArchive(new DataOutputStream(out)) {
+            @Override
+            public void writeRecord(Record r, String tag) throws IOException {
+                if (r instanceof DataNode && changed.compareAndSet(false, true)) {
+                    // change the tree once the snapshot has started writing nodes
+                    try {
+                        tree.setData("/b", "b2".getBytes(), 1, 13, 13);
+                        tree.deleteNode("/a/0", 14);
+                        tree.createNode("/a/new", "new".getBytes(), null, -1, 2, 15, 15);
+                        tree.setData("/a/1", "a12".getBytes(), 1, 16, 16);
+                        tree.createNode("/c", "c".getBytes(), null, -1, 3, 17, 17);
+                    } catch (Exception e) {
+                        throw new IOException(e);
+                    }
+                }
+                super.writeRecord(r, tag);
+            }
+        };
+
+        tree.startCopyOnWriteSnapshot();
+        try {
+            tree.serialize(oa, "tree");
+            assertTrue(changed.get());
+        } finally {
+            tree.endCopyOnWriteSnapshot();
+        }
+        assertEquals(-1, tree.getSnapshotVersionCount());
+
+        DataTree restored = deserialize(out.toByteArray());
+        assertSameNodes(expected, restored, "");
+        assertNull(restored.getNode("/a/new"));
+        assertNull(restored.getNode("/c"));
+        // the tree itself has the changes
+        assertArrayEquals("b2".getBytes(), tree.getData("/b", new Stat(), null));
+        assertNull(tree.getNode("/a/0"));
+    }
+
+    @Test
+    public void testVersionsAreReleasedOnceWritten() throws Exception {
+        DataTree tree = createTree();
+        tree.startCopyOnWriteSnapshot();
+        try {
+            assertEquals(0, tree.getSnapshotVersionCount());
+            tree.setData("/b", "b2".getBytes(), 1, 13, 13);
+            tree.setData("/b", "b3".getBytes(), 2, 14, 14);
+            assertEquals(1, tree.getSnapshotVersionCount());
+
+            DataNode version = tree.copyNodeForSnapshot("/b");
+            assertArrayEquals("b".getBytes(), version.getData());
+            assertEquals(0, tree.getSnapshotVersionCount());
+
+            // nodes written or created since the start are not kept again
+            tree.setData("/b", "b4".getBytes(), 3, 15, 15);
+            tree.createNode("/b/d", "d".getBytes(), null, -1, 1, 16, 16);
+            tree.setData("/b/d", "d2".getBytes(), 1, 17, 17);
+            assertEquals(0, tree.getSnapshotVersionCount());
+            assertNull(tree.copyNodeForSnapshot("/b/d"));
+        } finally {
+            tree.endCopyOnWriteSnapshot();
+        }
+    }
+
+    @Test
+    @Timeout(value = 60)
+    public void testSnapshotDoesntLockUnchangedNodes() throws Exception {
+        DataTree tree = createTree();
+        DataNode node = tree.getNode("/b");
+        CountDownLatch locked = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+        Thread holder = new Thread(() -> {
+            synchronized (node) {
+                locked.countDown();
+                try {
+                    done.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        holder.start();
+        assertTrue(locked.await(30, TimeUnit.SECONDS));
+        try {
+            tree.startCopyOnWriteSnapshot();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            tree.serialize(BinaryOutputArchive.getArchive(out), "tree");
+            tree.endCopyOnWriteSnapshot();
+            assertSameNodes(createTree(), deserialize(out.toByteArray()), "");
+        } finally {
+            done.countDown();
+            holder.join();
+        }
+    }
+
+    @Test
+    public void testFileTxnSnapLogSavesWithCopyOnWrite() throws Exception {
+        File tmpDir = ClientBase.createTmpDir();
+        System.setProperty(FileTxnSnapLog.ZOOKEEPER_SNAPSHOT_COPY_ON_WRITE, "true");
+        try {
+            FileTxnSnapLog snapLog = new FileTxnSnapLog(tmpDir, tmpDir);
+            DataTree tree = createTree();
+            File snapshot = snapLog.save(tree, new ConcurrentHashMap<>(), true, true);
+            assertEquals(-1, tree.getSnapshotVersionCount());
+
+            DataTree restored = new DataTree();
+            assertEquals(12, snapLog.restore(restored, new ConcurrentHashMap<>(), (hdr, rec, digest) -> { }));
+            assertSameNodes(tree, restored, "");
+            assertTrue(snapshot.exists());
+            snapLog.close();
+        } finally {
+            System.clearProperty(FileTxnSnapLog.ZOOKEEPER_SNAPSHOT_COPY_ON_WRITE);
+        }
+    }
+
+    @Test
+    public void testTxnAppliedBetweenStartAndSaveIsReplayed() throws Exception {
+        File tmpDir = ClientBase.createTmpDir();
+        System.setProperty(FileTxnSnapLog.ZOOKEEPER_SNAPSHOT_COPY_ON_WRITE, "true");
+        try {
+            FileTxnSnapLog snapLog = new FileTxnSnapLog(tmpDir, tmpDir);
+            TxnHeader hdr = new TxnHeader(1, 1, 13, 13, OpCode.setData);
+            SetDataTxn txn = new SetDataTxn("/b", "b2".getBytes(), 1);
+            snapLog.append(new Request(1, 1, OpCode.setData, hdr, txn, 13));
+            snapLog.commit();
+
+            DataTree tree = new DataTree() {
+                @Override
+                public long startCopyOnWriteSnapshot() {
+                    long zxid = super.startCopyOnWriteSnapshot();
+                    // applied once the snapshot started, before it is saved
+                    processTxn(hdr, txn);
+                    return zxid;
+                }
+            };
+            tree.createNode("/b", "b".getBytes(), null, -1, 1, 12, 12);
+            tree.lastProcessedZxid = 12;
+            File snapshot = snapLog.save(tree, new ConcurrentHashMap<>(), true, true);
+            assertEquals(13, tree.lastProcessedZxid);
+            assertEquals(12, Util.getZxidFromName(snapshot.getName(), FileSnap.SNAPSHOT_FILE_PREFIX));
+
+            DataTree restored = new DataTree();
+            assertEquals(13, snapLog.restore(restored, new ConcurrentHashMap<>(), (h, r, d) -> { }));
+            assertArrayEquals("b2".getBytes(), restored.getData("/b", new Stat(), null));
+            snapLog.close();
+        } finally {
+            System.clearProperty(FileTxnSnapLog.ZOOKEEPER_SNAPSHOT_COPY_ON_WRITE);
+        }
+    }
+
+}
@@ -18,10 +18,16 @@
 
 package org.apache.zookeeper.server;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.fail;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.data.StatPersisted;
 import org.junit.jupiter.api.Test;
 
 public class DataNodeTest {
@@ -64,4 +70,40 @@ public void testGetChildrenReturnsImmutableEmptySet() {
         }
     }
 
+    @Test
+    public void testReadDataAndStatWhileChanged() throws Exception {
+        DataNode dataNode = new DataNode(new byte[0], 0L, new StatPersisted());
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicReference<String> failure = new AtomicReference<>();
+        Thread reader = new Thread(() -> {
+            Stat stat = new Stat();
+            while (!done.get()) {
+                byte[] data = dataNode.readDataAndStat(stat);
+                // the writer keeps the version, mzxid and data length equal
+                if (stat.getVersion() != data.length || stat.getMzxid() != data.length
+                    || stat.getDataLength() != data.length) {
+                    failure.set("inconsistent read of version " + stat.getVersion());
+                }
+            }
+        });
+        reader.start();
+        for (int i = 1; i <= 100000; i++) {
+            synchronized (dataNode) {
+                long stamp = dataNode.startChange();
+                dataNode.setData(new byte[i % 100]);
+                dataNode.stat.setVersion(i % 100);
+                dataNode.stat.setMzxid(i % 100);
+                dataNode.endChange(stamp);
+            }
+        }
+        done.set(true);
+        reader.join();
+        assertNull(failure.get());
+
+        Stat stat = new Stat();
+        assertArrayEquals(new byte[0], dataNode.readDataAndStat(stat));
+        assertEquals(0, stat.getVersion());
+        assertArrayEquals(new byte[0], dataNode.readDataAndStat(null));
+    }
+
 }
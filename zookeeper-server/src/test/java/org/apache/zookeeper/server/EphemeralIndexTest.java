@@ -0,0 +1,99 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+
+public class EphemeralIndexTest {
+
+    @Test
+    public void testSessions() {
+        EphemeralIndex index = new EphemeralIndex();
+        index.add(1L, "/a");
+        index.add(1L, "/b/lock-0000000001");
+        index.add(1L, "/a");
+        index.add(-2L, "/c");
+        assertEquals(3, index.size());
+        assertEquals(2, index.getSessionCount());
+        assertEquals(new HashSet<>(Arrays.asList(1L, -2L)), new HashSet<>(index.getSessions()));
+
+        // a copy, which the caller may change
+        Set<String> paths = index.get(1L);
+        assertEquals(new HashSet<>(Arrays.asList("/a", "/b/lock-0000000001")), paths);
+        paths.add("/d");
+        assertEquals(2, index.get(1L).size());
+        assertTrue(index.get(3L).isEmpty());
+
+        index.remove(-2L, "/c");
+        assertEquals(1, index.getSessionCount());
+        assertNull(index.removeSession(-2L));
+
+        Set<String> removed = index.removeSession(1L);
+        assertEquals(2, removed.size());
+        assertEquals(0, index.size());
+        assertEquals(0, index.getSessionCount());
+        assertTrue(index.toMap().isEmpty());
+    }
+
+    @Test
+    public void testManySessions() {
+        EphemeralIndex index = new EphemeralIndex();
+        Map<Long, Set<String>> expected = new HashMap<>();
+        Random random = new Random(7);
+        for (int i = 0; i < 200000; i++) {
+            // session ids of a few servers, as the session tracker hands them out
+            long session = ((long) random.nextInt(3) << 56) | random.nextInt(20000);
+            String path = "/app/lock-" + String.format("%010d", random.nextInt(5));
+            int op = random.nextInt(10);
+            if (op < 6) {
+                index.add(session, path);
+                expected.computeIfAbsent(session, s -> new HashSet<>()).add(path);
+            } else if (op < 9) {
+                index.remove(session, path);
+                Set<String> paths = expected.get(session);
+                if (paths != null && paths.remove(path) && paths.isEmpty()) {
+                    expected.remove(session);
+                }
+            } else {
+                assertEquals(expected.remove(session), index.removeSession(session));
+            }
+        }
+        assertEquals(expected, index.toMap());
+        assertEquals(expected.size(), index.getSessionCount());
+        assertEquals(expected.values().stream().mapToInt(Set::size).sum(), index.size());
+        for (Map.Entry<Long, Set<String>> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), index.get(entry.getKey()));
+        }
+        for (Long session : expected.keySet()) {
+            index.removeSession(session);
+        }
+        assertEquals(0, index.size());
+        assertTrue(index.getSessions().isEmpty());
+    }
+
+}
@@ -94,4 +94,31 @@ public void testOperations() {
         assertNotEquals(preChangeDigest, postChangeDigest);
     }
 
+    @Test
+    public void testRecalculateDigest() {
+        DigestCalculator digestCalculator = new DigestCalculator();
+        NodeHashMapImpl nodes = new NodeHashMapImpl(digestCalculator);
+        NodeHashMapImpl loaded = new NodeHashMapImpl(digestCalculator);
+        DataNode root = new DataNode(new byte[0], 0L, new StatPersisted());
+        nodes.put("", root);
+        loaded.putWithoutDigest("", root);
+        loaded.putWithoutDigest("/", root);
+        for (int i = 0; i < 10000; i++) {
+            String path = "/node" + i;
+            nodes.put(path, new DataNode(path.getBytes(), 0L, new StatPersisted()));
+            loaded.putWithoutDigest(path, new DataNode(path.getBytes(), 0L, new StatPersisted()));
+        }
+        loaded.putWithoutDigest("/zookeeper/quota", new DataNode(new byte[1], 0L, new StatPersisted()));
+        assertEquals(0L, loaded.getDigest());
+
+        loaded.recalculateDigest();
+        assertNotEquals(0L, loaded.getDigest());
+        assertEquals(nodes.getDigest(), loaded.getDigest());
+        assertEquals(nodes.getDigest(), digestCalculator.calculateDigest(loaded, false));
+
+        // calculated from the content, not from the digest cached in the node
+        loaded.get("/node1").setDigest(0L);
+        assertEquals(nodes.getDigest(), digestCalculator.calculateDigest(loaded, false));
+    }
+
 }
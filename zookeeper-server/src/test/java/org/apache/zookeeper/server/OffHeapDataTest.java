@@ -0,0 +1,174 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.apache.jute.BinaryInputArchive;
+import org.apache.jute.BinaryOutputArchive;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.OpResult;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.data.StatPersisted;
+import org.apache.zookeeper.test.ClientBase;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class OffHeapDataTest extends ClientBase {
+
+    private static final int THRESHOLD = 1024;
+
+    @BeforeEach
+    @Override
+    public void setUp() throws Exception {
+        DataNode.setOffHeapDataThreshold(THRESHOLD);
+        super.setUp();
+    }
+
+    @AfterEach
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+        DataNode.setOffHeapDataThreshold(0);
+    }
+
+    private static byte[] randomData(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+
+    @Test
+    public void testDataNode() throws Exception {
+        byte[] large = randomData(THRESHOLD);
+        DataNode node = new DataNode(large, 1L, new StatPersisted());
+        assertNull(node.data);
+        assertNotNull(node.getOffHeapData());
+        assertTrue(node.getOffHeapData().isDirect());
+        assertArrayEquals(large, node.getData());
+        assertEquals(THRESHOLD, node.getDataLength());
+        Stat stat = new Stat();
+        assertArrayEquals(large, node.readDataAndStat(stat));
+        assertEquals(THRESHOLD, stat.getDataLength());
+
+        // serialized as if it was on the heap
+        DataNode onHeap = new DataNode(large, 1L, new StatPersisted());
+        DataNode.setOffHeapDataThreshold(0);
+        onHeap.setData(large);
+        assertNull(onHeap.getOffHeapData());
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        onHeap.serialize(BinaryOutputArchive.getArchive(expected), "node");
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        node.serialize(BinaryOutputArchive.getArchive(actual), "node");
+        assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+
+        DataNode.setOffHeapDataThreshold(THRESHOLD);
+        DataNode deserialized = new DataNode();
+        ByteArrayInputStream in = new ByteArrayInputStream(actual.toByteArray());
+        deserialized.deserialize(BinaryInputArchive.getArchive(in), "node");
+        assertNotNull(deserialized.getOffHeapData());
+        assertArrayEquals(large, deserialized.getData());
+
+        DigestCalculator digestCalculator = new DigestCalculator();
+        boolean digestEnabled = ZooKeeperServer.isDigestEnabled();
+        ZooKeeperServer.setDigestEnabled(true);
+        try {
+            assertEquals(digestCalculator.calculateDigest("/large", onHeap),
+                digestCalculator.calculateDigest("/large", node));
+            // as the pending changes calculate it, without copying the data
+            ByteBuffer view = node.readDataBufferAndStat(null);
+            assertEquals(digestCalculator.calculateDigest("/large", large, node.stat),
+                digestCalculator.calculateDigest("/large", view, node.stat));
+            assertEquals(THRESHOLD, view.remaining());
+        } finally {
+            ZooKeeperServer.setDigestEnabled(digestEnabled);
+        }
+
+        node.setData(new byte[] {1});
+        assertNull(node.getOffHeapData());
+        assertArrayEquals(new byte[] {1}, node.getData());
+    }
+
+    @Test
+    public void testBufferResponse() throws Exception {
+        byte[] large = randomData(THRESHOLD);
+        ByteBuffer data = ByteBuffer.allocateDirect(large.length);
+        data.put(large).flip();
+        Stat stat = new Stat();
+        stat.setDataLength(large.length);
+        GetDataBufferResponse response = new GetDataBufferResponse(data.asReadOnlyBuffer(), stat);
+
+        // serialized and deserialized as a GetDataResponse
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        response.serialize(BinaryOutputArchive.getArchive(out), "response");
+        GetDataBufferResponse deserialized = new GetDataBufferResponse();
+        deserialized.deserialize(BinaryInputArchive.getArchive(new ByteArrayInputStream(out.toByteArray())), "response");
+        assertEquals(response.toGetDataResponse(), deserialized.toGetDataResponse());
+        assertEquals(stat, deserialized.getStat());
+    }
+
+    @Test
+    public void testClientReads() throws Exception {
+        byte[] large = randomData(100 * 1024);
+        try (ZooKeeper zk = createClient()) {
+            zk.create("/large", large, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            zk.create("/small", new byte[] {1, 2}, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+
+            Stat stat = new Stat();
+            assertArrayEquals(large, zk.getData("/large", false, stat));
+            assertEquals(large.length, stat.getDataLength());
+            assertEquals(large.length, zk.exists("/large", false).getDataLength());
+            assertArrayEquals(new byte[] {1, 2}, zk.getData("/small", false, null));
+            // twice, the response must not have been consumed
+            assertArrayEquals(large, zk.getData("/large", false, null));
+
+            List<OpResult> results = zk.multi(Arrays.asList(Op.getData("/large"), Op.getData("/small")));
+            assertArrayEquals(large, ((OpResult.GetDataResult) results.get(0)).getData());
+            assertArrayEquals(new byte[] {1, 2}, ((OpResult.GetDataResult) results.get(1)).getData());
+
+            byte[] larger = randomData(200 * 1024);
+            zk.setData("/small", larger, -1);
+            zk.setData("/large", new byte[] {3}, -1);
+            assertArrayEquals(larger, zk.getData("/small", false, null));
+            assertArrayEquals(new byte[] {3}, zk.getData("/large", false, null));
+        }
+
+        // reloaded from the snapshot and txn log
+        stopServer();
+        startServer();
+        try (ZooKeeper zk = createClient()) {
+            assertArrayEquals(randomData(200 * 1024), zk.getData("/small", false, null));
+            assertArrayEquals(new byte[] {3}, zk.getData("/large", false, null));
+        }
+    }
+
+}
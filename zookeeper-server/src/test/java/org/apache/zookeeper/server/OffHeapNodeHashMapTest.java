@@ -0,0 +1,217 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.data.StatPersisted;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class OffHeapNodeHashMapTest extends ZKTestCase {
+
+    @BeforeEach
+    public void setUp() {
+        ZooKeeperServer.setDigestEnabled(true);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        ZooKeeperServer.setDigestEnabled(false);
+        System.clearProperty(OffHeapNodeHashMap.ZOOKEEPER_OFF_HEAP_NODE_HASH_MAP);
+    }
+
+    private static DataNode newNode(String data) {
+        return new DataNode(data.getBytes(), 0L, new StatPersisted());
+    }
+
+    private static Map<String, DataNode> toMap(NodeHashMap nodes) {
+        Map<String, DataNode> map = new HashMap<>();
+        for (Map.Entry<String, DataNode> entry : nodes.entrySet()) {
+            assertNull(map.put(entry.getKey(), entry.getValue()), entry.getKey());
+        }
+        return map;
+    }
+
+    @Test
+    public void testOperations() {
+        OffHeapNodeHashMap nodes = new OffHeapNodeHashMap(new DigestCalculator());
+        NodeHashMapImpl reference = new NodeHashMapImpl(new DigestCalculator());
+
+        assertEquals(0, nodes.size());
+        assertEquals(0L, nodes.getDigest());
+
+        DataNode root = newNode("");
+        DataNode n1 = newNode("p1");
+        DataNode n2 = newNode("p2");
+        for (NodeHashMap map : new NodeHashMap[] {nodes, reference}) {
+            map.put("", root);
+            map.putWithoutDigest("/", root);
+            map.put("/p1", n1);
+            map.put("/p1/p2", n2);
+        }
+        assertSame(root, nodes.get(""));
+        assertSame(root, nodes.get("/"));
+        assertSame(n1, nodes.get("/p1"));
+        assertSame(n2, nodes.get("/p1/p2"));
+        assertNull(nodes.get("/p2"));
+        assertNull(nodes.get("p1"));
+        assertNull(nodes.get("/p1/"));
+        assertEquals(4, nodes.size());
+        assertEquals(reference.getDigest(), nodes.getDigest());
+        assertEquals(toMap(reference), toMap(nodes));
+
+        // replace a node
+        DataNode n1b = newNode("p1b");
+        assertSame(n1, nodes.put("/p1", n1b));
+        reference.put("/p1", n1b);
+        assertEquals(4, nodes.size());
+        assertEquals(reference.getDigest(), nodes.getDigest());
+
+        // test preChange and postChange
+        long preChangeDigest = nodes.getDigest();
+        nodes.preChange("/p1", n1b);
+        n1b.stat.setMzxid(1);
+        n1b.stat.setVersion(1);
+        nodes.postChange("/p1", n1b);
+        assertNotEquals(preChangeDigest, nodes.getDigest());
+
+        assertSame(n2, nodes.remove("/p1/p2"));
+        assertNull(nodes.remove("/p1/p2"));
+        assertSame(n1b, nodes.remove("/p1"));
+        assertEquals(2, nodes.size());
+        assertSame(root, nodes.remove(""));
+        assertSame(root, nodes.get("/"));
+        assertEquals(0L, nodes.getDigest());
+        assertSame(root, nodes.remove("/"));
+        assertEquals(0, nodes.size());
+        assertFalse(nodes.entrySet().iterator().hasNext());
+    }
+
+    @Test
+    public void testChildBeforeParent() {
+        OffHeapNodeHashMap nodes = new OffHeapNodeHashMap(new DigestCalculator());
+        DataNode child = newNode("child");
+        nodes.put("/a/b/c", child);
+        assertEquals(1, nodes.size());
+        assertNull(nodes.get("/a"));
+        assertNull(nodes.get("/a/b"));
+        assertNull(nodes.remove("/a/b"));
+        assertSame(child, nodes.get("/a/b/c"));
+
+        DataNode parent = newNode("parent");
+        nodes.put("/a", parent);
+        assertEquals(2, nodes.size());
+        assertSame(child, nodes.remove("/a/b/c"));
+        assertSame(parent, nodes.get("/a"));
+        assertEquals(1, toMap(nodes).size());
+    }
+
+    @Test
+    public void testChurn() {
+        OffHeapNodeHashMap nodes = new OffHeapNodeHashMap(new DigestCalculator());
+        Map<String, DataNode> reference = new HashMap<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 50000; i++) {
+            // deep and shallow paths, with both shared and unique segments
+            String path = "/app" + random.nextInt(5) + "/dir" + random.nextInt(50) + "/node-" + random.nextInt(2000);
+            if (random.nextInt(3) == 0) {
+                assertSame(reference.remove(path), nodes.remove(path), path);
+            } else {
+                DataNode node = newNode(path);
+                assertSame(reference.put(path, node), nodes.put(path, node), path);
+            }
+        }
+        assertEquals(reference.size(), nodes.size());
+        assertEquals(reference, toMap(nodes));
+        for (Map.Entry<String, DataNode> entry : reference.entrySet()) {
+            assertSame(entry.getValue(), nodes.get(entry.getKey()));
+        }
+        for (String path : reference.keySet()) {
+            nodes.remove(path);
+        }
+        assertEquals(0, nodes.size());
+
+        nodes.put("/after", newNode("after"));
+        assertEquals(1, toMap(nodes).size());
+        nodes.clear();
+        assertEquals(0, nodes.size());
+        assertNull(nodes.get("/after"));
+    }
+
+    @Test
+    public void testConcurrentReads() throws Exception {
+        OffHeapNodeHashMap nodes = new OffHeapNodeHashMap(new DigestCalculator());
+        DataNode stable = newNode("stable");
+        nodes.put("/stable/node", stable);
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicReference<String> failure = new AtomicReference<>();
+        Thread reader = new Thread(() -> {
+            while (!done.get()) {
+                if (nodes.get("/stable/node") != stable) {
+                    failure.set("lost /stable/node");
+                }
+                if (nodes.get("/missing") != null) {
+                    failure.set("found /missing");
+                }
+            }
+        });
+        reader.start();
+        // grows, rehashes and compacts the arenas
+        for (int i = 0; i < 20000; i++) {
+            nodes.put("/churn/node-" + i, newNode("x"));
+            if (i >= 100) {
+                nodes.remove("/churn/node-" + (i - 100));
+            }
+        }
+        done.set(true);
+        reader.join();
+        assertNull(failure.get());
+        assertEquals(101, nodes.size());
+    }
+
+    @Test
+    public void testDataTreeUsesOffHeapMap() throws Exception {
+        System.setProperty(OffHeapNodeHashMap.ZOOKEEPER_OFF_HEAP_NODE_HASH_MAP, "true");
+        DataTree tree = new DataTree();
+        System.clearProperty(OffHeapNodeHashMap.ZOOKEEPER_OFF_HEAP_NODE_HASH_MAP);
+        DataTree reference = new DataTree();
+        for (DataTree dt : new DataTree[] {tree, reference}) {
+            dt.createNode("/a", "a".getBytes(), null, -1, 1, 1, 1);
+            dt.createNode("/a/b", "b".getBytes(), null, -1, 1, 2, 2);
+            dt.setData("/a", "a2".getBytes(), 1, 3, 3);
+            dt.deleteNode("/a/b", 4);
+        }
+        assertEquals(reference.getNodeCount(), tree.getNodeCount());
+        assertEquals(reference.getTreeDigest(), tree.getTreeDigest());
+        assertTrue(tree.getNode("/a").getChildren().isEmpty());
+    }
+
+}
@@ -0,0 +1,57 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.nio.ByteBuffer;
+import org.apache.zookeeper.data.Stat;
+import org.junit.jupiter.api.Test;
+
+public class ResponseCacheBufferTest {
+
+    @Test
+    public void testCachedBuffers() {
+        ResponseCache cache = new ResponseCache(4, "test");
+        Stat stat = new Stat();
+        stat.setMzxid(5);
+        byte[] data = {1, 2, 3};
+        ByteBuffer sent = cache.put("/a", data, stat);
+        data[0] = 9;
+
+        // each response reads its own view of the cached buffer
+        ByteBuffer first = cache.get("/a", stat);
+        ByteBuffer second = cache.get("/a", stat);
+        assertTrue(first.isReadOnly());
+        assertTrue(first.isDirect());
+        for (ByteBuffer buffer : new ByteBuffer[] {sent, first, second}) {
+            assertEquals(3, buffer.remaining());
+            assertEquals(1, buffer.get(0));
+        }
+        first.get();
+        assertEquals(3, second.remaining());
+
+        Stat changed = new Stat();
+        changed.setMzxid(6);
+        assertNull(cache.get("/a", changed));
+        assertNull(cache.get("/a", stat));
+    }
+
+}
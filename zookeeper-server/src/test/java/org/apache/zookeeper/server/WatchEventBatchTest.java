@@ -0,0 +1,138 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.apache.jute.BinaryInputArchive;
+import org.apache.zookeeper.ClientCnxn;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher.Event.EventType;
+import org.apache.zookeeper.Watcher.Event.KeeperState;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.proto.ReplyHeader;
+import org.apache.zookeeper.proto.WatcherEvent;
+import org.apache.zookeeper.test.ClientBase;
+import org.junit.jupiter.api.Test;
+
+public class WatchEventBatchTest extends ClientBase {
+
+    private static class RecordingCnxn extends DumbWatcher {
+
+        final List<ByteBuffer[]> writes = new ArrayList<>();
+        int unbatched;
+
+        RecordingCnxn(long sessionId) {
+            super(sessionId);
+        }
+
+        @Override
+        public void process(WatchedEvent event) {
+            if (!processInBatch(event)) {
+                unbatched++;
+            }
+        }
+
+        @Override
+        void sendBuffer(ByteBuffer... buffers) {
+            writes.add(buffers);
+        }
+
+    }
+
+    private static WatchedEvent readFrame(ByteBuffer frame) throws Exception {
+        byte[] bytes = new byte[frame.remaining()];
+        frame.duplicate().get(bytes);
+        BinaryInputArchive ia = BinaryInputArchive.getArchive(new ByteArrayInputStream(bytes));
+        assertEquals(bytes.length - 4, ia.readInt("len"));
+        ReplyHeader h = new ReplyHeader();
+        h.deserialize(ia, "header");
+        assertEquals(ClientCnxn.NOTIFICATION_XID, h.getXid());
+        WatcherEvent e = new WatcherEvent();
+        e.deserialize(ia, "notification");
+        return new WatchedEvent(e, h.getZxid());
+    }
+
+    @Test
+    public void testBatch() throws Exception {
+        RecordingCnxn cnxn1 = new RecordingCnxn(1);
+        RecordingCnxn cnxn2 = new RecordingCnxn(2);
+        WatchedEvent deleted = new WatchedEvent(EventType.NodeDeleted, KeeperState.SyncConnected, "/a", 5);
+        WatchedEvent changed = new WatchedEvent(EventType.NodeChildrenChanged, KeeperState.SyncConnected, "/", 5);
+
+        WatchEventBatch.begin();
+        WatchEventBatch.begin();
+        cnxn1.process(deleted);
+        cnxn2.process(deleted);
+        WatchEventBatch.end();
+        cnxn1.process(changed);
+        assertTrue(cnxn1.writes.isEmpty());
+        WatchEventBatch.end();
+
+        // one write per connection, with a frame per event in order
+        assertEquals(1, cnxn1.writes.size());
+        assertEquals(1, cnxn2.writes.size());
+        ByteBuffer[] frames = cnxn1.writes.get(0);
+        assertEquals(2, frames.length);
+        WatchedEvent first = readFrame(frames[0]);
+        assertEquals(EventType.NodeDeleted, first.getType());
+        assertEquals("/a", first.getPath());
+        assertEquals(5, first.getZxid());
+        assertEquals("/", readFrame(frames[1]).getPath());
+        assertArrayEquals(new ByteBuffer[] {frames[0]}, cnxn2.writes.get(0));
+
+        // sent right away without a batch
+        cnxn1.process(deleted);
+        assertEquals(1, cnxn1.unbatched);
+        assertEquals(1, cnxn1.writes.size());
+    }
+
+    @Test
+    public void testMultiFiresWatches() throws Exception {
+        LinkedBlockingQueue<WatchedEvent> events = new LinkedBlockingQueue<>();
+        try (ZooKeeper zk = createClient()) {
+            List<Op> ops = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                String path = "/node" + i;
+                zk.create(path, new byte[0], Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+                zk.exists(path, events::add);
+                ops.add(Op.delete(path, -1));
+            }
+            zk.multi(ops);
+            for (int i = 0; i < 50; i++) {
+                WatchedEvent event = events.poll(CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS);
+                assertNotNull(event);
+                assertEquals(EventType.NodeDeleted, event.getType());
+                assertEquals("/node" + i, event.getPath());
+            }
+        }
+    }
+
+}
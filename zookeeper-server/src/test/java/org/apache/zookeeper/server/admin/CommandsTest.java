@@ -37,6 +37,7 @@
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import javax.servlet.http.HttpServletResponse;
 import org.apache.zookeeper.metrics.MetricsUtils;
@@ -275,6 +276,19 @@ public void testServerStats() throws IOException, InterruptedException {
         testCommand("server_stats", new Field("version", String.class), new Field("read_only", Boolean.class), new Field("server_stats", ServerStats.class), new Field("node_count", Integer.class), new Field("client_response", BufferStats.class));
     }
 
+    @Test
+    public void testHash() throws IOException, InterruptedException {
+        testCommand("hash", new Field("digests", List.class));
+
+        Map<String, String> kwargs = new HashMap<>();
+        kwargs.put("verify", "true");
+        testCommand("hash", kwargs, null, null, new HashMap<>(), HttpServletResponse.SC_OK,
+                new Field("digests", List.class),
+                new Field("tree_digest", Long.class),
+                new Field("calculated_digest", Long.class),
+                new Field("digest_matches", Boolean.class));
+    }
+
     @Test
     public void testSetTraceMask() throws IOException, InterruptedException {
         Map<String, String> kwargs = new HashMap<>();
@@ -0,0 +1,200 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.persistence;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.server.Request;
+import org.apache.zookeeper.server.util.LogChopper;
+import org.apache.zookeeper.test.ClientBase;
+import org.apache.zookeeper.txn.CreateTxn;
+import org.apache.zookeeper.txn.TxnHeader;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+public class BlockFileTxnLogTest extends ZKTestCase {
+
+    private static Request createRequest(long zxid, byte[] data) {
+        return new Request(0, 0, 0,
+                new TxnHeader(1, 1, zxid, zxid, ZooDefs.OpCode.create),
+                new CreateTxn("/node-" + zxid, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, false, 0),
+                0);
+    }
+
+    private static void appendAndCommit(TxnLog log, int count, byte[] data) throws IOException {
+        for (int i = 1; i <= count; i++) {
+            log.append(createRequest(i, data));
+            if (i % 10 == 0) {
+                log.commit();
+            }
+        }
+        log.commit();
+    }
+
+    private static void assertTxns(File logDir, int count, byte[] data) throws IOException {
+        try (FileTxnLog.FileTxnIterator itr = new FileTxnLog.FileTxnIterator(logDir, 0)) {
+            for (int i = 1; i <= count; i++) {
+                assertEquals(i, itr.getHeader().getZxid());
+                assertArrayEquals(data, ((CreateTxn) itr.getTxn()).getData());
+                assertEquals(i < count, itr.next());
+            }
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(TxnLogBlock.Codec.class)
+    public void testReadBlocks(TxnLogBlock.Codec codec) throws IOException {
+        File logDir = ClientBase.createTmpDir();
+        File plainDir = ClientBase.createTmpDir();
+        byte[] data = new byte[500];
+        Arrays.fill(data, (byte) 'x');
+
+        try (BlockFileTxnLog log = new BlockFileTxnLog(logDir, codec);
+             FileTxnLog plainLog = new FileTxnLog(plainDir)) {
+            appendAndCommit(log, 100, data);
+            appendAndCommit(plainLog, 100, data);
+            assertEquals(100, log.getLastLoggedZxid());
+            if (codec != TxnLogBlock.Codec.NONE) {
+                assertTrue(log.filePosition < plainLog.filePosition / 4,
+                    "compressed log should be much smaller than " + plainLog.filePosition + " bytes");
+            }
+        }
+        assertTxns(logDir, 100, data);
+
+        // the iterator moves from a block log to a plain one
+        try (FileTxnLog plainLog = new FileTxnLog(logDir)) {
+            plainLog.lastZxidSeen = 100;
+            plainLog.append(createRequest(101, data));
+            plainLog.commit();
+        }
+        try (FileTxnLog.FileTxnIterator itr = new FileTxnLog.FileTxnIterator(logDir, 100)) {
+            assertEquals(100, itr.getHeader().getZxid());
+            assertTrue(itr.next());
+            assertEquals(101, itr.getHeader().getZxid());
+            assertFalse(itr.next());
+        }
+    }
+
+    @Test
+    public void testTruncateWithinBlock() throws IOException {
+        File logDir = ClientBase.createTmpDir();
+        byte[] data = new byte[100];
+
+        try (BlockFileTxnLog log = new BlockFileTxnLog(logDir, TxnLogBlock.Codec.LZ4)) {
+            appendAndCommit(log, 30, data);
+        }
+        try (FileTxnLog log = new FileTxnLog(logDir)) {
+            assertTrue(log.truncate(15));
+            assertEquals(15, log.getLastLoggedZxid());
+        }
+        assertTxns(logDir, 15, data);
+
+        // truncating at the end of a block keeps the block as is
+        try (FileTxnLog log = new FileTxnLog(logDir)) {
+            assertTrue(log.truncate(10));
+            assertEquals(10, log.getLastLoggedZxid());
+        }
+        assertTxns(logDir, 10, data);
+    }
+
+    @Test
+    public void testCorruptBlock() throws IOException {
+        File logDir = ClientBase.createTmpDir();
+        try (BlockFileTxnLog log = new BlockFileTxnLog(logDir, TxnLogBlock.Codec.NONE)) {
+            appendAndCommit(log, 10, new byte[100]);
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(new File(logDir, Util.makeLogName(1)), "rw")) {
+            // a byte of the first txn, behind the file and block headers
+            raf.seek(16 + 24 + 50);
+            raf.write(0xff);
+        }
+        IOException e = assertThrows(IOException.class, () -> new FileTxnLog.FileTxnIterator(logDir, 0));
+        assertEquals(FileTxnLog.FileTxnIterator.CRC_ERROR, e.getMessage());
+    }
+
+    @Test
+    public void testCorruptBlockLength() throws IOException {
+        File logDir = ClientBase.createTmpDir();
+        try (BlockFileTxnLog log = new BlockFileTxnLog(logDir, TxnLogBlock.Codec.NONE)) {
+            appendAndCommit(log, 10, new byte[100]);
+        }
+        // the raw length and the length of the first block, behind the file header
+        for (int offset : new int[] {16 + 16, 16 + 20}) {
+            File logFile = new File(logDir, Util.makeLogName(1));
+            byte[] original = Files.readAllBytes(logFile.toPath());
+            try (RandomAccessFile raf = new RandomAccessFile(logFile, "rw")) {
+                raf.seek(offset);
+                raf.writeInt(Integer.MAX_VALUE - 1);
+            }
+            IOException e = assertThrows(IOException.class, () -> new FileTxnLog.FileTxnIterator(logDir, 0));
+            assertEquals("Invalid txn log block header", e.getMessage());
+            Files.write(logFile.toPath(), original);
+        }
+    }
+
+    @Test
+    public void testChopBlockLog() throws IOException {
+        File logDir = ClientBase.createTmpDir();
+        byte[] data = new byte[100];
+        try (BlockFileTxnLog log = new BlockFileTxnLog(logDir, TxnLogBlock.Codec.ZSTD)) {
+            appendAndCommit(log, 30, data);
+        }
+        byte[] logBytes = Files.readAllBytes(new File(logDir, Util.makeLogName(1)).toPath());
+        ByteArrayOutputStream chopped = new ByteArrayOutputStream();
+        assertTrue(LogChopper.chop(new ByteArrayInputStream(logBytes), chopped, 25));
+
+        File choppedDir = ClientBase.createTmpDir();
+        Files.write(new File(choppedDir, Util.makeLogName(1)).toPath(), chopped.toByteArray());
+        assertTxns(choppedDir, 25, data);
+    }
+
+    @Test
+    public void testFileTxnSnapLogUsesBlockLog() throws IOException {
+        File tmpDir = ClientBase.createTmpDir();
+        System.setProperty(FileTxnSnapLog.ZOOKEEPER_TXNLOG_BLOCK_FORMAT, "true");
+        System.setProperty(TxnLogBlock.ZOOKEEPER_TXNLOG_COMPRESSION, "lz4");
+        try {
+            FileTxnSnapLog snapLog = new FileTxnSnapLog(tmpDir, tmpDir);
+            assertTrue(snapLog.txnLog instanceof BlockFileTxnLog);
+            for (int i = 1; i <= 5; i++) {
+                snapLog.append(createRequest(i, new byte[10]));
+            }
+            snapLog.commit();
+            assertEquals(5, snapLog.getLastLoggedZxid());
+            snapLog.close();
+        } finally {
+            System.clearProperty(FileTxnSnapLog.ZOOKEEPER_TXNLOG_BLOCK_FORMAT);
+            System.clearProperty(TxnLogBlock.ZOOKEEPER_TXNLOG_COMPRESSION);
+        }
+    }
+
+}
@@ -0,0 +1,187 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.persistence;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.server.DataNode;
+import org.apache.zookeeper.server.DataTree;
+import org.apache.zookeeper.test.ClientBase;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class DeltaSnapshotTest {
+
+    private static final List<String> PATHS = Arrays.asList("", "/a", "/a/b", "/c", "/c/d", "/e", "/e/f");
+
+    private File dataDir;
+
+    private DataTree dt;
+
+    private ConcurrentHashMap<Long, Integer> sessions;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        FileSnap.setMaxDeltaCount(2);
+        dataDir = ClientBase.createTmpDir();
+        dt = new DataTree();
+        sessions = new ConcurrentHashMap<>();
+        sessions.put(1L, 3000);
+        create("/a", 1, 0);
+        create("/a/b", 2, 0);
+        create("/c", 3, 0);
+        // enough nodes that the changes of a test make up a small part of the tree
+        for (int i = 0; i < 20; i++) {
+            dt.createNode("/n" + i, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, 0, -1, 3, 3);
+        }
+    }
+
+    @AfterEach
+    public void tearDown() {
+        FileSnap.setMaxDeltaCount(0);
+    }
+
+    private void create(String path, long zxid, long owner) throws Exception {
+        dt.createNode(path, path.getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, owner, -1, zxid, zxid);
+        dt.lastProcessedZxid = zxid;
+    }
+
+    private DataTree restore(FileTxnSnapLog snapLog, ConcurrentHashMap<Long, Integer> restoredSessions)
+            throws Exception {
+        DataTree restored = new DataTree();
+        snapLog.restore(restored, restoredSessions, (hdr, rec, digest) -> { });
+        return restored;
+    }
+
+    private void assertSameTree(DataTree expected, DataTree actual) {
+        for (String path : PATHS) {
+            DataNode node = expected.getNode(path);
+            DataNode restored = actual.getNode(path);
+            if (node == null) {
+                assertNull(restored, path);
+                continue;
+            }
+            Stat stat = new Stat();
+            Stat restoredStat = new Stat();
+            node.copyStat(stat);
+            restored.copyStat(restoredStat);
+            assertEquals(stat, restoredStat, path);
+            assertArrayEquals(node.getData(), restored.getData(), path);
+            assertEquals(node.getChildren(), restored.getChildren(), path);
+            assertEquals(expected.getACL(node), actual.getACL(restored), path);
+        }
+        assertEquals(expected.getNodeCount(), actual.getNodeCount());
+        assertEquals(expected.getEphemerals(), actual.getEphemerals());
+        assertEquals(expected.getTreeDigest(), actual.getTreeDigest());
+        assertEquals(expected.cachedApproximateDataSize(), actual.cachedApproximateDataSize());
+    }
+
+    @Test
+    public void testRestoreBaseAndDeltas() throws Exception {
+        FileTxnSnapLog snapLog = new FileTxnSnapLog(dataDir, dataDir);
+        File base = snapLog.save(dt, sessions, false);
+        assertTrue(base.getName().startsWith(FileSnap.SNAPSHOT_FILE_PREFIX + "."));
+
+        dt.setData("/a", "changed".getBytes(), 1, 4, 4);
+        dt.deleteNode("/a/b", 5);
+        create("/c/d", 6, 1L);
+        dt.setACL("/c", ZooDefs.Ids.READ_ACL_UNSAFE, 1);
+        File delta = snapLog.save(dt, sessions, false);
+        assertTrue(delta.getName().startsWith(FileSnap.DELTA_SNAPSHOT_FILE_PREFIX + "."));
+        assertEquals(6, Util.getZxidFromName(delta.getName(), FileSnap.DELTA_SNAPSHOT_FILE_PREFIX));
+
+        create("/e", 7, 0);
+        create("/e/f", 8, 0);
+        dt.deleteNode("/c/d", 9);
+        dt.lastProcessedZxid = 9;
+        sessions.remove(1L);
+        sessions.put(2L, 5000);
+        assertTrue(snapLog.save(dt, sessions, false).getName().startsWith(FileSnap.DELTA_SNAPSHOT_FILE_PREFIX));
+        snapLog.close();
+
+        ConcurrentHashMap<Long, Integer> restoredSessions = new ConcurrentHashMap<>();
+        FileTxnSnapLog restoreLog = new FileTxnSnapLog(dataDir, dataDir);
+        DataTree restored = restore(restoreLog, restoredSessions);
+        assertEquals(9, restored.lastProcessedZxid);
+        assertEquals(sessions, restoredSessions);
+        assertSameTree(dt, restored);
+        assertEquals(9, restoreLog.getLastSnapshotInfo().zxid);
+
+        // the chain was restored with its deltas, so it is compacted now
+        restored.setData("/e", new byte[0], 1, 10, 10);
+        restored.lastProcessedZxid = 10;
+        assertTrue(restoreLog.save(restored, restoredSessions, false).getName()
+            .startsWith(FileSnap.SNAPSHOT_FILE_PREFIX + "."));
+        restoreLog.close();
+    }
+
+    @Test
+    public void testFullSnapshotWhenMostNodesChanged() throws Exception {
+        FileTxnSnapLog snapLog = new FileTxnSnapLog(dataDir, dataDir);
+        snapLog.save(dt, sessions, false);
+        for (int i = 0; i < 20; i++) {
+            dt.setData("/n" + i, new byte[1], 1, 4, 4);
+        }
+        dt.lastProcessedZxid = 4;
+        assertTrue(snapLog.save(dt, sessions, false).getName().startsWith(FileSnap.SNAPSHOT_FILE_PREFIX + "."));
+
+        // a full snapshot can be asked for even if a delta would do
+        dt.setData("/a", new byte[1], 2, 5, 5);
+        dt.lastProcessedZxid = 5;
+        assertTrue(snapLog.save(dt, sessions, false, true).getName()
+            .startsWith(FileSnap.SNAPSHOT_FILE_PREFIX + "."));
+        snapLog.close();
+    }
+
+    @Test
+    public void testCorruptDeltaIsIgnored() throws Exception {
+        FileTxnSnapLog snapLog = new FileTxnSnapLog(dataDir, dataDir);
+        snapLog.save(dt, sessions, false);
+        create("/e", 4, 0);
+        snapLog.save(dt, sessions, false);
+        create("/e/f", 5, 0);
+        File delta = snapLog.save(dt, sessions, false);
+        snapLog.close();
+        try (RandomAccessFile raf = new RandomAccessFile(delta, "rw")) {
+            raf.setLength(raf.length() / 2);
+        }
+
+        FileTxnSnapLog restoreLog = new FileTxnSnapLog(dataDir, dataDir);
+        DataTree restored = restore(restoreLog, new ConcurrentHashMap<>());
+        assertEquals(4, restored.lastProcessedZxid);
+        assertNotNull(restored.getNode("/e"));
+        assertNull(restored.getNode("/e/f"));
+        // the chain is broken, the next snapshot starts a new one
+        assertTrue(restoreLog.save(restored, new ConcurrentHashMap<>(), false).getName()
+            .startsWith(FileSnap.SNAPSHOT_FILE_PREFIX + "."));
+        restoreLog.close();
+    }
+
+}
@@ -363,6 +363,25 @@ public void testACLCreatedDuringFuzzySnapshotSync() throws IOException {
         assertEquals(ZooDefs.Ids.CREATOR_ALL_ACL, followerDataTree.getACL(a1));
     }
 
+    @Test
+    public void testLastSealedSnapshot() throws IOException {
+        File dataDir = ClientBase.createEmptyTestDir();
+        FileTxnSnapLog snaplog = new FileTxnSnapLog(dataDir, dataDir);
+        DataTree dataTree = new DataTree();
+        ConcurrentHashMap<Long, Integer> sessions = new ConcurrentHashMap<>();
+        assertNull(snaplog.getLastSealedSnapshot());
+
+        dataTree.lastProcessedZxid = 1;
+        File snapshot = snaplog.save(dataTree, sessions, false);
+        assertEquals(snapshot, snaplog.getLastSealedSnapshot());
+
+        // a snapshot still being written is newer, but not sealed
+        assertTrue(new File(snaplog.getSnapDir(), Util.makeSnapshotName(2)).createNewFile());
+        FileTxnSnapLog restored = new FileTxnSnapLog(dataDir, dataDir);
+        restored.restore(new DataTree(), sessions, (hdr, rec, digest) -> {  });
+        assertEquals(snapshot, restored.getLastSealedSnapshot());
+    }
+
     @Test
     public void testEmptySnapshotSerialization() throws IOException {
         File dataDir = ClientBase.createEmptyTestDir();
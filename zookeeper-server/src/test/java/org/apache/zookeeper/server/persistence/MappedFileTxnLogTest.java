@@ -0,0 +1,169 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.persistence;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.server.Request;
+import org.apache.zookeeper.test.ClientBase;
+import org.apache.zookeeper.txn.CreateTxn;
+import org.apache.zookeeper.txn.TxnHeader;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class MappedFileTxnLogTest extends ZKTestCase {
+
+    private static final int KB = 1024;
+
+    private long savedPreAllocSize;
+
+    @BeforeEach
+    public void setUp() {
+        savedPreAllocSize = FilePadding.getPreAllocSize();
+        FilePadding.setPreallocSize(16 * KB);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        FilePadding.setPreallocSize(savedPreAllocSize);
+    }
+
+    private static Request createRequest(long zxid, byte[] data) {
+        return new Request(0, 0, 0,
+                new TxnHeader(1, 1, zxid, zxid, ZooDefs.OpCode.create),
+                new CreateTxn("/node-" + zxid, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, false, 0),
+                0);
+    }
+
+    private static void appendAndCommit(TxnLog log, int count, byte[] data) throws IOException {
+        for (int i = 1; i <= count; i++) {
+            log.append(createRequest(i, data));
+            if (i % 10 == 0) {
+                log.commit();
+            }
+        }
+        log.commit();
+    }
+
+    private static boolean isZeroFilled(byte[] bytes, int from) {
+        for (int i = from; i < bytes.length; i++) {
+            if (bytes[i] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Test
+    public void testSameBytesAsFileTxnLog() throws IOException {
+        File streamDir = ClientBase.createTmpDir();
+        File mappedDir = ClientBase.createTmpDir();
+        byte[] data = new byte[700];
+        Arrays.fill(data, (byte) 0xff);
+
+        try (FileTxnLog streamLog = new FileTxnLog(streamDir);
+             MappedFileTxnLog mappedLog = new MappedFileTxnLog(mappedDir)) {
+            appendAndCommit(streamLog, 100, data);
+            appendAndCommit(mappedLog, 100, data);
+
+            byte[] streamBytes = Files.readAllBytes(new File(streamDir, Util.makeLogName(1)).toPath());
+            byte[] mappedBytes = Files.readAllBytes(new File(mappedDir, Util.makeLogName(1)).toPath());
+            int written = (int) streamLog.filePosition;
+            assertEquals(written, mappedLog.filePosition);
+            assertEquals(0, mappedBytes.length % (16 * KB), "mapped file should end on a preallocation boundary");
+            assertArrayEquals(Arrays.copyOf(streamBytes, written), Arrays.copyOf(mappedBytes, written));
+            assertTrue(isZeroFilled(mappedBytes, written), "unwritten part of the mapped file should be zeros");
+        }
+    }
+
+    @Test
+    public void testTxnLargerThanWindow() throws IOException {
+        File logDir = ClientBase.createTmpDir();
+        byte[] large = new byte[3 * 16 * KB];
+        Arrays.fill(large, (byte) 0xff);
+
+        try (MappedFileTxnLog log = new MappedFileTxnLog(logDir)) {
+            log.append(createRequest(1, new byte[10]));
+            log.append(createRequest(2, large));
+            log.append(createRequest(3, new byte[10]));
+            log.commit();
+        }
+
+        try (FileTxnLog.FileTxnIterator itr = new FileTxnLog.FileTxnIterator(logDir, 0)) {
+            assertEquals(1, itr.getHeader().getZxid());
+            assertTrue(itr.next());
+            assertEquals(2, itr.getHeader().getZxid());
+            assertArrayEquals(large, ((CreateTxn) itr.getTxn()).getData());
+            assertTrue(itr.next());
+            assertEquals(3, itr.getHeader().getZxid());
+            assertFalse(itr.next());
+        }
+    }
+
+    @Test
+    public void testRollAndTruncate() throws IOException {
+        File logDir = ClientBase.createTmpDir();
+        byte[] data = new byte[100];
+
+        try (MappedFileTxnLog log = new MappedFileTxnLog(logDir)) {
+            for (int i = 1; i <= 20; i++) {
+                log.append(createRequest(i, data));
+                if (i == 10) {
+                    log.rollLog();
+                }
+            }
+            log.commit();
+            assertEquals(20, log.getLastLoggedZxid());
+            assertEquals(2, FileTxnLog.getLogFiles(logDir.listFiles(), 0).length);
+        }
+
+        try (FileTxnLog log = new FileTxnLog(logDir)) {
+            assertTrue(log.truncate(5));
+            assertEquals(5, log.getLastLoggedZxid());
+        }
+    }
+
+    @Test
+    public void testFileTxnSnapLogUsesMappedLog() throws IOException {
+        File tmpDir = ClientBase.createTmpDir();
+        System.setProperty(FileTxnSnapLog.ZOOKEEPER_TXNLOG_MMAP, "true");
+        try {
+            FileTxnSnapLog snapLog = new FileTxnSnapLog(tmpDir, tmpDir);
+            assertTrue(snapLog.txnLog instanceof MappedFileTxnLog);
+            for (int i = 1; i <= 5; i++) {
+                snapLog.append(createRequest(i, new byte[10]));
+            }
+            snapLog.commit();
+            assertEquals(5, snapLog.getLastLoggedZxid());
+            snapLog.close();
+        } finally {
+            System.clearProperty(FileTxnSnapLog.ZOOKEEPER_TXNLOG_MMAP);
+        }
+    }
+
+}
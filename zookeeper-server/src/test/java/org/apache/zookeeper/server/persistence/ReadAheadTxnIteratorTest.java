@@ -0,0 +1,191 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.persistence;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.server.DataTree;
+import org.apache.zookeeper.server.Request;
+import org.apache.zookeeper.test.ClientBase;
+import org.apache.zookeeper.txn.CreateTxn;
+import org.apache.zookeeper.txn.TxnHeader;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+public class ReadAheadTxnIteratorTest extends ZKTestCase {
+
+    @AfterEach
+    public void tearDown() {
+        System.clearProperty(ReadAheadTxnIterator.ZOOKEEPER_TXNLOG_READ_AHEAD);
+    }
+
+    private static Request createRequest(long zxid) {
+        return new Request(0, 0, 0,
+                new TxnHeader(1, 1, zxid, zxid, ZooDefs.OpCode.create),
+                new CreateTxn("/node-" + zxid, ("data" + zxid).getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, false, 0),
+                0);
+    }
+
+    /**
+     * log and apply the txns from zxid to zxid + count - 1
+     */
+    private static void logTxns(FileTxnSnapLog snapLog, DataTree tree, long zxid, int count) throws IOException {
+        for (long i = zxid; i < zxid + count; i++) {
+            Request request = createRequest(i);
+            snapLog.append(request);
+            tree.processTxn(request.getHdr(), request.getTxn());
+        }
+        snapLog.commit();
+    }
+
+    private static void assertNodes(DataTree tree, int count) throws Exception {
+        for (int i = 1; i <= count; i++) {
+            assertArrayEquals(("data" + i).getBytes(), tree.getData("/node-" + i, new Stat(), null));
+        }
+        assertNull(tree.getNode("/node-" + (count + 1)));
+    }
+
+    @Test
+    public void testReadAhead() throws IOException {
+        File logDir = ClientBase.createTmpDir();
+        try (FileTxnLog log = new FileTxnLog(logDir)) {
+            for (int i = 1; i <= 1000; i++) {
+                log.append(createRequest(i));
+            }
+            log.commit();
+
+            ReadAheadTxnIterator itr = new ReadAheadTxnIterator(log, 1, 256);
+            assertTrue(itr.skipTo(1));
+            for (int i = 1; i <= 1000; i++) {
+                assertEquals(i, itr.getHeader().getZxid());
+                assertEquals("/node-" + i, ((CreateTxn) itr.getTxn()).getPath());
+                assertEquals(i < 1000, itr.next());
+            }
+            assertFalse(itr.next());
+            itr.close();
+
+            itr = new ReadAheadTxnIterator(log, 1, 256);
+            assertTrue(itr.skipTo(500));
+            assertEquals(500, itr.getHeader().getZxid());
+            assertFalse(itr.skipTo(1001));
+            assertNull(itr.getHeader());
+            itr.close();
+        }
+    }
+
+    @Test
+    @Timeout(value = 30)
+    public void testCloseWhileReading() throws IOException {
+        File logDir = ClientBase.createTmpDir();
+        try (FileTxnLog log = new FileTxnLog(logDir)) {
+            for (int i = 1; i <= 1000; i++) {
+                log.append(createRequest(i));
+            }
+            log.commit();
+
+            // the reader is blocked on the full queue
+            ReadAheadTxnIterator itr = new ReadAheadTxnIterator(log, 1, 1);
+            assertTrue(itr.skipTo(1));
+            itr.close();
+        }
+    }
+
+    @Test
+    public void testReadFailure() throws IOException {
+        File logDir = ClientBase.createTmpDir();
+        try (FileTxnLog log = new FileTxnLog(logDir)) {
+            for (int i = 1; i <= 10; i++) {
+                log.append(createRequest(i));
+            }
+            log.commit();
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(new File(logDir, Util.makeLogName(1)), "rw")) {
+            // a byte of the first txn, behind the file header
+            raf.seek(16 + 30);
+            raf.write(0xff);
+        }
+        ReadAheadTxnIterator itr = new ReadAheadTxnIterator(new FileTxnLog(logDir), 1, 256);
+        IOException e = assertThrows(IOException.class, () -> itr.skipTo(1));
+        assertEquals(FileTxnLog.FileTxnIterator.CRC_ERROR, e.getMessage());
+        itr.close();
+    }
+
+    @Test
+    public void testRestore() throws Exception {
+        System.setProperty(ReadAheadTxnIterator.ZOOKEEPER_TXNLOG_READ_AHEAD, "100");
+        File tmpDir = ClientBase.createTmpDir();
+        FileTxnSnapLog snapLog = new FileTxnSnapLog(tmpDir, tmpDir);
+        DataTree tree = new DataTree();
+        logTxns(snapLog, tree, 1, 200);
+        snapLog.save(tree, new ConcurrentHashMap<>(), true);
+        logTxns(snapLog, tree, 201, 300);
+        snapLog.close();
+
+        snapLog = new FileTxnSnapLog(tmpDir, tmpDir);
+        DataTree restored = new DataTree();
+        assertEquals(500, snapLog.restore(restored, new ConcurrentHashMap<>(), (hdr, rec, digest) -> { }));
+        assertNodes(restored, 500);
+
+        // replaying from a restored tree reads ahead too
+        logTxns(snapLog, tree, 501, 10);
+        restored.lastProcessedZxid = 500;
+        assertEquals(510, snapLog.fastForwardFromEdits(restored, new ConcurrentHashMap<>(), (hdr, rec, digest) -> { }));
+        assertNodes(restored, 510);
+        snapLog.close();
+    }
+
+    @Test
+    public void testRestoreFromOlderSnapshot() throws Exception {
+        System.setProperty(ReadAheadTxnIterator.ZOOKEEPER_TXNLOG_READ_AHEAD, "100");
+        File tmpDir = ClientBase.createTmpDir();
+        FileTxnSnapLog snapLog = new FileTxnSnapLog(tmpDir, tmpDir);
+        DataTree tree = new DataTree();
+        logTxns(snapLog, tree, 1, 100);
+        snapLog.save(tree, new ConcurrentHashMap<>(), true);
+        logTxns(snapLog, tree, 101, 100);
+        File newest = snapLog.save(tree, new ConcurrentHashMap<>(), true);
+        logTxns(snapLog, tree, 201, 100);
+        snapLog.close();
+
+        // the txns are read ahead from the newest snapshot, which turns out
+        // to be corrupt, so the ones in between have to be read again
+        try (RandomAccessFile raf = new RandomAccessFile(newest, "rw")) {
+            raf.seek(raf.length() / 2);
+            raf.write(~raf.read());
+        }
+        snapLog = new FileTxnSnapLog(tmpDir, tmpDir);
+        DataTree restored = new DataTree();
+        assertEquals(300, snapLog.restore(restored, new ConcurrentHashMap<>(), (hdr, rec, digest) -> { }));
+        assertNodes(restored, 300);
+        snapLog.close();
+    }
+
+}
@@ -41,6 +41,8 @@ public class SnapStreamTest {
     public void tearDown() {
         System.clearProperty(SnapStream.ZOOKEEPER_SHAPSHOT_STREAM_MODE);
         SnapStream.setStreamMode(StreamMode.DEFAULT_MODE);
+        SnapStream.setCompressionLevel(null);
+        SnapStream.setZstdDictionary(null);
     }
 
     @Test
@@ -54,6 +56,10 @@ public void testStreamMode() {
         assertEquals(StreamMode.SNAPPY.getName(), "snappy");
         assertEquals(StreamMode.SNAPPY.getFileExtension(), ".snappy");
         assertEquals(StreamMode.SNAPPY, StreamMode.fromString("snappy"));
+        assertEquals(StreamMode.ZSTD.getFileExtension(), ".zst");
+        assertEquals(StreamMode.ZSTD, StreamMode.fromString("zst"));
+        assertEquals(StreamMode.LZ4.getFileExtension(), ".lz4");
+        assertEquals(StreamMode.LZ4, StreamMode.fromString("lz4"));
     }
 
     @Test
@@ -61,6 +67,8 @@ public void testGetStreamMode() {
         assertEquals(StreamMode.CHECKED, SnapStream.getStreamMode("snapshot.180000e3a2"), "expected to return un-compressed stream");
         assertEquals(StreamMode.SNAPPY, SnapStream.getStreamMode("snapshot.180000e3a2.snappy"), "expected to return snappy stream");
         assertEquals(StreamMode.GZIP, SnapStream.getStreamMode("snapshot.180000e3a2.gz"), "expected to return gzip stream");
+        assertEquals(StreamMode.ZSTD, SnapStream.getStreamMode("snapshot.180000e3a2.zst"), "expected to return zstd stream");
+        assertEquals(StreamMode.LZ4, SnapStream.getStreamMode("snapshot.180000e3a2.lz4"), "expected to return lz4 stream");
     }
 
     @Test
@@ -78,6 +86,26 @@ public void testSerializeDeserializeWithGZIP() throws IOException {
         testSerializeDeserialize(StreamMode.GZIP, ".gz");
     }
 
+    @Test
+    public void testSerializeDeserializeWithZSTD() throws IOException {
+        testSerializeDeserialize(StreamMode.ZSTD, ".zst");
+        SnapStream.setCompressionLevel(9);
+        testSerializeDeserialize(StreamMode.ZSTD, ".zst");
+    }
+
+    @Test
+    public void testSerializeDeserializeWithZSTDDictionary() throws IOException {
+        SnapStream.setZstdDictionary("{\"host\":\"10.0.0.1\",\"port\":2181,\"weight\":1}".getBytes());
+        testSerializeDeserialize(StreamMode.ZSTD, ".zst");
+    }
+
+    @Test
+    public void testSerializeDeserializeWithLZ4() throws IOException {
+        testSerializeDeserialize(StreamMode.LZ4, ".lz4");
+        SnapStream.setCompressionLevel(9);
+        testSerializeDeserialize(StreamMode.LZ4, ".lz4");
+    }
+
     private void testSerializeDeserialize(StreamMode mode, String fileSuffix) throws IOException {
         testSerializeDeserialize(mode, fileSuffix, false);
         testSerializeDeserialize(mode, fileSuffix, true);
@@ -134,6 +162,8 @@ public void testInvalidSnapshot() throws IOException {
         checkInvalidSnapshot("snapshot.180000e3a2");
         checkInvalidSnapshot("snapshot.180000e3a2.gz");
         checkInvalidSnapshot("snapshot.180000e3a2.snappy");
+        checkInvalidSnapshot("snapshot.180000e3a2.zst");
+        checkInvalidSnapshot("snapshot.180000e3a2.lz4");
     }
 
 }
@@ -0,0 +1,243 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.persistence;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.zookeeper.ZKTestCase;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.server.Request;
+import org.apache.zookeeper.test.ClientBase;
+import org.apache.zookeeper.txn.CreateTxn;
+import org.apache.zookeeper.txn.TxnHeader;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class StripedFileTxnLogTest extends ZKTestCase {
+
+    private List<File> logDirs;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        logDirs = Arrays.asList(ClientBase.createTmpDir(), ClientBase.createTmpDir(), ClientBase.createTmpDir());
+    }
+
+    private static Request createRequest(long zxid) {
+        return new Request(0, 0, 0,
+                new TxnHeader(1, 1, zxid, zxid, ZooDefs.OpCode.create),
+                new CreateTxn("/node-" + zxid, new byte[10], ZooDefs.Ids.OPEN_ACL_UNSAFE, false, 0),
+                0);
+    }
+
+    private static List<Long> readZxids(TxnLog log, long from) throws IOException {
+        List<Long> zxids = new ArrayList<>();
+        try (TxnLog.TxnIterator itr = log.read(from)) {
+            while (itr.getHeader() != null) {
+                zxids.add(itr.getHeader().getZxid());
+                if (!itr.next()) {
+                    break;
+                }
+            }
+        }
+        return zxids;
+    }
+
+    private static List<Long> range(long from, long to) {
+        List<Long> zxids = new ArrayList<>();
+        for (long zxid = from; zxid <= to; zxid++) {
+            zxids.add(zxid);
+        }
+        return zxids;
+    }
+
+    private void writeLog(int count, int rollAt) throws IOException {
+        try (StripedFileTxnLog log = StripedFileTxnLog.open(logDirs)) {
+            for (int i = 1; i <= count; i++) {
+                log.append(createRequest(i));
+                if (i % 4 == 0) {
+                    log.commit();
+                }
+                if (i == rollAt) {
+                    log.rollLog();
+                }
+            }
+            log.commit();
+        }
+    }
+
+    @Test
+    public void testStripesAreMergedInZxidOrder() throws IOException {
+        writeLog(20, 10);
+
+        for (File logDir : logDirs) {
+            assertTrue(new File(logDir, Util.makeLogName(1)).exists());
+            assertTrue(new File(logDir, Util.makeLogName(11)).exists());
+        }
+        // every stripe holds a regular log of its share of the txns
+        try (FileTxnLog.FileTxnIterator itr = new FileTxnLog.FileTxnIterator(
+                new File(logDirs.get(1), Util.makeLogName(1)))) {
+            assertEquals(2, itr.getHeader().getZxid());
+            assertTrue(itr.next());
+            assertEquals(5, itr.getHeader().getZxid());
+        }
+
+        StripedFileTxnLog log = StripedFileTxnLog.open(logDirs);
+        assertEquals(range(1, 20), readZxids(log, 0));
+        assertEquals(range(7, 20), readZxids(log, 7));
+        assertEquals(range(15, 20), readZxids(log, 15));
+        assertEquals(20, log.getLastLoggedZxid());
+    }
+
+    @Test
+    public void testReadStopsAtTxnMissingFromItsStripe() throws IOException {
+        writeLog(9, -1);
+
+        // drop zxid 8, the third txn of the second stripe, as a crash might
+        File logFile = new File(logDirs.get(1), Util.makeLogName(1));
+        long keep;
+        try (FileTxnLog.FileTxnIterator itr = new FileTxnLog.FileTxnIterator(logFile)) {
+            itr.next();
+            keep = itr.inputStream.getPosition();
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(logFile, "rw")) {
+            raf.setLength(keep);
+        }
+
+        StripedFileTxnLog log = StripedFileTxnLog.open(logDirs);
+        assertEquals(range(1, 7), readZxids(log, 0));
+        assertEquals(7, log.getLastLoggedZxid());
+    }
+
+    @Test
+    public void testTruncate() throws IOException {
+        writeLog(20, 10);
+
+        try (StripedFileTxnLog log = StripedFileTxnLog.open(logDirs)) {
+            assertTrue(log.truncate(5));
+            assertEquals(range(1, 5), readZxids(log, 0));
+            assertEquals(5, log.getLastLoggedZxid());
+        }
+        for (File logDir : logDirs) {
+            assertFalse(new File(logDir, Util.makeLogName(11)).exists());
+        }
+
+        // appending after the truncation continues the set cleanly
+        try (StripedFileTxnLog log = StripedFileTxnLog.open(logDirs)) {
+            for (int i = 6; i <= 8; i++) {
+                log.append(createRequest(i));
+            }
+            log.commit();
+            assertEquals(range(1, 8), readZxids(log, 0));
+        }
+    }
+
+    @Test
+    public void testEmptyLog() throws IOException {
+        StripedFileTxnLog log = StripedFileTxnLog.open(logDirs);
+        assertEquals(-1, log.getLastLoggedZxid());
+        try (TxnLog.TxnIterator itr = log.read(0)) {
+            assertNull(itr.getHeader());
+        }
+    }
+
+    @Test
+    public void testFileTxnSnapLogWithStripes() throws IOException {
+        File dataDir = ClientBase.createTmpDir();
+        File stripe1 = ClientBase.createTmpDir();
+        File stripe2 = ClientBase.createTmpDir();
+        System.setProperty(FileTxnSnapLog.ZOOKEEPER_TXNLOG_STRIPE_DIRS, stripe1 + "," + stripe2);
+        try {
+            FileTxnSnapLog snapLog = new FileTxnSnapLog(dataDir, dataDir);
+            assertEquals(3, snapLog.getTxnLogDirs().size());
+            assertEquals(3, ((StripedFileTxnLog) snapLog.txnLog).getStripeCount());
+            for (int i = 1; i <= 10; i++) {
+                snapLog.append(createRequest(i));
+            }
+            snapLog.commit();
+            assertEquals(10, snapLog.getLastLoggedZxid());
+            assertEquals(range(4, 10), readZxids(StripedFileTxnLog.open(snapLog.getTxnLogDirs()), 4));
+            assertEquals(3, snapLog.getSnapshotLogs(0).length);
+            snapLog.close();
+        } finally {
+            System.clearProperty(FileTxnSnapLog.ZOOKEEPER_TXNLOG_STRIPE_DIRS);
+        }
+    }
+
+    @Test
+    public void testChangedStripesFailStartup() throws IOException {
+        File dataDir = ClientBase.createTmpDir();
+        File stripe1 = ClientBase.createTmpDir();
+        File stripe2 = ClientBase.createTmpDir();
+
+        // unstriped logs cannot be read as stripes
+        FileTxnSnapLog snapLog = new FileTxnSnapLog(dataDir, dataDir);
+        snapLog.append(createRequest(1));
+        snapLog.commit();
+        snapLog.close();
+        System.setProperty(FileTxnSnapLog.ZOOKEEPER_TXNLOG_STRIPE_DIRS, stripe1 + "," + stripe2);
+        try {
+            assertThrows(FileTxnSnapLog.LogDirContentCheckException.class, () -> new FileTxnSnapLog(dataDir, dataDir));
+        } finally {
+            System.clearProperty(FileTxnSnapLog.ZOOKEEPER_TXNLOG_STRIPE_DIRS);
+        }
+
+        File stripedDataDir = ClientBase.createTmpDir();
+        System.setProperty(FileTxnSnapLog.ZOOKEEPER_TXNLOG_STRIPE_DIRS, stripe1 + "," + stripe2);
+        try {
+            snapLog = new FileTxnSnapLog(stripedDataDir, stripedDataDir);
+            for (int i = 1; i <= 6; i++) {
+                snapLog.append(createRequest(i));
+            }
+            snapLog.commit();
+            snapLog.close();
+            // reopening with the same stripes works
+            new FileTxnSnapLog(stripedDataDir, stripedDataDir).close();
+        } finally {
+            System.clearProperty(FileTxnSnapLog.ZOOKEEPER_TXNLOG_STRIPE_DIRS);
+        }
+
+        // neither do fewer stripes, stripes in another order, or no stripes
+        System.setProperty(FileTxnSnapLog.ZOOKEEPER_TXNLOG_STRIPE_DIRS, stripe1.toString());
+        try {
+            assertThrows(FileTxnSnapLog.LogDirContentCheckException.class,
+                () -> new FileTxnSnapLog(stripedDataDir, stripedDataDir));
+        } finally {
+            System.clearProperty(FileTxnSnapLog.ZOOKEEPER_TXNLOG_STRIPE_DIRS);
+        }
+        System.setProperty(FileTxnSnapLog.ZOOKEEPER_TXNLOG_STRIPE_DIRS, stripe2 + "," + stripe1);
+        try {
+            assertThrows(FileTxnSnapLog.LogDirContentCheckException.class,
+                () -> new FileTxnSnapLog(stripedDataDir, stripedDataDir));
+        } finally {
+            System.clearProperty(FileTxnSnapLog.ZOOKEEPER_TXNLOG_STRIPE_DIRS);
+        }
+        assertThrows(FileTxnSnapLog.LogDirContentCheckException.class,
+            () -> new FileTxnSnapLog(stripedDataDir, stripedDataDir));
+    }
+
+}
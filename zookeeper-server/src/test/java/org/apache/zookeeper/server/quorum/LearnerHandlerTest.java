@@ -24,6 +24,7 @@
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 import java.io.BufferedInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.net.Socket;
 import java.util.Collections;
@@ -38,6 +39,7 @@
 import org.apache.zookeeper.server.persistence.FileTxnSnapLog;
 import org.apache.zookeeper.server.quorum.Leader.Proposal;
 import org.apache.zookeeper.server.util.ZxidUtils;
+import org.apache.zookeeper.test.ClientBase;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.ArgumentMatchers;
@@ -75,6 +77,7 @@ class MockZKDatabase extends ZKDatabase {
         ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
         LinkedList<Proposal> committedLog = new LinkedList<>();
         LinkedList<Proposal> txnLog = new LinkedList<>();
+        File snapshot;
 
         public MockZKDatabase(FileTxnSnapLog snapLog) {
             super(snapLog);
@@ -119,6 +122,10 @@ public long calculateTxnLogSizeLimit() {
             return 1;
         }
 
+        public File getLastSealedSnapshot() {
+            return snapshot;
+        }
+
     }
 
     private MockLearnerHandler learnerHandler;
@@ -556,4 +563,68 @@ public void testTxnLogGap() throws Exception {
         reset();
     }
 
+    /**
+     * Test cases when the learner is sent the snapshot file of the leader,
+     * followed by the txns after it
+     */
+    @Test
+    public void testSnapshotFileSync() throws Exception {
+        System.setProperty(LearnerHandler.SNAPSHOT_FILE_SYNC, "true");
+        try {
+            learnerHandler = new MockLearnerHandler(sock, leader);
+        } finally {
+            System.clearProperty(LearnerHandler.SNAPSHOT_FILE_SYNC);
+        }
+        File snapDir = ClientBase.createTmpDir();
+        long peerZxid = 1;
+        db.lastProcessedZxid = 7;
+        db.committedLog.add(createProposal(5));
+        db.committedLog.add(createProposal(6));
+        db.committedLog.add(createProposal(7));
+
+        // Snapshot is within the txnlog range
+        db.txnLog.add(createProposal(2));
+        db.txnLog.add(createProposal(3));
+        db.txnLog.add(createProposal(4));
+        db.txnLog.add(createProposal(5));
+        db.snapshot = new File(snapDir, "snapshot.3");
+        assertTrue(db.snapshot.createNewFile());
+
+        // A learner of an earlier version is sent the data tree
+        learnerHandler.version = 0x10000;
+        assertTrue(learnerHandler.syncFollower(peerZxid, leader));
+        assertEquals(0, learnerHandler.getQueuedPackets().size());
+        assertZxidEquals(db.lastProcessedZxid, currentZxid);
+        reset();
+
+        learnerHandler.version = Leader.SNAPFILE_PROTOCOL_VERSION;
+        assertTrue(learnerHandler.syncFollower(peerZxid, leader));
+        queuedPacketMatches(new long[]{4, 5, 6, 7});
+        // 4 proposals + 4 commits
+        assertEquals(8, learnerHandler.getQueuedPackets().size());
+        assertZxidEquals(7, currentZxid);
+        reset();
+
+        // Snapshot is within the committedLog range
+        db.snapshot = new File(snapDir, "snapshot.6");
+        assertTrue(db.snapshot.createNewFile());
+        assertTrue(learnerHandler.syncFollower(peerZxid, leader));
+        queuedPacketMatches(new long[]{7});
+        assertEquals(2, learnerHandler.getQueuedPackets().size());
+        assertZxidEquals(7, currentZxid);
+        reset();
+
+        // The txns right after the snapshot are missing, so the data tree
+        // is sent instead
+        db.txnLog.clear();
+        db.txnLog.add(createProposal(2));
+        db.txnLog.add(createProposal(4));
+        db.txnLog.add(createProposal(5));
+        db.snapshot = new File(snapDir, "snapshot.3");
+        assertTrue(learnerHandler.syncFollower(peerZxid, leader));
+        assertEquals(0, learnerHandler.getQueuedPackets().size());
+        assertZxidEquals(db.lastProcessedZxid, currentZxid);
+        reset();
+    }
+
 }
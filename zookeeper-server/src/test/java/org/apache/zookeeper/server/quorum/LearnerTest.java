@@ -24,6 +24,7 @@
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
@@ -50,6 +51,7 @@
 import org.apache.zookeeper.server.ExitCode;
 import org.apache.zookeeper.server.ZKDatabase;
 import org.apache.zookeeper.server.persistence.FileTxnSnapLog;
+import org.apache.zookeeper.test.ClientBase;
 import org.apache.zookeeper.test.TestUtils;
 import org.apache.zookeeper.txn.CreateTxn;
 import org.apache.zookeeper.txn.TxnHeader;
@@ -185,6 +187,23 @@ public void connectionInitLimitTimeoutTest() throws Exception {
         }
     }
 
+    @Test
+    public void testDeleteSyncSnapshotFiles() throws Exception {
+        File snapDir = ClientBase.createTmpDir();
+        try {
+            File partial = new File(snapDir, Learner.SYNC_SNAPSHOT_FILE_PREFIX + "snapshot.5");
+            File snapshot = new File(snapDir, "snapshot.5");
+            assertTrue(partial.createNewFile());
+            assertTrue(snapshot.createNewFile());
+
+            Learner.deleteSyncSnapshotFiles(snapDir);
+            assertFalse(partial.exists());
+            assertTrue(snapshot.exists());
+        } finally {
+            TestUtils.deleteFileRecursively(snapDir);
+        }
+    }
+
     @Test
     public void shouldTryMultipleAddresses() throws Exception {
         System.setProperty(QuorumPeer.CONFIG_KEY_MULTI_ADDRESS_ENABLED, "true");
@@ -0,0 +1,86 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.quorum;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.ZooKeeper.States;
+import org.apache.zookeeper.server.ServerMetrics;
+import org.apache.zookeeper.server.metric.SimpleCounter;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class SnapshotFileSyncTest extends QuorumPeerTestBase {
+
+    private Servers servers;
+
+    @BeforeEach
+    public void setup() throws Exception {
+        System.setProperty(LearnerHandler.SNAPSHOT_FILE_SYNC, "true");
+        ((SimpleCounter) ServerMetrics.getMetrics().SNAP_FILE_COUNT).reset();
+        servers = LaunchServers(3);
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        if (servers != null) {
+            servers.shutDownAllServers();
+        }
+        System.clearProperty(LearnerHandler.SNAPSHOT_FILE_SYNC);
+        System.clearProperty(LearnerHandler.FORCE_SNAP_SYNC);
+    }
+
+    @Test
+    public void testSyncWithSnapshotFile() throws Exception {
+        System.setProperty(LearnerHandler.FORCE_SNAP_SYNC, "true");
+        int leader = servers.findLeader();
+        ZooKeeper zk = servers.zk[leader];
+        for (int i = 0; i < 50; i++) {
+            zk.create("/node" + i, ("data" + i).getBytes(), Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        }
+        // a snapshot with txns after it
+        servers.mt[leader].main.quorumPeer.getActiveServer().takeSnapshot();
+        for (int i = 50; i < 100; i++) {
+            zk.create("/node" + i, ("data" + i).getBytes(), Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        }
+
+        int follower = servers.findAnyFollower();
+        servers.mt[follower].shutdown();
+        waitForOne(servers.zk[follower], States.CONNECTING);
+        zk.delete("/node0", -1);
+        zk.setData("/node1", "changed".getBytes(), -1);
+        servers.mt[follower].start();
+        waitForOne(servers.zk[follower], States.CONNECTED);
+
+        assertTrue(((SimpleCounter) ServerMetrics.getMetrics().SNAP_FILE_COUNT).get() > 0);
+        ZooKeeper followerZk = servers.zk[follower];
+        followerZk.sync("/", null, null);
+        assertEquals(null, followerZk.exists("/node0", false));
+        assertArrayEquals("changed".getBytes(), followerZk.getData("/node1", false, null));
+        for (int i = 2; i < 100; i++) {
+            assertArrayEquals(("data" + i).getBytes(), followerZk.getData("/node" + i, false, null));
+        }
+    }
+
+}
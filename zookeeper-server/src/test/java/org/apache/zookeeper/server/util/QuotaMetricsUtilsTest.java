@@ -20,6 +20,7 @@
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import java.util.HashMap;
 import java.util.Map;
@@ -31,7 +32,6 @@
 import org.apache.zookeeper.metrics.MetricsContext;
 import org.apache.zookeeper.metrics.MetricsProvider;
 import org.apache.zookeeper.metrics.MetricsUtils;
-import org.apache.zookeeper.server.DataNode;
 import org.apache.zookeeper.server.DataTree;
 import org.apache.zookeeper.server.ServerMetrics;
 import org.junit.jupiter.api.Test;
@@ -155,39 +155,6 @@ public void testQuotaMetrics_emptyDataTree() {
         validateQuotaMetrics(UUID.randomUUID().toString(), null, null, null, null, nameSuffix);
     }
 
-    @Test
-    public void testShouldCollect_limitPath() {
-        final String limitPath = Quotas.quotaPath("/ns1") + QuotaMetricsUtils.LIMIT_END_STRING;
-
-        assertTrue(QuotaMetricsUtils.shouldCollect(limitPath, QuotaMetricsUtils.QUOTA_LIMIT_USAGE_METRIC_TYPE.QUOTA_COUNT_LIMIT));
-        assertTrue(QuotaMetricsUtils.shouldCollect(limitPath, QuotaMetricsUtils.QUOTA_LIMIT_USAGE_METRIC_TYPE.QUOTA_BYTES_LIMIT));
-
-        assertFalse(QuotaMetricsUtils.shouldCollect(limitPath, QuotaMetricsUtils.QUOTA_LIMIT_USAGE_METRIC_TYPE.QUOTA_COUNT_USAGE));
-        assertFalse(QuotaMetricsUtils.shouldCollect(limitPath, QuotaMetricsUtils.QUOTA_LIMIT_USAGE_METRIC_TYPE.QUOTA_BYTES_USAGE));
-    }
-
-    @Test
-    public void testShouldCollect_usagePath() {
-        final String usagePath = Quotas.quotaPath("/ns1") + QuotaMetricsUtils.STATS_END_STRING;
-
-        assertTrue(QuotaMetricsUtils.shouldCollect(usagePath, QuotaMetricsUtils.QUOTA_LIMIT_USAGE_METRIC_TYPE.QUOTA_COUNT_USAGE));
-        assertTrue(QuotaMetricsUtils.shouldCollect(usagePath, QuotaMetricsUtils.QUOTA_LIMIT_USAGE_METRIC_TYPE.QUOTA_BYTES_USAGE));
-
-        assertFalse(QuotaMetricsUtils.shouldCollect(usagePath, QuotaMetricsUtils.QUOTA_LIMIT_USAGE_METRIC_TYPE.QUOTA_COUNT_LIMIT));
-        assertFalse(QuotaMetricsUtils.shouldCollect(usagePath, QuotaMetricsUtils.QUOTA_LIMIT_USAGE_METRIC_TYPE.QUOTA_BYTES_LIMIT));
-    }
-
-    @Test
-    public void testShouldCollect_notLimitOrUsagePath() {
-        final String usagePath = Quotas.quotaPath("/ns1") + "/notLimitOrUsage";
-
-        assertFalse(QuotaMetricsUtils.shouldCollect(usagePath, QuotaMetricsUtils.QUOTA_LIMIT_USAGE_METRIC_TYPE.QUOTA_COUNT_USAGE));
-        assertFalse(QuotaMetricsUtils.shouldCollect(usagePath, QuotaMetricsUtils.QUOTA_LIMIT_USAGE_METRIC_TYPE.QUOTA_BYTES_USAGE));
-
-        assertFalse(QuotaMetricsUtils.shouldCollect(usagePath, QuotaMetricsUtils.QUOTA_LIMIT_USAGE_METRIC_TYPE.QUOTA_COUNT_LIMIT));
-        assertFalse(QuotaMetricsUtils.shouldCollect(usagePath, QuotaMetricsUtils.QUOTA_LIMIT_USAGE_METRIC_TYPE.QUOTA_BYTES_LIMIT));
-    }
-
     @Test
     public void testGetQuotaLimit() {
         assertEquals(0L, QuotaMetricsUtils.getQuotaLimit(0L, -1L));
@@ -196,11 +163,13 @@ public void testGetQuotaLimit() {
     }
 
     @Test
-    public void testCollectQuotaMetrics_noData() {
+    public void testCollectQuotaMetrics_noData() throws Exception {
         final Map<String, Number> metricsMap = new HashMap<>();
+        final DataTree dt = new DataTree();
+        buildAncestors(Quotas.quotaPath("/ns1"), dt);
+        dt.createNode(Quotas.limitPath("/ns1"), new byte[0], null, -1, 1, 1, 1);
 
-        QuotaMetricsUtils.collectQuotaLimitOrUsage(Quotas.quotaPath("/ns1") + QuotaMetricsUtils.LIMIT_END_STRING,
-                                        new DataNode(new byte[0], null, null),
+        QuotaMetricsUtils.collectQuotaLimitOrUsage(dt.getQuotaIndex().get("/ns1"),
                                         metricsMap,
                                         QuotaMetricsUtils.QUOTA_LIMIT_USAGE_METRIC_TYPE.QUOTA_BYTES_LIMIT);
 
@@ -211,27 +180,57 @@ public void testCollectQuotaMetrics_noData() {
     }
 
     @Test
-    public void testCollectQuotaMetrics_nullData() {
-        final Map<String, Number> metricsMap = new HashMap<>();
-
-        QuotaMetricsUtils.collectQuotaLimitOrUsage(Quotas.quotaPath("/ns1") + QuotaMetricsUtils.LIMIT_END_STRING,
-                new DataNode(null, null, null),
-                metricsMap,
-                QuotaMetricsUtils.QUOTA_LIMIT_USAGE_METRIC_TYPE.QUOTA_BYTES_LIMIT);
+    public void testCollectQuotaMetrics_nullData() throws Exception {
+        final DataTree dt = new DataTree();
+        buildAncestors(Quotas.quotaPath("/ns1"), dt);
+        dt.createNode(Quotas.limitPath("/ns1"), null, null, -1, 1, 1, 1);
 
-        assertEquals(0, metricsMap.size());
+        assertNull(dt.getQuotaIndex().get("/ns1"));
+        assertEquals(0, QuotaMetricsUtils.getQuotaBytesLimit(dt).size());
     }
 
     @Test
-    public void testCollectQuotaMetrics_noNamespace() {
-        final Map<String, Number> metricsMap = new HashMap<>();
+    public void testCollectQuotaMetrics_malformedData() throws Exception {
+        final DataTree dt = new DataTree();
+        buildAncestors(Quotas.quotaPath("/ns1"), dt);
+        dt.createNode(Quotas.limitPath("/ns1"), "count=abc".getBytes(), null, -1, 1, 1, 1);
+
+        // kept as malformed, rather than as a quota without limits
+        assertNull(dt.getQuotaIndex().get("/ns1").getLimits());
+        assertTrue(dt.getQuotaIndex().get("/ns1").isLimitsMalformed());
+        assertEquals(0, QuotaMetricsUtils.getQuotaBytesLimit(dt).size());
 
-        QuotaMetricsUtils.collectQuotaLimitOrUsage("/zookeeper/quota",
-                new DataNode(null, null, null),
-                metricsMap,
-                QuotaMetricsUtils.QUOTA_LIMIT_USAGE_METRIC_TYPE.QUOTA_BYTES_USAGE);
+        dt.setData(Quotas.limitPath("/ns1"), buildLimitStatsTrack(10, 100, -1, -1).getStatsBytes(), 1, 2, 1);
+        assertFalse(dt.getQuotaIndex().get("/ns1").isLimitsMalformed());
+        assertEquals(100L, QuotaMetricsUtils.getQuotaBytesLimit(dt).get("ns1"));
+    }
 
-        assertEquals(0, metricsMap.size());
+    @Test
+    public void testQuotaMetrics_updatedIncrementally() throws Exception {
+        final DataTree dt = new DataTree();
+        final String ns = UUID.randomUUID().toString();
+        final StatsTrack limitTrack = buildLimitStatsTrack(10, 100, -1, -1);
+        buildDataTree("/" + ns, limitTrack, buildUsageStatsTrack(1, 0), dt);
+
+        dt.createNode("/" + ns + "/n", new byte[10], null, -1, 2, 1, 1);
+        dt.setData("/" + ns, new byte[5], 1, 3, 1);
+        assertEquals(2L, QuotaMetricsUtils.getQuotaCountUsage(dt).get(ns));
+        assertEquals(15L, QuotaMetricsUtils.getQuotaBytesUsage(dt).get(ns));
+        assertEquals(new StatsTrack(dt.getNode(Quotas.statPath("/" + ns)).getData()),
+                buildUsageStatsTrack(2, 15));
+
+        limitTrack.setCount(20);
+        dt.setData(Quotas.limitPath("/" + ns), limitTrack.getStatsBytes(), 1, 4, 1);
+        assertEquals(20L, QuotaMetricsUtils.getQuotaCountLimit(dt).get(ns));
+
+        dt.deleteNode("/" + ns + "/n", 5);
+        assertEquals(1L, QuotaMetricsUtils.getQuotaCountUsage(dt).get(ns));
+        assertEquals(5L, QuotaMetricsUtils.getQuotaBytesUsage(dt).get(ns));
+
+        dt.deleteNode(Quotas.statPath("/" + ns), 6);
+        dt.deleteNode(Quotas.limitPath("/" + ns), 7);
+        assertTrue(dt.getQuotaIndex().getQuotas().isEmpty());
+        assertNull(QuotaMetricsUtils.getQuotaCountLimit(dt).get(ns));
     }
 
     private void registerQuotaMetrics(final String nameSuffix, final DataTree dt) {
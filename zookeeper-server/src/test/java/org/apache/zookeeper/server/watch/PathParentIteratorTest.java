@@ -21,6 +21,8 @@
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.util.Arrays;
+import java.util.Collections;
 import org.junit.jupiter.api.Test;
 
 public class PathParentIteratorTest {
@@ -83,4 +85,26 @@ public void testForPathOnly() {
 
         assertFalse(pathParentIterator.hasNext());
     }
+
+    @Test
+    public void testForParents() {
+        PathParentIterator pathParentIterator = PathParentIterator.forParents("/a/b/c/d", Arrays.asList("/a/b", "/"));
+        assertTrue(pathParentIterator.hasNext());
+        assertEquals(pathParentIterator.next(), "/a/b/c/d");
+        assertFalse(pathParentIterator.atParentPath());
+
+        assertTrue(pathParentIterator.hasNext());
+        assertEquals(pathParentIterator.next(), "/a/b");
+        assertTrue(pathParentIterator.atParentPath());
+
+        assertTrue(pathParentIterator.hasNext());
+        assertEquals(pathParentIterator.next(), "/");
+        assertTrue(pathParentIterator.atParentPath());
+
+        assertFalse(pathParentIterator.hasNext());
+
+        pathParentIterator = PathParentIterator.forParents("/a", Collections.emptyList());
+        assertEquals(pathParentIterator.next(), "/a");
+        assertFalse(pathParentIterator.hasNext());
+    }
 }
\ No newline at end of file
@@ -0,0 +1,98 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.watch;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+public class RecursiveWatchIndexTest {
+
+    @Test
+    public void testWatchedParents() {
+        RecursiveWatchIndex index = new RecursiveWatchIndex();
+        assertTrue(index.getWatchedParents("/a/b/c").isEmpty());
+
+        index.add("/a");
+        index.add("/a/b/c");
+        index.add("/a/b/c");
+        index.add("/x/y");
+        assertEquals(4, index.size());
+        assertEquals(Arrays.asList("/a/b/c", "/a"), index.getWatchedParents("/a/b/c/d/e"));
+        assertEquals(Collections.singletonList("/a"), index.getWatchedParents("/a/b/c"));
+        assertEquals(Collections.singletonList("/a"), index.getWatchedParents("/a/bb"));
+        assertTrue(index.getWatchedParents("/a").isEmpty());
+        assertTrue(index.getWatchedParents("/x/z").isEmpty());
+        assertTrue(index.getWatchedParents("/").isEmpty());
+
+        index.remove("/a/b/c");
+        assertEquals(Arrays.asList("/a/b/c", "/a"), index.getWatchedParents("/a/b/c/d"));
+        index.remove("/a/b/c");
+        assertEquals(Collections.singletonList("/a"), index.getWatchedParents("/a/b/c/d"));
+
+        index.add("/");
+        assertEquals(Arrays.asList("/x/y", "/"), index.getWatchedParents("/x/y/z"));
+        assertEquals(Collections.singletonList("/"), index.getWatchedParents("/x"));
+        index.remove("/");
+        index.remove("/a");
+        index.remove("/x/y");
+        assertEquals(0, index.size());
+        assertTrue(index.getWatchedParents("/a/b").isEmpty());
+    }
+
+    @Test
+    public void testRandomWatches() {
+        RecursiveWatchIndex index = new RecursiveWatchIndex();
+        Map<String, Integer> expected = new HashMap<>();
+        Random random = new Random(11);
+        for (int i = 0; i < 20000; i++) {
+            StringBuilder sb = new StringBuilder();
+            int depth = random.nextInt(4);
+            for (int d = 0; d < depth; d++) {
+                sb.append('/').append(random.nextInt(3));
+            }
+            String path = sb.length() == 0 ? "/" : sb.toString();
+            if (random.nextBoolean() || !expected.containsKey(path)) {
+                index.add(path);
+                expected.merge(path, 1, Integer::sum);
+            } else {
+                index.remove(path);
+                expected.computeIfPresent(path, (p, n) -> n == 1 ? null : n - 1);
+            }
+
+            String triggered = path + "/" + random.nextInt(3) + "/" + random.nextInt(3);
+            List<String> parents = new ArrayList<>();
+            for (String parent : PathParentIterator.forAll(triggered).asIterable()) {
+                if (!parent.equals(triggered) && expected.containsKey(parent)) {
+                    parents.add(parent);
+                }
+            }
+            assertEquals(parents, index.getWatchedParents(triggered));
+        }
+        assertEquals(expected.values().stream().mapToInt(Integer::intValue).sum(), index.size());
+    }
+
+}
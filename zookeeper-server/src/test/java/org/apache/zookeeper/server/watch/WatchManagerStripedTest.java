@@ -0,0 +1,127 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.zookeeper.server.watch;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import org.apache.zookeeper.Watcher.Event.EventType;
+import org.apache.zookeeper.server.DumbWatcher;
+import org.junit.jupiter.api.Test;
+
+public class WatchManagerStripedTest {
+
+    @Test
+    public void testModes() {
+        WatchManagerStriped manager = new WatchManagerStriped();
+        DumbWatcher watcher1 = new DumbWatcher(1);
+        DumbWatcher watcher2 = new DumbWatcher(2);
+
+        assertTrue(manager.addWatch("/a", watcher1, WatcherMode.PERSISTENT_RECURSIVE));
+        assertFalse(manager.addWatch("/a", watcher1, WatcherMode.PERSISTENT_RECURSIVE));
+        assertTrue(manager.addWatch("/a/b", watcher2));
+        assertTrue(manager.addWatch("/a/b", watcher2, WatcherMode.PERSISTENT));
+        assertEquals(1, manager.getRecursiveWatchQty());
+        assertTrue(manager.containsWatcher("/a", watcher1, WatcherMode.PERSISTENT_RECURSIVE));
+        assertFalse(manager.containsWatcher("/a", watcher1, WatcherMode.STANDARD));
+        assertFalse(manager.containsWatcher("/a/b", watcher1));
+
+        // the standard watch fires once, the persistent ones stay
+        WatcherOrBitSet fired = manager.triggerWatch("/a/b", EventType.NodeDataChanged, 1);
+        assertTrue(fired.contains(watcher1));
+        assertTrue(fired.contains(watcher2));
+        assertFalse(manager.containsWatcher("/a/b", watcher2, WatcherMode.STANDARD));
+        assertTrue(manager.containsWatcher("/a/b", watcher2, WatcherMode.PERSISTENT));
+        assertEquals(2, manager.size());
+
+        assertTrue(manager.removeWatcher("/a", watcher1, WatcherMode.PERSISTENT_RECURSIVE));
+        assertEquals(0, manager.getRecursiveWatchQty());
+        assertNull(manager.triggerWatch("/a/c", EventType.NodeCreated, 2));
+
+        manager.removeWatcher(watcher2);
+        assertEquals(0, manager.size());
+        assertNull(manager.triggerWatch("/a/b", EventType.NodeDeleted, 3));
+        assertEquals(0, manager.getWatchesSummary().getNumPaths());
+    }
+
+    @Test
+    public void testConcurrentUpdates() throws Exception {
+        WatchManagerStriped manager = new WatchManagerStriped();
+        List<DumbWatcher> watchers = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            watchers.add(new DumbWatcher(i));
+        }
+        WatcherMode[] modes = WatcherMode.values();
+
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            long seed = t;
+            threads.add(new Thread(() -> {
+                Random random = new Random(seed);
+                for (int i = 0; i < 50000; i++) {
+                    String path = "/" + random.nextInt(10) + "/" + random.nextInt(50);
+                    DumbWatcher watcher = watchers.get(random.nextInt(watchers.size()));
+                    int op = random.nextInt(10);
+                    if (op < 5) {
+                        manager.addWatch(path, watcher, modes[random.nextInt(modes.length)]);
+                    } else if (op < 7) {
+                        manager.removeWatcher(path, watcher, modes[random.nextInt(modes.length)]);
+                    } else if (op < 9) {
+                        manager.triggerWatch(path, EventType.NodeDataChanged, i);
+                    } else {
+                        manager.containsWatcher(path, watcher);
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        // both tables of the stripes agree
+        Map<String, Set<Long>> byPath = manager.getWatchesByPath().toMap();
+        Map<String, Set<Long>> fromWatches = new HashMap<>();
+        int recursive = 0;
+        for (Map.Entry<Long, Set<String>> e : manager.getWatches().toMap().entrySet()) {
+            for (String path : e.getValue()) {
+                fromWatches.computeIfAbsent(path, p -> new HashSet<>()).add(e.getKey());
+                DumbWatcher watcher = watchers.get(e.getKey().intValue());
+                assertTrue(manager.containsWatcher(path, watcher));
+                if (manager.containsWatcher(path, watcher, WatcherMode.PERSISTENT_RECURSIVE)) {
+                    recursive++;
+                }
+            }
+        }
+        assertEquals(fromWatches, byPath);
+        assertEquals(recursive, manager.getRecursiveWatchQty());
+        assertEquals(manager.getWatchesSummary().getTotalWatches(), manager.size());
+    }
+
+}
@@ -23,6 +23,7 @@
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -59,7 +60,8 @@ public class WatchManagerTest extends ZKTestCase {
     public static Stream<Arguments> data() {
         return Stream.of(
             Arguments.of(WatchManager.class.getName()),
-            Arguments.of(WatchManagerOptimized.class.getName()));
+            Arguments.of(WatchManagerOptimized.class.getName()),
+            Arguments.of(WatchManagerStriped.class.getName()));
     }
 
     @BeforeEach
@@ -719,6 +721,31 @@ public void testDeadWatchers(String className) throws IOException {
         }
     }
 
+    @Test
+    public void testProcessDeadWatchersMetrics() {
+        ServerMetrics.getMetrics().resetAll();
+        WatchManagerOptimized manager = new WatchManagerOptimized();
+        try {
+            DumbWatcher live = new DumbWatcher(1);
+            DumbWatcher dead = new DumbWatcher(2);
+            for (int i = 0; i < 10000; i++) {
+                manager.addWatch("/node" + i, live);
+                manager.addWatch("/node" + i, dead);
+            }
+            int deadBit = manager.getWatcherBit(dead);
+            manager.processDeadWatchers(Collections.singleton(deadBit));
+            for (int i = 0; i < 10000; i++) {
+                assertTrue(manager.containsWatcher("/node" + i, live));
+                assertFalse(manager.containsWatcher("/node" + i, dead));
+            }
+            assertEquals(10000, manager.size());
+            // one sample per clean up, its slowest path
+            assertEquals(1L, MetricsUtils.currentServerMetrics().get("cnt_dead_watchers_cleaner_slice_time"));
+        } finally {
+            manager.shutdown();
+        }
+    }
+
     private void checkMetrics(String metricName, long min, long max, double avg, long cnt, long sum) {
         Map<String, Object> values = MetricsUtils.currentServerMetrics();
 
@@ -171,4 +171,26 @@ public void testDeadWatcherMetrics() throws InterruptedException {
         waitForMetric("p99_dead_watchers_cleaner_latency", closeTo(20, 5));
     }
 
+    @Test
+    public void testDeadWatchersBacklog() throws InterruptedException {
+        ServerMetrics.getMetrics().resetAll();
+        CountDownLatch latch = new CountDownLatch(1);
+        Set<Integer> processed = new HashSet<>();
+        IDeadWatcherListener listener = deadWatchers -> {
+            processed.addAll(deadWatchers);
+            latch.countDown();
+        };
+        WatcherCleaner cleaner = new WatcherCleaner(listener, 2, 60, 1, -1);
+        cleaner.start();
+        cleaner.addDeadWatcher(1);
+        cleaner.addDeadWatcher(2);
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(2, processed.size());
+        waitForMetric("cnt_dead_watchers_backlog", is(1L));
+        waitForMetric("max_dead_watchers_backlog", is(2L));
+        waitForMetric("dead_watchers_cleared", is(2L));
+        cleaner.shutdown();
+    }
+
 }